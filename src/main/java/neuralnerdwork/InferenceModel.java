@@ -0,0 +1,119 @@
+package neuralnerdwork;
+
+import neuralnerdwork.backprop.BatchNormLayer;
+import neuralnerdwork.backprop.Layer;
+import neuralnerdwork.backprop.LayerWorkspace;
+import neuralnerdwork.math.Model;
+import org.ejml.data.DMatrix;
+import org.ejml.data.DMatrixRMaj;
+
+/**
+ * A trained network frozen for inference, from {@link NeuralNetwork#compileForInference()}. It has its own copy of the
+ * parameters, which never changes, and runs the layers' batch kernels directly rather than building expressions. Each
+ * thread gets its own buffers, which are planned on its first call and reused afterwards (along with the weights copied
+ * into them), so evaluating a single input neither copies weights nor allocates buffers.
+ *
+ * This is safe to use from any number of threads at once.
+ */
+public final class InferenceModel {
+    private final Layer<?>[] layers;
+    private final Model.ParameterBindings parameterBindings;
+    private final ThreadLocal<Buffers> buffers;
+
+    /**
+     * @param parameterBindings Must not be changed after this is created.
+     */
+    InferenceModel(Layer<?>[] layers, Model.ParameterBindings parameterBindings) {
+        if (layers.length == 0) {
+            throw new IllegalArgumentException("layers must be non-empty");
+        }
+        this.layers = layers.clone();
+        this.parameterBindings = parameterBindings;
+        // Fixed now, rather than on first use by whichever thread gets there first
+        parameterBindings.version();
+        this.buffers = ThreadLocal.withInitial(() -> new Buffers(this.layers));
+    }
+
+    private static final class Buffers {
+        private final LayerWorkspace[] workspaces;
+        private final DMatrixRMaj input;
+
+        private Buffers(Layer<?>[] layers) {
+            this.workspaces = new LayerWorkspace[layers.length];
+            for (int l = 0; l < layers.length; l++) {
+                workspaces[l] = new LayerWorkspace();
+            }
+            this.input = new DMatrixRMaj(layers[0].inputLength(), 1);
+        }
+    }
+
+    public int inputLength() {
+        return layers[0].inputLength();
+    }
+
+    public int outputLength() {
+        return layers[layers.length - 1].outputLength();
+    }
+
+    public double[] apply(double[] input) {
+        final double[] output = new double[outputLength()];
+        apply(input, output);
+
+        return output;
+    }
+
+    /**
+     * Evaluates the network for one input, into an array the caller can reuse.
+     *
+     * @param output Set to the network output.
+     */
+    public void apply(double[] input, double[] output) {
+        if (input.length != inputLength() || output.length != outputLength()) {
+            throw new IllegalArgumentException(String.format("Expected input of length %d and output of length %d but found %d and %d",
+                                                             inputLength(), outputLength(), input.length, output.length));
+        }
+        final Buffers buffers = this.buffers.get();
+        System.arraycopy(input, 0, buffers.input.data, 0, input.length);
+        final DMatrix result = evaluate(buffers.input, buffers);
+        for (int i = 0; i < output.length; i++) {
+            output[i] = result.get(i, 0);
+        }
+    }
+
+    /**
+     * @param inputs A matrix whose columns are input vectors to the network.
+     * @return A new matrix whose columns are the network outputs for the corresponding input columns.
+     */
+    public DMatrixRMaj applyBatch(DMatrix inputs) {
+        if (inputs.getNumRows() != inputLength()) {
+            throw new IllegalArgumentException(String.format("Expected inputs with %d rows but found %d",
+                                                             inputLength(), inputs.getNumRows()));
+        }
+        final DMatrix result = evaluate(inputs, buffers.get());
+        final DMatrixRMaj outputs = new DMatrixRMaj(result.getNumRows(), result.getNumCols());
+        for (int row = 0; row < outputs.getNumRows(); row++) {
+            for (int col = 0; col < outputs.getNumCols(); col++) {
+                outputs.unsafe_set(row, col, result.get(row, col));
+            }
+        }
+
+        return outputs;
+    }
+
+    /*
+     Batch normalization layers that couldn't be folded away would normalize a batch with its own statistics, so they're
+     evaluated with their running statistics instead.
+     */
+    private DMatrix evaluate(DMatrix inputs, Buffers buffers) {
+        DMatrix lastOutputs = inputs;
+        for (int l = 0; l < layers.length; l++) {
+            if (layers[l] instanceof BatchNormLayer batchNorm) {
+                lastOutputs = batchNorm.evaluateWithRunningStatistics(lastOutputs, parameterBindings, buffers.workspaces[l]).output();
+            } else {
+                lastOutputs = layers[l].evaluateBatch(lastOutputs, parameterBindings, buffers.workspaces[l]).output();
+            }
+        }
+
+        return lastOutputs;
+    }
+}
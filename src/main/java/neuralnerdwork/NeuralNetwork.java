@@ -1,12 +1,17 @@
 package neuralnerdwork;
 
+import neuralnerdwork.backprop.BatchNormLayer;
 import neuralnerdwork.backprop.FeedForwardNetwork;
 import neuralnerdwork.backprop.FullyConnectedLayer;
 import neuralnerdwork.backprop.Layer;
+import neuralnerdwork.backprop.SoftmaxLayer;
 import neuralnerdwork.math.*;
 import org.ejml.data.DMatrix;
 import org.ejml.data.DMatrixRMaj;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.function.Function;
 
@@ -31,12 +36,85 @@ public record NeuralNetwork(FeedForwardNetwork runtimeNetwork, Model.ParameterBi
         return runtimeNetwork.expression(input).evaluate(parameterBindings);
     }
 
+    /**
+     * @return A network with the same layers whose parameters are stored (and, for layers that support it, trained) with the
+     * given precision.
+     */
+    public NeuralNetwork withPrecision(Precision precision) {
+        return new NeuralNetwork(runtimeNetwork, parameterBindings.copy(precision));
+    }
+
+    /**
+     * @return A network for inference, where each {@link BatchNormLayer} that can be is folded into the layer before it,
+     * so that normalizing costs nothing. Parameters are copied, so this network is unchanged.
+     */
+    public NeuralNetwork foldBatchNormalization() {
+        final Model.ParameterBindings bindings = parameterBindings.copy();
+        final List<Layer<?>> layers = new ArrayList<>();
+        for (Layer<?> layer : runtimeNetwork.layers()) {
+            final int last = layers.size() - 1;
+            if (layer instanceof BatchNormLayer batchNorm && last >= 0 && batchNorm.canFoldInto(layers.get(last))) {
+                layers.set(last, batchNorm.foldInto(layers.get(last), bindings));
+            } else {
+                layers.add(layer);
+            }
+        }
+
+        return new NeuralNetwork(new FeedForwardNetwork(layers.toArray(Layer<?>[]::new)), bindings);
+    }
+
+    /**
+     * @return A frozen copy of this network for inference, with batch normalization folded away and layers fused where
+     * possible (see {@link FeedForwardNetwork#fuse()}). Later changes to this network's parameters or to the running
+     * statistics of batch normalization layers that couldn't be folded don't affect it.
+     */
+    public InferenceModel compileForInference() {
+        final NeuralNetwork folded = foldBatchNormalization();
+        final Layer<?>[] layers = folded.runtimeNetwork().fuse().layers();
+        for (int l = 0; l < layers.length; l++) {
+            if (layers[l] instanceof BatchNormLayer batchNorm) {
+                layers[l] = batchNorm.withStatisticsSnapshot();
+            }
+        }
+
+        return new InferenceModel(layers, folded.parameterBindings());
+    }
+
     public static NeuralNetwork fullyConnectedClassificationNetwork(Function<Layer<?>, Double> initialWeightSupplier, int... layerSizes) {
         var modelBuilder = new Model();
         return fullyConnectedClassificationNetwork(initialWeightSupplier, modelBuilder, layerSizes);
     }
 
     public static NeuralNetwork fullyConnectedClassificationNetwork(Function<Layer<?>, Double> initialWeightSupplier, Model modelBuilder, int... layerSizes) {
+        var layers = fullyConnectedLayers(modelBuilder, new LogisticFunction(), layerSizes);
+
+        Model.ParameterBindings initialParameterBindings = initializeParameters(initialWeightSupplier, modelBuilder, layers);
+        var feedforwardDefinition = new FeedForwardNetwork(layers);
+
+        return new NeuralNetwork(feedforwardDefinition, initialParameterBindings);
+    }
+
+    /**
+     * @return A fully connected network whose last layer gives logits (without an activation) for a {@link SoftmaxLayer}, so
+     * that it outputs a probability for each class. {@link NeuralNetworkTrainer} trains such networks with cross-entropy.
+     */
+    public static NeuralNetwork softmaxClassificationNetwork(Function<Layer<?>, Double> initialWeightSupplier, int... layerSizes) {
+        var modelBuilder = new Model();
+        return softmaxClassificationNetwork(initialWeightSupplier, modelBuilder, layerSizes);
+    }
+
+    public static NeuralNetwork softmaxClassificationNetwork(Function<Layer<?>, Double> initialWeightSupplier, Model modelBuilder, int... layerSizes) {
+        var fullyConnected = fullyConnectedLayers(modelBuilder, new IdentityFunction(), layerSizes);
+        var layers = Arrays.copyOf(fullyConnected, fullyConnected.length + 1);
+        layers[fullyConnected.length] = new SoftmaxLayer(layerSizes[layerSizes.length - 1]);
+
+        Model.ParameterBindings initialParameterBindings = initializeParameters(initialWeightSupplier, modelBuilder, layers);
+        var feedforwardDefinition = new FeedForwardNetwork(layers);
+
+        return new NeuralNetwork(feedforwardDefinition, initialParameterBindings);
+    }
+
+    private static Layer<?>[] fullyConnectedLayers(Model modelBuilder, ActivationFunction outputActivation, int... layerSizes) {
         /*
           (inp)               (out)
            l0   l1   l2   l3  l4
@@ -62,7 +140,7 @@ public record NeuralNetwork(FeedForwardNetwork runtimeNetwork, Model.ParameterBi
         }
         //start at first hidden layer; end at output layer (TODO: bias on output layer should be optional)
         // build weight matrices to reuse in layers
-        var layers = new Layer[layerSizes.length - 1];
+        var layers = new Layer<?>[layerSizes.length - 1];
         LeakyRelu activation = new LeakyRelu(0.01);
         for (int l = 1; l < layerSizes.length; l++) {
             // columns: input size
@@ -70,16 +148,13 @@ public record NeuralNetwork(FeedForwardNetwork runtimeNetwork, Model.ParameterBi
             ParameterMatrix layerLWeights = modelBuilder.createParameterMatrix(layerSizes[l], layerSizes[l-1]);
             ParameterVector bias = modelBuilder.createParameterVector(layerSizes[l]);
             if(l == layerSizes.length - 1){
-                layers[l - 1] = new FullyConnectedLayer(layerLWeights, Optional.ofNullable(bias), new LogisticFunction());
+                layers[l - 1] = new FullyConnectedLayer(layerLWeights, Optional.ofNullable(bias), outputActivation);
             } else {
                 layers[l - 1] = new FullyConnectedLayer(layerLWeights, Optional.ofNullable(bias), activation);
             }
         }
 
-        Model.ParameterBindings initialParameterBindings = initializeParameters(initialWeightSupplier, modelBuilder, layers);
-        var feedforwardDefinition = new FeedForwardNetwork(layers);
-
-        return new NeuralNetwork(feedforwardDefinition, initialParameterBindings);
+        return layers;
     }
 
     private static Model.ParameterBindings initializeParameters(Function<Layer<?>, Double> initialWeightSupplier, Model modelBuilder, Layer<?>[] layers) {
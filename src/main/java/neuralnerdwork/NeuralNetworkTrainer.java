@@ -1,16 +1,26 @@
 
 package neuralnerdwork;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
+import org.ejml.data.DMatrix;
 import org.ejml.data.DMatrixRMaj;
 import org.ejml.dense.row.CommonOps_DDRM;
 
+import neuralnerdwork.backprop.FeedForwardNetwork;
+import neuralnerdwork.backprop.Layer;
+import neuralnerdwork.backprop.SoftmaxLayer;
 import neuralnerdwork.descent.GradientDescentStrategy;
+import neuralnerdwork.math.BoundScalarExpression;
 import neuralnerdwork.math.ColumnVectorizedSingleVariableFunction;
 import neuralnerdwork.math.DMatrixColumnVectorExpression;
 import neuralnerdwork.math.DotProduct;
+import neuralnerdwork.math.ExpressionTape;
+import neuralnerdwork.math.InputVector;
 import neuralnerdwork.math.Model;
 import neuralnerdwork.math.Model.ParameterBindings;
 import neuralnerdwork.math.ParameterVector;
@@ -18,6 +28,7 @@ import neuralnerdwork.math.ScalarConstantMultiple;
 import neuralnerdwork.math.ScalarExpression;
 import neuralnerdwork.math.ScalarSum;
 import neuralnerdwork.math.ScaledVector;
+import neuralnerdwork.math.SoftmaxCrossEntropy;
 import neuralnerdwork.math.SquareRoot;
 import neuralnerdwork.math.SquaredSingleVariableFunction;
 import neuralnerdwork.math.VectorExpression;
@@ -29,6 +40,7 @@ public class NeuralNetworkTrainer {
     private final IterationObserver iterationObserver;
     private final NeuralNetwork network;
     private final Function<ParameterVector, ScalarExpression> additionalError;
+    private final boolean batchExecution;
 
     public static Function<ParameterVector, ScalarExpression> L2NormAdditionalError(double constant) {
         return allWeights -> new ScalarConstantMultiple(constant, new SquareRoot(sumOfSquaredVector(allWeights)));
@@ -46,55 +58,51 @@ public class NeuralNetworkTrainer {
             ValidationStrategy validationStrategy,
             IterationObserver iterationObserver,
             Function<ParameterVector, ScalarExpression> additionalError
+    ) {
+        this(network, gradientDescentStrategy, validationStrategy, iterationObserver, additionalError, true);
+    }
+
+    /**
+     * Networks that end in a {@link SoftmaxLayer} are trained with the cross-entropy of their output probabilities, which
+     * is computed from the logits of the layers before it with {@link SoftmaxCrossEntropy}. Other networks are trained with
+     * the squared error of their outputs.
+     *
+     * @param batchExecution If true, each minibatch is run through the network as a single matrix with one column per sample.
+     *                       Otherwise, a separate network expression is built and evaluated for every sample.
+     */
+    public NeuralNetworkTrainer(NeuralNetwork network,
+            GradientDescentStrategy gradientDescentStrategy,
+            ValidationStrategy validationStrategy,
+            IterationObserver iterationObserver,
+            Function<ParameterVector, ScalarExpression> additionalError,
+            boolean batchExecution
     ) {
         this.network = network;
         this.gradientDescentStrategy = gradientDescentStrategy;
         this.validationStrategy = validationStrategy;
         this.iterationObserver = iterationObserver;
         this.additionalError = additionalError;
+        this.batchExecution = batchExecution;
     }
 
     NeuralNetwork train(List<TrainingSample> samples) {
         ParameterBindings initialParameterBindings = network.parameterBindings();
         var feedforwardDefinition = network.runtimeNetwork();
+        // The additional error only depends on the weights, so it is compiled once for the whole training run
+        final ExpressionTape compiledAdditionalError =
+                ExpressionTape.compile(additionalError.apply(initialParameterBindings.allWeightsVector()));
+        final FeedForwardNetwork logits = softmaxLogits(feedforwardDefinition);
+        final Function<List<TrainingSample>, ScalarExpression> errorFunction = batchExecution ?
+                batchErrorFunction(feedforwardDefinition, logits, compiledAdditionalError) :
+                sampleErrorFunction(feedforwardDefinition, logits, compiledAdditionalError);
 
         Model.ParameterBindings parameterBindings = gradientDescentStrategy.runGradientDescent(
                 samples,
                 initialParameterBindings,
-                ts -> {
-                    final ScalarExpression[] squaredErrors = new ScalarExpression[ts.size()];
-                    for (int i = 0; i < ts.size(); i++) {
-                        var sample = ts.get(i);
-                        var inputLayer = sample.input();
-                        if (inputLayer.length != feedforwardDefinition.inputLength()) {
-                            throw new IllegalArgumentException(
-                                    "Sample " + i + " has wrong size (got " + sample.input().length + "; expected "
-                                            + feedforwardDefinition.inputLength() + ")");
-                        }
-                        if (sample.output().length != feedforwardDefinition.outputLength()) {
-                            throw new IllegalArgumentException(
-                                    "Sample " + i + " has wrong size (got " + sample.output().length + "; expected "
-                                            + feedforwardDefinition.outputLength() + ")");
-                        }
-
-                        VectorExpression network = feedforwardDefinition.expression(new DMatrixRMaj(inputLayer.length,
-                                                                                                    1,
-                                                                                                    true,
-                                                                                                    inputLayer));
-
-                        // find (squared) error amount
-                        squaredErrors[i] = squaredError(sample, network);
-                    }
-
-                    ParameterVector allWeights = network.parameterBindings().allWeightsVector();
-
-                    // this is a function that hasn't been evaluated yet
-                    return new ScalarSum(
-                            new ScalarConstantMultiple(1.0 / (double) ts.size(), ScalarSum.sum(squaredErrors)),
-                            additionalError.apply(allWeights)
-                    );
-                },
+                errorFunction,
                 (iterationCount, lastUpdateVector, currentParameters) -> {
+                    // Once per step, so that every shard of the minibatch (and no repeated gradient) counts once
+                    feedforwardDefinition.updateRunningStatistics();
                     NeuralNetwork network = new NeuralNetwork(feedforwardDefinition, currentParameters);
                     iterationObserver.observe(iterationCount, network);
                     return validationStrategy.hasConverged(iterationCount, network);
@@ -103,17 +111,336 @@ public class NeuralNetworkTrainer {
         return new NeuralNetwork(feedforwardDefinition, parameterBindings);
     }
 
-    private static ScalarExpression squaredError(TrainingSample sample, VectorExpression network) {
+    /**
+     * @return The layers before a final {@link SoftmaxLayer}, whose output is the logits of the softmax, or null if the
+     * network doesn't end in one.
+     */
+    private static FeedForwardNetwork softmaxLogits(FeedForwardNetwork network) {
+        final Layer<?>[] layers = network.layers();
+        if (layers.length < 2 || !(layers[layers.length - 1] instanceof SoftmaxLayer)) {
+            return null;
+        }
+
+        return new FeedForwardNetwork(Arrays.copyOf(layers, layers.length - 1));
+    }
+
+    /**
+     * The loss is built once with input placeholders for the whole minibatch. Each thread that evaluates a minibatch
+     * copies its samples into input and target matrices of its own, which are reused for every minibatch it evaluates.
+     *
+     * @param logits The layers before a final softmax layer, or null to train with squared error.
+     */
+    private static Function<List<TrainingSample>, ScalarExpression> batchErrorFunction(FeedForwardNetwork feedforwardDefinition,
+                                                                                       FeedForwardNetwork logits,
+                                                                                       ExpressionTape additionalError) {
+        final Model inputModel = new Model();
+        final InputVector inputs = inputModel.createInputVector(feedforwardDefinition.inputLength());
+        final InputVector targets = inputModel.createInputVector(feedforwardDefinition.outputLength());
+        final FeedForwardNetwork trainedNetwork = logits != null ? logits : feedforwardDefinition;
+        final ThreadLocal<BatchBuffers> buffers = ThreadLocal.withInitial(
+                () -> new BatchBuffers(trainedNetwork.createWorkspace(), inputModel.createInputBinder(), inputs, targets));
+        final BatchError error = logits != null ?
+                new BatchSoftmaxCrossEntropy(logits, inputs, targets, buffers) :
+                new BatchMeanSquaredError(feedforwardDefinition, inputs, targets, buffers);
+
+        return ts -> {
+            for (int i = 0; i < ts.size(); i++) {
+                validateSample(feedforwardDefinition, i, ts.get(i));
+            }
+
+            return new BatchLoss(error, additionalError, ts, buffers);
+        };
+    }
+
+    /**
+     * Builds one compiled loss per minibatch size, with an input and target placeholder per sample, and reuses it
+     * for every minibatch of that size.
+     *
+     * @param logits The layers before a final softmax layer, or null to train with squared error.
+     */
+    private static Function<List<TrainingSample>, ScalarExpression> sampleErrorFunction(FeedForwardNetwork feedforwardDefinition,
+                                                                                        FeedForwardNetwork logits,
+                                                                                        ScalarExpression additionalError) {
+        record SampleLoss(Model inputModel, InputVector[] inputs, InputVector[] targets, ScalarExpression loss) {}
+        final Map<Integer, SampleLoss> losses = new ConcurrentHashMap<>();
+
+        return ts -> {
+            final SampleLoss sampleLoss = losses.computeIfAbsent(ts.size(), size -> {
+                final Model inputModel = new Model();
+                final InputVector[] inputs = new InputVector[size];
+                final InputVector[] targets = new InputVector[size];
+                final ScalarExpression[] squaredErrors = new ScalarExpression[size];
+                for (int i = 0; i < size; i++) {
+                    inputs[i] = inputModel.createInputVector(feedforwardDefinition.inputLength());
+                    targets[i] = inputModel.createInputVector(feedforwardDefinition.outputLength());
+                    // find (squared or cross-entropy) error amount
+                    squaredErrors[i] = logits != null ?
+                            new SoftmaxCrossEntropy(logits.expression(inputs[i]), targets[i]) :
+                            squaredError(targets[i], feedforwardDefinition.expression(inputs[i]));
+                }
+
+                return new SampleLoss(inputModel, inputs, targets, ExpressionTape.compile(new ScalarSum(
+                        new ScalarConstantMultiple(1.0 / (double) size, ScalarSum.sum(squaredErrors)),
+                        additionalError
+                )));
+            });
+
+            final Model.InputBindings inputBindings = sampleLoss.inputModel().createInputBinder();
+            for (int i = 0; i < ts.size(); i++) {
+                var sample = ts.get(i);
+                validateSample(feedforwardDefinition, i, sample);
+                inputBindings.put(sampleLoss.inputs()[i], sample.input());
+                inputBindings.put(sampleLoss.targets()[i], sample.output());
+            }
+
+            return new BoundScalarExpression(sampleLoss.loss(), inputBindings);
+        };
+    }
+
+    private static void validateSample(FeedForwardNetwork feedforwardDefinition, int i, TrainingSample sample) {
+        if (sample.input().length != feedforwardDefinition.inputLength()) {
+            throw new IllegalArgumentException(
+                    "Sample " + i + " has wrong size (got " + sample.input().length + "; expected "
+                            + feedforwardDefinition.inputLength() + ")");
+        }
+        if (sample.output().length != feedforwardDefinition.outputLength()) {
+            throw new IllegalArgumentException(
+                    "Sample " + i + " has wrong size (got " + sample.output().length + "; expected "
+                            + feedforwardDefinition.outputLength() + ")");
+        }
+    }
+
+    /**
+     * Buffers reused by every minibatch evaluated on a thread, and the last gradient computed on it.
+     */
+    private static final class BatchBuffers {
+        private final FeedForwardNetwork.Workspace workspace;
+        private final DMatrixRMaj errors = new DMatrixRMaj(1, 1);
+        private final Model.InputBindings inputBindings;
+        private final InputVector inputs;
+        private final InputVector targets;
+        private final DMatrixRMaj inputValues;
+        private final DMatrixRMaj targetValues;
+        // The samples currently copied into the input and target values
+        private TrainingSample[] samples = new TrainingSample[0];
+        private int sampleCount;
+        private DMatrix gradient;
+        private long gradientVersion;
+        private int gradientStart;
+
+        private BatchBuffers(FeedForwardNetwork.Workspace workspace, Model.InputBindings inputBindings, InputVector inputs, InputVector targets) {
+            this.workspace = workspace;
+            this.inputBindings = inputBindings;
+            this.inputs = inputs;
+            this.targets = targets;
+            this.inputValues = new DMatrixRMaj(inputs.length(), 1);
+            this.targetValues = new DMatrixRMaj(targets.length(), 1);
+            inputBindings.put(inputs, inputValues);
+            inputBindings.put(targets, targetValues);
+        }
+
+        FeedForwardNetwork.Workspace workspace() {
+            return workspace;
+        }
+
+        DMatrixRMaj errors() {
+            return errors;
+        }
+
+        /**
+         * @return Input bindings with the given samples as the columns of the input and target values. They are only
+         * copied again when a different minibatch was bound last.
+         */
+        Model.InputBindings bind(List<TrainingSample> minibatch) {
+            if (!holds(minibatch)) {
+                final int batchSize = minibatch.size();
+                inputValues.reshape(inputValues.getNumRows(), batchSize, false);
+                targetValues.reshape(targetValues.getNumRows(), batchSize, false);
+                if (samples.length < batchSize) {
+                    samples = new TrainingSample[batchSize];
+                }
+                for (int i = 0; i < batchSize; i++) {
+                    final TrainingSample sample = minibatch.get(i);
+                    for (int row = 0; row < sample.input().length; row++) {
+                        inputValues.unsafe_set(row, i, sample.input()[row]);
+                    }
+                    for (int row = 0; row < sample.output().length; row++) {
+                        targetValues.unsafe_set(row, i, sample.output()[row]);
+                    }
+                    samples[i] = sample;
+                }
+                sampleCount = batchSize;
+                gradient = null;
+                // bound again, so that results cached against the input bindings see the new values
+                inputBindings.put(inputs, inputValues);
+                inputBindings.put(targets, targetValues);
+            }
+
+            return inputBindings;
+        }
+
+        private boolean holds(List<TrainingSample> minibatch) {
+            if (minibatch.size() != sampleCount) {
+                return false;
+            }
+            for (int i = 0; i < sampleCount; i++) {
+                if (samples[i] != minibatch.get(i)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * @return The loss gradient for the bound minibatch, which is only computed again when the minibatch or the
+         * parameters change. Partial derivatives are read from it, rather than each costing a pass through the network.
+         */
+        DMatrix gradient(ScalarExpression loss, ParameterBindings bindings) {
+            if (gradient == null || gradientVersion != bindings.version() || gradientStart != bindings.start()) {
+                gradient = loss.computeDerivative(bindings);
+                gradientVersion = bindings.version();
+                gradientStart = bindings.start();
+            }
+
+            return gradient;
+        }
+    }
+
+    /**
+     * The loss of a minibatch, whose samples are bound to the input placeholders by the thread that evaluates it. The
+     * gradient of the additional error is added in place to the new gradient of the error, rather than summing the two.
+     */
+    private record BatchLoss(BatchError error, ExpressionTape additionalError, List<TrainingSample> samples,
+                             ThreadLocal<BatchBuffers> buffers) implements ScalarExpression {
+        @Override
+        public double evaluate(ParameterBindings bindings) {
+            final ParameterBindings batchBindings = bindings.withInputs(buffers.get().bind(samples));
+            return error.evaluate(batchBindings) + additionalError.evaluate(batchBindings);
+        }
+
+        @Override
+        public double computePartialDerivative(ParameterBindings bindings, int variable) {
+            final ParameterBindings batchBindings = bindings.withInputs(buffers.get().bind(samples));
+            return error.computePartialDerivative(batchBindings, variable) +
+                    additionalError.computePartialDerivative(batchBindings, variable);
+        }
+
+        @Override
+        public boolean isZero() {
+            return error.isZero() && additionalError.isZero();
+        }
+
+        @Override
+        public DMatrix computeDerivative(ParameterBindings bindings) {
+            final ParameterBindings batchBindings = bindings.withInputs(buffers.get().bind(samples));
+            final DMatrixRMaj gradient = error.computeDerivative(batchBindings);
+            additionalError.addDerivative(batchBindings, gradient.data);
+
+            return gradient;
+        }
+    }
+
+    /**
+     * The error of a minibatch, whose gradient is a new matrix on each call.
+     */
+    private interface BatchError extends ScalarExpression {
+        @Override
+        DMatrixRMaj computeDerivative(ParameterBindings bindings);
+    }
+
+    /**
+     * The mean over a batch of the sum of squared errors of each sample. The inputs and targets placeholders are bound
+     * to matrices with one column per sample.
+     */
+    private record BatchMeanSquaredError(FeedForwardNetwork network, InputVector inputs, InputVector targets,
+                                         ThreadLocal<BatchBuffers> buffers) implements BatchError {
+        @Override
+        public double evaluate(ParameterBindings bindings) {
+            final BatchBuffers buffers = this.buffers.get();
+            final DMatrixRMaj errors = errors(network.batchExpression(bindings.inputs().get(inputs), buffers.workspace()).evaluate(bindings),
+                                              buffers, bindings);
+            double sum = 0.0;
+            for (int i = 0; i < errors.getNumElements(); i++) {
+                sum += errors.data[i] * errors.data[i];
+            }
+
+            return sum / errors.getNumCols();
+        }
+
+        @Override
+        public double computePartialDerivative(ParameterBindings bindings, int variable) {
+            final int index = variable - bindings.start();
+            return (index >= 0 && index < bindings.length()) ? buffers.get().gradient(this, bindings).get(0, index) : 0.0;
+        }
+
+        @Override
+        public boolean isZero() {
+            return false;
+        }
+
+        @Override
+        public DMatrixRMaj computeDerivative(ParameterBindings bindings) {
+            final BatchBuffers buffers = this.buffers.get();
+            final FeedForwardNetwork.BatchExpression batch = network.batchExpression(bindings.inputs().get(inputs), buffers.workspace());
+            // d/dy (y - t)^2 / n = 2(y - t) / n, for each output of each sample
+            final DMatrixRMaj outputGradients = errors(batch.evaluateForBackpropagation(bindings), buffers, bindings);
+            CommonOps_DDRM.scale(2.0 / outputGradients.getNumCols(), outputGradients);
+
+            return batch.backpropagate(bindings, outputGradients);
+        }
+
+        private DMatrixRMaj errors(DMatrix outputs, BatchBuffers buffers, ParameterBindings bindings) {
+            final DMatrix targetValues = bindings.inputs().get(targets);
+            final DMatrixRMaj errors = buffers.errors();
+            errors.reshape(targetValues.getNumRows(), targetValues.getNumCols(), false);
+            CommonOps_DDRM.subtract((DMatrixRMaj) outputs, (DMatrixRMaj) targetValues, errors);
+
+            return errors;
+        }
+    }
+
+    /**
+     * The mean over a batch of the cross-entropy of each sample, computed from the logits of the layers before a final softmax
+     * layer. The inputs and targets placeholders are bound to matrices with one column per sample.
+     */
+    private record BatchSoftmaxCrossEntropy(FeedForwardNetwork logits, InputVector inputs, InputVector targets,
+                                            ThreadLocal<BatchBuffers> buffers) implements BatchError {
+        @Override
+        public double evaluate(ParameterBindings bindings) {
+            final FeedForwardNetwork.BatchExpression batch = logits.batchExpression(bindings.inputs().get(inputs), buffers.get().workspace());
+
+            return SoftmaxCrossEntropy.crossEntropy((DMatrixRMaj) batch.evaluate(bindings), bindings.inputs().get(targets), null)
+                    / batch.batchSize();
+        }
+
+        @Override
+        public double computePartialDerivative(ParameterBindings bindings, int variable) {
+            final int index = variable - bindings.start();
+            return (index >= 0 && index < bindings.length()) ? buffers.get().gradient(this, bindings).get(0, index) : 0.0;
+        }
+
+        @Override
+        public boolean isZero() {
+            return false;
+        }
+
+        @Override
+        public DMatrixRMaj computeDerivative(ParameterBindings bindings) {
+            final BatchBuffers buffers = this.buffers.get();
+            final FeedForwardNetwork.BatchExpression batch = logits.batchExpression(bindings.inputs().get(inputs), buffers.workspace());
+            // d/dz of the mean cross-entropy is (p - y) / n, for each logit of each sample
+            final DMatrixRMaj logitGradients = buffers.errors();
+            SoftmaxCrossEntropy.crossEntropy((DMatrixRMaj) batch.evaluateForBackpropagation(bindings), bindings.inputs().get(targets), logitGradients);
+            CommonOps_DDRM.scale(1.0 / logitGradients.getNumCols(), logitGradients);
+
+            return batch.backpropagate(bindings, logitGradients);
+        }
+    }
+
+    private static ScalarExpression squaredError(VectorExpression target, VectorExpression network) {
         // difference between network output and expected output
-        final VectorExpression inputError = VectorSum.sum(
-                network,
-                new ScaledVector(-1.0,
-                                 new DMatrixColumnVectorExpression(new DMatrixRMaj(sample.output().length,
-                                                                                   1,
-                                                                                   true,
-                                                                                   sample
-                                                                                           .output())))
-        );
+        final VectorExpression inputError = VectorSum.sum(network, new ScaledVector(-1.0, target));
 
         return sumOfSquaredVector(inputError);
     }
@@ -0,0 +1,169 @@
+package neuralnerdwork.backprop;
+
+import neuralnerdwork.math.*;
+import org.ejml.data.DMatrix;
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.data.DMatrixSparseCSC;
+import org.ejml.data.DMatrixSparseTriplet;
+import org.ejml.ops.ConvertDMatrixStruct;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Takes the mean of each window of each channel. Windows are described in the same way as for {@link MaxPoolLayer}, and
+ * overlap when the stride is smaller than the window. The cache is the evaluated output.
+ */
+public record AveragePoolLayer(MaxPoolLayer.Channel[] channels) implements Layer<DMatrix> {
+
+    @Override
+    public ActivationFunction activation() {
+        return new IdentityFunction();
+    }
+
+    @Override
+    public boolean containsVariable(int variable) {
+        return false;
+    }
+
+    @Override
+    public int outputLength() {
+        return Arrays.stream(channels)
+                     .mapToInt(MaxPoolLayer.Channel::outputLength)
+                     .sum();
+    }
+
+    @Override
+    public int inputLength() {
+        return Arrays.stream(channels)
+                     .mapToInt(MaxPoolLayer.Channel::inputLength)
+                     .sum();
+    }
+
+    @Override
+    public IntStream variables() {
+        return IntStream.empty();
+    }
+
+    @Override
+    public Result<DMatrix, DMatrix> derivativeWithRespectToLayerInput(DMatrix layerInput, DMatrix cache, Model.ParameterBindings bindings) {
+        final int nonZeros = Arrays.stream(channels).mapToInt(c -> c.outputLength() * c.filterLength()).sum();
+        final DMatrixSparseTriplet derivative = new DMatrixSparseTriplet(outputLength(), inputLength(), nonZeros);
+        int inputOffset = 0, outputOffset = 0;
+        for (MaxPoolLayer.Channel channel : channels) {
+            final double weight = 1.0 / channel.filterLength();
+            for (int targetRow = 0; targetRow < channel.outputHeight(); targetRow++) {
+                for (int targetCol = 0; targetCol < channel.outputWidth(); targetCol++) {
+                    final int target = outputOffset + targetRow * channel.outputWidth() + targetCol;
+                    final int windowOffset = inputOffset + targetRow * channel.strideHeight() * channel.inputWidth()
+                            + targetCol * channel.strideWidth();
+                    for (int r = 0; r < channel.filterHeight(); r++) {
+                        for (int c = 0; c < channel.filterWidth(); c++) {
+                            derivative.addItem(target, windowOffset + r * channel.inputWidth() + c, weight);
+                        }
+                    }
+                }
+            }
+            inputOffset += channel.inputLength();
+            outputOffset += channel.outputLength();
+        }
+
+        return new Result<>(ConvertDMatrixStruct.convert(derivative, (DMatrixSparseCSC) null), cache);
+    }
+
+    @Override
+    public Result<DMatrix, DMatrix> derivativeWithRespectLayerParameter(DMatrix layerInput, int variable, DMatrix cache, Model.ParameterBindings bindings) {
+        throw new UnsupportedOperationException("Average pool layers don't contain any variables. This should never be called.");
+    }
+
+    @Override
+    public Result<DMatrix, DMatrix> gradientWithRespectLayerParameters(DMatrix layerInput, DMatrix outputGradient, DMatrix cache, Model.ParameterBindings bindings) {
+        // Average pool layers don't contain any variables
+        return new Result<>(new DMatrixRMaj(1, 0), cache);
+    }
+
+    @Override
+    public Result<DMatrix, DMatrix> gradientWithRespectToLayerInput(DMatrix layerInput, DMatrix outputGradient, DMatrix cache, Model.ParameterBindings bindings) {
+        // A row vector has the same layout as a batch of one column
+        final DMatrixRMaj inputGradient = new DMatrixRMaj(inputLength(), 1);
+        poolBackward(Pooling.dense(outputGradient), inputGradient);
+        inputGradient.reshape(1, inputLength());
+
+        return new Result<>(inputGradient, cache);
+    }
+
+    @Override
+    public Result<DMatrix, DMatrix> evaluate(DMatrix layerInput, Model.ParameterBindings bindings) {
+        final DMatrixRMaj output = new DMatrixRMaj(outputLength(), 1);
+        pool(Pooling.dense(layerInput), output);
+
+        return new Result<>(output, output);
+    }
+
+    // Workspace slots used by the batch methods
+    private static final int OUTPUT = 0, PARAMETER_GRADIENT = 1, INPUT_GRADIENTS = 2;
+
+    @Override
+    public Result<DMatrix, DMatrix> evaluateBatch(DMatrix layerInputs, Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        final DMatrixRMaj output = workspace.matrix(OUTPUT, outputLength(), layerInputs.getNumCols());
+        pool(Pooling.dense(layerInputs), output);
+
+        return new Result<>(output, output);
+    }
+
+    @Override
+    public Result<BatchGradients, DMatrix> backpropagateBatch(DMatrix layerInputs, DMatrix outputGradients, DMatrix cache, boolean inputGradientsRequired,
+                                                              Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        final DMatrixRMaj parameterGradient = workspace.matrix(PARAMETER_GRADIENT, 1, 0);
+        if (!inputGradientsRequired) {
+            return new Result<>(new BatchGradients(null, parameterGradient), cache);
+        }
+
+        final DMatrixRMaj inputGradients = workspace.matrix(INPUT_GRADIENTS, inputLength(), layerInputs.getNumCols());
+        poolBackward(Pooling.dense(outputGradients), inputGradients);
+
+        return new Result<>(new BatchGradients(inputGradients, parameterGradient), cache);
+    }
+
+    private void pool(DMatrixRMaj inputs, DMatrixRMaj output) {
+        final int[] inputOffsets = inputOffsets();
+        final int[] outputOffsets = outputOffsets();
+        Pooling.forEachChannel(channels.length, work(inputs.getNumCols()), i ->
+                Pooling.average(channels[i], inputs, inputOffsets[i], output, outputOffsets[i]));
+    }
+
+    private void poolBackward(DMatrixRMaj outputGradients, DMatrixRMaj inputGradients) {
+        inputGradients.zero();
+        final int[] inputOffsets = inputOffsets();
+        final int[] outputOffsets = outputOffsets();
+        Pooling.forEachChannel(channels.length, work(inputGradients.getNumCols()), i ->
+                Pooling.averageBackward(channels[i], outputGradients, outputOffsets[i], inputGradients, inputOffsets[i]));
+    }
+
+    private long work(int batchSize) {
+        return Arrays.stream(channels).mapToLong(c -> (long) c.outputLength() * c.filterLength()).sum() * batchSize;
+    }
+
+    private int[] inputOffsets() {
+        final int[] offsets = new int[channels.length];
+        for (int i = 1; i < channels.length; i++) {
+            offsets[i] = offsets[i - 1] + channels[i - 1].inputLength();
+        }
+
+        return offsets;
+    }
+
+    private int[] outputOffsets() {
+        final int[] offsets = new int[channels.length];
+        for (int i = 1; i < channels.length; i++) {
+            offsets[i] = offsets[i - 1] + channels[i - 1].outputLength();
+        }
+
+        return offsets;
+    }
+
+    @Override
+    public DMatrix getEvaluation(DMatrix cache) {
+        return cache;
+    }
+}
@@ -0,0 +1,489 @@
+package neuralnerdwork.backprop;
+
+import neuralnerdwork.math.*;
+import org.ejml.data.DMatrix;
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.data.DMatrixSparseCSC;
+import org.ejml.data.DMatrixSparseTriplet;
+import org.ejml.ops.ConvertDMatrixStruct;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.stream.IntStream;
+
+/**
+ * Normalizes each of {@link #channels} consecutive channels of {@link #channelLength} entries to zero mean and unit variance,
+ * then scales and shifts it by a parameter per channel and applies the activation. After a fully connected layer the
+ * channel length is 1, so every output is normalized separately. After a convolution layer there is a channel per output
+ * channel of the convolutions.
+ *
+ * When evaluated as a batch (in training), each channel is normalized with the mean and variance of its entries over the
+ * whole batch, and the gradients take into account that these depend on every sample. Each batch that is back-propagated
+ * is accumulated into {@link #statistics}, which are updated once per training step (see {@link RunningStatistics#update()})
+ * and used instead when a single input is evaluated (in inference). The gradients of single inputs treat the running
+ * statistics as constants, so this layer should be trained with batches.
+ *
+ * A trained layer can be merged into the layer before it with {@link #foldInto(Layer, Model.ParameterBindings)}.
+ */
+public record BatchNormLayer(int channels, int channelLength, ParameterVector scale, ParameterVector shift,
+                             ActivationFunction activation, RunningStatistics statistics) implements Layer<BatchNormLayer.BatchNormCache> {
+    /**
+     * Added to variances before taking their square root, so that constant channels don't divide by zero.
+     */
+    public static final double EPSILON = 1e-5;
+
+    /**
+     * The weight of the previous running statistics when they are updated with the statistics of a batch.
+     */
+    public static final double DEFAULT_MOMENTUM = 0.9;
+
+    public BatchNormLayer {
+        if (channels < 1 || channelLength < 1) {
+            throw new IllegalArgumentException("channels and channel length must be positive");
+        }
+        if (scale.length() != channels || shift.length() != channels) {
+            throw new IllegalArgumentException(String.format("scale and shift must have length [%d] but found [%d] and [%d]",
+                                                             channels, scale.length(), shift.length()));
+        }
+        if (statistics.channels() != channels) {
+            throw new IllegalArgumentException(String.format("expected statistics for [%d] channels but found [%d]",
+                                                             channels, statistics.channels()));
+        }
+    }
+
+    /**
+     * @return A layer with new scale and shift parameters, whose running statistics start at zero mean and unit variance.
+     */
+    public static BatchNormLayer create(Model model, int channels, int channelLength, ActivationFunction activation) {
+        return new BatchNormLayer(channels, channelLength, model.createParameterVector(channels), model.createParameterVector(channels),
+                                  activation, new RunningStatistics(channels, DEFAULT_MOMENTUM));
+    }
+
+    /**
+     * Sets the scale of every channel to 1 and the shift to 0, so that this layer starts out as a plain normalization.
+     */
+    public void initialize(Model.ParameterBindings bindings) {
+        for (int c = 0; c < channels; c++) {
+            bindings.put(scale.variableFor(c), 1.0);
+            bindings.put(shift.variableFor(c), 0.0);
+        }
+    }
+
+    /**
+     * Means and variances of each channel, as exponential moving averages over training steps. The batches back-propagated
+     * in a step (e.g. the shards of a minibatch, on several threads at once) are accumulated first, and {@link #update()}
+     * then moves the averages once, by the statistics of all of them together.
+     */
+    public static final class RunningStatistics {
+        private final double momentum;
+        private final double[] mean;
+        private final double[] variance;
+        // Entry count, means and sums of squared deviations of the batches accumulated since the last update
+        private long pendingCount;
+        private final double[] pendingMean;
+        private final double[] pendingSquares;
+
+        /**
+         * @param momentum The weight of the previous statistics in each update, from 0 (only the latest step) to 1 (never updated).
+         */
+        public RunningStatistics(int channels, double momentum) {
+            if (momentum < 0.0 || momentum > 1.0) {
+                throw new IllegalArgumentException("momentum must be between 0 and 1 but was " + momentum);
+            }
+            this.momentum = momentum;
+            this.mean = new double[channels];
+            this.variance = new double[channels];
+            Arrays.fill(variance, 1.0);
+            this.pendingMean = new double[channels];
+            this.pendingSquares = new double[channels];
+        }
+
+        private RunningStatistics(double momentum, double[] mean, double[] variance) {
+            this.momentum = momentum;
+            this.mean = mean;
+            this.variance = variance;
+            this.pendingMean = new double[mean.length];
+            this.pendingSquares = new double[mean.length];
+        }
+
+        /**
+         * @return Statistics with the current means and variances, which don't change when these are updated.
+         */
+        public synchronized RunningStatistics snapshot() {
+            return new RunningStatistics(momentum, mean.clone(), variance.clone());
+        }
+
+        public int channels() {
+            return mean.length;
+        }
+
+        public double momentum() {
+            return momentum;
+        }
+
+        public synchronized double[] mean() {
+            return mean.clone();
+        }
+
+        public synchronized double[] variance() {
+            return variance.clone();
+        }
+
+        /**
+         * Sets the mean (row 0) and variance (row 1) of each channel in the given matrix.
+         */
+        synchronized void copyTo(DMatrixRMaj statistics) {
+            System.arraycopy(mean, 0, statistics.data, 0, mean.length);
+            System.arraycopy(variance, 0, statistics.data, mean.length, variance.length);
+        }
+
+        /**
+         * @param batchStatistics The mean (row 0) and (biased) variance (row 1) of each channel over a batch.
+         * @param count The number of entries each channel statistic was taken over.
+         */
+        synchronized void accumulate(DMatrixRMaj batchStatistics, int count) {
+            // Chan et al.'s pairwise combination, so the result doesn't depend on how a minibatch was split
+            final long total = pendingCount + count;
+            for (int c = 0; c < mean.length; c++) {
+                final double batchMean = batchStatistics.data[c];
+                final double difference = batchMean - pendingMean[c];
+                pendingMean[c] += difference * count / total;
+                pendingSquares[c] += batchStatistics.data[mean.length + c] * count
+                        + difference * difference * pendingCount * count / total;
+            }
+            pendingCount = total;
+        }
+
+        /**
+         * Moves the running statistics by the combined statistics of the batches accumulated since the last update, and
+         * discards them. Does nothing if none were.
+         */
+        public synchronized void update() {
+            if (pendingCount == 0) {
+                return;
+            }
+            // The running variance estimates the variance of the whole data set, so it is corrected for bias
+            final double divisor = pendingCount > 1 ? pendingCount - 1 : 1.0;
+            for (int c = 0; c < mean.length; c++) {
+                mean[c] = momentum * mean[c] + (1.0 - momentum) * pendingMean[c];
+                variance[c] = momentum * variance[c] + (1.0 - momentum) * pendingSquares[c] / divisor;
+            }
+            pendingCount = 0;
+            Arrays.fill(pendingMean, 0.0);
+            Arrays.fill(pendingSquares, 0.0);
+        }
+    }
+
+    /**
+     * @param activation The output of the layer.
+     * @param normalized The input normalized to zero mean and unit variance, before it is scaled and shifted.
+     * @param activationInputs The scaled and shifted input, before the activation.
+     * @param statistics The mean (row 0) and variance (row 1) of each channel that the input was normalized with.
+     */
+    public record BatchNormCache(DMatrix activation, DMatrixRMaj normalized, DMatrixRMaj activationInputs, DMatrixRMaj statistics) {}
+
+    @Override
+    public boolean containsVariable(int variable) {
+        return scale.containsVariable(variable) || shift.containsVariable(variable);
+    }
+
+    @Override
+    public int outputLength() {
+        return channels * channelLength;
+    }
+
+    @Override
+    public int inputLength() {
+        return channels * channelLength;
+    }
+
+    @Override
+    public IntStream variables() {
+        return IntStream.concat(scale.variables(), shift.variables());
+    }
+
+    /**
+     * @return This layer with a {@link RunningStatistics#snapshot() snapshot} of its running statistics, for inference that
+     * isn't affected by further training.
+     */
+    public BatchNormLayer withStatisticsSnapshot() {
+        return new BatchNormLayer(channels, channelLength, scale, shift, activation, statistics.snapshot());
+    }
+
+    @Override
+    public Result<DMatrix, BatchNormCache> evaluate(DMatrix layerInput, Model.ParameterBindings bindings) {
+        final DMatrixRMaj statistics = new DMatrixRMaj(2, channels);
+        this.statistics.copyTo(statistics);
+        final DMatrixRMaj normalized = new DMatrixRMaj(outputLength(), 1);
+        final DMatrixRMaj activationInputs = new DMatrixRMaj(outputLength(), 1);
+        normalize(Pooling.dense(layerInput), statistics, bindings, normalized, activationInputs);
+
+        final DMatrixRMaj output = new DMatrixRMaj(outputLength(), 1);
+        activation.applyTo(activationInputs.data, output.data, output.getNumElements());
+
+        return new Result<>(output, new BatchNormCache(output, normalized, activationInputs, statistics));
+    }
+
+    @Override
+    public Result<DMatrix, BatchNormCache> derivativeWithRespectToLayerInput(DMatrix layerInput, BatchNormCache cache, Model.ParameterBindings bindings) {
+        // Each output only depends on the input at the same index, through its channel's scale and statistics
+        final SingleVariableFunction activationDerivative = activation.differentiateByInput();
+        final DMatrixSparseTriplet derivative = new DMatrixSparseTriplet(outputLength(), inputLength(), outputLength());
+        for (int c = 0; c < channels; c++) {
+            final double factor = bindings.get(scale.variableFor(c)) * inverseDeviation(cache.statistics(), c);
+            for (int i = c * channelLength; i < (c + 1) * channelLength; i++) {
+                derivative.addItem(i, i, factor * activationDerivative.apply(cache.activationInputs().data[i]));
+            }
+        }
+
+        return new Result<>(ConvertDMatrixStruct.convert(derivative, (DMatrixSparseCSC) null), cache);
+    }
+
+    @Override
+    public Result<DMatrix, BatchNormCache> gradientWithRespectToLayerInput(DMatrix layerInput, DMatrix outputGradient, BatchNormCache cache, Model.ParameterBindings bindings) {
+        final SingleVariableFunction activationDerivative = activation.differentiateByInput();
+        final DMatrixRMaj inputGradient = new DMatrixRMaj(1, inputLength());
+        for (int c = 0; c < channels; c++) {
+            final double factor = bindings.get(scale.variableFor(c)) * inverseDeviation(cache.statistics(), c);
+            for (int i = c * channelLength; i < (c + 1) * channelLength; i++) {
+                inputGradient.data[i] = outputGradient.get(0, i) * factor * activationDerivative.apply(cache.activationInputs().data[i]);
+            }
+        }
+
+        return new Result<>(inputGradient, cache);
+    }
+
+    @Override
+    public Result<DMatrix, BatchNormCache> derivativeWithRespectLayerParameter(DMatrix layerInput, int variable, BatchNormCache cache, Model.ParameterBindings bindings) {
+        final boolean isScale = scale.containsVariable(variable);
+        final int channel = isScale ? scale.indexFor(variable) : shift.indexFor(variable);
+        final SingleVariableFunction activationDerivative = activation.differentiateByInput();
+        final DMatrixRMaj derivative = new DMatrixRMaj(outputLength(), 1);
+        for (int i = channel * channelLength; i < (channel + 1) * channelLength; i++) {
+            final double value = activationDerivative.apply(cache.activationInputs().data[i]);
+            derivative.data[i] = isScale ? value * cache.normalized().data[i] : value;
+        }
+
+        return new Result<>(derivative, cache);
+    }
+
+    @Override
+    public Result<DMatrix, BatchNormCache> gradientWithRespectLayerParameters(DMatrix layerInput, DMatrix outputGradient, BatchNormCache cache, Model.ParameterBindings bindings) {
+        final SingleVariableFunction activationDerivative = activation.differentiateByInput();
+        final double[] gradient = new double[2 * channels];
+        for (int c = 0; c < channels; c++) {
+            for (int i = c * channelLength; i < (c + 1) * channelLength; i++) {
+                final double delta = outputGradient.get(0, i) * activationDerivative.apply(cache.activationInputs().data[i]);
+                gradient[c] += delta * cache.normalized().data[i];
+                gradient[channels + c] += delta;
+            }
+        }
+
+        return new Result<>(new DMatrixRMaj(1, gradient.length, true, gradient), cache);
+    }
+
+    // Workspace slots used by the batch methods
+    private static final int OUTPUT = 0, PARAMETER_GRADIENT = 1, INPUT_GRADIENTS = 2, NORMALIZED = 3, ACTIVATION_INPUTS = 4,
+            STATISTICS = 5, DELTAS = 6;
+
+    @Override
+    public Result<DMatrix, BatchNormCache> evaluateBatch(DMatrix layerInputs, Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        final DMatrixRMaj inputs = Pooling.dense(layerInputs);
+        final int batchSize = inputs.getNumCols();
+        final int count = channelLength * batchSize;
+
+        // Rows of a channel are adjacent, so each channel is a contiguous block of the batch
+        final DMatrixRMaj statistics = workspace.matrix(STATISTICS, 2, channels);
+        for (int c = 0; c < channels; c++) {
+            final int start = c * count;
+            double sum = 0.0;
+            for (int i = start; i < start + count; i++) {
+                sum += inputs.data[i];
+            }
+            final double mean = sum / count;
+            double squares = 0.0;
+            for (int i = start; i < start + count; i++) {
+                final double difference = inputs.data[i] - mean;
+                squares += difference * difference;
+            }
+            statistics.data[c] = mean;
+            statistics.data[channels + c] = squares / count;
+        }
+
+        final DMatrixRMaj normalized = workspace.matrix(NORMALIZED, outputLength(), batchSize);
+        final DMatrixRMaj activationInputs = workspace.matrix(ACTIVATION_INPUTS, outputLength(), batchSize);
+        normalize(inputs, statistics, bindings, normalized, activationInputs);
+
+        final DMatrixRMaj output = workspace.matrix(OUTPUT, outputLength(), batchSize);
+        activation.applyTo(activationInputs.data, output.data, output.getNumElements());
+
+        return new Result<>(output, new BatchNormCache(output, normalized, activationInputs, statistics));
+    }
+
+    /**
+     * Evaluates a batch in inference form, normalizing every sample with the running statistics (like {@link #evaluate})
+     * rather than with the statistics of the batch, into the buffers of the given workspace.
+     */
+    public Result<DMatrix, BatchNormCache> evaluateWithRunningStatistics(DMatrix layerInputs, Model.ParameterBindings bindings,
+                                                                         LayerWorkspace workspace) {
+        final int batchSize = layerInputs.getNumCols();
+        final DMatrixRMaj statistics = workspace.matrix(STATISTICS, 2, channels);
+        this.statistics.copyTo(statistics);
+        final DMatrixRMaj normalized = workspace.matrix(NORMALIZED, outputLength(), batchSize);
+        final DMatrixRMaj activationInputs = workspace.matrix(ACTIVATION_INPUTS, outputLength(), batchSize);
+        normalize(Pooling.dense(layerInputs), statistics, bindings, normalized, activationInputs);
+
+        final DMatrixRMaj output = workspace.matrix(OUTPUT, outputLength(), batchSize);
+        activation.applyTo(activationInputs.data, output.data, output.getNumElements());
+
+        return new Result<>(output, new BatchNormCache(output, normalized, activationInputs, statistics));
+    }
+
+    @Override
+    public Result<BatchGradients, BatchNormCache> backpropagateBatch(DMatrix layerInputs, DMatrix outputGradients, BatchNormCache cache, boolean inputGradientsRequired,
+                                                                     Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        final BatchNormCache batchCache = cache != null ? cache : evaluateBatch(layerInputs, bindings, workspace).cache();
+        final int batchSize = layerInputs.getNumCols();
+        final int count = channelLength * batchSize;
+        final double[] normalized = batchCache.normalized().data;
+        final DMatrixRMaj batchStatistics = batchCache.statistics();
+
+        // deltas are the gradients with respect to the scaled and shifted inputs
+        final DMatrixRMaj deltas = workspace.matrix(DELTAS, outputLength(), batchSize);
+        activation.multiplyByDerivative(batchCache.activationInputs().data, FullyConnectedLayer.denseGradients(outputGradients, deltas),
+                                        deltas.data, deltas.getNumElements());
+
+        final DMatrixRMaj parameterGradient = workspace.matrix(PARAMETER_GRADIENT, 1, 2 * channels);
+        final DMatrixRMaj inputGradients = inputGradientsRequired ? workspace.matrix(INPUT_GRADIENTS, inputLength(), batchSize) : null;
+        for (int c = 0; c < channels; c++) {
+            final int start = c * count;
+            double deltaSum = 0.0, weightedDeltaSum = 0.0;
+            for (int i = start; i < start + count; i++) {
+                deltaSum += deltas.data[i];
+                weightedDeltaSum += deltas.data[i] * normalized[i];
+            }
+            parameterGradient.data[c] = weightedDeltaSum;
+            parameterGradient.data[channels + c] = deltaSum;
+
+            /*
+             Every input of the channel moves its mean and variance, so the gradient of an input is its own delta, less the
+             parts of all deltas that flow through the mean and through the variance.
+             */
+            if (inputGradientsRequired) {
+                final double factor = bindings.get(scale.variableFor(c)) * inverseDeviation(batchStatistics, c);
+                final double meanDelta = deltaSum / count;
+                final double varianceDelta = weightedDeltaSum / count;
+                for (int i = start; i < start + count; i++) {
+                    inputGradients.data[i] = factor * (deltas.data[i] - meanDelta - normalized[i] * varianceDelta);
+                }
+            }
+        }
+
+        statistics.accumulate(batchStatistics, count);
+
+        return new Result<>(new BatchGradients(inputGradients, parameterGradient), batchCache);
+    }
+
+    /**
+     * Normalizes a batch with the given statistics, then scales and shifts it.
+     */
+    private void normalize(DMatrixRMaj inputs, DMatrixRMaj statistics, Model.ParameterBindings bindings,
+                           DMatrixRMaj normalized, DMatrixRMaj activationInputs) {
+        final int count = channelLength * inputs.getNumCols();
+        for (int c = 0; c < channels; c++) {
+            final double mean = statistics.data[c];
+            final double inverseDeviation = inverseDeviation(statistics, c);
+            final double channelScale = bindings.get(scale.variableFor(c));
+            final double channelShift = bindings.get(shift.variableFor(c));
+            for (int i = c * count; i < (c + 1) * count; i++) {
+                normalized.data[i] = (inputs.data[i] - mean) * inverseDeviation;
+                activationInputs.data[i] = channelScale * normalized.data[i] + channelShift;
+            }
+        }
+    }
+
+    private double inverseDeviation(DMatrixRMaj statistics, int channel) {
+        return 1.0 / Math.sqrt(statistics.data[channels + channel] + EPSILON);
+    }
+
+    @Override
+    public DMatrix getEvaluation(BatchNormCache cache) {
+        return cache.activation();
+    }
+
+    /**
+     * @param previous The layer whose output is the input of this layer.
+     * @return true iff {@link #foldInto(Layer, Model.ParameterBindings)} can merge this layer into the given one.
+     */
+    public boolean canFoldInto(Layer<?> previous) {
+        if (!(previous.activation() instanceof IdentityFunction) || previous.outputLength() != inputLength()) {
+            return false;
+        }
+        if (previous instanceof FullyConnectedLayer fullyConnected) {
+            return fullyConnected.bias().isPresent() || channelLength == 1;
+        }
+        if (previous instanceof ConvolutionLayer convolution) {
+            // Each channel must come from a single convolution, whose filters and bias can be scaled for that channel alone
+            return (convolution.groups() != ConvolutionLayer.SEPARATE_CHANNELS || convolution.inputChannels() == 1)
+                    && convolution.convolutions().length == channels;
+        }
+
+        return false;
+    }
+
+    /**
+     * Merges the inference (running statistics) form of this layer into the layer before it. Normalizing, scaling and shifting
+     * is a linear function of each channel, so it can be applied to the weights and bias of a fully connected or convolution
+     * layer instead, which then takes the activation of this layer.
+     *
+     * @param previous A layer that this layer {@link #canFoldInto(Layer) can be folded into}.
+     * @param bindings Bindings whose values for the parameters of the previous layer are overwritten with the folded values.
+     *                 A fully connected layer without a bias takes the shift parameters of this layer as its bias.
+     * @return A layer that, with the given bindings, evaluates to the same output as the previous layer followed by this one.
+     */
+    public Layer<?> foldInto(Layer<?> previous, Model.ParameterBindings bindings) {
+        if (!canFoldInto(previous)) {
+            throw new IllegalArgumentException("Cannot fold batch normalization into " + previous.getClass().getSimpleName()
+                                                       + " with " + previous.activation().getClass().getSimpleName() + " activation");
+        }
+
+        // Each channel becomes factor * (x - mean) + shift, where x is the output of the previous layer
+        final double[] mean = statistics.mean();
+        final double[] variance = statistics.variance();
+        final double[] factors = new double[channels];
+        final double[] offsets = new double[channels];
+        for (int c = 0; c < channels; c++) {
+            factors[c] = bindings.get(scale.variableFor(c)) / Math.sqrt(variance[c] + EPSILON);
+            offsets[c] = bindings.get(shift.variableFor(c)) - factors[c] * mean[c];
+        }
+
+        if (previous instanceof FullyConnectedLayer fullyConnected) {
+            final ParameterMatrix weights = fullyConnected.weights();
+            final ParameterVector bias = fullyConnected.bias().orElse(shift);
+            for (int row = 0; row < weights.rows(); row++) {
+                final int c = row / channelLength;
+                for (int col = 0; col < weights.cols(); col++) {
+                    final int variable = weights.variableIndexFor(row, col);
+                    bindings.put(variable, factors[c] * bindings.get(variable));
+                }
+                final double previousBias = fullyConnected.bias().isPresent() ? bindings.get(bias.variableFor(row)) : 0.0;
+                bindings.put(bias.variableFor(row), factors[c] * previousBias + offsets[c]);
+            }
+
+            return new FullyConnectedLayer(weights, Optional.of(bias), activation);
+        }
+
+        final ConvolutionLayer convolutionLayer = (ConvolutionLayer) previous;
+        for (int c = 0; c < channels; c++) {
+            final ConvolutionLayer.Convolution convolution = convolutionLayer.convolutions()[c];
+            final double factor = factors[c];
+            for (ConvolutionFilterMatrix filter : convolution.filters()) {
+                filter.filter().variables().forEach(variable -> bindings.put(variable, factor * bindings.get(variable)));
+            }
+            final int biasVariable = convolution.bias().variable();
+            bindings.put(biasVariable, factor * bindings.get(biasVariable) + offsets[c]);
+        }
+
+        return new ConvolutionLayer(convolutionLayer.inputChannels(), convolutionLayer.convolutions(), activation, convolutionLayer.groups());
+    }
+}
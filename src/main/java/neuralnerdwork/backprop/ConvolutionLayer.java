@@ -2,17 +2,34 @@ package neuralnerdwork.backprop;
 
 import neuralnerdwork.math.*;
 import org.ejml.data.*;
-import org.ejml.dense.row.CommonOps_DDRM;
+import org.ejml.dense.row.CommonOps_FDRM;
 import org.ejml.ops.ConvertDMatrixStruct;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static java.lang.String.format;
-import static neuralnerdwork.math.VectorSum.sum;
 
-public record ConvolutionLayer(int inputChannels, Convolution[] convolutions, ActivationFunction activation) implements Layer<ConvolutionLayer.ConvolutionCache> {
+/**
+ * A layer of 2D convolutions over an input made of {@link #inputChannels} images of the same size, one after another.
+ *
+ * With {@link #SEPARATE_CHANNELS} as the number of groups, each convolution is a single 2D filter that is applied to every
+ * input channel separately, giving an output channel for each convolution and input channel (ordered by convolution,
+ * then input channel).
+ *
+ * Otherwise the input channels and the convolutions are both split into {@link #groups} consecutive groups. Each convolution
+ * has a 2D filter for every input channel of its group, and its output channel is the sum of the filtered channels. A single
+ * group gives standard (3D) convolutions, and a group per input channel gives depthwise convolutions. Pointwise convolutions
+ * are standard convolutions with 1x1 filters.
+ */
+public record ConvolutionLayer(int inputChannels, Convolution[] convolutions, ActivationFunction activation, int groups) implements Layer<ConvolutionLayer.ConvolutionCache> {
+    public static final int SEPARATE_CHANNELS = 0;
 
     public ConvolutionLayer {
         record Lengths(int input, int output) {}
@@ -26,17 +43,50 @@ public record ConvolutionLayer(int inputChannels, Convolution[] convolutions, Ac
         if (convolutions.length == 0) {
             throw new IllegalArgumentException("convolutions array must be non-empty");
         }
+        if (groups < 0) {
+            throw new IllegalArgumentException("groups must not be negative");
+        }
+        if (groups > 0 && (inputChannels % groups != 0 || convolutions.length % groups != 0)) {
+            throw new IllegalArgumentException(format("[%d] input channels and [%d] convolutions cannot be split into [%d] groups",
+                                                      inputChannels, convolutions.length, groups));
+        }
+        final int filtersPerConvolution = groups == SEPARATE_CHANNELS ? 1 : inputChannels / groups;
+        if (Arrays.stream(convolutions).anyMatch(c -> c.filters().length != filtersPerConvolution)) {
+            throw new IllegalArgumentException(format("each convolution must have [%d] filters", filtersPerConvolution));
+        }
+    }
+
+    /**
+     * Applies each single channel convolution to every input channel separately.
+     */
+    public ConvolutionLayer(int inputChannels, Convolution[] convolutions, ActivationFunction activation) {
+        this(inputChannels, convolutions, activation, SEPARATE_CHANNELS);
+    }
+
+    /**
+     * @return A layer where each convolution has a filter for every input channel, and sums over them.
+     */
+    public static ConvolutionLayer standard(int inputChannels, Convolution[] convolutions, ActivationFunction activation) {
+        return new ConvolutionLayer(inputChannels, convolutions, activation, 1);
+    }
+
+    /**
+     * @return A layer where each convolution filters one input channel. There may be several convolutions per input
+     * channel, in which case the convolutions of each channel are adjacent.
+     */
+    public static ConvolutionLayer depthwise(int inputChannels, Convolution[] convolutions, ActivationFunction activation) {
+        return new ConvolutionLayer(inputChannels, convolutions, activation, inputChannels);
     }
 
     @Override
     public boolean containsVariable(int variable) {
         return Arrays.stream(convolutions)
-                     .anyMatch(c -> c.matrix().filter().containsVariable(variable) || c.bias().variable() == variable);
+                     .anyMatch(c -> c.containsVariable(variable));
     }
 
     @Override
     public int outputLength() {
-        return convolutions[0].outputLength() * convolutions.length * inputChannels;
+        return convolutions[0].outputLength() * convolutions.length * outputsPerConvolution();
     }
 
     @Override
@@ -47,9 +97,25 @@ public record ConvolutionLayer(int inputChannels, Convolution[] convolutions, Ac
     @Override
     public IntStream variables() {
         return Arrays.stream(convolutions)
-                     .flatMapToInt(c -> IntStream.concat(c.matrix.filter().variables(),
-                                                         IntStream.of(c.bias.variable()))
-                     );
+                     .flatMapToInt(Convolution::variables);
+    }
+
+    /**
+     * @return The number of output channels for each convolution.
+     */
+    private int outputsPerConvolution() {
+        return groups == SEPARATE_CHANNELS ? inputChannels : 1;
+    }
+
+    /**
+     * @param output An output channel of the convolution, counted from its first output channel.
+     * @param filter A filter of the convolution.
+     * @return The input channel that the filter is applied to for the output channel.
+     */
+    private int inputChannel(int convIndex, int output, int filter) {
+        return groups == SEPARATE_CHANNELS ?
+                output :
+                (convIndex / (convolutions.length / groups)) * (inputChannels / groups) + filter;
     }
 
     @Override
@@ -59,103 +125,484 @@ public record ConvolutionLayer(int inputChannels, Convolution[] convolutions, Ac
                     .getNumRows(), inputLength()));
         }
 
-        double[] values = new double[outputLength()];
-        ChannelCache[][] channels = new ChannelCache[convolutions.length][inputChannels];
+        final LayerWorkspace workspace = new LayerWorkspace();
+        final DMatrixRMaj activationInputs = convolve(denseInputs(layerInput, workspace), bindings, workspace, sampleFilterWorkspace());
+        final DMatrixRMaj combinedActivation = new DMatrixRMaj(outputLength(), 1);
+        activation.applyTo(activationInputs.data, combinedActivation.data, combinedActivation.getNumElements());
 
+        final SingleVariableFunction activationDerivative = activation.differentiateByInput();
+        final int convolutionOutputLength = convolutions[0].outputLength();
+        final ChannelCache[][] channels = new ChannelCache[convolutions.length][outputsPerConvolution()];
         for (int convIndex = 0; convIndex < convolutions.length; convIndex++) {
-            for (int channelIndex = 0; channelIndex < inputChannels; channelIndex++) {
-                try {
-                    ConvolutionFilterMatrix matrix = convolutions[convIndex].matrix();
-                    ScalarParameter bias = convolutions[convIndex].bias();
-                    DMatrix activationInput = sum(
-                            new MatrixVectorProduct(
-                                    matrix,
-                                    new DMatrixColumnVectorExpression(layerInput)
-                            ),
-                            new RepeatedScalarVectorExpression(bias, true, matrix.rows())
-                    ).evaluate(bindings);
-                    DMatrixColumnVectorExpression activationInputExpression = new DMatrixColumnVectorExpression(activationInput);
-                    DMatrix activation = new ColumnVectorizedSingleVariableFunction(this.activation, activationInputExpression).evaluate(bindings);
-                    DMatrix activationWithRespectConvolution = new DiagonalizedVector(
-                            new ColumnVectorizedSingleVariableFunction(
-                                    this.activation,
-                                    activationInputExpression
-                            )
-                    ).evaluate(bindings);
-                    channels[convIndex][channelIndex] = new ChannelCache(activation, activationInput, activationWithRespectConvolution);
-                    int dstOffset = (convIndex * inputChannels + channelIndex) * convolutions[0].outputLength();
-                    for (int i = 0; i < activation.getNumRows(); i++) {
-                        values[dstOffset + i] = activation.get(i, 0);
-                    }
-                } catch (RuntimeException ex) {
-                    throw new RuntimeException(format("encountered exception at (convIndex, channelIndex)=(%d, %d)", convIndex, channelIndex), ex);
+            for (int channelIndex = 0; channelIndex < outputsPerConvolution(); channelIndex++) {
+                final int offset = (convIndex * outputsPerConvolution() + channelIndex) * convolutionOutputLength;
+                final DMatrixRMaj activationInput = new DMatrixRMaj(convolutionOutputLength, 1);
+                final DMatrixRMaj channelActivation = new DMatrixRMaj(convolutionOutputLength, 1);
+                final double[] derivative = new double[convolutionOutputLength];
+                System.arraycopy(activationInputs.data, offset, activationInput.data, 0, convolutionOutputLength);
+                System.arraycopy(combinedActivation.data, offset, channelActivation.data, 0, convolutionOutputLength);
+                for (int i = 0; i < convolutionOutputLength; i++) {
+                    derivative[i] = activationDerivative.apply(activationInput.data[i]);
                 }
+                channels[convIndex][channelIndex] = new ChannelCache(channelActivation, activationInput, new DiagonalMatrix(derivative));
             }
         }
 
-        DMatrixRMaj combinedActivation = new DMatrixRMaj(values.length, 1, true, values);
-        return new Result<>(combinedActivation, new ConvolutionCache(combinedActivation, channels));
+        return new Result<>(combinedActivation, new ConvolutionCache(combinedActivation, channels, activationInputs,
+                                                                     new SampleGradients(workspace, outputLength())));
     }
 
     @Override
     public Result<DMatrix, ConvolutionCache> derivativeWithRespectToLayerInput(DMatrix layerInput, ConvolutionCache cache, Model.ParameterBindings bindings) {
-        DMatrixSparseTriplet derivative = new DMatrixSparseTriplet(outputLength(), inputLength(), inputChannels * outputLength());
+        // Each output depends on the input pixels under its filters, weighted by the filters and the activation derivative
+        final int convolutionOutputLength = convolutions[0].outputLength();
+        final int convolutionInputLength = convolutions[0].inputLength();
+        final int nonZeros = Arrays.stream(convolutions)
+                                   .mapToInt(c -> outputsPerConvolution() * convolutionOutputLength * c.filters().length * c.filterLength())
+                                   .sum();
+        final DMatrixSparseTriplet derivative = new DMatrixSparseTriplet(outputLength(), inputLength(), nonZeros);
         for (int convIndex = 0; convIndex < convolutions.length; convIndex++) {
-            for (int channelIndex = 0; channelIndex < inputChannels; channelIndex++) {
-                ChannelCache cacheEntry = cache.channels()[convIndex][channelIndex];
-                DMatrix activationWithRespectConvolution = cacheEntry.activationWithRespectConvolution();
-                ConvolutionFilterMatrix matrix = convolutions[convIndex].matrix();
-                DMatrix convolutionDerivative = new MatrixProduct(new DMatrixExpression(activationWithRespectConvolution), matrix).evaluate(bindings);
-                int rowOffset = (convIndex * inputChannels + channelIndex) * convolutions[0].outputLength();
-                int colOffset = channelIndex * convolutions[0].inputLength();
-                if (convolutionDerivative instanceof DMatrixSparseCSC m) {
-                    Iterator<DMatrixSparse.CoordinateRealValue> coords = m.createCoordinateIterator();
-                    while (coords.hasNext()) {
-                        DMatrixSparse.CoordinateRealValue coord = coords.next();
-                        derivative.addItem(rowOffset + coord.row, colOffset + coord.col, coord.value);
+            final Convolution convolution = convolutions[convIndex];
+            final ConvolutionFilterMatrix matrix = convolution.matrix();
+            final int filterRows = matrix.filter().rows();
+            final int filterCols = matrix.filter().cols();
+            final double[] filters = new double[convolution.filters().length * convolution.filterLength()];
+            convolution.getFilters(bindings, filters, 0);
+
+            for (int channelIndex = 0; channelIndex < outputsPerConvolution(); channelIndex++) {
+                final DiagonalMatrix activationDerivative = (DiagonalMatrix) cache.channels()[convIndex][channelIndex].activationWithRespectConvolution();
+                final int rowOffset = (convIndex * outputsPerConvolution() + channelIndex) * convolutionOutputLength;
+                for (int filter = 0; filter < convolution.filters().length; filter++) {
+                    final int colOffset = inputChannel(convIndex, channelIndex, filter) * convolutionInputLength;
+                    final int filterOffset = filter * convolution.filterLength();
+                    for (int target = 0; target < convolutionOutputLength; target++) {
+                        final double scale = activationDerivative.diagonal()[target];
+                        for (int r = 0; r < filterRows; r++) {
+                            for (int c = 0; c < filterCols; c++) {
+                                final int source = matrix.sourceIndex(target, r, c);
+                                if (source >= 0) {
+                                    derivative.addItem(rowOffset + target, colOffset + source, scale * filters[filterOffset + r * filterCols + c]);
+                                }
+                            }
+                        }
                     }
-                } else {
-                    throw new UnsupportedOperationException("unsupported convolution matrix type " + convolutionDerivative.getClass());
                 }
             }
         }
-        derivative.shrinkArrays();
 
         return new Result<>(ConvertDMatrixStruct.convert(derivative, (DMatrixSparseCSC) null), cache);
     }
 
     @Override
     public Result<DMatrix, ConvolutionCache> derivativeWithRespectLayerParameter(DMatrix layerInput, int variable, ConvolutionCache cache, Model.ParameterBindings bindings) {
-        DMatrixRMaj derivative = new DMatrixRMaj(outputLength(), 1);
+        final int convolutionOutputLength = convolutions[0].outputLength();
+        final int convolutionInputLength = convolutions[0].inputLength();
+        final DMatrixRMaj derivative = new DMatrixRMaj(outputLength(), 1);
         for (int convIndex = 0; convIndex < convolutions.length; convIndex++) {
-            for (int channelIndex = 0; channelIndex < inputChannels; channelIndex++) {
-                ChannelCache cacheEntry = cache.channels()[convIndex][channelIndex];
-                DMatrix activationWithRespectConvolution = cacheEntry.activationWithRespectConvolution();
-                ConvolutionFilterMatrix matrix = convolutions[convIndex].matrix();
-                DMatrix convolutionDerivative =
-                        new MatrixVectorProduct(
-                                new MatrixProduct(
-                                        new DMatrixExpression(activationWithRespectConvolution),
-                                        new DMatrixExpression(matrix.computePartialDerivative(bindings, variable))
-                                ),
-                                new DMatrixColumnVectorExpression(layerInput)
-                        ).evaluate(bindings);
-                int dstOffset = (convIndex * inputChannels + channelIndex) * convolutions[0].outputLength();
-                if (convolutionDerivative instanceof DMatrixRMaj cd) {
-                    CommonOps_DDRM.insert(cd, derivative, dstOffset, 0);
-                } else if (convolutionDerivative instanceof DMatrixSparseCSC cd) {
-                    Iterator<DMatrixSparse.CoordinateRealValue> coords = cd.createCoordinateIterator();
-                    while (coords.hasNext()) {
-                        DMatrixSparse.CoordinateRealValue coord = coords.next();
-                        derivative.set(dstOffset + coord.row, coord.col, coord.value);
+            final Convolution convolution = convolutions[convIndex];
+            final boolean bias = convolution.bias().variable() == variable;
+            int filter = 0;
+            while (filter < convolution.filters().length && !convolution.filters()[filter].filter().containsVariable(variable)) {
+                filter++;
+            }
+            if (!bias && filter == convolution.filters().length) {
+                continue;
+            }
+            // A filter entry scales the input pixel under it at each output position; the bias adds one everywhere
+            final ParameterMatrix matrix = bias ? null : convolution.filters()[filter].filter();
+            final int filterRow = bias ? 0 : matrix.rowIndexFor(variable);
+            final int filterCol = bias ? 0 : matrix.colIndexFor(variable);
+            for (int channelIndex = 0; channelIndex < outputsPerConvolution(); channelIndex++) {
+                final DiagonalMatrix activationDerivative = (DiagonalMatrix) cache.channels()[convIndex][channelIndex].activationWithRespectConvolution();
+                final int rowOffset = (convIndex * outputsPerConvolution() + channelIndex) * convolutionOutputLength;
+                final int inputOffset = bias ? 0 : inputChannel(convIndex, channelIndex, filter) * convolutionInputLength;
+                for (int target = 0; target < convolutionOutputLength; target++) {
+                    final int source = convolution.matrix().sourceIndex(target, filterRow, filterCol);
+                    final double convolutionDerivative = bias ? 1.0 : (source >= 0 ? layerInput.get(inputOffset + source, 0) : 0.0);
+                    derivative.data[rowOffset + target] = activationDerivative.diagonal()[target] * convolutionDerivative;
+                }
+            }
+        }
+
+        return new Result<>(derivative, cache);
+    }
+
+    /*
+     The per sample gradients run the batch kernels on a batch of one, reusing the convolution outputs and the workspace from
+     evaluate. Both gradients come from a single backward pass.
+     */
+    @Override
+    public Result<DMatrix, ConvolutionCache> gradientWithRespectLayerParameters(DMatrix layerInput, DMatrix outputGradient, ConvolutionCache cache, Model.ParameterBindings bindings) {
+        return new Result<>(sampleGradients(layerInput, outputGradient, cache, bindings).parameterGradient(), cache);
+    }
+
+    @Override
+    public Result<DMatrix, ConvolutionCache> gradientWithRespectToLayerInput(DMatrix layerInput, DMatrix outputGradient, ConvolutionCache cache, Model.ParameterBindings bindings) {
+        final DMatrixRMaj inputGradient = (DMatrixRMaj) sampleGradients(layerInput, outputGradient, cache, bindings).inputGradients();
+
+        return new Result<>(DMatrixRMaj.wrap(1, inputGradient.getNumElements(), inputGradient.data), cache);
+    }
+
+    private BatchGradients sampleGradients(DMatrix layerInput, DMatrix outputGradient, ConvolutionCache cache, Model.ParameterBindings bindings) {
+        return cache.sampleGradients().gradients(outputGradient, bindings, (outputGradients, workspace) ->
+                backpropagate(layerInput, outputGradients, cache, true, bindings, workspace, sampleFilterWorkspace()));
+    }
+
+    /*
+     The per sample methods evaluate each input in a workspace of its own, since its cache keeps the buffers. The filter
+     spectra and FFT plans only depend on the parameters and the layer shape, so they're kept in one workspace per layer on
+     each thread instead, where they're reused from sample to sample.
+     */
+    private static final ThreadLocal<Map<Convolution[], LayerWorkspace>> sampleFilterWorkspaces = ThreadLocal.withInitial(WeakHashMap::new);
+
+    LayerWorkspace sampleFilterWorkspace() {
+        return sampleFilterWorkspaces.get().computeIfAbsent(convolutions, c -> new LayerWorkspace());
+    }
+
+    // Workspace slots used by the batch methods
+    private static final int DENSE_INPUTS = 0, FILTERS = 1, ACTIVATION_INPUTS = 2, OUTPUT = 3, DELTAS = 4,
+            PARAMETER_GRADIENT = 5, INPUT_GRADIENTS = 6, PATCHES = 7, PRODUCT = 8, FILTER_GRADIENTS = 9, GROUP_DELTAS = 10,
+            PATCH_GRADIENTS = 11, FFT_BUFFERS = 12, FILTER_SPECTRA = 19;
+    private static final int SINGLE_FILTERS = 0, SINGLE_PATCHES = 1, SINGLE_PRODUCT = 2, SINGLE_DELTAS = 3, SINGLE_FILTER_GRADIENTS = 4,
+            SINGLE_PATCH_GRADIENTS = 5;
+
+    /**
+     * Convolutions with stride one, no dilation and at least this many entries in each filter are computed with FFTs rather
+     * than with im2col products. Set with the {@code neuralnerdwork.fftFilterLength} system property.
+     */
+    public static final int FFT_FILTER_LENGTH = Integer.getInteger("neuralnerdwork.fftFilterLength", 49);
+
+    /*
+     The batch methods (and evaluate, as a batch of one) work directly on the filters rather than on ConvolutionFilterMatrix
+     expressions. Each row of the input and output matrices holds one pixel for every sample in the batch, so the innermost
+     loops run along contiguous rows.
+
+     With single precision bindings, the im2col products are done in single precision. Layer inputs and outputs are still
+     doubles, so values are rounded as they are copied into the patches and deltas, and widened as the bias is added to the
+     products or the patch gradients are folded back onto the input, rather than in passes of their own. FFT products stay
+     in double precision.
+     */
+    @Override
+    public Result<DMatrix, ConvolutionCache> evaluateBatch(DMatrix layerInputs, Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        if (layerInputs.getNumRows() != inputLength()) {
+            throw new IllegalArgumentException(format("given input length [%d] does not match expected input size [%d]",
+                                                      layerInputs.getNumRows(), inputLength()));
+        }
+        final DMatrixRMaj inputs = denseInputs(layerInputs, workspace);
+        final int batchSize = inputs.getNumCols();
+        final DMatrixRMaj activationInputs = convolve(inputs, bindings, workspace, workspace);
+
+        final DMatrixRMaj output = workspace.matrix(OUTPUT, outputLength(), batchSize);
+        activation.applyTo(activationInputs.data, output.data, output.getNumElements());
+
+        return new Result<>(output, new ConvolutionCache(output, null, activationInputs, null));
+    }
+
+    @Override
+    public Result<BatchGradients, ConvolutionCache> backpropagateBatch(DMatrix layerInputs, DMatrix outputGradients, ConvolutionCache cache, boolean inputGradientsRequired,
+                                                                       Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        return new Result<>(backpropagate(layerInputs, outputGradients, cache, inputGradientsRequired, bindings, workspace, workspace), cache);
+    }
+
+    private BatchGradients backpropagate(DMatrix layerInputs, DMatrix outputGradients, ConvolutionCache cache, boolean inputGradientsRequired,
+                                         Model.ParameterBindings bindings, LayerWorkspace workspace, LayerWorkspace filterWorkspace) {
+        final DMatrixRMaj activationInputs = (cache != null && cache.activationInputs() != null) ?
+                (DMatrixRMaj) cache.activationInputs() :
+                (DMatrixRMaj) evaluateBatch(layerInputs, bindings, workspace).cache().activationInputs();
+        final DMatrixRMaj inputs = denseInputs(layerInputs, workspace);
+
+        // deltas are the gradients with respect to the convolution outputs (before activation)
+        final DMatrixRMaj deltas = workspace.matrix(DELTAS, outputLength(), inputs.getNumCols());
+        activation.multiplyByDerivative(activationInputs.data, FullyConnectedLayer.denseGradients(outputGradients, deltas),
+                                        deltas.data, deltas.getNumElements());
+
+        return backpropagateDeltas(inputs, deltas, inputGradientsRequired, bindings, workspace, filterWorkspace);
+    }
+
+    /**
+     * Back-propagates the gradients with respect to the convolution outputs (before activation) of a batch.
+     *
+     * @param deltas Laid out like the layer output. Not changed, but may be a buffer of the workspace.
+     * @param filterWorkspace Where the filter spectra and FFT plans are kept, which may be the workspace itself.
+     */
+    BatchGradients backpropagateDeltas(DMatrixRMaj inputs, DMatrixRMaj deltas, boolean inputGradientsRequired,
+                                       Model.ParameterBindings bindings, LayerWorkspace workspace, LayerWorkspace filterWorkspace) {
+        final int batchSize = inputs.getNumCols();
+        final int blockLength = convolutions[0].outputLength() * batchSize;
+        final int convolutionInputLength = convolutions[0].inputLength();
+        final MatrixBackend backend = MatrixBackends.current();
+
+        // the gradient has the filters of each convolution followed by its bias, in the order of the convolutions
+        final int[] parameterOffsets = new int[convolutions.length];
+        int parameterCount = 0;
+        for (int convIndex = 0; convIndex < convolutions.length; convIndex++) {
+            parameterOffsets[convIndex] = parameterCount;
+            parameterCount += convolutions[convIndex].filters().length * convolutions[convIndex].filterLength() + 1;
+        }
+        final DMatrixRMaj parameterGradient = workspace.matrix(PARAMETER_GRADIENT, 1, parameterCount);
+        parameterGradient.zero();
+        final DMatrixRMaj inputGradients = inputGradientsRequired ? workspace.matrix(INPUT_GRADIENTS, inputLength(), batchSize) : null;
+        if (inputGradients != null) {
+            inputGradients.zero();
+        }
+
+        /*
+         For each product of the forward pass, with the deltas of its output channels as rows, the filter gradients are the
+         deltas times the transposed patches (i.e. the correlation of the input with the deltas). The gradients with respect
+         to the patches are the transposed filters times the deltas, which fold back onto the input as a transposed
+         convolution. Both cost about as much as the forward product.
+         */
+        final List<Product> products = products();
+        for (int productIndex = 0; productIndex < products.size(); productIndex++) {
+            final Product product = products.get(productIndex);
+            final Convolution first = convolutions[product.convolutions()[0]];
+            final int channels = first.filters().length;
+            final int patchLength = channels * first.filterLength();
+            final int[] group = product.convolutions();
+            final int pixelOffset = product.firstChannel() * convolutionInputLength;
+            final boolean singlePrecision = bindings.precision() == Precision.SINGLE && !useFft(first.matrix());
+            final DMatrixRMaj filterGradients = workspace.matrix(FILTER_GRADIENTS, group.length, patchLength);
+            filterGradients.zero();
+            final DMatrixRMaj groupDeltas = singlePrecision ? null : workspace.matrix(GROUP_DELTAS, group.length, blockLength);
+            final FMatrixRMaj singleDeltas = singlePrecision ? workspace.floatMatrix(SINGLE_DELTAS, group.length, blockLength) : null;
+
+            for (int g = 0; g < group.length; g++) {
+                final int src = product.outputChannels()[g] * blockLength;
+                if (singlePrecision) {
+                    for (int i = 0; i < blockLength; i++) {
+                        singleDeltas.data[g * blockLength + i] = (float) deltas.data[src + i];
                     }
                 } else {
-                    throw new UnsupportedOperationException("Unknown matrix type " + convolutionDerivative.getClass());
+                    System.arraycopy(deltas.data, src, groupDeltas.data, g * blockLength, blockLength);
+                }
+                double biasGradient = 0.0;
+                for (int i = 0; i < blockLength; i++) {
+                    biasGradient += deltas.data[src + i];
+                }
+                parameterGradient.data[parameterOffsets[group[g]] + patchLength] += biasGradient;
+            }
+
+            if (singlePrecision) {
+                final FMatrixRMaj patches = workspace.floatMatrix(SINGLE_PATCHES, patchLength, blockLength);
+                Im2Col.unfold(inputs, pixelOffset, channels, first.matrix(), patches);
+                final FMatrixRMaj singleFilterGradients = workspace.floatMatrix(SINGLE_FILTER_GRADIENTS, group.length, patchLength);
+                CommonOps_FDRM.multTransB(singleDeltas, patches, singleFilterGradients);
+                for (int i = 0; i < filterGradients.getNumElements(); i++) {
+                    filterGradients.data[i] = singleFilterGradients.data[i];
+                }
+                if (inputGradients != null) {
+                    final FMatrixRMaj patchGradients = workspace.floatMatrix(SINGLE_PATCH_GRADIENTS, patchLength, blockLength);
+                    CommonOps_FDRM.multTransA(singlePrecisionFilters(product, bindings, workspace), singleDeltas, patchGradients);
+                    Im2Col.foldAdd(patchGradients, pixelOffset, channels, first.matrix(), inputGradients);
+                }
+            } else if (useFft(first.matrix())) {
+                final FftConvolution fft = fftPlan(productIndex, first.matrix(), channels, filterWorkspace);
+                final DMatrixRMaj[] spectra = filterSpectra(productIndex, product, fft, bindings, filterWorkspace);
+                fft.backpropagate(inputs, pixelOffset, spectra[0], spectra[1], groupDeltas, filterGradients, inputGradients, workspace, FFT_BUFFERS);
+            } else {
+                final DMatrixRMaj filters = productFilters(product, bindings, workspace);
+                final DMatrixRMaj patches = workspace.matrix(PATCHES, patchLength, blockLength);
+                Im2Col.unfold(inputs, pixelOffset, channels, first.matrix(), patches);
+                backend.gemm(1.0, groupDeltas, false, patches, true, 1.0, filterGradients);
+                if (inputGradients != null) {
+                    final DMatrixRMaj patchGradients = workspace.matrix(PATCH_GRADIENTS, patchLength, blockLength);
+                    backend.multTransA(filters, groupDeltas, patchGradients);
+                    Im2Col.foldAdd(patchGradients, pixelOffset, channels, first.matrix(), inputGradients);
+                }
+            }
+
+            for (int g = 0; g < group.length; g++) {
+                for (int i = 0; i < patchLength; i++) {
+                    parameterGradient.data[parameterOffsets[group[g]] + i] += filterGradients.data[g * patchLength + i];
                 }
             }
         }
 
-        return new Result<>(derivative, cache);
+        return new BatchGradients(inputGradients, parameterGradient);
+    }
+
+    /**
+     * @return The convolution outputs (before activation) for a batch of inputs, laid out like the layer output.
+     * @param filterWorkspace Where the filter spectra and FFT plans are kept, which may be the workspace itself.
+     */
+    DMatrixRMaj convolve(DMatrixRMaj inputs, Model.ParameterBindings bindings, LayerWorkspace workspace, LayerWorkspace filterWorkspace) {
+        final int blockLength = convolutions[0].outputLength() * inputs.getNumCols();
+        final int convolutionInputLength = convolutions[0].inputLength();
+        final DMatrixRMaj activationInputs = workspace.matrix(ACTIVATION_INPUTS, outputLength(), inputs.getNumCols());
+
+        /*
+         Each product applies some convolutions to the unfolded patches of some channels: their filters as rows, times the
+         stacked patches of the channels. Row g of the product is then the output of convolution g for every sample, summed
+         over the channels, in the same order as a block of the layer output. Products of large filters are computed with
+         FFTs instead, which give the same rows.
+         */
+        final List<Product> products = products();
+        for (int productIndex = 0; productIndex < products.size(); productIndex++) {
+            final Product product = products.get(productIndex);
+            final Convolution first = convolutions[product.convolutions()[0]];
+            final int channels = first.filters().length;
+            final int[] group = product.convolutions();
+            final int pixelOffset = product.firstChannel() * convolutionInputLength;
+
+            if (bindings.precision() == Precision.SINGLE && !useFft(first.matrix())) {
+                final FMatrixRMaj patches = workspace.floatMatrix(SINGLE_PATCHES, channels * first.filterLength(), blockLength);
+                Im2Col.unfold(inputs, pixelOffset, channels, first.matrix(), patches);
+                final FMatrixRMaj outputs = workspace.floatMatrix(SINGLE_PRODUCT, group.length, blockLength);
+                CommonOps_FDRM.mult(singlePrecisionFilters(product, bindings, workspace), patches, outputs);
+                for (int g = 0; g < group.length; g++) {
+                    final double bias = bindings.get(convolutions[group[g]].bias().variable());
+                    final int dst = product.outputChannels()[g] * blockLength;
+                    final int src = g * blockLength;
+                    for (int i = 0; i < blockLength; i++) {
+                        activationInputs.data[dst + i] = outputs.data[src + i] + bias;
+                    }
+                }
+                continue;
+            }
+
+            final DMatrixRMaj outputs = workspace.matrix(PRODUCT, group.length, blockLength);
+            if (useFft(first.matrix())) {
+                final FftConvolution fft = fftPlan(productIndex, first.matrix(), channels, filterWorkspace);
+                final DMatrixRMaj[] spectra = filterSpectra(productIndex, product, fft, bindings, filterWorkspace);
+                fft.convolve(inputs, pixelOffset, spectra[0], spectra[1], outputs, workspace, FFT_BUFFERS);
+            } else {
+                final DMatrixRMaj filters = productFilters(product, bindings, workspace);
+                final DMatrixRMaj patches = workspace.matrix(PATCHES, channels * first.filterLength(), blockLength);
+                Im2Col.unfold(inputs, pixelOffset, channels, first.matrix(), patches);
+                MatrixBackends.current().mult(filters, patches, outputs);
+            }
+            for (int g = 0; g < group.length; g++) {
+                final double bias = bindings.get(convolutions[group[g]].bias().variable());
+                final int dst = product.outputChannels()[g] * blockLength;
+                final int src = g * blockLength;
+                for (int i = 0; i < blockLength; i++) {
+                    activationInputs.data[dst + i] = outputs.data[src + i] + bias;
+                }
+            }
+        }
+
+        return activationInputs;
+    }
+
+    /**
+     * Some convolutions with the same filter shape and geometry, applied together with one matrix product.
+     *
+     * @param firstChannel The first of the consecutive input channels that the filters of each convolution are applied to.
+     * @param convolutions The indices of the convolutions.
+     * @param outputChannels The output channel of each convolution.
+     */
+    private record Product(int firstChannel, int[] convolutions, int[] outputChannels) {}
+
+    /**
+     * @return The products that compute every output channel once.
+     */
+    private List<Product> products() {
+        final List<Product> products = new ArrayList<>();
+        if (groups == SEPARATE_CHANNELS) {
+            for (int[] group : filterShapeGroups(IntStream.range(0, convolutions.length))) {
+                for (int channelIndex = 0; channelIndex < inputChannels; channelIndex++) {
+                    final int channel = channelIndex;
+                    products.add(new Product(channel, group, Arrays.stream(group).map(c -> c * inputChannels + channel).toArray()));
+                }
+            }
+        } else {
+            final int groupLength = convolutions.length / groups;
+            for (int g = 0; g < groups; g++) {
+                for (int[] group : filterShapeGroups(IntStream.range(g * groupLength, (g + 1) * groupLength))) {
+                    products.add(new Product(g * (inputChannels / groups), group, group));
+                }
+            }
+        }
+
+        return products;
+    }
+
+    /**
+     * @return The given convolutions, grouped by filter shape and geometry.
+     */
+    private int[][] filterShapeGroups(IntStream indices) {
+        return indices.boxed()
+                      .collect(Collectors.groupingBy(i -> List.of(convolutions[i].matrix().filter().rows(), convolutions[i].matrix().filter().cols(),
+                                                                  convolutions[i].matrix().geometry()),
+                                                     LinkedHashMap::new,
+                                                     Collectors.toList()))
+                      .values()
+                      .stream()
+                      .map(group -> group.stream().mapToInt(Integer::intValue).toArray())
+                      .toArray(int[][]::new);
+    }
+
+    /**
+     * @return The filters of the convolutions of a product, one convolution per row.
+     */
+    private DMatrixRMaj productFilters(Product product, Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        final Convolution first = convolutions[product.convolutions()[0]];
+        final int rowLength = first.filters().length * first.filterLength();
+        final DMatrixRMaj filters = workspace.matrix(FILTERS, product.convolutions().length, rowLength);
+        for (int g = 0; g < product.convolutions().length; g++) {
+            convolutions[product.convolutions()[g]].getFilters(bindings, filters.data, g * rowLength);
+        }
+
+        return filters;
+    }
+
+    /**
+     * @return The filters of the convolutions of a product, rounded to single precision.
+     */
+    private FMatrixRMaj singlePrecisionFilters(Product product, Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        final Convolution first = convolutions[product.convolutions()[0]];
+        final int rowLength = first.filters().length * first.filterLength();
+        final FMatrixRMaj filters = workspace.floatMatrix(SINGLE_FILTERS, product.convolutions().length, rowLength);
+        for (int g = 0; g < product.convolutions().length; g++) {
+            convolutions[product.convolutions()[g]].getFilters(bindings, filters.data, g * rowLength);
+        }
+
+        return filters;
+    }
+
+    private static boolean useFft(ConvolutionFilterMatrix matrix) {
+        final ConvolutionGeometry geometry = matrix.geometry();
+        return geometry.rowStride() == 1 && geometry.colStride() == 1 && geometry.rowDilation() == 1 && geometry.colDilation() == 1
+                && matrix.filter().rows() * matrix.filter().cols() >= FFT_FILTER_LENGTH;
+    }
+
+    /**
+     * @return The FFT plan of a product, which is kept in the workspace.
+     */
+    private static FftConvolution fftPlan(int productIndex, ConvolutionFilterMatrix matrix, int channels, LayerWorkspace workspace) {
+        return workspace.plan(productIndex, () -> new FftConvolution(matrix, channels));
+    }
+
+    /**
+     * @return The real and imaginary parts of the filter spectra of a product. They are kept in the workspace, and only
+     * recomputed when the parameters change.
+     */
+    private DMatrixRMaj[] filterSpectra(int productIndex, Product product, FftConvolution fft, Model.ParameterBindings bindings,
+                                        LayerWorkspace workspace) {
+        final int slot = FILTER_SPECTRA + 2 * productIndex;
+        final int length = fft.transformRows() * fft.transformCols();
+        final DMatrixRMaj re = workspace.matrix(slot, product.convolutions().length * fft.channels(), length);
+        final DMatrixRMaj im = workspace.matrix(slot + 1, product.convolutions().length * fft.channels(), length);
+        if (workspace.version(slot) != bindings.version()) {
+            fft.transformFilters(productFilters(product, bindings, workspace), re, im, workspace, FFT_BUFFERS);
+            workspace.setVersion(slot, bindings.version());
+        }
+
+        return new DMatrixRMaj[]{re, im};
+    }
+
+    private static DMatrixRMaj denseInputs(DMatrix layerInputs, LayerWorkspace workspace) {
+        if (layerInputs instanceof DMatrixRMaj m) {
+            return m;
+        }
+        final DMatrixRMaj dense = workspace.matrix(DENSE_INPUTS, layerInputs.getNumRows(), layerInputs.getNumCols());
+        for (int row = 0; row < dense.getNumRows(); row++) {
+            for (int col = 0; col < dense.getNumCols(); col++) {
+                dense.set(row, col, layerInputs.get(row, col));
+            }
+        }
+
+        return dense;
     }
 
     @Override
@@ -163,17 +610,102 @@ public record ConvolutionLayer(int inputChannels, Convolution[] convolutions, Ac
         return cache.output();
     }
 
-    public record Convolution(ConvolutionFilterMatrix matrix, ScalarParameter bias) {
+    /**
+     * @param filters A filter for each input channel that the convolution is applied to, all with the same shape, geometry
+     *                and input size.
+     */
+    public record Convolution(ConvolutionFilterMatrix[] filters, ScalarParameter bias) {
+        public Convolution {
+            if (filters.length == 0) {
+                throw new IllegalArgumentException("filters array must be non-empty");
+            }
+            if (Arrays.stream(filters)
+                      .map(f -> List.of(f.filter().rows(), f.filter().cols(), f.inputHeight(), f.inputWidth(), f.geometry()))
+                      .distinct()
+                      .count() > 1) {
+                throw new IllegalArgumentException("filters must all have the same shape, geometry and input size");
+            }
+        }
+
+        /**
+         * A convolution of a single channel.
+         */
+        public Convolution(ConvolutionFilterMatrix matrix, ScalarParameter bias) {
+            this(new ConvolutionFilterMatrix[]{matrix}, bias);
+        }
+
+        /**
+         * @return A convolution with new parameters for a filter on each of the given number of channels.
+         */
+        public static Convolution create(Model model, int channels, int filterRows, int filterCols, int inputHeight, int inputWidth,
+                                         ConvolutionGeometry geometry) {
+            final ConvolutionFilterMatrix[] filters = new ConvolutionFilterMatrix[channels];
+            for (int i = 0; i < channels; i++) {
+                filters[i] = new ConvolutionFilterMatrix(model.createParameterMatrix(filterRows, filterCols), inputHeight, inputWidth, geometry);
+            }
+
+            return new Convolution(filters, model.createScalarParameter());
+        }
+
+        /**
+         * @return A convolution with new parameters, that is a weighted sum over the given number of channels at each pixel.
+         */
+        public static Convolution pointwise(Model model, int channels, int inputHeight, int inputWidth) {
+            return create(model, channels, 1, 1, inputHeight, inputWidth, ConvolutionGeometry.VALID);
+        }
+
+        /**
+         * @return The filter of the first channel, which has the same shape and geometry as the others.
+         */
+        public ConvolutionFilterMatrix matrix() {
+            return filters[0];
+        }
+
         public int inputLength() {
-            return matrix.cols();
+            return matrix().cols();
         }
 
         public int outputLength() {
-            return matrix.rows();
+            return matrix().rows();
+        }
+
+        int filterLength() {
+            return matrix().filter().rows() * matrix().filter().cols();
+        }
+
+        boolean containsVariable(int variable) {
+            return bias.variable() == variable || Arrays.stream(filters).anyMatch(f -> f.filter().containsVariable(variable));
+        }
+
+        IntStream variables() {
+            return IntStream.concat(Arrays.stream(filters).flatMapToInt(f -> f.filter().variables()),
+                                    IntStream.of(bias.variable()));
+        }
+
+        /**
+         * Copies the filter values, one channel after another, into the given array.
+         */
+        void getFilters(Model.ParameterBindings bindings, double[] dst, int offset) {
+            for (int i = 0; i < filters.length; i++) {
+                bindings.getDoubles(filters[i].filter().variableStartIndex(), dst, offset + i * filterLength(), filterLength());
+            }
+        }
+
+        void getFilters(Model.ParameterBindings bindings, float[] dst, int offset) {
+            for (int i = 0; i < filters.length; i++) {
+                bindings.getFloats(filters[i].filter().variableStartIndex(), dst, offset + i * filterLength(), filterLength());
+            }
         }
     }
 
-    public record ConvolutionCache(DMatrix output, ChannelCache[][] channels) {}
+    /**
+     * @param channels Per output channel results for a single input vector, indexed by convolution and then by the output
+     *                 channels of that convolution. Null when evaluated as a batch.
+     * @param activationInputs Convolution outputs before activation, with one column per sample (or a single column when
+     *                         evaluated for a single input vector).
+     * @param sampleGradients The gradients of a single input vector. Null when evaluated as a batch.
+     */
+    public record ConvolutionCache(DMatrix output, ChannelCache[][] channels, DMatrix activationInputs, SampleGradients sampleGradients) {}
 
     public record ChannelCache(DMatrix activation, DMatrix activationInput, DMatrix activationWithRespectConvolution) {}
 }
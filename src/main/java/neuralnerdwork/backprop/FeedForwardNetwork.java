@@ -4,6 +4,8 @@ import neuralnerdwork.math.*;
 import org.ejml.data.DMatrix;
 import org.ejml.data.DMatrixRMaj;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 import static neuralnerdwork.math.MatrixProduct.product;
@@ -25,9 +27,16 @@ public record FeedForwardNetwork(Layer<?>[]layers) {
             return result.output();
         }
 
-        DMatrix derivativeWithRespectLayerParameter(DMatrix layerInput, int variable, Model.ParameterBindings bindings) {
+        DMatrix gradientWithRespectToLayerInput(DMatrix layerInput, DMatrix outputGradient, Model.ParameterBindings bindings) {
+            var result = layer.gradientWithRespectToLayerInput(layerInput, outputGradient, Objects.requireNonNull(cache), bindings);
+            cache = result.cache();
+
+            return result.output();
+        }
+
+        DMatrix gradientWithRespectLayerParameters(DMatrix layerInput, DMatrix outputGradient, Model.ParameterBindings bindings) {
             var result = layer
-                    .derivativeWithRespectLayerParameter(layerInput, variable, Objects.requireNonNull(cache), bindings);
+                    .gradientWithRespectLayerParameters(layerInput, outputGradient, Objects.requireNonNull(cache), bindings);
             cache = result.cache();
 
             return result.output();
@@ -53,11 +62,245 @@ public record FeedForwardNetwork(Layer<?>[]layers) {
         return layers[layers.length - 1].outputLength();
     }
 
+    /**
+     * @return A network that computes the same function of the same parameters, with chains of layers that can share
+     * work merged into one layer. A convolution layer followed by a max pool layer becomes a {@link PooledConvolutionLayer}
+     * (when its activation allows), which only activates the pooled outputs. Fully connected layers already add their bias
+     * and apply their activation in one pass over the output of their matrix product, so they are left as they are.
+     */
+    public FeedForwardNetwork fuse() {
+        final List<Layer<?>> fused = new ArrayList<>();
+        for (Layer<?> layer : layers) {
+            final int last = fused.size() - 1;
+            if (layer instanceof MaxPoolLayer pooling && last >= 0 && fused.get(last) instanceof ConvolutionLayer convolution
+                    && PooledConvolutionLayer.canFuse(convolution, pooling)) {
+                fused.set(last, new PooledConvolutionLayer(convolution, pooling));
+            } else {
+                fused.add(layer);
+            }
+        }
+
+        return new FeedForwardNetwork(fused.toArray(Layer<?>[]::new));
+    }
+
+    /**
+     * Ends a training step for the {@link BatchNormLayer}s of this network, moving their running statistics by the statistics
+     * of every batch back-propagated through them since the last call. Trainers call this once per step, after the gradient
+     * of the whole minibatch has been computed.
+     */
+    public void updateRunningStatistics() {
+        for (Layer<?> layer : layers) {
+            if (layer instanceof BatchNormLayer batchNorm) {
+                batchNorm.statistics().update();
+            }
+        }
+    }
+
     public FeedForwardExpression expression(DMatrix input) {
+        return new FeedForwardExpression(layers, new DMatrixColumnVectorExpression(input));
+    }
+
+    /**
+     * @param input An expression for the network input, such as an {@link InputVector} placeholder. Derivatives of the input
+     *              are not propagated, so it must not depend on any parameters.
+     */
+    public FeedForwardExpression expression(VectorExpression input) {
+        if (input.length() != inputLength()) {
+            throw new IllegalArgumentException(String.format("Expected input of length %d but found %d", inputLength(), input.length()));
+        }
+
         return new FeedForwardExpression(layers, input);
     }
 
-    public record FeedForwardExpression(Layer<?>[]layers, DMatrix input) implements VectorExpression {
+    /**
+     * @param inputs A matrix whose columns are input vectors to the network.
+     * @return An expression that runs a whole batch of inputs through the network at once, with its own workspace.
+     */
+    public BatchExpression batchExpression(DMatrix inputs) {
+        return batchExpression(inputs, createWorkspace());
+    }
+
+    /**
+     * @param inputs A matrix whose columns are input vectors to the network.
+     * @param workspace A workspace from {@link #createWorkspace()} on this network. Results of the expression are only valid
+     *                  until the workspace is next used.
+     * @return An expression that runs a whole batch of inputs through the network at once.
+     */
+    public BatchExpression batchExpression(DMatrix inputs, Workspace workspace) {
+        if (inputs.getNumRows() != inputLength()) {
+            throw new IllegalArgumentException(String.format("Expected inputs with %d rows but found %d",
+                                                             inputLength(), inputs.getNumRows()));
+        }
+        if (workspace.layers.length != layers.length) {
+            throw new IllegalArgumentException(String.format("Expected workspace for %d layers but found %d",
+                                                             layers.length, workspace.layers.length));
+        }
+
+        return new BatchExpression(layers, inputs, workspace);
+    }
+
+    /**
+     * @return Buffers for running batches through this network, that are reused across batches. A workspace must not
+     * be used by more than one thread at a time.
+     */
+    public Workspace createWorkspace() {
+        return new Workspace(layers);
+    }
+
+    public static final class Workspace {
+        private final LayerWorkspace[] layers;
+        private final StatefulBatchLayerDelegate<?>[] delegates;
+        private int[][] bindingIndices;
+        private int bindingsStart;
+        private int bindingsLength;
+        // The inputs and parameters version of the last batch evaluated for back-propagation
+        private DMatrix evaluatedInputs;
+        private long evaluatedVersion;
+
+        private Workspace(Layer<?>[] layers) {
+            this.layers = new LayerWorkspace[layers.length];
+            this.delegates = new StatefulBatchLayerDelegate<?>[layers.length];
+            for (int l = 0; l < layers.length; l++) {
+                this.layers[l] = new LayerWorkspace();
+                this.delegates[l] = new StatefulBatchLayerDelegate<>(layers[l], this.layers[l]);
+            }
+        }
+
+        private int[] bindingIndices(Layer<?>[] layers, int layer, Model.ParameterBindings bindings) {
+            if (bindingIndices == null || bindingsStart != bindings.start() || bindingsLength != bindings.length()) {
+                bindingIndices = new int[layers.length][];
+                for (int l = 0; l < layers.length; l++) {
+                    bindingIndices[l] = FeedForwardExpression.bindingIndices(layers[l], bindings);
+                }
+                bindingsStart = bindings.start();
+                bindingsLength = bindings.length();
+            }
+
+            return bindingIndices[layer];
+        }
+    }
+
+    /**
+     * Evaluates a batch of inputs (one per column) through the network, so that layers can use matrix-matrix
+     * products for the whole batch instead of a matrix-vector product per input. Intermediate results are kept in the
+     * workspace, so evaluating more batches of the same shape with it doesn't allocate them again.
+     */
+    public record BatchExpression(Layer<?>[]layers, DMatrix inputs, Workspace workspace) {
+        public int batchSize() {
+            return inputs.getNumCols();
+        }
+
+        /**
+         * @return A matrix whose columns are the network outputs for the corresponding input columns.
+         */
+        public DMatrix evaluate(Model.ParameterBindings bindings) {
+            // This reuses the layer buffers that back-propagation would read
+            workspace.evaluatedInputs = null;
+            DMatrix lastOutputs = inputs;
+            for (int l = 0; l < layers.length; l++) {
+                lastOutputs = layers[l].evaluateBatch(lastOutputs, bindings, workspace.layers[l]).output();
+            }
+
+            return lastOutputs;
+        }
+
+        /**
+         * @param outputGradients A matrix whose columns are the gradients of some scalar with respect to the network
+         *                        outputs for the corresponding input columns.
+         * @return A row vector with the gradient of the scalar with respect to each of the given bindings, summed over the batch.
+         */
+        public DMatrix computeVectorJacobianProduct(Model.ParameterBindings bindings, DMatrix outputGradients) {
+            evaluateForBackpropagation(bindings);
+
+            return backpropagate(bindings, outputGradients);
+        }
+
+        /**
+         * Evaluates the batch like {@link #evaluate(Model.ParameterBindings)}, but also keeps what each layer needs to
+         * back-propagate in the workspace, so that a loss can compute its output gradients from the outputs and then call
+         * {@link #backpropagate(Model.ParameterBindings, DMatrix)} without running the network forward again.
+         *
+         * @return A matrix whose columns are the network outputs for the corresponding input columns, valid until the
+         * workspace is next used.
+         */
+        public DMatrix evaluateForBackpropagation(Model.ParameterBindings bindings) {
+            DMatrix lastOutputs = inputs;
+            for (int l = 0; l < layers.length; l++) {
+                lastOutputs = workspace.delegates[l].evaluateBatch(lastOutputs, bindings);
+            }
+            workspace.evaluatedInputs = inputs;
+            workspace.evaluatedVersion = bindings.version();
+
+            return lastOutputs;
+        }
+
+        /**
+         * Back-propagates from the layer outputs kept by the last {@link #evaluateForBackpropagation(Model.ParameterBindings)}
+         * of this batch with the workspace.
+         *
+         * @param outputGradients A matrix whose columns are the gradients of some scalar with respect to the network
+         *                        outputs for the corresponding input columns.
+         * @return A new row vector with the gradient of the scalar with respect to each of the given bindings, summed over the batch.
+         */
+        public DMatrixRMaj backpropagate(Model.ParameterBindings bindings, DMatrix outputGradients) {
+            final int outputLength = layers[layers.length - 1].outputLength();
+            if (outputGradients.getNumRows() != outputLength || outputGradients.getNumCols() != batchSize()) {
+                throw new IllegalArgumentException(String.format("Expected (%dx%d) output gradients but found (%dx%d)",
+                                                                 outputLength, batchSize(), outputGradients.getNumRows(), outputGradients.getNumCols()));
+            }
+            if (workspace.evaluatedInputs != inputs || workspace.evaluatedVersion != bindings.version()) {
+                throw new IllegalStateException("The batch must be evaluated for back-propagation with the same parameters first");
+            }
+
+            final StatefulBatchLayerDelegate<?>[] layerDelegates = workspace.delegates;
+            final double[] gradient = new double[bindings.size()];
+            DMatrix layerOutputGradients = outputGradients;
+            for (int l = layers.length - 1; l > -1; l--) {
+                final DMatrix layerInputs = (l == 0) ? inputs : layerDelegates[l - 1].outputs;
+                try {
+                    final Layer.BatchGradients layerGradients =
+                            layerDelegates[l].backpropagateBatch(layerInputs, layerOutputGradients, l > 0, bindings);
+                    FeedForwardExpression.scatter(layerGradients.parameterGradient(),
+                                                  workspace.bindingIndices(layers, l, bindings),
+                                                  gradient);
+                    layerOutputGradients = layerGradients.inputGradients();
+                } catch (RuntimeException e) {
+                    throw new RuntimeException("Problem back-propagating batch in layer index " + l + " of " + layers.length, e);
+                }
+            }
+
+            return DMatrixRMaj.wrap(1, gradient.length, gradient);
+        }
+    }
+
+    private static class StatefulBatchLayerDelegate<C> {
+        private final Layer<C> layer;
+        private final LayerWorkspace workspace;
+        private C cache;
+        private DMatrix outputs;
+
+        private StatefulBatchLayerDelegate(Layer<C> layer, LayerWorkspace workspace) {
+            this.layer = layer;
+            this.workspace = workspace;
+        }
+
+        DMatrix evaluateBatch(DMatrix layerInputs, Model.ParameterBindings bindings) {
+            var result = layer.evaluateBatch(layerInputs, bindings, workspace);
+            cache = result.cache();
+            outputs = result.output();
+
+            return outputs;
+        }
+
+        Layer.BatchGradients backpropagateBatch(DMatrix layerInputs, DMatrix outputGradients, boolean inputGradientsRequired, Model.ParameterBindings bindings) {
+            var result = layer.backpropagateBatch(layerInputs, outputGradients, cache, inputGradientsRequired, bindings, workspace);
+            cache = result.cache();
+
+            return result.output();
+        }
+    }
+
+    public record FeedForwardExpression(Layer<?>[]layers, VectorExpression input) implements VectorExpression {
         @Override
         public int length() {
             return layers[layers.length - 1].outputLength();
@@ -70,7 +313,7 @@ public record FeedForwardNetwork(Layer<?>[]layers) {
 
         @Override
         public DMatrix evaluate(Model.ParameterBindings bindings) {
-            DMatrix lastOutput = input;
+            DMatrix lastOutput = input.evaluate(bindings);
             for (Layer<?> layer : layers) {
                 lastOutput = layer.evaluate(lastOutput, bindings).output();
             }
@@ -86,26 +329,11 @@ public record FeedForwardNetwork(Layer<?>[]layers) {
                 - (Bottom to top) Evaluate network with current parameter arguments, saving activations and weighted sums for each layer
                 - (Top to bottom) Using pre-calculated activations and weighted sums, calculate error deltas at each layer
                         Note: Lower layers error deltas depend on higher layers
-                - Calculate partial derivatives for each parameter using deltas
-                        Note: We do this as a separate step because of the current VectorExpression API requiring
-                                partial derivatives to be returned in a layout consistent with a given variable order.
+                - Calculate partial derivatives for all parameters of each layer using deltas
              */
 
-            DMatrix lastOutput = input;
-
-            /* Feed forward
-                Evaluate network, saving activation values and weighted sums of inputs at each layer to be re-used
-                in derivative calculations.
-             */
-            var layerDelegates = new StatefulLayerDelegate<?>[layers.length];
-            for (int l = 0; l < layers.length; l++) {
-                final Layer<?> layer = layers[l];
-                var delegate = new StatefulLayerDelegate<>(layer);
-                layerDelegates[l] = delegate;
-
-                // warms cache
-                lastOutput = delegate.evaluate(lastOutput, bindings);
-            }
+            final DMatrix input = this.input.evaluate(bindings);
+            final StatefulLayerDelegate<?>[] layerDelegates = feedForward(input, bindings);
 
             /* Backpropogate
                 Calculate deltas starting at last layer, going backwards.
@@ -142,51 +370,72 @@ public record FeedForwardNetwork(Layer<?>[]layers) {
             }
 
             /* Build up derivatives using deltas and activations
-                We do this separately from the last step so that we can iterate in order that
-                variables were listed in `computeDerivative`.
+                Row k of deltas[l + 1] is the gradient of network output k with respect to the output of layer l,
+                so passing it to the layer gives us row k of the partial derivatives for every parameter in that layer.
              */
-            final double[][] partialDerivatives = new double[layers[layers.length - 1].outputLength()][bindings.size()];
-            int varIndex = 0;
-            int end = bindings.start() + bindings.length();
-            for (int variable = bindings.start(); variable < end; variable++) {
-                final int layerIndex = findLayerIndex(variable);
-                final StatefulLayerDelegate<?> delegate = layerDelegates[layerIndex];
+            final int outputLength = length();
+            final double[][] partialDerivatives = new double[outputLength][bindings.size()];
+            for (int l = 0; l < layers.length; l++) {
+                final StatefulLayerDelegate<?> delegate = layerDelegates[l];
+                final DMatrix layerInput = (l == 0) ? input : layerDelegates[l - 1].getCachedEvaluation();
+                final int[] bindingIndices = bindingIndices(layers[l], bindings);
+                for (int outputIndex = 0; outputIndex < outputLength; outputIndex++) {
+                    try {
+                        final DMatrix outputGradient = (l == layers.length - 1) ?
+                                unitRowVector(outputLength, outputIndex) :
+                                row(deltas[l + 1], outputIndex);
+                        final DMatrix layerGradient = delegate.gradientWithRespectLayerParameters(layerInput, outputGradient, bindings);
+                        scatter(layerGradient, bindingIndices, partialDerivatives[outputIndex]);
+                    } catch (RuntimeException e) {
+                        throw new RuntimeException(String.format("Problem in (outputIndex/totalOutputs, layerIndex/totalLayers) = (%d/%d, %d/%d)",
+                                                                 outputIndex, outputLength, l, layers.length), e);
+                    }
+                }
+            }
 
+            return new DMatrixRMaj(partialDerivatives);
+        }
+
+        @Override
+        public DMatrix computeVectorJacobianProduct(Model.ParameterBindings bindings, DMatrix outputGradient) {
+            /*
+             Algorithm Summary:
+                - (Bottom to top) Evaluate network with current parameter arguments, saving activations and weighted sums for each layer
+                - (Top to bottom) Starting from the given gradient with respect to the network output, calculate the gradient
+                        with respect to the output of each lower layer. At each layer:
+                        - the layer output gradient is passed to the layer to get the gradient for all of its parameters
+                        - the layer output gradient is multiplied by the derivative of the layer with respect to its input
+                          to get the output gradient of the layer below
+
+             Unlike `computeDerivative`, we only ever hold a single row vector per layer, so we never allocate
+             a (network outputs x parameters) matrix.
+             */
+            if (outputGradient.getNumRows() != 1 || outputGradient.getNumCols() != length()) {
+                throw new IllegalArgumentException(String.format("Expected (1x%d) output gradient but found (%dx%d)",
+                                                                 length(), outputGradient.getNumRows(), outputGradient.getNumCols()));
+            }
+
+            final DMatrix input = this.input.evaluate(bindings);
+            final StatefulLayerDelegate<?>[] layerDelegates = feedForward(input, bindings);
+
+            final double[] gradient = new double[bindings.size()];
+            DMatrix layerOutputGradient = outputGradient;
+            for (int l = layers.length - 1; l > -1; l--) {
+                final StatefulLayerDelegate<?> delegate = layerDelegates[l];
+                final DMatrix layerInput = (l == 0) ? input : layerDelegates[l - 1].getCachedEvaluation();
                 try {
-                    /*
-                     Special cases for input layer
-                     */
-                    final DMatrix layerInput;
-                    if (layerIndex > 0) {
-                        layerInput = layerDelegates[layerIndex - 1].getCachedEvaluation();
-                    } else {
-                        layerInput = input;
-                    }
+                    final DMatrix layerGradient = delegate.gradientWithRespectLayerParameters(layerInput, layerOutputGradient, bindings);
+                    scatter(layerGradient, bindingIndices(layers[l], bindings), gradient);
 
-                    final DMatrix layerDerivative = delegate
-                            .derivativeWithRespectLayerParameter(layerInput, variable, bindings);
-                    if (layerIndex == layers.length - 1) {
-                        for (int i = 0; i < layerDerivative.getNumRows(); i++) {
-                            partialDerivatives[i][varIndex] = layerDerivative.get(i, 0);
-                        }
-                    } else {
-                        final DMatrix layerDeltas = deltas[layerIndex + 1];
-                        DMatrix derivativeProduct = new MatrixVectorProduct(
-                                new DMatrixExpression(layerDeltas),
-                                new DMatrixColumnVectorExpression(layerDerivative)
-                        ).evaluate(bindings);
-                        for (int i = 0; i < derivativeProduct.getNumRows(); i++) {
-                            partialDerivatives[i][varIndex] = derivativeProduct.get(i, 0);
-                        }
+                    if (l > 0) {
+                        layerOutputGradient = delegate.gradientWithRespectToLayerInput(layerInput, layerOutputGradient, bindings);
                     }
-                    varIndex++;
                 } catch (RuntimeException e) {
-                    throw new RuntimeException(String.format("Problem in (varIndex/totalVars, layerIndex/totalLayers) = (%d/%d, %d/%d)",
-                                                             varIndex, bindings.size(), layerIndex, layers.length), e);
+                    throw new RuntimeException("Problem back-propagating gradient in layer index " + l + " of " + layers.length, e);
                 }
             }
 
-            return new DMatrixRMaj(partialDerivatives);
+            return new DMatrixRMaj(1, gradient.length, true, gradient);
         }
 
         @Override
@@ -199,15 +448,59 @@ public record FeedForwardNetwork(Layer<?>[]layers) {
             return false;
         }
 
-        private int findLayerIndex(int variable) {
+        /* Feed forward
+            Evaluate network, saving activation values and weighted sums of inputs at each layer to be re-used
+            in derivative calculations.
+         */
+        private StatefulLayerDelegate<?>[] feedForward(DMatrix input, Model.ParameterBindings bindings) {
+            DMatrix lastOutput = input;
+            var layerDelegates = new StatefulLayerDelegate<?>[layers.length];
             for (int l = 0; l < layers.length; l++) {
-                if (layers[l].containsVariable(variable)) {
-                    return l;
+                final Layer<?> layer = layers[l];
+                var delegate = new StatefulLayerDelegate<>(layer);
+                layerDelegates[l] = delegate;
+
+                // warms cache
+                lastOutput = delegate.evaluate(lastOutput, bindings);
+            }
+
+            return layerDelegates;
+        }
+
+        /**
+         * @return For each variable of the given layer (in {@link Layer#variables()} order), the index of that variable
+         * in the given bindings, or -1 if the bindings don't include it.
+         */
+        private static int[] bindingIndices(Layer<?> layer, Model.ParameterBindings bindings) {
+            final int start = bindings.start();
+            final int end = start + bindings.length();
+            return layer.variables()
+                        .map(variable -> (variable >= start && variable < end) ? variable - start : -1)
+                        .toArray();
+        }
+
+        private static void scatter(DMatrix layerGradient, int[] bindingIndices, double[] target) {
+            for (int i = 0; i < bindingIndices.length; i++) {
+                if (bindingIndices[i] >= 0) {
+                    target[bindingIndices[i]] = layerGradient.get(0, i);
                 }
             }
+        }
 
-            throw new IllegalArgumentException("Cannot find layer containing variable " + variable);
+        private static DMatrix unitRowVector(int length, int index) {
+            final DMatrixRMaj vector = new DMatrixRMaj(1, length);
+            vector.set(0, index, 1.0);
+
+            return vector;
         }
 
+        private static DMatrix row(DMatrix matrix, int row) {
+            final DMatrixRMaj vector = new DMatrixRMaj(1, matrix.getNumCols());
+            for (int col = 0; col < vector.getNumCols(); col++) {
+                vector.set(0, col, matrix.get(row, col));
+            }
+
+            return vector;
+        }
     }
 }
@@ -0,0 +1,342 @@
+package neuralnerdwork.backprop;
+
+import neuralnerdwork.math.ConvolutionFilterMatrix;
+import neuralnerdwork.math.ConvolutionGeometry;
+import org.ejml.data.DMatrixRMaj;
+
+import java.util.Arrays;
+
+/**
+ * Applies stride one, undilated filters to images with 2D FFTs, for filters large enough that this is cheaper than
+ * {@link Im2Col} products. Each image (i.e. channel of a sample) is transformed once, and multiplied by the spectrum of every
+ * filter applied to it, so filter spectra can be computed once and reused for a whole batch.
+ *
+ * Images and filters are zero-padded to a power of two size, large enough that the circular correlation computed with
+ * the transforms equals the zero-padded correlation at every output position.
+ *
+ * A convolution plans its transform sizes and twiddle factors when it is created, so layers keep one per product (see
+ * {@link LayerWorkspace#plan}) rather than creating one for every batch.
+ */
+final class FftConvolution {
+    private final ConvolutionFilterMatrix matrix;
+    private final int channels;
+    private final int transformRows;
+    private final int transformCols;
+    // Twiddle factors for transforms along columns (of length transformRows) and along rows (of length transformCols)
+    private final double[] rowTwiddles;
+    private final double[] colTwiddles;
+
+    /**
+     * @param matrix The size of each image, and the shape and geometry of the filters.
+     * @param channels The number of consecutive images that each filter spans, whose results are summed.
+     */
+    FftConvolution(ConvolutionFilterMatrix matrix, int channels) {
+        final ConvolutionGeometry geometry = matrix.geometry();
+        if (geometry.rowStride() != 1 || geometry.colStride() != 1 || geometry.rowDilation() != 1 || geometry.colDilation() != 1) {
+            throw new IllegalArgumentException("FFT convolutions need stride one and no dilation, but got " + geometry);
+        }
+        this.matrix = matrix;
+        this.channels = channels;
+        this.transformRows = powerOfTwoAtLeast(matrix.inputHeight() + geometry.rowPadding());
+        this.transformCols = powerOfTwoAtLeast(matrix.inputWidth() + geometry.colPadding());
+        this.rowTwiddles = twiddles(transformRows);
+        this.colTwiddles = twiddles(transformCols);
+    }
+
+    ConvolutionFilterMatrix matrix() {
+        return matrix;
+    }
+
+    int channels() {
+        return channels;
+    }
+
+    // Workspace slots, counted from the first slot given to each method
+    private static final int INPUT_RE = 0, INPUT_IM = 1, GRADIENT_RE = 2, GRADIENT_IM = 3, PRODUCT_RE = 4, PRODUCT_IM = 5, SCRATCH = 6;
+
+    /**
+     * @return The number of rows of each transform.
+     */
+    int transformRows() {
+        return transformRows;
+    }
+
+    /**
+     * @return The number of columns of each transform.
+     */
+    int transformCols() {
+        return transformCols;
+    }
+
+    /**
+     * @param filters The filters as rows, each the filters of every channel one after another.
+     * @param re Reshaped to have the real parts of the spectrum of each filter of each channel as rows.
+     * @param im Reshaped to have the imaginary parts, in the same layout as {@code re}.
+     */
+    void transformFilters(DMatrixRMaj filters, DMatrixRMaj re, DMatrixRMaj im, LayerWorkspace workspace, int slot) {
+        final int filterRows = matrix.filter().rows();
+        final int filterCols = matrix.filter().cols();
+        final int cols = transformCols();
+        final int length = transformRows() * cols;
+        re.reshape(filters.getNumRows() * channels, length, false);
+        im.reshape(filters.getNumRows() * channels, length, false);
+        Arrays.fill(re.data, 0, re.getNumElements(), 0.0);
+        Arrays.fill(im.data, 0, im.getNumElements(), 0.0);
+        final double[] scratch = scratch(workspace, slot);
+
+        for (int spectrum = 0; spectrum < re.getNumRows(); spectrum++) {
+            for (int r = 0; r < filterRows; r++) {
+                System.arraycopy(filters.data, (spectrum * filterRows + r) * filterCols, re.data, spectrum * length + r * cols, filterCols);
+            }
+            transform(re.data, im.data, spectrum * length, false, scratch);
+        }
+    }
+
+    /**
+     * The equivalent of the filters as rows times the {@link Im2Col#unfold unfolded patches} of the images.
+     *
+     * @param inputs A batch of images, with one row per pixel and one column per sample.
+     * @param pixelOffset The row of {@code inputs} where the first image starts.
+     * @param filterRe The real parts of the filter spectra from {@link #transformFilters}.
+     * @param filterIm The imaginary parts of the filter spectra.
+     * @param outputs Reshaped to have a row per filter, and a column for each sample at each output position, where the
+     *                columns of one output position are adjacent.
+     */
+    void convolve(DMatrixRMaj inputs, int pixelOffset, DMatrixRMaj filterRe, DMatrixRMaj filterIm, DMatrixRMaj outputs,
+                  LayerWorkspace workspace, int slot) {
+        final int batchSize = inputs.getNumCols();
+        final int filters = filterRe.getNumRows() / channels;
+        final int length = transformRows() * transformCols();
+        final int blockLength = matrix.rows() * batchSize;
+        outputs.reshape(filters, blockLength, false);
+        final double[] inputRe = workspace.matrix(slot + INPUT_RE, channels, length).data;
+        final double[] inputIm = workspace.matrix(slot + INPUT_IM, channels, length).data;
+        final double[] sumRe = workspace.matrix(slot + PRODUCT_RE, 1, length).data;
+        final double[] sumIm = workspace.matrix(slot + PRODUCT_IM, 1, length).data;
+        final double[] scratch = scratch(workspace, slot);
+
+        for (int sample = 0; sample < batchSize; sample++) {
+            transformInputs(inputs, pixelOffset, sample, inputRe, inputIm, scratch);
+            for (int f = 0; f < filters; f++) {
+                // correlation is multiplication by the conjugate filter spectrum
+                Arrays.fill(sumRe, 0, length, 0.0);
+                Arrays.fill(sumIm, 0, length, 0.0);
+                for (int channel = 0; channel < channels; channel++) {
+                    final int x = channel * length;
+                    final int w = (f * channels + channel) * length;
+                    for (int i = 0; i < length; i++) {
+                        sumRe[i] += inputRe[x + i] * filterRe.data[w + i] + inputIm[x + i] * filterIm.data[w + i];
+                        sumIm[i] += inputIm[x + i] * filterRe.data[w + i] - inputRe[x + i] * filterIm.data[w + i];
+                    }
+                }
+                transform(sumRe, sumIm, 0, true, scratch);
+
+                for (int target = 0; target < matrix.rows(); target++) {
+                    outputs.data[f * blockLength + target * batchSize + sample] = sumRe[shiftedIndex(target)] / length;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the gradients of the filters and (optionally) images, given the gradients with respect to the outputs of
+     * {@link #convolve}.
+     *
+     * @param deltas A row per filter, in the layout of the outputs of {@link #convolve}.
+     * @param filterGradients A row per filter, in the layout of the filters given to {@link #transformFilters}, which the
+     *                        filter gradients are added to.
+     * @param inputGradients The gradients with respect to {@code inputs}, in the same layout, which the image gradients are
+     *                       added to. May be null if they are not needed.
+     */
+    void backpropagate(DMatrixRMaj inputs, int pixelOffset, DMatrixRMaj filterRe, DMatrixRMaj filterIm, DMatrixRMaj deltas,
+                       DMatrixRMaj filterGradients, DMatrixRMaj inputGradients, LayerWorkspace workspace, int slot) {
+        final int batchSize = inputs.getNumCols();
+        final int filters = filterRe.getNumRows() / channels;
+        final int cols = transformCols();
+        final int length = transformRows() * cols;
+        final int blockLength = matrix.rows() * batchSize;
+        final int filterRows = matrix.filter().rows();
+        final int filterCols = matrix.filter().cols();
+        final int filterLength = filterRows * filterCols;
+        final double[] inputRe = workspace.matrix(slot + INPUT_RE, channels, length).data;
+        final double[] inputIm = workspace.matrix(slot + INPUT_IM, channels, length).data;
+        final double[] gradientRe = workspace.matrix(slot + GRADIENT_RE, channels, length).data;
+        final double[] gradientIm = workspace.matrix(slot + GRADIENT_IM, channels, length).data;
+        final double[] deltaRe = workspace.matrix(slot + PRODUCT_RE, 2, length).data;
+        final double[] deltaIm = workspace.matrix(slot + PRODUCT_IM, 2, length).data;
+        final double[] scratch = scratch(workspace, slot);
+
+        for (int sample = 0; sample < batchSize; sample++) {
+            transformInputs(inputs, pixelOffset, sample, inputRe, inputIm, scratch);
+            if (inputGradients != null) {
+                Arrays.fill(gradientRe, 0, channels * length, 0.0);
+                Arrays.fill(gradientIm, 0, channels * length, 0.0);
+            }
+
+            for (int f = 0; f < filters; f++) {
+                // the deltas are placed where the correlation reads its outputs from, so both gradients are plain products
+                Arrays.fill(deltaRe, 0, length, 0.0);
+                Arrays.fill(deltaIm, 0, length, 0.0);
+                for (int target = 0; target < matrix.rows(); target++) {
+                    deltaRe[shiftedIndex(target)] = deltas.data[f * blockLength + target * batchSize + sample];
+                }
+                transform(deltaRe, deltaIm, 0, false, scratch);
+
+                for (int channel = 0; channel < channels; channel++) {
+                    final int x = channel * length;
+                    final int w = (f * channels + channel) * length;
+                    // filter gradient: the correlation of the image with the deltas
+                    for (int i = 0; i < length; i++) {
+                        deltaRe[length + i] = deltaRe[i] * inputRe[x + i] + deltaIm[i] * inputIm[x + i];
+                        deltaIm[length + i] = deltaRe[i] * inputIm[x + i] - deltaIm[i] * inputRe[x + i];
+                    }
+                    transform(deltaRe, deltaIm, length, true, scratch);
+                    final int gradientOffset = f * channels * filterLength + channel * filterLength;
+                    for (int r = 0; r < filterRows; r++) {
+                        for (int c = 0; c < filterCols; c++) {
+                            filterGradients.data[gradientOffset + r * filterCols + c] += deltaRe[length + r * cols + c] / length;
+                        }
+                    }
+
+                    // image gradient: the convolution of the deltas with the filter
+                    if (inputGradients != null) {
+                        for (int i = 0; i < length; i++) {
+                            gradientRe[x + i] += deltaRe[i] * filterRe.data[w + i] - deltaIm[i] * filterIm.data[w + i];
+                            gradientIm[x + i] += deltaRe[i] * filterIm.data[w + i] + deltaIm[i] * filterRe.data[w + i];
+                        }
+                    }
+                }
+            }
+
+            if (inputGradients != null) {
+                for (int channel = 0; channel < channels; channel++) {
+                    transform(gradientRe, gradientIm, channel * length, true, scratch);
+                    final int imageOffset = pixelOffset + channel * matrix.cols();
+                    for (int r = 0; r < matrix.inputHeight(); r++) {
+                        for (int c = 0; c < matrix.inputWidth(); c++) {
+                            inputGradients.data[(imageOffset + r * matrix.inputWidth() + c) * batchSize + sample] +=
+                                    gradientRe[channel * length + r * cols + c] / length;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void transformInputs(DMatrixRMaj inputs, int pixelOffset, int sample, double[] re, double[] im, double[] scratch) {
+        final int batchSize = inputs.getNumCols();
+        final int cols = transformCols();
+        final int length = transformRows() * cols;
+        Arrays.fill(re, 0, channels * length, 0.0);
+        Arrays.fill(im, 0, channels * length, 0.0);
+        for (int channel = 0; channel < channels; channel++) {
+            final int imageOffset = pixelOffset + channel * matrix.cols();
+            for (int r = 0; r < matrix.inputHeight(); r++) {
+                for (int c = 0; c < matrix.inputWidth(); c++) {
+                    re[channel * length + r * cols + c] = inputs.data[(imageOffset + r * matrix.inputWidth() + c) * batchSize + sample];
+                }
+            }
+            transform(re, im, channel * length, false, scratch);
+        }
+    }
+
+    /**
+     * @return The index in a transform of the output at the given flattened position, which is offset by the padding
+     * (wrapping around).
+     */
+    private int shiftedIndex(int target) {
+        final int row = Math.floorMod(target / matrix.outputWidth() - matrix.geometry().rowPadding(), transformRows());
+        final int col = Math.floorMod(target % matrix.outputWidth() - matrix.geometry().colPadding(), transformCols());
+        return row * transformCols() + col;
+    }
+
+    private double[] scratch(LayerWorkspace workspace, int slot) {
+        return workspace.matrix(slot + SCRATCH, 2, Math.max(transformRows(), transformCols())).data;
+    }
+
+    /**
+     * An in place 2D transform (unnormalized when inverse) of the row major array starting at {@code offset}.
+     */
+    private void transform(double[] re, double[] im, int offset, boolean inverse, double[] scratch) {
+        final int rows = transformRows();
+        final int cols = transformCols();
+        for (int r = 0; r < rows; r++) {
+            transform(re, im, offset + r * cols, offset + r * cols, cols, inverse, colTwiddles);
+        }
+        // columns are copied out to be contiguous
+        for (int c = 0; c < cols; c++) {
+            for (int r = 0; r < rows; r++) {
+                scratch[r] = re[offset + r * cols + c];
+                scratch[rows + r] = im[offset + r * cols + c];
+            }
+            transform(scratch, scratch, 0, rows, rows, inverse, rowTwiddles);
+            for (int r = 0; r < rows; r++) {
+                re[offset + r * cols + c] = scratch[r];
+                im[offset + r * cols + c] = scratch[rows + r];
+            }
+        }
+    }
+
+    /**
+     * @return The twiddle factors of a transform of length {@code n}: the cosines of {@code -2 pi k / n} for
+     * {@code k < n / 2}, followed by the sines.
+     */
+    private static double[] twiddles(int n) {
+        final int half = n / 2;
+        final double[] twiddles = new double[2 * half];
+        for (int k = 0; k < half; k++) {
+            twiddles[k] = Math.cos(-2 * Math.PI * k / n);
+            twiddles[half + k] = Math.sin(-2 * Math.PI * k / n);
+        }
+
+        return twiddles;
+    }
+
+    /**
+     * An in place radix 2 transform of {@code n} values, with real parts from {@code reOffset} and imaginary parts from
+     * {@code imOffset}.
+     *
+     * @param twiddles The {@link #twiddles} of length {@code n}. The inverse transform uses their conjugates.
+     */
+    private static void transform(double[] re, double[] im, int reOffset, int imOffset, int n, boolean inverse, double[] twiddles) {
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                final double tRe = re[reOffset + i];
+                re[reOffset + i] = re[reOffset + j];
+                re[reOffset + j] = tRe;
+                final double tIm = im[imOffset + i];
+                im[imOffset + i] = im[imOffset + j];
+                im[imOffset + j] = tIm;
+            }
+        }
+
+        final double sign = inverse ? -1.0 : 1.0;
+        for (int length = 2; length <= n; length <<= 1) {
+            final int half = length / 2;
+            // The twiddle factors of a stage are every (n / length)th factor of the whole transform
+            final int step = n / length;
+            for (int j = 0; j < half; j++) {
+                final double wRe = twiddles[j * step];
+                final double wIm = sign * twiddles[n / 2 + j * step];
+                for (int i = j; i < n; i += length) {
+                    final int a = i, b = i + half;
+                    final double tRe = re[reOffset + b] * wRe - im[imOffset + b] * wIm;
+                    final double tIm = re[reOffset + b] * wIm + im[imOffset + b] * wRe;
+                    re[reOffset + b] = re[reOffset + a] - tRe;
+                    im[imOffset + b] = im[imOffset + a] - tIm;
+                    re[reOffset + a] += tRe;
+                    im[imOffset + a] += tIm;
+                }
+            }
+        }
+    }
+
+    private static int powerOfTwoAtLeast(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+}
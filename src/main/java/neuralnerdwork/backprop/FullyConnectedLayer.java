@@ -2,15 +2,21 @@ package neuralnerdwork.backprop;
 
 import neuralnerdwork.math.*;
 import org.ejml.data.DMatrix;
+import org.ejml.data.DMatrixRMaj;
 import org.ejml.data.DMatrixSparseCSC;
+import org.ejml.data.FMatrixRMaj;
+import org.ejml.dense.row.CommonOps_FDRM;
 
 import java.util.Optional;
 import java.util.stream.IntStream;
 
-import static neuralnerdwork.math.VectorSum.sum;
-
 public record FullyConnectedLayer(ParameterMatrix weights, Optional<ParameterVector> bias, ActivationFunction activation) implements Layer<FullyConnectedLayer.PerceptronCache> {
-    public record PerceptronCache(DMatrix activation, DMatrix activationInputs, DMatrix activationDerivativeWithRespectToWeightedSum) {
+    /**
+     * @param singlePrecisionInputs The layer inputs rounded to single precision by a single precision batch evaluation, which
+     *                              back-propagating the batch reuses. Null otherwise.
+     */
+    public record PerceptronCache(DMatrix activation, DMatrix activationInputs, DMatrix activationDerivativeWithRespectToWeightedSum,
+                                  FMatrixRMaj singlePrecisionInputs) {
     }
 
     @Override
@@ -72,7 +78,46 @@ public record FullyConnectedLayer(ParameterMatrix weights, Optional<ParameterVec
         DMatrix output = new DMatrixSparseCSC(weights.rows(), 1, 1);
         output.set(index, 0, activationDerivativeWithRespectWeightedSum.get(index, index) * value);
 
-        return new Result<>(output, new PerceptronCache(cache.activation(), activationInputs, activationDerivativeWithRespectWeightedSum));
+        return new Result<>(output, new PerceptronCache(cache.activation(), activationInputs, activationDerivativeWithRespectWeightedSum, null));
+    }
+
+    @Override
+    public Result<DMatrix, PerceptronCache> gradientWithRespectLayerParameters(DMatrix layerInput, DMatrix outputGradient, PerceptronCache cache, Model.ParameterBindings bindings) {
+        SingleVariableFunction activationDerivative = activation.differentiateByInput();
+        DMatrix activationInputs = getActivationInputs(layerInput, cache, bindings);
+
+        final int rows = weights.rows();
+        final int cols = weights.cols();
+
+        // delta is the gradient with respect to the weighted sums
+        final double[] delta = new double[rows];
+        for (int row = 0; row < rows; row++) {
+            delta[row] = outputGradient.get(0, row) * activationDerivative.apply(activationInputs.get(row, 0));
+        }
+        final double[] input = new double[cols];
+        for (int col = 0; col < cols; col++) {
+            input[col] = layerInput.get(col, 0);
+        }
+
+        /*
+         The weight gradient is the outer product of delta and the layer input, laid out in the same (row major)
+         order as the weight variables. The bias gradient is just delta.
+         */
+        final double[] gradient = new double[rows * cols + (bias.isPresent() ? rows : 0)];
+        for (int row = 0, offset = 0; row < rows; row++, offset += cols) {
+            final double rowDelta = delta[row];
+            if (rowDelta != 0.0) {
+                for (int col = 0; col < cols; col++) {
+                    gradient[offset + col] = rowDelta * input[col];
+                }
+            }
+        }
+        if (bias.isPresent()) {
+            System.arraycopy(delta, 0, gradient, rows * cols, rows);
+        }
+
+        return new Result<>(new DMatrixRMaj(1, gradient.length, true, gradient),
+                            new PerceptronCache(cache.activation(), activationInputs, cache.activationDerivativeWithRespectToWeightedSum(), null));
     }
 
     private DMatrix getActivationInputs(DMatrix layerInput, PerceptronCache cache, Model.ParameterBindings bindings) {
@@ -120,36 +165,225 @@ public record FullyConnectedLayer(ParameterMatrix weights, Optional<ParameterVec
                 weights
         ).evaluate(bindings);
 
-        return new Result<>(output, new PerceptronCache(cache.activation(), activationInputs, activationDerivativeWithRespectToWeightedSum));
+        return new Result<>(output, new PerceptronCache(cache.activation(), activationInputs, activationDerivativeWithRespectToWeightedSum, null));
     }
 
     @Override
     public Result<DMatrix, PerceptronCache> evaluate(DMatrix layerInput, Model.ParameterBindings bindings) {
-        final DMatrix weightedSums = calculateWeightedSums(layerInput, bindings);
+        final DMatrixRMaj weightedSums = calculateWeightedSums(layerInput, bindings);
+        final DMatrixRMaj output = new DMatrixRMaj(weights.rows(), 1);
+        activation.applyTo(weightedSums.data, output.data, output.getNumElements());
 
-        DMatrix output = new ColumnVectorizedSingleVariableFunction(
-                activation,
-                new DMatrixColumnVectorExpression(weightedSums)
-        ).evaluate(bindings);
+        return new Result<>(output, new PerceptronCache(output, weightedSums, null, null));
+    }
 
-        return new Result<>(output, new PerceptronCache(output, weightedSums, null));
-    }
-
-    private DMatrix calculateWeightedSums(DMatrix layerInput, Model.ParameterBindings bindings) {
-        return bias.map(b ->
-                                sum(
-                                        new MatrixVectorProduct(
-                                                weights,
-                                                new DMatrixColumnVectorExpression(layerInput)
-                                        ),
-                                        b
-                                )
-        ).orElseGet(() ->
-                            new MatrixVectorProduct(
-                                    weights,
-                                    new DMatrixColumnVectorExpression(layerInput)
-                            )
-        ).evaluate(bindings);
+    /*
+     Workspace slots used by the batch methods. The weights and bias are only copied out of the bindings when their version
+     changes, so repeated evaluation with the same parameters (as in inference) reads them from the workspace. Versions
+     are kept by double precision slot number, so the single precision weights keep theirs under SINGLE_VERSION.
+     */
+    private static final int WEIGHTS = 0, DENSE_INPUTS = 1, WEIGHTED_SUMS = 2, OUTPUT = 3, DELTAS = 4,
+            WEIGHT_GRADIENT = 5, PARAMETER_GRADIENT = 6, INPUT_GRADIENTS = 7, BIAS = 8, SINGLE_VERSION = 9;
+    private static final int SINGLE_WEIGHTS = 0, SINGLE_INPUTS = 1, SINGLE_DELTAS = 2, SINGLE_PRODUCT = 3;
+
+    @Override
+    public Result<DMatrix, PerceptronCache> evaluateBatch(DMatrix layerInputs, Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        final DMatrixRMaj inputs = denseInputs(layerInputs, workspace);
+        final int rows = weights.rows();
+        final int batchSize = inputs.getNumCols();
+
+        // One matrix-matrix product for the whole batch, rather than a matrix-vector product per column
+        final DMatrixRMaj weightedSums = workspace.matrix(WEIGHTED_SUMS, rows, batchSize);
+        final FMatrixRMaj singlePrecisionInputs;
+        if (bindings.precision() == Precision.SINGLE) {
+            singlePrecisionInputs = singlePrecision(inputs, workspace.floatMatrix(SINGLE_INPUTS, inputs.getNumRows(), batchSize));
+            final FMatrixRMaj product = workspace.floatMatrix(SINGLE_PRODUCT, rows, batchSize);
+            CommonOps_FDRM.mult(singlePrecisionWeights(bindings, workspace), singlePrecisionInputs, product);
+            doublePrecision(product, weightedSums);
+        } else {
+            singlePrecisionInputs = null;
+            MatrixBackends.current().mult(weightValues(bindings, workspace), inputs, weightedSums);
+        }
+        // The bias is added in the same pass as the activation, which keeps the biased sums for back-propagation
+        final DMatrixRMaj output = workspace.matrix(OUTPUT, rows, batchSize);
+        if (bias.isPresent()) {
+            final DMatrixRMaj biasValues = workspace.matrix(BIAS, rows, 1);
+            if (workspace.version(BIAS) != bindings.version()) {
+                bindings.getDoubles(bias.get().variableStartIndex(), biasValues.data, 0, rows);
+                workspace.setVersion(BIAS, bindings.version());
+            }
+            activation.addBiasAndApply(weightedSums.data, biasValues.data, rows, batchSize, output.data);
+        } else {
+            activation.applyTo(weightedSums.data, output.data, output.getNumElements());
+        }
+
+        return new Result<>(output, new PerceptronCache(output, weightedSums, null, singlePrecisionInputs));
+    }
+
+    @Override
+    public Result<BatchGradients, PerceptronCache> backpropagateBatch(DMatrix layerInputs, DMatrix outputGradients, PerceptronCache cache, boolean inputGradientsRequired,
+                                                                      Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        final PerceptronCache evaluated = cache != null ? cache : evaluateBatch(layerInputs, bindings, workspace).cache();
+        final DMatrixRMaj weightedSums = (DMatrixRMaj) evaluated.activationInputs();
+        final DMatrixRMaj inputs = denseInputs(layerInputs, workspace);
+
+        final int rows = weights.rows();
+        final int cols = weights.cols();
+        final int batchSize = inputs.getNumCols();
+
+        // deltas are the gradients with respect to the weighted sums, one column per sample
+        final DMatrixRMaj deltas = workspace.matrix(DELTAS, rows, batchSize);
+        activation.multiplyByDerivative(weightedSums.data, denseGradients(outputGradients, deltas), deltas.data, deltas.getNumElements());
+
+        /*
+         Summed over the batch, the weight gradient is deltas * inputs^T, which is already laid out in the same
+         (row major) order as the weight variables. The bias gradient is the row sums of deltas.
+         */
+        final boolean singlePrecision = bindings.precision() == Precision.SINGLE;
+        final FMatrixRMaj singlePrecisionDeltas = singlePrecision ?
+                singlePrecision(deltas, workspace.floatMatrix(SINGLE_DELTAS, rows, batchSize)) :
+                null;
+        final DMatrixRMaj parameterGradient = workspace.matrix(PARAMETER_GRADIENT, 1, rows * cols + (bias.isPresent() ? rows : 0));
+        final double[] gradient = parameterGradient.data;
+        if (singlePrecision) {
+            final FMatrixRMaj weightGradient = workspace.floatMatrix(SINGLE_PRODUCT, rows, cols);
+            // The inputs were already rounded by the forward pass
+            final FMatrixRMaj singlePrecisionInputs = evaluated.singlePrecisionInputs() != null ?
+                    evaluated.singlePrecisionInputs() :
+                    singlePrecision(inputs, workspace.floatMatrix(SINGLE_INPUTS, cols, batchSize));
+            CommonOps_FDRM.multTransB(singlePrecisionDeltas, singlePrecisionInputs, weightGradient);
+            for (int i = 0; i < rows * cols; i++) {
+                gradient[i] = weightGradient.data[i];
+            }
+        } else {
+            final DMatrixRMaj weightGradient = workspace.matrix(WEIGHT_GRADIENT, rows, cols);
+            MatrixBackends.current().multTransB(deltas, inputs, weightGradient);
+            System.arraycopy(weightGradient.data, 0, gradient, 0, rows * cols);
+        }
+        if (bias.isPresent()) {
+            for (int row = 0, offset = 0; row < rows; row++, offset += batchSize) {
+                double accum = 0.0;
+                for (int col = 0; col < batchSize; col++) {
+                    accum += deltas.data[offset + col];
+                }
+                gradient[rows * cols + row] = accum;
+            }
+        }
+
+        final DMatrixRMaj inputGradients;
+        if (inputGradientsRequired && singlePrecision) {
+            final FMatrixRMaj product = workspace.floatMatrix(SINGLE_PRODUCT, cols, batchSize);
+            CommonOps_FDRM.multTransA(singlePrecisionWeights(bindings, workspace), singlePrecisionDeltas, product);
+            inputGradients = doublePrecision(product, workspace.matrix(INPUT_GRADIENTS, cols, batchSize));
+        } else if (inputGradientsRequired) {
+            inputGradients = workspace.matrix(INPUT_GRADIENTS, cols, batchSize);
+            MatrixBackends.current().multTransA(weightValues(bindings, workspace), deltas, inputGradients);
+        } else {
+            inputGradients = null;
+        }
+
+        return new Result<>(new BatchGradients(inputGradients, parameterGradient), cache);
+    }
+
+    /**
+     * @return The data of the gradients if they are dense, or else the gradients copied into {@code target}.
+     */
+    static double[] denseGradients(DMatrix outputGradients, DMatrixRMaj target) {
+        if (outputGradients instanceof DMatrixRMaj m) {
+            return m.data;
+        }
+        for (int row = 0; row < target.getNumRows(); row++) {
+            for (int col = 0; col < target.getNumCols(); col++) {
+                target.unsafe_set(row, col, outputGradients.get(row, col));
+            }
+        }
+
+        return target.data;
+    }
+
+    private static DMatrixRMaj denseInputs(DMatrix layerInputs, LayerWorkspace workspace) {
+        if (layerInputs instanceof DMatrixRMaj m) {
+            return m;
+        } else {
+            final DMatrixRMaj dense = workspace.matrix(DENSE_INPUTS, layerInputs.getNumRows(), layerInputs.getNumCols());
+            for (int row = 0; row < dense.getNumRows(); row++) {
+                for (int col = 0; col < dense.getNumCols(); col++) {
+                    dense.set(row, col, layerInputs.get(row, col));
+                }
+            }
+            return dense;
+        }
+    }
+
+    private DMatrixRMaj weightValues(Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        final DMatrixRMaj values = workspace.matrix(WEIGHTS, weights.rows(), weights.cols());
+        if (workspace.version(WEIGHTS) != bindings.version()) {
+            bindings.getDoubles(weights.variableStartIndex(), values.data, 0, weights.rows() * weights.cols());
+            workspace.setVersion(WEIGHTS, bindings.version());
+        }
+
+        return values;
+    }
+
+    /*
+     With single precision bindings, the matrix products (which dominate the cost of a batch) are done in single precision.
+     Activations and deltas are still handed between layers as doubles, since layers exchange DMatrix values, but each batch
+     of inputs is only rounded once for both passes.
+     */
+    private FMatrixRMaj singlePrecisionWeights(Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        final FMatrixRMaj values = workspace.floatMatrix(SINGLE_WEIGHTS, weights.rows(), weights.cols());
+        if (workspace.version(SINGLE_VERSION) != bindings.version()) {
+            bindings.getFloats(weights.variableStartIndex(), values.data, 0, weights.rows() * weights.cols());
+            workspace.setVersion(SINGLE_VERSION, bindings.version());
+        }
+
+        return values;
+    }
+
+    private static FMatrixRMaj singlePrecision(DMatrixRMaj matrix, FMatrixRMaj converted) {
+        for (int i = 0; i < matrix.getNumElements(); i++) {
+            converted.data[i] = (float) matrix.data[i];
+        }
+
+        return converted;
+    }
+
+    private static DMatrixRMaj doublePrecision(FMatrixRMaj matrix, DMatrixRMaj converted) {
+        for (int i = 0; i < matrix.getNumElements(); i++) {
+            converted.data[i] = matrix.data[i];
+        }
+
+        return converted;
+    }
+
+    /*
+     The per sample methods have no workspace of their own, so each thread keeps one per layer, in which the weights are
+     copied out of the bindings only when their version changes.
+     */
+    private static final SampleWorkspaces sampleWorkspaces = new SampleWorkspaces();
+
+    /**
+     * @return The weights times the input plus the bias, with each row's dot product and bias computed in one pass over
+     * the weights.
+     */
+    private DMatrixRMaj calculateWeightedSums(DMatrix layerInput, Model.ParameterBindings bindings) {
+        final int rows = weights.rows();
+        final int cols = weights.cols();
+        final LayerWorkspace workspace = sampleWorkspaces.get(this);
+        final double[] weightValues = weightValues(bindings, workspace).data;
+        final double[] input = denseInputs(layerInput, workspace).data;
+
+        final DMatrixRMaj weightedSums = new DMatrixRMaj(rows, 1);
+        final int biasStart = bias.map(ParameterVector::variableStartIndex).orElse(-1);
+        for (int row = 0, offset = 0; row < rows; row++, offset += cols) {
+            double accum = biasStart >= 0 ? bindings.get(biasStart + row) : 0.0;
+            for (int col = 0; col < cols; col++) {
+                accum += weightValues[offset + col] * input[col];
+            }
+            weightedSums.data[row] = accum;
+        }
+
+        return weightedSums;
     }
 
     @Override
@@ -0,0 +1,100 @@
+package neuralnerdwork.backprop;
+
+import neuralnerdwork.math.ActivationFunction;
+import neuralnerdwork.math.IdentityFunction;
+import neuralnerdwork.math.Model;
+import org.ejml.data.DMatrix;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Takes the mean of each whole channel, giving one output per channel. Used in place of a fully connected layer at the
+ * end of a stack of convolutions, this keeps the number of parameters independent of the size of the channels.
+ *
+ * @param channels The number of channels in the input.
+ * @param channelLength The number of entries in each channel.
+ */
+public record GlobalAveragePoolLayer(int channels, int channelLength) implements Layer<DMatrix> {
+    public GlobalAveragePoolLayer {
+        if (channels < 1 || channelLength < 1) {
+            throw new IllegalArgumentException("channels and channel length must be positive");
+        }
+    }
+
+    /**
+     * @return Average pooling with a single window covering each channel.
+     */
+    private AveragePoolLayer pooling() {
+        final MaxPoolLayer.Channel[] windows = new MaxPoolLayer.Channel[channels];
+        Arrays.fill(windows, new MaxPoolLayer.Channel(channelLength, 1, channelLength, 1));
+
+        return new AveragePoolLayer(windows);
+    }
+
+    @Override
+    public ActivationFunction activation() {
+        return new IdentityFunction();
+    }
+
+    @Override
+    public boolean containsVariable(int variable) {
+        return false;
+    }
+
+    @Override
+    public int outputLength() {
+        return channels;
+    }
+
+    @Override
+    public int inputLength() {
+        return channels * channelLength;
+    }
+
+    @Override
+    public IntStream variables() {
+        return IntStream.empty();
+    }
+
+    @Override
+    public Result<DMatrix, DMatrix> derivativeWithRespectToLayerInput(DMatrix layerInput, DMatrix cache, Model.ParameterBindings bindings) {
+        return pooling().derivativeWithRespectToLayerInput(layerInput, cache, bindings);
+    }
+
+    @Override
+    public Result<DMatrix, DMatrix> derivativeWithRespectLayerParameter(DMatrix layerInput, int variable, DMatrix cache, Model.ParameterBindings bindings) {
+        throw new UnsupportedOperationException("Global average pool layers don't contain any variables. This should never be called.");
+    }
+
+    @Override
+    public Result<DMatrix, DMatrix> gradientWithRespectLayerParameters(DMatrix layerInput, DMatrix outputGradient, DMatrix cache, Model.ParameterBindings bindings) {
+        return pooling().gradientWithRespectLayerParameters(layerInput, outputGradient, cache, bindings);
+    }
+
+    @Override
+    public Result<DMatrix, DMatrix> gradientWithRespectToLayerInput(DMatrix layerInput, DMatrix outputGradient, DMatrix cache, Model.ParameterBindings bindings) {
+        return pooling().gradientWithRespectToLayerInput(layerInput, outputGradient, cache, bindings);
+    }
+
+    @Override
+    public Result<DMatrix, DMatrix> evaluate(DMatrix layerInput, Model.ParameterBindings bindings) {
+        return pooling().evaluate(layerInput, bindings);
+    }
+
+    @Override
+    public Result<DMatrix, DMatrix> evaluateBatch(DMatrix layerInputs, Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        return pooling().evaluateBatch(layerInputs, bindings, workspace);
+    }
+
+    @Override
+    public Result<BatchGradients, DMatrix> backpropagateBatch(DMatrix layerInputs, DMatrix outputGradients, DMatrix cache, boolean inputGradientsRequired,
+                                                              Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        return pooling().backpropagateBatch(layerInputs, outputGradients, cache, inputGradientsRequired, bindings, workspace);
+    }
+
+    @Override
+    public DMatrix getEvaluation(DMatrix cache) {
+        return cache;
+    }
+}
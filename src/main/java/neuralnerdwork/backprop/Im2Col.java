@@ -0,0 +1,215 @@
+package neuralnerdwork.backprop;
+
+import neuralnerdwork.math.ConvolutionFilterMatrix;
+import neuralnerdwork.math.ConvolutionGeometry;
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.data.FMatrixRMaj;
+
+import java.util.Arrays;
+
+/**
+ * Unfolds the patches of an image that a filter is applied to into the columns of a matrix, so that applying any number
+ * of filters to the image is a single matrix-matrix product (the filters as rows, times the patches). The patches of several
+ * images may be stacked, so that filters spanning all of them are summed over the images by the same product.
+ *
+ * Images are batches, with one row per pixel (in row major order) and one column per sample.
+ */
+final class Im2Col {
+    private Im2Col() {}
+
+    /**
+     * @param inputs A batch of images, with one row per pixel and one column per sample.
+     * @param pixelOffset The row of {@code inputs} where the first image (i.e. channel) starts.
+     * @param channels The number of consecutive images to unfold, whose patches are stacked.
+     * @param matrix The size of each image, and the shape and geometry of the filter.
+     * @param patches Reshaped to have one row per channel and filter entry (in row major order), and a column for each
+     *                sample at each output position, where the columns of one output position are adjacent. Entries that
+     *                fall in the padding are zero.
+     */
+    static void unfold(DMatrixRMaj inputs, int pixelOffset, int channels, ConvolutionFilterMatrix matrix, DMatrixRMaj patches) {
+        final int batchSize = inputs.getNumCols();
+        final ConvolutionGeometry geometry = matrix.geometry();
+        final int targetRows = matrix.outputHeight();
+        final int targetCols = matrix.outputWidth();
+        final int patchRowLength = targetRows * targetCols * batchSize;
+        final int runLength = targetCols * batchSize;
+        final int filterLength = matrix.filter().rows() * matrix.filter().cols();
+        patches.reshape(channels * filterLength, patchRowLength, false);
+
+        for (int channel = 0; channel < channels; channel++) {
+            final int channelOffset = pixelOffset + channel * matrix.cols();
+            for (int r = 0; r < matrix.filter().rows(); r++) {
+                for (int c = 0; c < matrix.filter().cols(); c++) {
+                    final int colOffset = c * geometry.colDilation() - geometry.colPadding();
+                    final int first = firstInside(colOffset, geometry.colStride(), targetCols);
+                    final int end = endInside(colOffset, geometry.colStride(), targetCols, matrix.inputWidth());
+                    final int patchRowOffset = (channel * filterLength + r * matrix.filter().cols() + c) * patchRowLength;
+                    for (int targetRow = 0; targetRow < targetRows; targetRow++) {
+                        final int sourceRow = targetRow * geometry.rowStride() - geometry.rowPadding() + r * geometry.rowDilation();
+                        final int dst = patchRowOffset + targetRow * runLength;
+                        if (sourceRow < 0 || sourceRow >= matrix.inputHeight() || end <= first) {
+                            Arrays.fill(patches.data, dst, dst + runLength, 0.0);
+                            continue;
+                        }
+                        Arrays.fill(patches.data, dst, dst + first * batchSize, 0.0);
+                        Arrays.fill(patches.data, dst + end * batchSize, dst + runLength, 0.0);
+
+                        final int src = (channelOffset + sourceRow * matrix.inputWidth() + colOffset) * batchSize;
+                        if (geometry.colStride() == 1) {
+                            // The output positions along one target row read adjacent input pixels, so each run is a single copy
+                            System.arraycopy(inputs.data, src + first * batchSize, patches.data, dst + first * batchSize,
+                                             (end - first) * batchSize);
+                        } else {
+                            for (int targetCol = first; targetCol < end; targetCol++) {
+                                System.arraycopy(inputs.data, src + targetCol * geometry.colStride() * batchSize,
+                                                 patches.data, dst + targetCol * batchSize, batchSize);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The transpose of {@link #unfold}: adds each entry of {@code patches} into the pixel of {@code inputs} it would have
+     * been copied from, ignoring entries in the padding. Applied to the transposed filters times the output gradients,
+     * this is a transposed convolution, giving the gradients with respect to the image.
+     */
+    static void foldAdd(DMatrixRMaj patches, int pixelOffset, int channels, ConvolutionFilterMatrix matrix, DMatrixRMaj inputs) {
+        final int batchSize = inputs.getNumCols();
+        final ConvolutionGeometry geometry = matrix.geometry();
+        final int targetRows = matrix.outputHeight();
+        final int targetCols = matrix.outputWidth();
+        final int patchRowLength = targetRows * targetCols * batchSize;
+        final int runLength = targetCols * batchSize;
+        final int filterLength = matrix.filter().rows() * matrix.filter().cols();
+        for (int channel = 0; channel < channels; channel++) {
+            final int channelOffset = pixelOffset + channel * matrix.cols();
+            for (int r = 0; r < matrix.filter().rows(); r++) {
+                for (int c = 0; c < matrix.filter().cols(); c++) {
+                    final int colOffset = c * geometry.colDilation() - geometry.colPadding();
+                    final int first = firstInside(colOffset, geometry.colStride(), targetCols);
+                    final int end = endInside(colOffset, geometry.colStride(), targetCols, matrix.inputWidth());
+                    final int patchRowOffset = (channel * filterLength + r * matrix.filter().cols() + c) * patchRowLength;
+                    for (int targetRow = 0; targetRow < targetRows; targetRow++) {
+                        final int sourceRow = targetRow * geometry.rowStride() - geometry.rowPadding() + r * geometry.rowDilation();
+                        if (sourceRow < 0 || sourceRow >= matrix.inputHeight()) {
+                            continue;
+                        }
+                        final int src = patchRowOffset + targetRow * runLength;
+                        final int dst = (channelOffset + sourceRow * matrix.inputWidth() + colOffset) * batchSize;
+                        for (int targetCol = first; targetCol < end; targetCol++) {
+                            final int patchOffset = src + targetCol * batchSize;
+                            final int inputOffset = dst + targetCol * geometry.colStride() * batchSize;
+                            for (int i = 0; i < batchSize; i++) {
+                                inputs.data[inputOffset + i] += patches.data[patchOffset + i];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * {@link #unfold(DMatrixRMaj, int, int, ConvolutionFilterMatrix, DMatrixRMaj) Unfolds} the patches rounded to single
+     * precision, for single precision products. Rounding as the patches are copied means the images aren't converted
+     * in a pass of their own.
+     */
+    static void unfold(DMatrixRMaj inputs, int pixelOffset, int channels, ConvolutionFilterMatrix matrix, FMatrixRMaj patches) {
+        final int batchSize = inputs.getNumCols();
+        final ConvolutionGeometry geometry = matrix.geometry();
+        final int targetRows = matrix.outputHeight();
+        final int targetCols = matrix.outputWidth();
+        final int patchRowLength = targetRows * targetCols * batchSize;
+        final int runLength = targetCols * batchSize;
+        final int filterLength = matrix.filter().rows() * matrix.filter().cols();
+        patches.reshape(channels * filterLength, patchRowLength, false);
+
+        for (int channel = 0; channel < channels; channel++) {
+            final int channelOffset = pixelOffset + channel * matrix.cols();
+            for (int r = 0; r < matrix.filter().rows(); r++) {
+                for (int c = 0; c < matrix.filter().cols(); c++) {
+                    final int colOffset = c * geometry.colDilation() - geometry.colPadding();
+                    final int first = firstInside(colOffset, geometry.colStride(), targetCols);
+                    final int end = endInside(colOffset, geometry.colStride(), targetCols, matrix.inputWidth());
+                    final int patchRowOffset = (channel * filterLength + r * matrix.filter().cols() + c) * patchRowLength;
+                    for (int targetRow = 0; targetRow < targetRows; targetRow++) {
+                        final int sourceRow = targetRow * geometry.rowStride() - geometry.rowPadding() + r * geometry.rowDilation();
+                        final int dst = patchRowOffset + targetRow * runLength;
+                        if (sourceRow < 0 || sourceRow >= matrix.inputHeight() || end <= first) {
+                            Arrays.fill(patches.data, dst, dst + runLength, 0.0f);
+                            continue;
+                        }
+                        Arrays.fill(patches.data, dst, dst + first * batchSize, 0.0f);
+                        Arrays.fill(patches.data, dst + end * batchSize, dst + runLength, 0.0f);
+
+                        final int src = (channelOffset + sourceRow * matrix.inputWidth() + colOffset) * batchSize;
+                        for (int targetCol = first; targetCol < end; targetCol++) {
+                            final int inputOffset = src + targetCol * geometry.colStride() * batchSize;
+                            final int patchOffset = dst + targetCol * batchSize;
+                            for (int i = 0; i < batchSize; i++) {
+                                patches.data[patchOffset + i] = (float) inputs.data[inputOffset + i];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * {@link #foldAdd(DMatrixRMaj, int, int, ConvolutionFilterMatrix, DMatrixRMaj) Folds} single precision patches back
+     * onto double precision images.
+     */
+    static void foldAdd(FMatrixRMaj patches, int pixelOffset, int channels, ConvolutionFilterMatrix matrix, DMatrixRMaj inputs) {
+        final int batchSize = inputs.getNumCols();
+        final ConvolutionGeometry geometry = matrix.geometry();
+        final int targetRows = matrix.outputHeight();
+        final int targetCols = matrix.outputWidth();
+        final int patchRowLength = targetRows * targetCols * batchSize;
+        final int runLength = targetCols * batchSize;
+        final int filterLength = matrix.filter().rows() * matrix.filter().cols();
+        for (int channel = 0; channel < channels; channel++) {
+            final int channelOffset = pixelOffset + channel * matrix.cols();
+            for (int r = 0; r < matrix.filter().rows(); r++) {
+                for (int c = 0; c < matrix.filter().cols(); c++) {
+                    final int colOffset = c * geometry.colDilation() - geometry.colPadding();
+                    final int first = firstInside(colOffset, geometry.colStride(), targetCols);
+                    final int end = endInside(colOffset, geometry.colStride(), targetCols, matrix.inputWidth());
+                    final int patchRowOffset = (channel * filterLength + r * matrix.filter().cols() + c) * patchRowLength;
+                    for (int targetRow = 0; targetRow < targetRows; targetRow++) {
+                        final int sourceRow = targetRow * geometry.rowStride() - geometry.rowPadding() + r * geometry.rowDilation();
+                        if (sourceRow < 0 || sourceRow >= matrix.inputHeight()) {
+                            continue;
+                        }
+                        final int src = patchRowOffset + targetRow * runLength;
+                        final int dst = (channelOffset + sourceRow * matrix.inputWidth() + colOffset) * batchSize;
+                        for (int targetCol = first; targetCol < end; targetCol++) {
+                            final int patchOffset = src + targetCol * batchSize;
+                            final int inputOffset = dst + targetCol * geometry.colStride() * batchSize;
+                            for (int i = 0; i < batchSize; i++) {
+                                inputs.data[inputOffset + i] += patches.data[patchOffset + i];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The first target column whose source column ({@code targetCol * stride + colOffset}) is not in the left padding.
+     */
+    private static int firstInside(int colOffset, int stride, int targetCols) {
+        return Math.min(targetCols, Math.max(0, Math.floorDiv(-colOffset + stride - 1, stride)));
+    }
+
+    /**
+     * @return One past the last target column whose source column is not in the right padding.
+     */
+    private static int endInside(int colOffset, int stride, int targetCols, int inputWidth) {
+        return Math.max(0, Math.min(targetCols, Math.floorDiv(inputWidth - 1 - colOffset, stride) + 1));
+    }
+}
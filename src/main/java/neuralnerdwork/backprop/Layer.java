@@ -1,8 +1,10 @@
 package neuralnerdwork.backprop;
 
 import neuralnerdwork.math.ActivationFunction;
+import neuralnerdwork.math.EJMLUtil;
 import neuralnerdwork.math.Model;
 import org.ejml.data.DMatrix;
+import org.ejml.data.DMatrixRMaj;
 
 import java.util.stream.IntStream;
 
@@ -67,6 +69,40 @@ public interface Layer<C> {
      */
     Result<DMatrix, C> derivativeWithRespectLayerParameter(DMatrix layerInput, int variable, C cache, Model.ParameterBindings bindings);
 
+    /**
+     * Used for back-propogating a gradient to lower layers.
+     * This method is always called after {@link #evaluate(DMatrix, Model.ParameterBindings)}.
+     * The default implementation multiplies by {@link #derivativeWithRespectToLayerInput(DMatrix, Object, Model.ParameterBindings)}.
+     * Layers should override this when they can propagate the gradient without materializing that derivative.
+     *
+     * @param layerInput The input vector for this layer. Never null.
+     * @param outputGradient A row vector with length {@link #outputLength()}, that is the gradient of some scalar with respect
+     *                       to the output of this layer. Never null.
+     * @param cache Cache object that may contain intermediate results. Never null. Fields in cache maybe null.
+     * @param bindings Bindings of parameters in entire network. Never null.
+     * @return A row vector with length {@link #inputLength()}, that is the gradient of the same scalar with respect to the
+     * input of this layer.
+     */
+    default Result<DMatrix, C> gradientWithRespectToLayerInput(DMatrix layerInput, DMatrix outputGradient, C cache, Model.ParameterBindings bindings) {
+        final Result<DMatrix, C> derivative = derivativeWithRespectToLayerInput(layerInput, cache, bindings);
+
+        return new Result<>(EJMLUtil.mult(outputGradient, derivative.output()), derivative.cache());
+    }
+
+    /**
+     * Used for back-propogating a gradient to all parameters of this layer at once.
+     * This method is always called after {@link #evaluate(DMatrix, Model.ParameterBindings)}.
+     *
+     * @param layerInput The input vector for this layer. Never null.
+     * @param outputGradient A row vector with length {@link #outputLength()}, that is the gradient of some scalar with respect
+     *                       to the output of this layer (the upstream delta). Never null.
+     * @param cache Cache object that may contain intermediate results. Never null. Fields in cache maybe null.
+     * @param bindings Bindings of parameters in entire network. Never null.
+     * @return A row vector with one entry per variable in this layer, in the order given by {@link #variables()}. Each entry
+     * is {@code outputGradient} multiplied by the derivative of this layer with respect to that variable.
+     */
+    Result<DMatrix, C> gradientWithRespectLayerParameters(DMatrix layerInput, DMatrix outputGradient, C cache, Model.ParameterBindings bindings);
+
     /**
      * Evaluate this layer given an input vector.
      *
@@ -81,4 +117,93 @@ public interface Layer<C> {
      * @return The cached evaluation result.
      */
     DMatrix getEvaluation(C cache);
+
+    /**
+     * Tuple for returning the result of back-propogating a batch through a layer.
+     *
+     * @param inputGradients A matrix whose columns are the gradients with respect to the corresponding columns of the layer input,
+     *                       or null if they were not requested.
+     * @param parameterGradient A row vector with one entry per variable in the layer (in the order given by {@link #variables()}),
+     *                          summed over all columns of the batch.
+     */
+    record BatchGradients(DMatrix inputGradients, DMatrix parameterGradient) {}
+
+    /**
+     * Evaluate this layer for a batch of input vectors at once.
+     * The default implementation evaluates each column separately. Layers should override this when they can process
+     * a whole batch more efficiently (e.g. with a single matrix-matrix product).
+     *
+     * @param layerInputs A matrix whose columns are input vectors to this layer.
+     * @param bindings Bindings of parameters in entire network. Never null.
+     * @param workspace Buffers owned by this layer, which implementations may use for their results. Never null.
+     * @return A matrix whose columns are the outputs of this layer for the corresponding input columns. The cache may be null,
+     * in which case {@link #backpropagateBatch(DMatrix, DMatrix, Object, boolean, Model.ParameterBindings, LayerWorkspace)}
+     * must not rely on it. The output and cache are only valid until this layer next uses the workspace.
+     */
+    default Result<DMatrix, C> evaluateBatch(DMatrix layerInputs, Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        DMatrixRMaj outputs = workspace.matrix(0, outputLength(), layerInputs.getNumCols());
+        for (int col = 0; col < layerInputs.getNumCols(); col++) {
+            DMatrix output = evaluate(column(layerInputs, col), bindings).output();
+            for (int row = 0; row < outputs.getNumRows(); row++) {
+                outputs.set(row, col, output.get(row, 0));
+            }
+        }
+
+        return new Result<>(outputs, null);
+    }
+
+    /**
+     * Used for back-propogating gradients of a batch through this layer.
+     * This method is always called after {@link #evaluateBatch(DMatrix, Model.ParameterBindings, LayerWorkspace)}, with the same workspace.
+     * The default implementation re-evaluates and back-propogates each column separately.
+     *
+     * @param layerInputs A matrix whose columns are input vectors to this layer. Never null.
+     * @param outputGradients A matrix whose columns are the gradients of some scalar with respect to the corresponding
+     *                        columns of the output of this layer. Never null.
+     * @param cache Cache object from {@link #evaluateBatch(DMatrix, Model.ParameterBindings, LayerWorkspace)}. May be null.
+     * @param inputGradientsRequired If false, implementations may skip calculating gradients with respect to the layer input.
+     * @param bindings Bindings of parameters in entire network. Never null.
+     * @param workspace Buffers owned by this layer, which implementations may use for their results. Never null.
+     * @return The gradients with respect to the layer input and to the parameters of this layer, which are only valid until
+     * this layer next uses the workspace.
+     */
+    default Result<BatchGradients, C> backpropagateBatch(DMatrix layerInputs, DMatrix outputGradients, C cache, boolean inputGradientsRequired,
+                                                         Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        final int batchSize = layerInputs.getNumCols();
+        final DMatrixRMaj parameterGradient = workspace.matrix(1, 1, (int) variables().count());
+        parameterGradient.zero();
+        final DMatrixRMaj inputGradients = inputGradientsRequired ? workspace.matrix(2, inputLength(), batchSize) : null;
+        for (int col = 0; col < batchSize; col++) {
+            DMatrix layerInput = column(layerInputs, col);
+            DMatrixRMaj outputGradient = new DMatrixRMaj(1, outputLength());
+            for (int i = 0; i < outputGradient.getNumCols(); i++) {
+                outputGradient.set(0, i, outputGradients.get(i, col));
+            }
+
+            C columnCache = evaluate(layerInput, bindings).cache();
+            Result<DMatrix, C> gradient = gradientWithRespectLayerParameters(layerInput, outputGradient, columnCache, bindings);
+            final DMatrix columnGradient = gradient.output();
+            for (int i = 0; i < parameterGradient.getNumCols(); i++) {
+                parameterGradient.data[i] += columnGradient.get(0, i);
+            }
+
+            if (inputGradientsRequired) {
+                DMatrix inputGradient = gradientWithRespectToLayerInput(layerInput, outputGradient, gradient.cache(), bindings).output();
+                for (int i = 0; i < inputGradients.getNumRows(); i++) {
+                    inputGradients.set(i, col, inputGradient.get(0, i));
+                }
+            }
+        }
+
+        return new Result<>(new BatchGradients(inputGradients, parameterGradient), cache);
+    }
+
+    private static DMatrix column(DMatrix matrix, int col) {
+        DMatrixRMaj column = new DMatrixRMaj(matrix.getNumRows(), 1);
+        for (int row = 0; row < matrix.getNumRows(); row++) {
+            column.set(row, 0, matrix.get(row, col));
+        }
+
+        return column;
+    }
 }
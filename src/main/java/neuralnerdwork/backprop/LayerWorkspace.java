@@ -0,0 +1,121 @@
+package neuralnerdwork.backprop;
+
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.data.FMatrixRMaj;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Buffers that a layer reuses across calls to {@link Layer#evaluateBatch(org.ejml.data.DMatrix, neuralnerdwork.math.Model.ParameterBindings, LayerWorkspace)}
+ * and {@link Layer#backpropagateBatch(org.ejml.data.DMatrix, org.ejml.data.DMatrix, Object, boolean, neuralnerdwork.math.Model.ParameterBindings, LayerWorkspace)},
+ * so that once the buffers have grown to fit a batch shape, running further batches of that shape doesn't allocate them again.
+ * Each layer decides what its numbered slots are used for.
+ *
+ * The contents of a buffer are unspecified when it is handed out, and are only valid until the same slot is requested again.
+ * A workspace must not be used by more than one thread at a time.
+ */
+public final class LayerWorkspace {
+    private DMatrixRMaj[] matrices = new DMatrixRMaj[0];
+    private FMatrixRMaj[] floatMatrices = new FMatrixRMaj[0];
+    private int[][] intArrays = new int[0][];
+    private long[] versions = new long[0];
+    private LayerWorkspace[] nested = new LayerWorkspace[0];
+    private Object[] plans = new Object[0];
+
+    public DMatrixRMaj matrix(int slot, int rows, int cols) {
+        if (slot >= matrices.length) {
+            matrices = Arrays.copyOf(matrices, slot + 1);
+        }
+        DMatrixRMaj matrix = matrices[slot];
+        if (matrix == null) {
+            matrix = new DMatrixRMaj(rows, cols);
+            matrices[slot] = matrix;
+        } else {
+            matrix.reshape(rows, cols, false);
+        }
+
+        return matrix;
+    }
+
+    public FMatrixRMaj floatMatrix(int slot, int rows, int cols) {
+        if (slot >= floatMatrices.length) {
+            floatMatrices = Arrays.copyOf(floatMatrices, slot + 1);
+        }
+        FMatrixRMaj matrix = floatMatrices[slot];
+        if (matrix == null) {
+            matrix = new FMatrixRMaj(rows, cols);
+            floatMatrices[slot] = matrix;
+        } else {
+            matrix.reshape(rows, cols, false);
+        }
+
+        return matrix;
+    }
+
+    /**
+     * @return An array with at least the given length.
+     */
+    public int[] ints(int slot, int length) {
+        if (slot >= intArrays.length) {
+            intArrays = Arrays.copyOf(intArrays, slot + 1);
+        }
+        int[] array = intArrays[slot];
+        if (array == null || array.length < length) {
+            array = new int[length];
+            intArrays[slot] = array;
+        }
+
+        return array;
+    }
+
+    /**
+     * @return A workspace of its own for a layer that this one runs as part of its work, such as a layer fused into it.
+     */
+    public LayerWorkspace nested(int slot) {
+        if (slot >= nested.length) {
+            nested = Arrays.copyOf(nested, slot + 1);
+        }
+        if (nested[slot] == null) {
+            nested[slot] = new LayerWorkspace();
+        }
+
+        return nested[slot];
+    }
+
+    /**
+     * @return The object kept in a slot, which is created the first time the slot is requested. This is for things that a
+     * layer sets up once for the shapes it works on, such as FFT plans, rather than for buffers. A slot must always be
+     * requested with the same type.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T plan(int slot, Supplier<T> create) {
+        if (slot >= plans.length) {
+            plans = Arrays.copyOf(plans, slot + 1);
+        }
+        if (plans[slot] == null) {
+            plans[slot] = create.get();
+        }
+
+        return (T) plans[slot];
+    }
+
+    /**
+     * @return The version last recorded for a slot with {@link #setVersion(int, long)}, or zero if there is none.
+     */
+    public long version(int slot) {
+        return slot < versions.length ? versions[slot] : 0;
+    }
+
+    /**
+     * Records that the buffer in a slot was computed from parameters with the given
+     * {@link neuralnerdwork.math.Model.ParameterBindings#version() bindings version}, so that a layer can keep it across calls
+     * until the parameters change. The buffer must be requested with the same shape to keep its contents.
+     */
+    public void setVersion(int slot, long version) {
+        if (slot >= versions.length) {
+            versions = Arrays.copyOf(versions, slot + 1);
+        }
+        versions[slot] = version;
+    }
+}
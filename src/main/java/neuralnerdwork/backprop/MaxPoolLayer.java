@@ -5,24 +5,62 @@ import org.ejml.data.DMatrix;
 import org.ejml.data.DMatrixRMaj;
 import org.ejml.data.DMatrixSparseCSC;
 import org.ejml.data.DMatrixSparseTriplet;
-import org.ejml.dense.row.CommonOps_DDRM;
 import org.ejml.ops.ConvertDMatrixStruct;
 
 import java.util.Arrays;
 import java.util.stream.IntStream;
 
+/**
+ * Takes the maximum of each window of each channel. The windows move by a stride, and overlap when it is smaller than the
+ * window. The position of each maximum is kept from evaluation, so back-propagation only visits each output once.
+ */
 public record MaxPoolLayer(Channel[] channels) implements Layer<MaxPoolLayer.MaxPoolCache> {
+    /**
+     * @param strideWidth The number of input columns between horizontally adjacent windows.
+     * @param strideHeight The number of input rows between vertically adjacent windows.
+     */
     public record Channel(int inputWidth,
                           int inputHeight,
                           int filterWidth,
-                          int filterHeight) {
+                          int filterHeight,
+                          int strideWidth,
+                          int strideHeight) {
+        public Channel {
+            if (filterWidth < 1 || filterHeight < 1 || filterWidth > inputWidth || filterHeight > inputHeight) {
+                throw new IllegalArgumentException(String.format("filter dimensions %dx%d must fit in input dimensions %dx%d",
+                                                                 filterWidth, filterHeight, inputWidth, inputHeight));
+            }
+            if (strideWidth < 1 || strideHeight < 1) {
+                throw new IllegalArgumentException("stride must be positive");
+            }
+        }
+
+        /**
+         * Non-overlapping windows, where the stride is the size of the window.
+         */
+        public Channel(int inputWidth, int inputHeight, int filterWidth, int filterHeight) {
+            this(inputWidth, inputHeight, filterWidth, filterHeight, filterWidth, filterHeight);
+        }
+
+        public int outputWidth() {
+            return (inputWidth - filterWidth) / strideWidth + 1;
+        }
+
+        public int outputHeight() {
+            return (inputHeight - filterHeight) / strideHeight + 1;
+        }
+
         public int outputLength() {
-            return (inputWidth / filterWidth) * (inputHeight / filterHeight);
+            return outputWidth() * outputHeight();
         }
 
         public int inputLength() {
             return inputHeight * inputWidth;
         }
+
+        int filterLength() {
+            return filterWidth * filterHeight;
+        }
     }
 
     @Override
@@ -56,37 +94,11 @@ public record MaxPoolLayer(Channel[] channels) implements Layer<MaxPoolLayer.Max
 
     @Override
     public Result<DMatrix, MaxPoolCache> derivativeWithRespectToLayerInput(DMatrix layerInput, MaxPoolCache cache, Model.ParameterBindings bindings) {
-        int totalInputLength = inputLength();
-        int totalOutputLength = outputLength();
-        DMatrixSparseTriplet derivative = new DMatrixSparseTriplet(totalOutputLength, totalInputLength, 0);
-        for (int i = 0, sourceChannelOffset = 0;
-             i < channels.length;
-             sourceChannelOffset += channels[i].inputLength(), i += 1) {
-            Channel channel = channels[i];
-            int targetWidth = channel.inputWidth() / channel.filterWidth();
-            int targetHeight = channel.inputHeight() / channel.filterHeight();
-
-            for (int targetRow = 0; targetRow < targetHeight; targetRow++) {
-                for (int targetCol = 0; targetCol < targetWidth; targetCol++) {
-                    int sourceRowOffset = targetRow * channel.filterHeight();
-                    int sourceColOffset = targetCol * channel.filterWidth();
-                    int targetIndex = targetRow * targetWidth + targetCol;
-                    int sourceIndexOffset = sourceChannelOffset + sourceRowOffset * channel.inputWidth() + sourceColOffset;
-
-                    record Max(double value, int row, int col) {}
-                    Max max = new Max(layerInput.get(sourceIndexOffset, 0), targetIndex, sourceIndexOffset);
-                    for (int r = 0; r < channel.filterHeight(); r++) {
-                        for (int c = 0; c < channel.filterWidth(); c++) {
-                            int sourceIndex = sourceIndexOffset + r * channel.inputWidth() + c;
-                            double candidate = layerInput.get(sourceIndex, 0);
-                            if (candidate > max.value) {
-                                max = new Max(candidate, targetIndex, sourceIndexOffset);
-                            }
-                        }
-                    }
-                    derivative.addItem(max.row, max.col, max.value);
-                }
-            }
+        // Each output is its window's maximum, so its derivative is one at that input
+        final int[] argmax = cache.argmax();
+        final DMatrixSparseTriplet derivative = new DMatrixSparseTriplet(outputLength(), inputLength(), outputLength());
+        for (int target = 0; target < outputLength(); target++) {
+            derivative.addItem(target, argmax[target], 1.0);
         }
 
         return new Result<>(ConvertDMatrixStruct.convert(derivative, (DMatrixSparseCSC) null), cache);
@@ -97,25 +109,96 @@ public record MaxPoolLayer(Channel[] channels) implements Layer<MaxPoolLayer.Max
         throw new UnsupportedOperationException("Max pool layers don't contain any variables. This should never be called.");
     }
 
+    @Override
+    public Result<DMatrix, MaxPoolCache> gradientWithRespectLayerParameters(DMatrix layerInput, DMatrix outputGradient, MaxPoolCache cache, Model.ParameterBindings bindings) {
+        // Max pool layers don't contain any variables
+        return new Result<>(new DMatrixRMaj(1, 0), cache);
+    }
+
+    @Override
+    public Result<DMatrix, MaxPoolCache> gradientWithRespectToLayerInput(DMatrix layerInput, DMatrix outputGradient, MaxPoolCache cache, Model.ParameterBindings bindings) {
+        final int[] argmax = cache.argmax();
+        final DMatrixRMaj inputGradient = new DMatrixRMaj(1, inputLength());
+        for (int target = 0; target < outputLength(); target++) {
+            inputGradient.data[argmax[target]] += outputGradient.get(0, target);
+        }
+
+        return new Result<>(inputGradient, cache);
+    }
+
     @Override
     public Result<DMatrix, MaxPoolCache> evaluate(DMatrix layerInput, Model.ParameterBindings bindings) {
-        DMatrixRMaj accum = new DMatrixRMaj(outputLength(), 1);
-        for (int i = 0, inputChannelOffset = 0, outputChannelOffset = 0;
-             i < channels.length;
-             inputChannelOffset += channels[i].inputLength(), outputChannelOffset += channels[i].outputLength(), i += 1) {
-            Channel channel = channels[i];
-            DMatrixRMaj channelInput = new DMatrixRMaj(channel.inputLength(), 1);
-            CommonOps_DDRM.extract(layerInput, inputChannelOffset, 0, channelInput);
-            MaxPoolVector maxPoolVector = new MaxPoolVector(new DMatrixColumnVectorExpression(channelInput),
-                                                            channel.inputWidth,
-                                                            channel.inputHeight,
-                                                            channel.filterWidth,
-                                                            channel.filterHeight);
-            DMatrix channelOutput = maxPoolVector.evaluate(bindings);
-            CommonOps_DDRM.insert(channelOutput, accum, outputChannelOffset, 0);
+        final DMatrixRMaj output = new DMatrixRMaj(outputLength(), 1);
+        final int[] argmax = new int[outputLength()];
+        pool(Pooling.dense(layerInput), output, argmax);
+
+        return new Result<>(output, new MaxPoolCache(output, argmax));
+    }
+
+    // Workspace slots used by the batch methods (ARGMAX is an int array slot)
+    private static final int OUTPUT = 0, PARAMETER_GRADIENT = 1, INPUT_GRADIENTS = 2, ARGMAX = 0;
+
+    @Override
+    public Result<DMatrix, MaxPoolCache> evaluateBatch(DMatrix layerInputs, Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        final int batchSize = layerInputs.getNumCols();
+        final DMatrixRMaj output = workspace.matrix(OUTPUT, outputLength(), batchSize);
+        final int[] argmax = workspace.ints(ARGMAX, outputLength() * batchSize);
+        pool(Pooling.dense(layerInputs), output, argmax);
+
+        return new Result<>(output, new MaxPoolCache(output, argmax));
+    }
+
+    @Override
+    public Result<BatchGradients, MaxPoolCache> backpropagateBatch(DMatrix layerInputs, DMatrix outputGradients, MaxPoolCache cache, boolean inputGradientsRequired,
+                                                                   Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        final DMatrixRMaj parameterGradient = workspace.matrix(PARAMETER_GRADIENT, 1, 0);
+        if (!inputGradientsRequired) {
+            return new Result<>(new BatchGradients(null, parameterGradient), cache);
+        }
+        final int[] argmax = (cache != null && cache.argmax() != null) ?
+                cache.argmax() :
+                evaluateBatch(layerInputs, bindings, workspace).cache().argmax();
+
+        final DMatrixRMaj inputGradients = workspace.matrix(INPUT_GRADIENTS, inputLength(), layerInputs.getNumCols());
+        poolBackward(Pooling.dense(outputGradients), argmax, inputGradients);
+
+        return new Result<>(new BatchGradients(inputGradients, parameterGradient), cache);
+    }
+
+    /**
+     * Pools every channel of a batch, each channel on its own when there is enough work.
+     */
+    void pool(DMatrixRMaj inputs, DMatrixRMaj output, int[] argmax) {
+        final int[] inputOffsets = new int[channels.length];
+        for (int i = 1; i < channels.length; i++) {
+            inputOffsets[i] = inputOffsets[i - 1] + channels[i - 1].inputLength();
+        }
+        final int[] outputOffsets = outputOffsets();
+        final long work = Arrays.stream(channels).mapToLong(c -> (long) c.outputLength() * c.filterLength()).sum() * inputs.getNumCols();
+        Pooling.forEachChannel(channels.length, work, i ->
+                Pooling.max(channels[i], inputs, inputOffsets[i], output, outputOffsets[i], argmax));
+    }
+
+    /**
+     * Sets the input gradients of a batch, where each output gradient flows back to the input that was the maximum of its
+     * window.
+     *
+     * @param argmax The input rows from {@link #pool(DMatrixRMaj, DMatrixRMaj, int[])}.
+     */
+    void poolBackward(DMatrixRMaj outputGradients, int[] argmax, DMatrixRMaj inputGradients) {
+        inputGradients.zero();
+        final int[] outputOffsets = outputOffsets();
+        Pooling.forEachChannel(channels.length, (long) outputLength() * inputGradients.getNumCols(), i ->
+                Pooling.maxBackward(channels[i], outputGradients, outputOffsets[i], argmax, inputGradients));
+    }
+
+    private int[] outputOffsets() {
+        final int[] offsets = new int[channels.length];
+        for (int i = 1; i < channels.length; i++) {
+            offsets[i] = offsets[i - 1] + channels[i - 1].outputLength();
         }
 
-        return new Result<>(accum, new MaxPoolCache(accum));
+        return offsets;
     }
 
     @Override
@@ -123,5 +206,8 @@ public record MaxPoolLayer(Channel[] channels) implements Layer<MaxPoolLayer.Max
         return cache.evaluated();
     }
 
-    public record MaxPoolCache(DMatrix evaluated) {}
+    /**
+     * @param argmax For each output entry (in the same layout as {@code evaluated}), the input row of its window's maximum.
+     */
+    public record MaxPoolCache(DMatrix evaluated, int[] argmax) {}
 }
@@ -0,0 +1,202 @@
+package neuralnerdwork.backprop;
+
+import neuralnerdwork.math.ActivationFunction;
+import neuralnerdwork.math.EJMLUtil;
+import neuralnerdwork.math.Model;
+import org.ejml.data.DMatrix;
+import org.ejml.data.DMatrixRMaj;
+
+import java.util.stream.IntStream;
+
+import static java.lang.String.format;
+
+/**
+ * A convolution layer followed by a max pool layer, with the activation applied after pooling. The windows are pooled
+ * over the convolution outputs before activation, and the activation is only applied to the pooled values. Since the
+ * activation never decreases, the maximum of the activated window is the activation of the window's maximum, so this
+ * gives the same outputs and gradients as the two layers. The convolution still writes its full size outputs; what is
+ * saved is the activation pass over them (and its full size buffer), which is replaced by one over the pooled outputs.
+ *
+ * {@link FeedForwardNetwork#fuse()} replaces such pairs of layers in a network.
+ */
+public record PooledConvolutionLayer(ConvolutionLayer convolution, MaxPoolLayer pooling) implements Layer<PooledConvolutionLayer.PooledConvolutionCache> {
+    public PooledConvolutionLayer {
+        if (!canFuse(convolution, pooling)) {
+            throw new IllegalArgumentException(format("cannot pool [%d] convolution outputs with %s activation into [%d] max pool inputs",
+                                                      convolution.outputLength(), convolution.activation().getClass().getSimpleName(),
+                                                      pooling.inputLength()));
+        }
+    }
+
+    /**
+     * @return true iff the max pool layer reads exactly the outputs of the convolution layer, and the activation of the
+     * convolution layer never decreases.
+     */
+    public static boolean canFuse(ConvolutionLayer convolution, MaxPoolLayer pooling) {
+        return convolution.outputLength() == pooling.inputLength() && convolution.activation().isNonDecreasing();
+    }
+
+    @Override
+    public ActivationFunction activation() {
+        return convolution.activation();
+    }
+
+    @Override
+    public boolean containsVariable(int variable) {
+        return convolution.containsVariable(variable);
+    }
+
+    @Override
+    public int outputLength() {
+        return pooling.outputLength();
+    }
+
+    @Override
+    public int inputLength() {
+        return convolution.inputLength();
+    }
+
+    @Override
+    public IntStream variables() {
+        return convolution.variables();
+    }
+
+    /*
+     The derivatives are the products of those of the two layers, which are evaluated separately for them.
+     */
+    @Override
+    public Result<DMatrix, PooledConvolutionCache> derivativeWithRespectToLayerInput(DMatrix layerInput, PooledConvolutionCache cache, Model.ParameterBindings bindings) {
+        final PooledConvolutionCache layerCaches = withLayerCaches(layerInput, cache, bindings);
+        final DMatrix convolutionDerivative = convolution.derivativeWithRespectToLayerInput(layerInput, layerCaches.convolution(), bindings).output();
+        final DMatrix poolingDerivative = pooling.derivativeWithRespectToLayerInput(layerCaches.convolution().output(), layerCaches.pooling(), bindings).output();
+
+        return new Result<>(EJMLUtil.mult(poolingDerivative, convolutionDerivative), layerCaches);
+    }
+
+    @Override
+    public Result<DMatrix, PooledConvolutionCache> derivativeWithRespectLayerParameter(DMatrix layerInput, int variable, PooledConvolutionCache cache, Model.ParameterBindings bindings) {
+        final PooledConvolutionCache layerCaches = withLayerCaches(layerInput, cache, bindings);
+        final DMatrix convolutionDerivative = convolution.derivativeWithRespectLayerParameter(layerInput, variable, layerCaches.convolution(), bindings).output();
+        final DMatrix poolingDerivative = pooling.derivativeWithRespectToLayerInput(layerCaches.convolution().output(), layerCaches.pooling(), bindings).output();
+
+        return new Result<>(EJMLUtil.mult(poolingDerivative, convolutionDerivative), layerCaches);
+    }
+
+    private PooledConvolutionCache withLayerCaches(DMatrix layerInput, PooledConvolutionCache cache, Model.ParameterBindings bindings) {
+        if (cache.convolution() != null) {
+            return cache;
+        }
+        final var convolutionResult = convolution.evaluate(layerInput, bindings);
+        final var poolingResult = pooling.evaluate(convolutionResult.output(), bindings);
+
+        return new PooledConvolutionCache(cache.output(), cache.pooledInputs(), cache.argmax(), cache.sampleGradients(),
+                                          convolutionResult.cache(), poolingResult.cache());
+    }
+
+    /*
+     The per sample methods run the batch kernels on a batch of one, and both gradients come from a single backward pass in
+     the workspace the sample was evaluated in.
+     */
+    @Override
+    public Result<DMatrix, PooledConvolutionCache> gradientWithRespectLayerParameters(DMatrix layerInput, DMatrix outputGradient, PooledConvolutionCache cache, Model.ParameterBindings bindings) {
+        return new Result<>(sampleGradients(layerInput, outputGradient, cache, bindings).parameterGradient(), cache);
+    }
+
+    @Override
+    public Result<DMatrix, PooledConvolutionCache> gradientWithRespectToLayerInput(DMatrix layerInput, DMatrix outputGradient, PooledConvolutionCache cache, Model.ParameterBindings bindings) {
+        final DMatrixRMaj inputGradient = (DMatrixRMaj) sampleGradients(layerInput, outputGradient, cache, bindings).inputGradients();
+
+        return new Result<>(DMatrixRMaj.wrap(1, inputGradient.getNumElements(), inputGradient.data), cache);
+    }
+
+    private BatchGradients sampleGradients(DMatrix layerInput, DMatrix outputGradient, PooledConvolutionCache cache, Model.ParameterBindings bindings) {
+        return cache.sampleGradients().gradients(outputGradient, bindings, (outputGradients, workspace) ->
+                backpropagate(layerInput, outputGradients, cache, true, bindings, workspace, convolution.sampleFilterWorkspace()));
+    }
+
+    @Override
+    public Result<DMatrix, PooledConvolutionCache> evaluate(DMatrix layerInput, Model.ParameterBindings bindings) {
+        // the filter spectra and FFT plans are kept across samples, as in ConvolutionLayer.evaluate
+        final LayerWorkspace workspace = new LayerWorkspace();
+        final PooledConvolutionCache cache = evaluate(layerInput, bindings, workspace, convolution.sampleFilterWorkspace());
+
+        return new Result<>(cache.output(), new PooledConvolutionCache(cache.output(), cache.pooledInputs(), cache.argmax(),
+                                                                       new SampleGradients(workspace, outputLength()), null, null));
+    }
+
+    // Workspace slots used by the batch methods (ARGMAX is an int array slot, and CONVOLUTION a nested workspace slot)
+    private static final int OUTPUT = 0, POOLED_INPUTS = 1, POOLED_DELTAS = 2, DELTAS = 3, ARGMAX = 0, CONVOLUTION = 0;
+
+    @Override
+    public Result<DMatrix, PooledConvolutionCache> evaluateBatch(DMatrix layerInputs, Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        final PooledConvolutionCache cache = evaluate(layerInputs, bindings, workspace, workspace.nested(CONVOLUTION));
+
+        return new Result<>(cache.output(), cache);
+    }
+
+    /**
+     * @param filterWorkspace Where the convolution keeps its filter spectra and FFT plans.
+     */
+    private PooledConvolutionCache evaluate(DMatrix layerInputs, Model.ParameterBindings bindings, LayerWorkspace workspace,
+                                            LayerWorkspace filterWorkspace) {
+        if (layerInputs.getNumRows() != inputLength()) {
+            throw new IllegalArgumentException(format("given input length [%d] does not match expected input size [%d]",
+                                                      layerInputs.getNumRows(), inputLength()));
+        }
+        final int batchSize = layerInputs.getNumCols();
+        final DMatrixRMaj activationInputs = convolution.convolve(Pooling.dense(layerInputs), bindings, workspace.nested(CONVOLUTION), filterWorkspace);
+
+        final DMatrixRMaj pooledInputs = workspace.matrix(POOLED_INPUTS, outputLength(), batchSize);
+        final int[] argmax = workspace.ints(ARGMAX, outputLength() * batchSize);
+        pooling.pool(activationInputs, pooledInputs, argmax);
+
+        final DMatrixRMaj output = workspace.matrix(OUTPUT, outputLength(), batchSize);
+        activation().applyTo(pooledInputs.data, output.data, output.getNumElements());
+
+        return new PooledConvolutionCache(output, pooledInputs, argmax, null, null, null);
+    }
+
+    @Override
+    public Result<BatchGradients, PooledConvolutionCache> backpropagateBatch(DMatrix layerInputs, DMatrix outputGradients, PooledConvolutionCache cache, boolean inputGradientsRequired,
+                                                                            Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        return new Result<>(backpropagate(layerInputs, outputGradients, cache, inputGradientsRequired, bindings, workspace,
+                                          workspace.nested(CONVOLUTION)), cache);
+    }
+
+    private BatchGradients backpropagate(DMatrix layerInputs, DMatrix outputGradients, PooledConvolutionCache cache, boolean inputGradientsRequired,
+                                         Model.ParameterBindings bindings, LayerWorkspace workspace, LayerWorkspace filterWorkspace) {
+        final PooledConvolutionCache evaluated = (cache != null && cache.pooledInputs() != null) ?
+                cache :
+                evaluate(layerInputs, bindings, workspace, filterWorkspace);
+        final int batchSize = layerInputs.getNumCols();
+
+        // Back through the activation at the pooled entries only, then each delta flows back to its window's maximum
+        final DMatrixRMaj pooledDeltas = workspace.matrix(POOLED_DELTAS, outputLength(), batchSize);
+        activation().multiplyByDerivative(evaluated.pooledInputs().data, FullyConnectedLayer.denseGradients(outputGradients, pooledDeltas),
+                                          pooledDeltas.data, pooledDeltas.getNumElements());
+        final DMatrixRMaj deltas = workspace.matrix(DELTAS, convolution.outputLength(), batchSize);
+        pooling.poolBackward(pooledDeltas, evaluated.argmax(), deltas);
+
+        return convolution.backpropagateDeltas(Pooling.dense(layerInputs), deltas, inputGradientsRequired,
+                                               bindings, workspace.nested(CONVOLUTION), filterWorkspace);
+    }
+
+    @Override
+    public DMatrix getEvaluation(PooledConvolutionCache cache) {
+        return cache.output();
+    }
+
+    /**
+     * @param pooledInputs The maximum of each window of convolution outputs, before activation.
+     * @param argmax For each output entry, the convolution output row of its window's maximum.
+     * @param sampleGradients The gradients of a single input vector. Null when evaluated as a batch.
+     * @param convolution The cache of the convolution layer on its own, if the per sample derivatives have been computed.
+     * @param pooling The cache of the max pool layer on its own, if the per sample derivatives have been computed.
+     */
+    public record PooledConvolutionCache(DMatrix output,
+                                         DMatrixRMaj pooledInputs,
+                                         int[] argmax,
+                                         SampleGradients sampleGradients,
+                                         ConvolutionLayer.ConvolutionCache convolution,
+                                         MaxPoolLayer.MaxPoolCache pooling) {}
+}
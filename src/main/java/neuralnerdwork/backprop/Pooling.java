@@ -0,0 +1,151 @@
+package neuralnerdwork.backprop;
+
+import org.ejml.data.DMatrix;
+import org.ejml.data.DMatrixRMaj;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Pooling kernels over the windows of a channel, working directly on the data of batch matrices (one row per pixel and
+ * one column per sample), so that the innermost loops run along contiguous rows.
+ */
+final class Pooling {
+    private Pooling() {}
+
+    /**
+     * Channels are pooled in parallel when there are at least this many window entries to read in total.
+     */
+    static final long PARALLEL_WORK = 1 << 16;
+
+    /**
+     * Runs the given action for each channel index, in parallel if there is enough work.
+     */
+    static void forEachChannel(int channels, long work, IntConsumer action) {
+        final IntStream indices = IntStream.range(0, channels);
+        if (channels > 1 && work >= PARALLEL_WORK) {
+            indices.parallel().forEach(action);
+        } else {
+            indices.forEach(action);
+        }
+    }
+
+    /**
+     * Writes the maximum of each window, and the input row it was read from (the first one, in row major order, for ties).
+     *
+     * @param inputOffset The input row where the channel starts.
+     * @param outputOffset The output row where the channel starts.
+     * @param argmax The input row of each output entry, in the same layout as {@code outputs}.
+     */
+    static void max(MaxPoolLayer.Channel channel, DMatrixRMaj inputs, int inputOffset, DMatrixRMaj outputs, int outputOffset, int[] argmax) {
+        final int batchSize = inputs.getNumCols();
+        for (int targetRow = 0; targetRow < channel.outputHeight(); targetRow++) {
+            for (int targetCol = 0; targetCol < channel.outputWidth(); targetCol++) {
+                final int target = (outputOffset + targetRow * channel.outputWidth() + targetCol) * batchSize;
+                final int windowOffset = inputOffset + targetRow * channel.strideHeight() * channel.inputWidth()
+                        + targetCol * channel.strideWidth();
+                System.arraycopy(inputs.data, windowOffset * batchSize, outputs.data, target, batchSize);
+                for (int col = 0; col < batchSize; col++) {
+                    argmax[target + col] = windowOffset;
+                }
+                for (int r = 0; r < channel.filterHeight(); r++) {
+                    for (int c = 0; c < channel.filterWidth(); c++) {
+                        final int source = windowOffset + r * channel.inputWidth() + c;
+                        for (int col = 0; col < batchSize; col++) {
+                            final double candidate = inputs.data[source * batchSize + col];
+                            if (candidate > outputs.data[target + col]) {
+                                outputs.data[target + col] = candidate;
+                                argmax[target + col] = source;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds each output gradient to the input gradient of the entry its window's maximum was read from.
+     *
+     * @param argmax The input rows from {@link #max}.
+     */
+    static void maxBackward(MaxPoolLayer.Channel channel, DMatrixRMaj outputGradients, int outputOffset, int[] argmax, DMatrixRMaj inputGradients) {
+        final int batchSize = inputGradients.getNumCols();
+        for (int target = outputOffset; target < outputOffset + channel.outputLength(); target++) {
+            for (int col = 0; col < batchSize; col++) {
+                inputGradients.data[argmax[target * batchSize + col] * batchSize + col] += outputGradients.data[target * batchSize + col];
+            }
+        }
+    }
+
+    /**
+     * Writes the mean of each window.
+     *
+     * @param inputOffset The input row where the channel starts.
+     * @param outputOffset The output row where the channel starts.
+     */
+    static void average(MaxPoolLayer.Channel channel, DMatrixRMaj inputs, int inputOffset, DMatrixRMaj outputs, int outputOffset) {
+        final int batchSize = inputs.getNumCols();
+        final double scale = 1.0 / channel.filterLength();
+        for (int targetRow = 0; targetRow < channel.outputHeight(); targetRow++) {
+            for (int targetCol = 0; targetCol < channel.outputWidth(); targetCol++) {
+                final int target = (outputOffset + targetRow * channel.outputWidth() + targetCol) * batchSize;
+                final int windowOffset = inputOffset + targetRow * channel.strideHeight() * channel.inputWidth()
+                        + targetCol * channel.strideWidth();
+                Arrays.fill(outputs.data, target, target + batchSize, 0.0);
+                for (int r = 0; r < channel.filterHeight(); r++) {
+                    for (int c = 0; c < channel.filterWidth(); c++) {
+                        final int source = (windowOffset + r * channel.inputWidth() + c) * batchSize;
+                        for (int col = 0; col < batchSize; col++) {
+                            outputs.data[target + col] += inputs.data[source + col];
+                        }
+                    }
+                }
+                for (int col = 0; col < batchSize; col++) {
+                    outputs.data[target + col] *= scale;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds each output gradient, divided by the window size, to the input gradients of every entry in its window.
+     *
+     * @param outputOffset The output row where the channel starts.
+     * @param inputOffset The input row where the channel starts.
+     */
+    static void averageBackward(MaxPoolLayer.Channel channel, DMatrixRMaj outputGradients, int outputOffset, DMatrixRMaj inputGradients, int inputOffset) {
+        final int batchSize = inputGradients.getNumCols();
+        final double scale = 1.0 / channel.filterLength();
+        for (int targetRow = 0; targetRow < channel.outputHeight(); targetRow++) {
+            for (int targetCol = 0; targetCol < channel.outputWidth(); targetCol++) {
+                final int target = (outputOffset + targetRow * channel.outputWidth() + targetCol) * batchSize;
+                final int windowOffset = inputOffset + targetRow * channel.strideHeight() * channel.inputWidth()
+                        + targetCol * channel.strideWidth();
+                for (int r = 0; r < channel.filterHeight(); r++) {
+                    for (int c = 0; c < channel.filterWidth(); c++) {
+                        final int source = (windowOffset + r * channel.inputWidth() + c) * batchSize;
+                        for (int col = 0; col < batchSize; col++) {
+                            inputGradients.data[source + col] += scale * outputGradients.data[target + col];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    static DMatrixRMaj dense(DMatrix matrix) {
+        if (matrix instanceof DMatrixRMaj m) {
+            return m;
+        }
+        final DMatrixRMaj dense = new DMatrixRMaj(matrix.getNumRows(), matrix.getNumCols());
+        for (int row = 0; row < dense.getNumRows(); row++) {
+            for (int col = 0; col < dense.getNumCols(); col++) {
+                dense.set(row, col, matrix.get(row, col));
+            }
+        }
+
+        return dense;
+    }
+}
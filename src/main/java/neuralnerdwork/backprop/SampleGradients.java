@@ -0,0 +1,57 @@
+package neuralnerdwork.backprop;
+
+import neuralnerdwork.math.Model;
+import org.ejml.data.DMatrix;
+import org.ejml.data.DMatrixRMaj;
+
+import java.util.function.BiFunction;
+
+/**
+ * The gradients of a single evaluated input, kept in its cache by layers whose per sample gradients run their batch
+ * kernels on a batch of one. The parameter gradient and the input gradient for the same output gradient then share a
+ * single backward pass, which runs in the workspace that the input was evaluated in.
+ */
+public final class SampleGradients {
+    private final LayerWorkspace workspace;
+    private final DMatrixRMaj outputGradient;
+    private long version;
+    private Layer.BatchGradients gradients;
+
+    /**
+     * @param workspace The workspace the input was evaluated in.
+     */
+    SampleGradients(LayerWorkspace workspace, int outputLength) {
+        this.workspace = workspace;
+        this.outputGradient = new DMatrixRMaj(outputLength, 1);
+    }
+
+    /**
+     * @param outputGradient A row vector with the gradient with respect to the layer output.
+     * @param backpropagate Back-propagates a batch of one output gradient (as a column) in the given workspace, with input
+     *                      gradients.
+     * @return The gradients for the output gradient, which are only back-propagated again when it or the parameters change.
+     * They are valid until the next call.
+     */
+    Layer.BatchGradients gradients(DMatrix outputGradient, Model.ParameterBindings bindings,
+                                   BiFunction<DMatrixRMaj, LayerWorkspace, Layer.BatchGradients> backpropagate) {
+        if (gradients == null || version != bindings.version() || !matches(outputGradient)) {
+            for (int i = 0; i < this.outputGradient.data.length; i++) {
+                this.outputGradient.data[i] = outputGradient.get(0, i);
+            }
+            gradients = backpropagate.apply(this.outputGradient, workspace);
+            version = bindings.version();
+        }
+
+        return gradients;
+    }
+
+    private boolean matches(DMatrix outputGradient) {
+        for (int i = 0; i < this.outputGradient.data.length; i++) {
+            if (this.outputGradient.data[i] != outputGradient.get(0, i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
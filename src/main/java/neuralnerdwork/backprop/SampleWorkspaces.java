@@ -0,0 +1,56 @@
+package neuralnerdwork.backprop;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Workspaces for the per sample methods of layers, which have no workspace of their own. Each thread keeps one per layer,
+ * keyed by the identity of the layer rather than by its value, so that equal layers of different networks don't share
+ * one, and only for as long as the layer is reachable.
+ */
+final class SampleWorkspaces {
+    private final ThreadLocal<State> states = ThreadLocal.withInitial(State::new);
+
+    private static final class State {
+        private final Map<Key, LayerWorkspace> workspaces = new HashMap<>();
+        private final ReferenceQueue<Object> cleared = new ReferenceQueue<>();
+    }
+
+    private static final class Key extends WeakReference<Object> {
+        private final int hash;
+
+        private Key(Object layer, ReferenceQueue<Object> queue) {
+            super(layer, queue);
+            this.hash = System.identityHashCode(layer);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            final Object layer = get();
+            return layer != null && obj instanceof Key other && other.get() == layer;
+        }
+    }
+
+    /**
+     * @return The workspace of a layer for the calling thread.
+     */
+    LayerWorkspace get(Object layer) {
+        final State state = states.get();
+        for (Reference<?> key; (key = state.cleared.poll()) != null; ) {
+            state.workspaces.remove(key);
+        }
+
+        return state.workspaces.computeIfAbsent(new Key(layer, state.cleared), k -> new LayerWorkspace());
+    }
+}
@@ -0,0 +1,145 @@
+package neuralnerdwork.backprop;
+
+import neuralnerdwork.math.*;
+import org.ejml.data.DMatrix;
+import org.ejml.data.DMatrixRMaj;
+
+import java.util.stream.IntStream;
+
+/**
+ * Turns a vector of logits into probabilities that sum to one, {@code p_k = exp(z_k) / sum_j exp(z_j)}. The cache is the
+ * output probabilities.
+ *
+ * As the last layer of a network, this is usually trained with a {@link SoftmaxCrossEntropy} loss on the layers before
+ * it, which back-propagates {@code p - y} from the logits instead of going through this layer.
+ *
+ * @param length The number of logits, and of probabilities.
+ */
+public record SoftmaxLayer(int length) implements Layer<DMatrix> {
+    public SoftmaxLayer {
+        if (length < 1) {
+            throw new IllegalArgumentException("length must be positive");
+        }
+    }
+
+    @Override
+    public ActivationFunction activation() {
+        return new IdentityFunction();
+    }
+
+    @Override
+    public boolean containsVariable(int variable) {
+        return false;
+    }
+
+    @Override
+    public int outputLength() {
+        return length;
+    }
+
+    @Override
+    public int inputLength() {
+        return length;
+    }
+
+    @Override
+    public IntStream variables() {
+        return IntStream.empty();
+    }
+
+    @Override
+    public Result<DMatrix, DMatrix> derivativeWithRespectToLayerInput(DMatrix layerInput, DMatrix cache, Model.ParameterBindings bindings) {
+        // dp_i/dz_j = p_i (1[i = j] - p_j)
+        final DMatrixRMaj derivative = new DMatrixRMaj(length, length);
+        for (int i = 0; i < length; i++) {
+            final double p = cache.get(i, 0);
+            for (int j = 0; j < length; j++) {
+                derivative.data[i * length + j] = -p * cache.get(j, 0);
+            }
+            derivative.data[i * length + i] += p;
+        }
+
+        return new Result<>(derivative, cache);
+    }
+
+    @Override
+    public Result<DMatrix, DMatrix> derivativeWithRespectLayerParameter(DMatrix layerInput, int variable, DMatrix cache, Model.ParameterBindings bindings) {
+        throw new UnsupportedOperationException("Softmax layers don't contain any variables. This should never be called.");
+    }
+
+    @Override
+    public Result<DMatrix, DMatrix> gradientWithRespectLayerParameters(DMatrix layerInput, DMatrix outputGradient, DMatrix cache, Model.ParameterBindings bindings) {
+        // Softmax layers don't contain any variables
+        return new Result<>(new DMatrixRMaj(1, 0), cache);
+    }
+
+    @Override
+    public Result<DMatrix, DMatrix> gradientWithRespectToLayerInput(DMatrix layerInput, DMatrix outputGradient, DMatrix cache, Model.ParameterBindings bindings) {
+        // A row vector has the same layout as a batch of one column
+        final DMatrixRMaj inputGradient = new DMatrixRMaj(length, 1);
+        backpropagate((DMatrixRMaj) cache, Pooling.dense(outputGradient).data, inputGradient);
+        inputGradient.reshape(1, length);
+
+        return new Result<>(inputGradient, cache);
+    }
+
+    @Override
+    public Result<DMatrix, DMatrix> evaluate(DMatrix layerInput, Model.ParameterBindings bindings) {
+        final DMatrixRMaj output = new DMatrixRMaj(length, 1);
+        SoftmaxCrossEntropy.softmax(Pooling.dense(layerInput), output);
+
+        return new Result<>(output, output);
+    }
+
+    // Workspace slots used by the batch methods
+    private static final int OUTPUT = 0, PARAMETER_GRADIENT = 1, INPUT_GRADIENTS = 2;
+
+    @Override
+    public Result<DMatrix, DMatrix> evaluateBatch(DMatrix layerInputs, Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        final DMatrixRMaj output = workspace.matrix(OUTPUT, length, layerInputs.getNumCols());
+        SoftmaxCrossEntropy.softmax(Pooling.dense(layerInputs), output);
+
+        return new Result<>(output, output);
+    }
+
+    @Override
+    public Result<BatchGradients, DMatrix> backpropagateBatch(DMatrix layerInputs, DMatrix outputGradients, DMatrix cache, boolean inputGradientsRequired,
+                                                              Model.ParameterBindings bindings, LayerWorkspace workspace) {
+        final DMatrixRMaj parameterGradient = workspace.matrix(PARAMETER_GRADIENT, 1, 0);
+        if (!inputGradientsRequired) {
+            return new Result<>(new BatchGradients(null, parameterGradient), cache);
+        }
+        final DMatrixRMaj probabilities = cache != null ?
+                (DMatrixRMaj) cache :
+                (DMatrixRMaj) evaluateBatch(layerInputs, bindings, workspace).cache();
+
+        final DMatrixRMaj inputGradients = workspace.matrix(INPUT_GRADIENTS, length, layerInputs.getNumCols());
+        backpropagate(probabilities, FullyConnectedLayer.denseGradients(outputGradients, inputGradients), inputGradients);
+
+        return new Result<>(new BatchGradients(inputGradients, parameterGradient), cache);
+    }
+
+    /**
+     * Sets {@code dz_i = p_i (g_i - sum_j g_j p_j)} for each column. The gradients may be the data of the input gradients.
+     */
+    private static void backpropagate(DMatrixRMaj probabilities, double[] outputGradients, DMatrixRMaj inputGradients) {
+        final int rows = probabilities.getNumRows();
+        final int cols = probabilities.getNumCols();
+        final double[] weightedSums = new double[cols];
+        for (int row = 0, offset = 0; row < rows; row++, offset += cols) {
+            for (int col = 0; col < cols; col++) {
+                weightedSums[col] += outputGradients[offset + col] * probabilities.data[offset + col];
+            }
+        }
+        for (int row = 0, offset = 0; row < rows; row++, offset += cols) {
+            for (int col = 0; col < cols; col++) {
+                inputGradients.data[offset + col] = probabilities.data[offset + col] * (outputGradients[offset + col] - weightedSums[col]);
+            }
+        }
+    }
+
+    @Override
+    public DMatrix getEvaluation(DMatrix cache) {
+        return cache;
+    }
+}
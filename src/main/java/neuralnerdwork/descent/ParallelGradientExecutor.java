@@ -0,0 +1,203 @@
+package neuralnerdwork.descent;
+
+import neuralnerdwork.TrainingSample;
+import neuralnerdwork.math.Model;
+import neuralnerdwork.math.ScalarExpression;
+import org.ejml.data.DMatrix;
+import org.ejml.data.DMatrixRMaj;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+
+/**
+ * Splits a minibatch into shards whose errors are evaluated and differentiated concurrently on a {@link ForkJoinPool}.
+ * Each shard accumulates its gradient into its own {@code double[]} buffer, and buffers are combined pairwise with a tree reduction.
+ * The buffers belong to the thread computing the gradient, which reuses them for later minibatches.
+ *
+ * @param pool The pool used to run shards.
+ * @param shards The maximum number of shards a minibatch is split into. A value of 1 runs everything on the calling thread.
+ */
+public record ParallelGradientExecutor(ForkJoinPool pool, int shards) {
+
+    public ParallelGradientExecutor {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be positive but was " + shards);
+        }
+    }
+
+    /**
+     * @return An executor that does not split minibatches.
+     */
+    public static ParallelGradientExecutor serial() {
+        return new ParallelGradientExecutor(ForkJoinPool.commonPool(), 1);
+    }
+
+    /**
+     * @return An executor that splits minibatches into one shard per thread of the given pool.
+     */
+    public static ParallelGradientExecutor withPool(ForkJoinPool pool) {
+        return new ParallelGradientExecutor(pool, pool.getParallelism());
+    }
+
+    /**
+     * @param samples A minibatch of training samples.
+     * @param errorFunction A function yielding the <em>mean</em> error over some samples (plus any additional error terms
+     *                      that do not depend on the samples).
+     * @return An expression equivalent to {@code errorFunction.apply(samples)}, that is evaluated and differentiated in parallel.
+     */
+    public ScalarExpression errorExpression(List<TrainingSample> samples, Function<List<TrainingSample>, ScalarExpression> errorFunction) {
+        final int shardCount = Math.min(shards, samples.size());
+        if (shardCount <= 1) {
+            return errorFunction.apply(samples);
+        }
+
+        /*
+         Since each shard error is a mean over its own samples, weighting shards by their share of the minibatch
+         gives the mean over the whole minibatch. Sample-independent terms (e.g. regularization) have weights summing to 1.
+         */
+        final ScalarExpression[] shardErrors = new ScalarExpression[shardCount];
+        final double[] weights = new double[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            final int from = shard * samples.size() / shardCount;
+            final int to = (shard + 1) * samples.size() / shardCount;
+            shardErrors[shard] = errorFunction.apply(samples.subList(from, to));
+            weights[shard] = (double) (to - from) / samples.size();
+        }
+
+        return new ShardedError(pool, shardErrors, weights);
+    }
+
+    /*
+     One gradient buffer per shard, for each thread that computes sharded gradients. Buffers are indexed by shard rather than
+     by worker, since a worker may compute several shards of the same gradient.
+     */
+    private static final ThreadLocal<double[][]> shardBuffers = ThreadLocal.withInitial(() -> new double[0][]);
+
+    private record ShardedError(ForkJoinPool pool, ScalarExpression[] shardErrors, double[] weights) implements ScalarExpression {
+        @Override
+        public double evaluate(Model.ParameterBindings bindings) {
+            return pool.invoke(new EvaluationTask(bindings, 0, shardErrors.length));
+        }
+
+        @Override
+        public double computePartialDerivative(Model.ParameterBindings bindings, int variable) {
+            double accum = 0.0;
+            for (int i = 0; i < shardErrors.length; i++) {
+                accum += weights[i] * shardErrors[i].computePartialDerivative(bindings, variable);
+            }
+
+            return accum;
+        }
+
+        @Override
+        public boolean isZero() {
+            for (ScalarExpression shardError : shardErrors) {
+                if (!shardError.isZero()) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public DMatrix computeDerivative(Model.ParameterBindings bindings) {
+            final double[] gradient = pool.invoke(new GradientTask(bindings, shardBuffers(bindings.size()), 0, shardErrors.length));
+
+            // copies the gradient, since the buffer is reused
+            return new DMatrixRMaj(1, gradient.length, true, gradient);
+        }
+
+        private double[][] shardBuffers(int length) {
+            double[][] buffers = shardBuffers.get();
+            if (buffers.length < shardErrors.length || buffers[0].length != length) {
+                buffers = new double[shardErrors.length][length];
+                shardBuffers.set(buffers);
+            }
+
+            return buffers;
+        }
+
+        private class EvaluationTask extends RecursiveTask<Double> {
+            private static final long serialVersionUID = 1L;
+
+            private final Model.ParameterBindings bindings;
+            private final int from;
+            private final int to;
+
+            private EvaluationTask(Model.ParameterBindings bindings, int from, int to) {
+                this.bindings = bindings;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected Double compute() {
+                if (to - from == 1) {
+                    return weights[from] * shardErrors[from].evaluate(bindings);
+                }
+
+                final int mid = (from + to) >>> 1;
+                final EvaluationTask left = new EvaluationTask(bindings, from, mid);
+                left.fork();
+                final double right = new EvaluationTask(bindings, mid, to).compute();
+
+                return left.join() + right;
+            }
+        }
+
+        private class GradientTask extends RecursiveTask<double[]> {
+            private static final long serialVersionUID = 1L;
+
+            private final Model.ParameterBindings bindings;
+            private final double[][] buffers;
+            private final int from;
+            private final int to;
+
+            private GradientTask(Model.ParameterBindings bindings, double[][] buffers, int from, int to) {
+                this.bindings = bindings;
+                this.buffers = buffers;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected double[] compute() {
+                if (to - from == 1) {
+                    return shardGradient(from);
+                }
+
+                // Tree reduction: each buffer is added into its sibling, so no buffer is shared between threads
+                final int mid = (from + to) >>> 1;
+                final GradientTask left = new GradientTask(bindings, buffers, from, mid);
+                left.fork();
+                final double[] right = new GradientTask(bindings, buffers, mid, to).compute();
+                final double[] accum = left.join();
+                for (int i = 0; i < accum.length; i++) {
+                    accum[i] += right[i];
+                }
+
+                return accum;
+            }
+
+            private double[] shardGradient(int shard) {
+                final DMatrix derivative = shardErrors[shard].computeDerivative(bindings);
+                final double weight = weights[shard];
+                final double[] buffer = buffers[shard];
+                if (derivative instanceof DMatrixRMaj m) {
+                    for (int i = 0; i < buffer.length; i++) {
+                        buffer[i] = weight * m.data[i];
+                    }
+                } else {
+                    for (int i = 0; i < buffer.length; i++) {
+                        buffer[i] = weight * derivative.get(0, i);
+                    }
+                }
+
+                return buffer;
+            }
+        }
+    }
+}
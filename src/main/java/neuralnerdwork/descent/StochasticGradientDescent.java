@@ -15,7 +15,12 @@ import java.util.function.Supplier;
 
 public record StochasticGradientDescent(int batchSize,
                                         Random rand,
-                                        Supplier<WeightUpdateStrategy> updateStrategySupplier) implements GradientDescentStrategy {
+                                        Supplier<WeightUpdateStrategy> updateStrategySupplier,
+                                        ParallelGradientExecutor executor) implements GradientDescentStrategy {
+
+    public StochasticGradientDescent(int batchSize, Random rand, Supplier<WeightUpdateStrategy> updateStrategySupplier) {
+        this(batchSize, rand, updateStrategySupplier, ParallelGradientExecutor.serial());
+    }
 
     @Override
     public Model.ParameterBindings runGradientDescent(List<TrainingSample> trainingSamples,
@@ -34,15 +39,13 @@ public record StochasticGradientDescent(int batchSize,
             final int batchSize = Math.min(batchSize(), trainingSamples.size());
             final List<TrainingSample> iterationSamples = trainingSamples.subList(0, batchSize);
             var start = Instant.now();
-            final ScalarExpression error = errorFunction.apply(iterationSamples);
+            final ScalarExpression error = executor.errorExpression(iterationSamples, errorFunction);
             System.out.printf("Time for error function construction: %dms\n", java.time.Duration.between(start, Instant.now()).toMillis());
             // use derivative to adjust weights
             start = Instant.now();
             weightUpdateVector = updateStrategy.updateVector(error, parameterBindings);
             System.out.printf("Time for update vector evaluation: %dms\n", java.time.Duration.between(start, Instant.now()).toMillis());
-            for (int variable : parameterBindings.variables()) {
-                parameterBindings.put(variable, parameterBindings.get(variable) + weightUpdateVector[variable]);
-            }
+            parameterBindings.add(weightUpdateVector);
             iterations++;
         } while (terminationPredicate.shouldContinue(iterations, weightUpdateVector, parameterBindings));
         System.out.println("Terminated after " + iterations + " iterations");
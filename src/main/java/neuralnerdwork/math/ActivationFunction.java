@@ -6,4 +6,55 @@ import neuralnerdwork.backprop.Layer;
 
 public interface ActivationFunction extends SingleVariableFunction {
     double generateInitialWeight(Random r, Layer<?> layer);
-}
\ No newline at end of file
+
+    /*
+     The bulk methods below are what layers use on whole activation arrays. Implementations should override them with
+     simple counted loops (no calls through interfaces, and as few branches as possible) so that the JIT can compile
+     them to SIMD instructions.
+     */
+
+    /**
+     * Sets {@code out[i] = apply(in[i])} for {@code i < length}. The arrays may be the same.
+     */
+    default void applyTo(double[] in, double[] out, int length) {
+        for (int i = 0; i < length; i++) {
+            out[i] = apply(in[i]);
+        }
+    }
+
+    /**
+     * Sets {@code out[i] = gradients[i] * f'(in[i])} for {@code i < length}, where {@code f'} is the derivative of this
+     * function. This is the back-propagation step through the activation. The arrays may be the same.
+     */
+    default void multiplyByDerivative(double[] in, double[] gradients, double[] out, int length) {
+        final SingleVariableFunction derivative = differentiateByInput();
+        for (int i = 0; i < length; i++) {
+            out[i] = gradients[i] * derivative.apply(in[i]);
+        }
+    }
+
+    /**
+     * Adds {@code bias[row]} to each entry of the first {@code rows} rows of {@code sums} (each {@code rowLength} long) in
+     * place, and sets {@code out} to the activation of the results. This is the epilogue of a layer's matrix product, done
+     * in the same pass as the activation rather than as a pass of its own. The arrays {@code sums} and {@code out} may be
+     * the same.
+     */
+    default void addBiasAndApply(double[] sums, double[] bias, int rows, int rowLength, double[] out) {
+        for (int row = 0, offset = 0; row < rows; row++, offset += rowLength) {
+            final double rowBias = bias[row];
+            for (int i = offset; i < offset + rowLength; i++) {
+                final double x = sums[i] + rowBias;
+                sums[i] = x;
+                out[i] = apply(x);
+            }
+        }
+    }
+
+    /**
+     * @return true iff {@code x <= y} implies {@code apply(x) <= apply(y)}, so that the activation can be applied after
+     * taking a maximum rather than before.
+     */
+    default boolean isNonDecreasing() {
+        return false;
+    }
+}
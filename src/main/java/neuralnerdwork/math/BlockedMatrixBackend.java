@@ -0,0 +1,146 @@
+package neuralnerdwork.math;
+
+import org.ejml.data.DMatrixRMaj;
+
+import java.util.Arrays;
+
+/**
+ * Single threaded Java kernels. Products are computed a block of output rows and columns at a time, so the block of
+ * the output and the rows of the right operand it reads stay in cache, and the inner loops run over contiguous memory
+ * so the JIT can vectorize them.
+ */
+final class BlockedMatrixBackend implements MatrixBackend {
+    private static final int ROW_BLOCK = 16;
+    private static final int COL_BLOCK = 256;
+
+    // Columns of a transposed left operand, copied out to be contiguous. Rows are computed on several threads at once by
+    // ParallelMatrixBackend, so each thread has its own.
+    private static final ThreadLocal<double[]> operandRows = ThreadLocal.withInitial(() -> new double[0]);
+
+    @Override
+    public String name() {
+        return "java";
+    }
+
+    @Override
+    public void gemm(double alpha, DMatrixRMaj a, boolean transposeA, DMatrixRMaj b, boolean transposeB, double beta, DMatrixRMaj c) {
+        prepareOutput(a, transposeA, b, transposeB, beta, c);
+        gemmRows(alpha, a, transposeA, b, transposeB, beta, c, 0, c.numRows);
+    }
+
+    @Override
+    public void add(DMatrixRMaj a, DMatrixRMaj b, DMatrixRMaj c) {
+        if (a.numRows != b.numRows || a.numCols != b.numCols) {
+            throw new IllegalArgumentException(String.format("Cannot add matrices of dimensions (%dx%d) and (%dx%d)",
+                                                             a.numRows, a.numCols, b.numRows, b.numCols));
+        }
+        c.reshape(a.numRows, a.numCols, true);
+        final int length = a.getNumElements();
+        for (int i = 0; i < length; i++) {
+            c.data[i] = a.data[i] + b.data[i];
+        }
+    }
+
+    @Override
+    public void scale(double alpha, DMatrixRMaj a, DMatrixRMaj c) {
+        c.reshape(a.numRows, a.numCols, true);
+        final int length = a.getNumElements();
+        for (int i = 0; i < length; i++) {
+            c.data[i] = alpha * a.data[i];
+        }
+    }
+
+    /**
+     * Checks that the operands of a product have compatible dimensions, and reshapes the output, or checks its shape if
+     * its values are accumulated into.
+     */
+    static void prepareOutput(DMatrixRMaj a, boolean transposeA, DMatrixRMaj b, boolean transposeB, double beta, DMatrixRMaj c) {
+        final int rows = transposeA ? a.numCols : a.numRows;
+        final int inner = transposeA ? a.numRows : a.numCols;
+        final int bInner = transposeB ? b.numCols : b.numRows;
+        final int cols = transposeB ? b.numRows : b.numCols;
+        if (inner != bInner) {
+            throw new IllegalArgumentException(String.format("Cannot multiply matrices of dimensions (%dx%d) and (%dx%d)",
+                                                             rows, inner, bInner, cols));
+        }
+        if (c == a || c == b) {
+            throw new IllegalArgumentException("The output of a product must not be one of its operands");
+        }
+        if (beta == 0.0) {
+            c.reshape(rows, cols, false);
+        } else if (c.numRows != rows || c.numCols != cols) {
+            throw new IllegalArgumentException(String.format("Cannot accumulate a (%dx%d) product into a (%dx%d) matrix",
+                                                             rows, cols, c.numRows, c.numCols));
+        }
+    }
+
+    /**
+     * Computes rows {@code [rowStart, rowEnd)} of {@code c = alpha * op(a) * op(b) + beta * c}, for an output that has
+     * already been prepared with {@link #prepareOutput}.
+     */
+    static void gemmRows(double alpha, DMatrixRMaj a, boolean transposeA, DMatrixRMaj b, boolean transposeB, double beta, DMatrixRMaj c,
+                         int rowStart, int rowEnd) {
+        final int cols = c.numCols;
+        final int inner = transposeA ? a.numRows : a.numCols;
+        final double[] cData = c.data;
+        if (beta == 0.0) {
+            Arrays.fill(cData, rowStart * cols, rowEnd * cols, 0.0);
+        } else if (beta != 1.0) {
+            for (int i = rowStart * cols; i < rowEnd * cols; i++) {
+                cData[i] *= beta;
+            }
+        }
+
+        if (transposeB) {
+            // Each output is a dot product of a row of op(a) with a row of b
+            final double[] aRow = transposeA ? operandRow(inner) : a.data;
+            for (int row = rowStart; row < rowEnd; row++) {
+                final int aOffset = transposeA ? 0 : row * a.numCols;
+                if (transposeA) {
+                    for (int k = 0; k < inner; k++) {
+                        aRow[k] = a.data[k * a.numCols + row];
+                    }
+                }
+                for (int col = 0, bOffset = 0; col < cols; col++, bOffset += inner) {
+                    double accum = 0.0;
+                    for (int k = 0; k < inner; k++) {
+                        accum += aRow[aOffset + k] * b.data[bOffset + k];
+                    }
+                    cData[row * cols + col] += alpha * accum;
+                }
+            }
+        } else {
+            // Each row of the output is a combination of the rows of b, weighted by a row of op(a)
+            final int aRowStride = transposeA ? 1 : a.numCols;
+            final int aInnerStride = transposeA ? a.numCols : 1;
+            for (int rowBlock = rowStart; rowBlock < rowEnd; rowBlock += ROW_BLOCK) {
+                final int rowBlockEnd = Math.min(rowBlock + ROW_BLOCK, rowEnd);
+                for (int colBlock = 0; colBlock < cols; colBlock += COL_BLOCK) {
+                    final int colBlockEnd = Math.min(colBlock + COL_BLOCK, cols);
+                    for (int k = 0, bOffset = 0; k < inner; k++, bOffset += cols) {
+                        for (int row = rowBlock; row < rowBlockEnd; row++) {
+                            final double scale = alpha * a.data[row * aRowStride + k * aInnerStride];
+                            final int cOffset = row * cols;
+                            for (int col = colBlock; col < colBlockEnd; col++) {
+                                cData[cOffset + col] += scale * b.data[bOffset + col];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return This thread's buffer for a row of a transposed operand, with at least the given length.
+     */
+    private static double[] operandRow(int length) {
+        double[] row = operandRows.get();
+        if (row.length < length) {
+            row = new double[length];
+            operandRows.set(row);
+        }
+
+        return row;
+    }
+}
@@ -0,0 +1,29 @@
+package neuralnerdwork.math;
+
+import org.ejml.data.DMatrix;
+
+/**
+ * An expression with fixed values for its {@link InputVector input placeholders}. This lets an expression be built once
+ * and re-used with different input data.
+ */
+public record BoundScalarExpression(ScalarExpression expression, Model.InputBindings inputs) implements ScalarExpression {
+    @Override
+    public double evaluate(Model.ParameterBindings bindings) {
+        return expression.evaluate(bindings.withInputs(inputs));
+    }
+
+    @Override
+    public double computePartialDerivative(Model.ParameterBindings bindings, int variable) {
+        return expression.computePartialDerivative(bindings.withInputs(inputs), variable);
+    }
+
+    @Override
+    public boolean isZero() {
+        return expression.isZero();
+    }
+
+    @Override
+    public DMatrix computeDerivative(Model.ParameterBindings bindings) {
+        return expression.computeDerivative(bindings.withInputs(inputs));
+    }
+}
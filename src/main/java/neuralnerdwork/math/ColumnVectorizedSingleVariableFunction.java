@@ -29,11 +29,15 @@ public record ColumnVectorizedSingleVariableFunction(SingleVariableFunction func
     public DMatrix evaluate(Model.ParameterBindings bindings) {
         final DMatrix vector = vectorExpression.evaluate(bindings);
         final double[] values = new double[vector.getNumRows()];
-        for (int i = 0; i < values.length; i++) {
-            values[i] = function.apply(vector.get(i, 0));
+        if (function instanceof ActivationFunction a && vector instanceof DMatrixRMaj v) {
+            a.applyTo(v.data, values, values.length);
+        } else {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = function.apply(vector.get(i, 0));
+            }
         }
 
-        return new DMatrixRMaj(values.length, 1, true, values);
+        return DMatrixRMaj.wrap(values.length, 1, values);
     }
 
     @Override
@@ -49,6 +53,23 @@ public record ColumnVectorizedSingleVariableFunction(SingleVariableFunction func
                             .evaluate(bindings);
     }
 
+    @Override
+    public DMatrix computeVectorJacobianProduct(Model.ParameterBindings bindings, DMatrix outputGradient) {
+        // g * (D(f'(x)) * x') == (g . f'(x)) * x'
+        final DMatrix vector = vectorExpression.evaluate(bindings);
+        final double[] values = new double[vector.getNumRows()];
+        if (function instanceof ActivationFunction a && vector instanceof DMatrixRMaj v && outputGradient instanceof DMatrixRMaj g) {
+            a.multiplyByDerivative(v.data, g.data, values, values.length);
+        } else {
+            final SingleVariableFunction derivative = function.differentiateByInput();
+            for (int i = 0; i < values.length; i++) {
+                values[i] = outputGradient.get(0, i) * derivative.apply(vector.get(i, 0));
+            }
+        }
+
+        return vectorExpression.computeVectorJacobianProduct(bindings, DMatrixRMaj.wrap(1, values.length, values));
+    }
+
     @Override
     public DMatrix computePartialDerivative(Model.ParameterBindings bindings, int variable) {
         final DMatrix innerDerivative = this.vectorExpression.computePartialDerivative(bindings, variable);
@@ -6,18 +6,55 @@ import org.ejml.data.DMatrixSparseTriplet;
 import org.ejml.ops.ConvertDMatrixStruct;
 
 /**
- * A matrix capable of representing a convolution filter (without padding) as a linear transformation
+ * A matrix capable of representing a convolution filter as a linear transformation
  * (i.e. multiplying a flattened vector by this filter is equivalent to applying the given
  * convolution filter over the un-flattened source array).
  *
  * When multiplying with a vector, that vector should be the rows of a 2D array with dimensions {@link #inputWidth} and
- * {@link #inputHeight}.
+ * {@link #inputHeight}. The stride, zero-padding and dilation of the filter are given by the {@link #geometry}.
  */
-public record ConvolutionFilterMatrix(ParameterMatrix filter, int inputHeight, int inputWidth) implements MatrixExpression {
+public record ConvolutionFilterMatrix(ParameterMatrix filter, int inputHeight, int inputWidth, ConvolutionGeometry geometry) implements MatrixExpression {
+
+    public ConvolutionFilterMatrix {
+        if (geometry.outputRows(inputHeight, filter.rows()) < 1 || geometry.outputCols(inputWidth, filter.cols()) < 1) {
+            throw new IllegalArgumentException(String.format("a %dx%d filter with %s does not fit in a %dx%d input",
+                                                             filter.rows(), filter.cols(), geometry, inputHeight, inputWidth));
+        }
+    }
+
+    /**
+     * A stride one convolution without padding or dilation.
+     */
+    public ConvolutionFilterMatrix(ParameterMatrix filter, int inputHeight, int inputWidth) {
+        this(filter, inputHeight, inputWidth, ConvolutionGeometry.VALID);
+    }
+
+    public int outputHeight() {
+        return geometry.outputRows(inputHeight, filter.rows());
+    }
+
+    public int outputWidth() {
+        return geometry.outputCols(inputWidth, filter.cols());
+    }
+
+    /**
+     * @param target An index of the flattened output.
+     * @return The index of the flattened input that the given filter entry is applied to for the given output, or -1 if
+     * that entry lies in the padding.
+     */
+    public int sourceIndex(int target, int filterRow, int filterCol) {
+        final int sourceRow = (target / outputWidth()) * geometry.rowStride() - geometry.rowPadding() + filterRow * geometry.rowDilation();
+        final int sourceCol = (target % outputWidth()) * geometry.colStride() - geometry.colPadding() + filterCol * geometry.colDilation();
+        if (sourceRow < 0 || sourceRow >= inputHeight || sourceCol < 0 || sourceCol >= inputWidth) {
+            return -1;
+        }
+
+        return sourceRow * inputWidth + sourceCol;
+    }
 
     @Override
     public int rows() {
-        return (inputHeight - filter.rows() + 1) * (inputWidth - filter.cols() + 1);
+        return outputHeight() * outputWidth();
     }
 
     @Override
@@ -33,29 +70,19 @@ public record ConvolutionFilterMatrix(ParameterMatrix filter, int inputHeight, i
     @Override
     public DMatrix evaluate(Model.ParameterBindings bindings) {
         DMatrix filter = this.filter.evaluate(bindings);
-        DMatrixSparseTriplet sparseBuilder = new DMatrixSparseTriplet(rows(), cols(), filter.getNumRows() * filter.getNumCols() * rows());
-
         int filterRows = filter.getNumRows();
         int filterCols = filter.getNumCols();
-        int targetCols = inputWidth - filterCols + 1;
-        int targetRows = inputHeight - filterRows + 1;
-        int flattenedLength = targetCols * targetRows;
-
-        int sourceCol = 0, paddingCounter = 0;
-        for (int flattenedRow = 0; flattenedRow < flattenedLength; flattenedRow++) {
-            int startIndex = sourceCol;
-            for (int r = 0, colOffset = startIndex; r < filterRows; r++, colOffset += inputWidth) {
+        DMatrixSparseTriplet sparseBuilder = new DMatrixSparseTriplet(rows(), cols(), filterRows * filterCols * rows());
+
+        for (int target = 0; target < rows(); target++) {
+            for (int r = 0; r < filterRows; r++) {
                 for (int c = 0; c < filterCols; c++) {
-                    sparseBuilder.addItem(flattenedRow, colOffset + c, filter.get(r, c));
+                    int source = sourceIndex(target, r, c);
+                    if (source >= 0) {
+                        sparseBuilder.addItem(target, source, filter.get(r, c));
+                    }
                 }
             }
-            paddingCounter++;
-            if (paddingCounter == targetCols) {
-                sourceCol += filterCols;
-                paddingCounter = 0;
-            } else {
-                sourceCol++;
-            }
         }
 
         return ConvertDMatrixStruct.convert(sparseBuilder, (DMatrixSparseCSC) null);
@@ -66,24 +93,12 @@ public record ConvolutionFilterMatrix(ParameterMatrix filter, int inputHeight, i
         if (filter.containsVariable(variable)) {
             int filterRow = filter.rowIndexFor(variable);
             int filterCol = filter.colIndexFor(variable);
-            int flatOffset = filterRow * inputWidth + filterCol;
-
-            DMatrixSparseTriplet sparseBuilder = new DMatrixSparseTriplet(rows(), cols(), filter.rows() * filter.cols() * rows());
-
-            int targetCols = inputWidth - this.filter.cols() + 1;
-            int targetRows = inputHeight - this.filter.rows() + 1;
-            int flattenedLength = targetCols * targetRows;
-
-            int sourceCol = 0, paddingCounter = 0;
-            for (int flattenedRow = 0; flattenedRow < flattenedLength; flattenedRow++) {
-                int startIndex = sourceCol;
-                sparseBuilder.addItem(flattenedRow, startIndex + flatOffset, 1.0);
-                paddingCounter++;
-                if (paddingCounter == targetCols) {
-                    sourceCol += filter.cols();
-                    paddingCounter = 0;
-                } else {
-                    sourceCol++;
+
+            DMatrixSparseTriplet sparseBuilder = new DMatrixSparseTriplet(rows(), cols(), rows());
+            for (int target = 0; target < rows(); target++) {
+                int source = sourceIndex(target, filterRow, filterCol);
+                if (source >= 0) {
+                    sparseBuilder.addItem(target, source, 1.0);
                 }
             }
 
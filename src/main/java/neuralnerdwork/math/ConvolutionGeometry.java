@@ -0,0 +1,77 @@
+package neuralnerdwork.math;
+
+/**
+ * How a convolution filter is moved over its input, given separately for rows and columns.
+ *
+ * @param rowStride The number of input rows between vertically adjacent outputs.
+ * @param colStride The number of input columns between horizontally adjacent outputs.
+ * @param rowPadding The number of rows of zeros added above and below the input.
+ * @param colPadding The number of columns of zeros added left and right of the input.
+ * @param rowDilation The number of input rows between vertically adjacent filter entries.
+ * @param colDilation The number of input columns between horizontally adjacent filter entries.
+ */
+public record ConvolutionGeometry(int rowStride, int colStride, int rowPadding, int colPadding, int rowDilation, int colDilation) {
+    /**
+     * Stride one, no padding and no dilation: the filter is applied at every position where it fits inside the input.
+     */
+    public static final ConvolutionGeometry VALID = new ConvolutionGeometry(1, 1, 0, 0, 1, 1);
+
+    public ConvolutionGeometry {
+        if (rowStride < 1 || colStride < 1) {
+            throw new IllegalArgumentException("stride must be positive");
+        }
+        if (rowDilation < 1 || colDilation < 1) {
+            throw new IllegalArgumentException("dilation must be positive");
+        }
+        if (rowPadding < 0 || colPadding < 0) {
+            throw new IllegalArgumentException("padding must not be negative");
+        }
+    }
+
+    /**
+     * @return The same stride, padding and dilation for rows and columns.
+     */
+    public static ConvolutionGeometry of(int stride, int padding, int dilation) {
+        return new ConvolutionGeometry(stride, stride, padding, padding, dilation, dilation);
+    }
+
+    /**
+     * @return A geometry without padding.
+     */
+    public static ConvolutionGeometry valid(int stride, int dilation) {
+        return of(stride, 0, dilation);
+    }
+
+    /**
+     * @return A geometry padded so that the output has {@code ceil(input / stride)} rows and columns, with the filter
+     * centred on each output position. The (dilated) filter must have an odd number of rows and columns.
+     */
+    public static ConvolutionGeometry same(int filterRows, int filterCols, int stride, int dilation) {
+        if ((filterRows - 1) * dilation % 2 != 0 || (filterCols - 1) * dilation % 2 != 0) {
+            throw new IllegalArgumentException(String.format("same padding is not symmetric for a %dx%d filter with dilation %d",
+                                                             filterRows, filterCols, dilation));
+        }
+
+        return new ConvolutionGeometry(stride, stride, (filterRows - 1) * dilation / 2, (filterCols - 1) * dilation / 2,
+                                       dilation, dilation);
+    }
+
+    /**
+     * @return The number of output rows for an input and filter with the given number of rows.
+     */
+    public int outputRows(int inputHeight, int filterRows) {
+        return outputSize(inputHeight, filterRows, rowStride, rowPadding, rowDilation);
+    }
+
+    /**
+     * @return The number of output columns for an input and filter with the given number of columns.
+     */
+    public int outputCols(int inputWidth, int filterCols) {
+        return outputSize(inputWidth, filterCols, colStride, colPadding, colDilation);
+    }
+
+    private static int outputSize(int inputSize, int filterSize, int stride, int padding, int dilation) {
+        final int span = inputSize + 2 * padding - dilation * (filterSize - 1);
+        return span > 0 ? (span - 1) / stride + 1 : 0;
+    }
+}
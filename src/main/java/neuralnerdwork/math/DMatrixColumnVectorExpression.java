@@ -39,4 +39,9 @@ public record DMatrixColumnVectorExpression(DMatrix matrix) implements VectorExp
     public DMatrix computeDerivative(Model.ParameterBindings bindings) {
         return new DMatrixSparseCSC(length(), bindings.size(), 0);
     }
+
+    @Override
+    public DMatrix computeVectorJacobianProduct(Model.ParameterBindings bindings, DMatrix outputGradient) {
+        return new DMatrixSparseCSC(1, bindings.size(), 0);
+    }
 }
@@ -0,0 +1,141 @@
+package neuralnerdwork.math;
+
+import org.ejml.data.DMatrix;
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.data.Matrix;
+import org.ejml.data.MatrixType;
+
+import java.util.Arrays;
+
+/**
+ * A square matrix that is zero everywhere off its diagonal, stored as just the diagonal. {@link EJMLUtil#mult(DMatrix, DMatrix)}
+ * multiplies by it by scaling the rows or columns of the other matrix, so it is never expanded into a general matrix.
+ */
+public final class DiagonalMatrix implements DMatrix {
+    private static final long serialVersionUID = 1L;
+
+    private final double[] diagonal;
+
+    /**
+     * @param diagonal The diagonal entries. This array is used as is, not copied.
+     */
+    public DiagonalMatrix(double[] diagonal) {
+        this.diagonal = diagonal;
+    }
+
+    public double[] diagonal() {
+        return diagonal;
+    }
+
+    @Override
+    public double get(int row, int col) {
+        if (row < 0 || row >= diagonal.length || col < 0 || col >= diagonal.length) {
+            throw new IllegalArgumentException(String.format("(%d, %d) is outside of a %dx%d matrix", row, col, diagonal.length, diagonal.length));
+        }
+        return unsafe_get(row, col);
+    }
+
+    @Override
+    public double unsafe_get(int row, int col) {
+        return row == col ? diagonal[row] : 0.0;
+    }
+
+    @Override
+    public void set(int row, int col, double val) {
+        if (row < 0 || row >= diagonal.length || col < 0 || col >= diagonal.length) {
+            throw new IllegalArgumentException(String.format("(%d, %d) is outside of a %dx%d matrix", row, col, diagonal.length, diagonal.length));
+        }
+        unsafe_set(row, col, val);
+    }
+
+    @Override
+    public void unsafe_set(int row, int col, double val) {
+        if (row == col) {
+            diagonal[row] = val;
+        } else if (val != 0.0) {
+            throw new UnsupportedOperationException("Cannot set off-diagonal entry (" + row + ", " + col + ") of a diagonal matrix");
+        }
+    }
+
+    /**
+     * @return The number of stored entries (like a sparse matrix), which is the length of the diagonal.
+     */
+    @Override
+    public int getNumElements() {
+        return diagonal.length;
+    }
+
+    @Override
+    public int getNumRows() {
+        return diagonal.length;
+    }
+
+    @Override
+    public int getNumCols() {
+        return diagonal.length;
+    }
+
+    @Override
+    public void zero() {
+        Arrays.fill(diagonal, 0.0);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends Matrix> T copy() {
+        return (T) new DiagonalMatrix(diagonal.clone());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends Matrix> T createLike() {
+        return (T) new DiagonalMatrix(new double[diagonal.length]);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends Matrix> T create(int numRows, int numCols) {
+        if (numRows != numCols) {
+            throw new IllegalArgumentException("Diagonal matrices must be square, but got " + numRows + "x" + numCols);
+        }
+        return (T) new DiagonalMatrix(new double[numRows]);
+    }
+
+    @Override
+    public void set(Matrix original) {
+        if (original instanceof DiagonalMatrix d && d.diagonal.length == diagonal.length) {
+            System.arraycopy(d.diagonal, 0, diagonal, 0, diagonal.length);
+        } else {
+            throw new UnsupportedOperationException("Cannot set a diagonal matrix from " + original.getClass());
+        }
+    }
+
+    @Override
+    public void print() {
+        System.out.println(this);
+    }
+
+    @Override
+    public void print(String format) {
+        toDense().print(format);
+    }
+
+    @Override
+    public MatrixType getType() {
+        return MatrixType.UNSPECIFIED;
+    }
+
+    public DMatrixRMaj toDense() {
+        final DMatrixRMaj dense = new DMatrixRMaj(diagonal.length, diagonal.length);
+        for (int i = 0; i < diagonal.length; i++) {
+            dense.unsafe_set(i, i, diagonal[i]);
+        }
+
+        return dense;
+    }
+
+    @Override
+    public String toString() {
+        return "Diagonal " + Arrays.toString(diagonal);
+    }
+}
@@ -1,9 +1,7 @@
 package neuralnerdwork.math;
 
 import org.ejml.data.DMatrix;
-import org.ejml.data.DMatrixSparseCSC;
-import org.ejml.data.DMatrixSparseTriplet;
-import org.ejml.ops.ConvertDMatrixStruct;
+import org.ejml.data.DMatrixRMaj;
 
 public record DiagonalizedVector(VectorExpression vector) implements MatrixExpression {
     @Override
@@ -24,12 +22,16 @@ public record DiagonalizedVector(VectorExpression vector) implements MatrixExpre
     @Override
     public DMatrix evaluate(Model.ParameterBindings bindings) {
         final DMatrix vectorValue = vector.evaluate(bindings);
-        DMatrixSparseTriplet sparseBuilder = new DMatrixSparseTriplet(rows(), cols(), vector.length());
-        for (int i = 0; i < vector.length(); i++) {
-            sparseBuilder.addItem(i, i, vectorValue.get(i, 0));
+        final double[] diagonal = new double[vector.length()];
+        if (vectorValue instanceof DMatrixRMaj v) {
+            System.arraycopy(v.data, 0, diagonal, 0, diagonal.length);
+        } else {
+            for (int i = 0; i < diagonal.length; i++) {
+                diagonal[i] = vectorValue.get(i, 0);
+            }
         }
 
-        return ConvertDMatrixStruct.convert(sparseBuilder, (DMatrixSparseCSC) null);
+        return new DiagonalMatrix(diagonal);
     }
 
     @Override
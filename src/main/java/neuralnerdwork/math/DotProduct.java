@@ -1,6 +1,7 @@
 package neuralnerdwork.math;
 
 import org.ejml.data.DMatrix;
+import org.ejml.data.DMatrixRMaj;
 
 public record DotProduct(VectorExpression left, VectorExpression right) implements ScalarExpression {
     public static ScalarExpression product(VectorExpression left, VectorExpression right) {
@@ -33,17 +34,28 @@ public record DotProduct(VectorExpression left, VectorExpression right) implemen
 
     @Override
     public DMatrix computeDerivative(Model.ParameterBindings bindings) {
-        final DMatrix leftDerivative = left.computeDerivative(bindings);
-        final DMatrix rightDerivative = right.computeDerivative(bindings);
         DMatrix leftValue = left.evaluate(bindings);
         DMatrix rightValue = right.evaluate(bindings);
 
+        // (l . r)' = l^T r' + r^T l'
+        // Each term is a vector-Jacobian product, so we let the operands propagate them without building r' or l'.
         return MatrixSum.sum(
-                new MatrixProduct(new TransposeExpression(new DMatrixExpression(leftValue)), new DMatrixExpression(rightDerivative)),
-                new MatrixProduct(new TransposeExpression(new DMatrixExpression(rightValue)), new DMatrixExpression(leftDerivative))
+                new DMatrixExpression(right.computeVectorJacobianProduct(bindings, rowVector(leftValue, bindings))),
+                new DMatrixExpression(left.computeVectorJacobianProduct(bindings, rowVector(rightValue, bindings)))
         ).evaluate(bindings);
     }
 
+    /**
+     * A dense column vector has the same layout as its transpose, so it is reshaped as a row vector sharing the same data.
+     */
+    private static DMatrix rowVector(DMatrix vector, Model.ParameterBindings bindings) {
+        if (vector instanceof DMatrixRMaj v && v.getNumCols() == 1) {
+            return DMatrixRMaj.wrap(1, v.getNumRows(), v.data);
+        } else {
+            return new TransposeExpression(new DMatrixExpression(vector)).evaluate(bindings);
+        }
+    }
+
     @Override
     public double computePartialDerivative(Model.ParameterBindings bindings, int variable) {
         final DMatrix leftDerivative = left.computePartialDerivative(bindings, variable);
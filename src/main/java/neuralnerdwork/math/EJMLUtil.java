@@ -1,7 +1,6 @@
 package neuralnerdwork.math;
 
 import org.ejml.data.*;
-import org.ejml.dense.row.CommonOps_DDRM;
 import org.ejml.sparse.csc.CommonOps_DSCC;
 
 public class EJMLUtil {
@@ -10,9 +9,25 @@ public class EJMLUtil {
     private static final ThreadLocal<DGrowArray> doubleWorkArrays = new ThreadLocal<>();
 
     public static DMatrix mult(DMatrix leftMatrix, DMatrix rightMatrix) {
-        if (leftMatrix instanceof DMatrixRMaj l && rightMatrix instanceof DMatrixRMaj r) {
-            DMatrixRMaj retVal = new DMatrixRMaj(l.getNumRows(), r.getNumCols());
-            CommonOps_DDRM.mult(l, r, retVal);
+        return mult(leftMatrix, rightMatrix, null);
+    }
+
+    /**
+     * @param output A matrix from a previous multiplication, that the product is written into if it has the right type.
+     *               May be null. Must not be either of the other arguments.
+     * @return The product, which is {@code output} if it could be reused and otherwise a new matrix.
+     */
+    public static DMatrix mult(DMatrix leftMatrix, DMatrix rightMatrix, DMatrix output) {
+        if (leftMatrix instanceof DiagonalMatrix || rightMatrix instanceof DiagonalMatrix) {
+            if (leftMatrix.getNumCols() != rightMatrix.getNumRows()) {
+                throw new IllegalArgumentException(String.format("Cannot multiply matrices of dimensions (%dx%d) and (%dx%d)",
+                                                                 leftMatrix.getNumRows(), leftMatrix.getNumCols(),
+                                                                 rightMatrix.getNumRows(), rightMatrix.getNumCols()));
+            }
+            return multDiagonal(leftMatrix, rightMatrix, output);
+        } else if (leftMatrix instanceof DMatrixRMaj l && rightMatrix instanceof DMatrixRMaj r) {
+            DMatrixRMaj retVal = dense(output, l.getNumRows(), r.getNumCols());
+            MatrixBackends.current().mult(l, r, retVal);
 
             return retVal;
         } else if (leftMatrix instanceof DMatrixSparseCSC l && rightMatrix instanceof DMatrixSparseCSC r) {
@@ -26,23 +41,110 @@ public class EJMLUtil {
                 doubleWorkArray = new DGrowArray(15_000);
                 doubleWorkArrays.set(doubleWorkArray);
             }
-            DMatrixSparseCSC retVal = new DMatrixSparseCSC(l.getNumRows(), r.getNumCols());
+            DMatrixSparseCSC retVal;
+            if (output instanceof DMatrixSparseCSC o) {
+                retVal = o;
+                retVal.reshape(l.getNumRows(), r.getNumCols());
+            } else {
+                retVal = new DMatrixSparseCSC(l.getNumRows(), r.getNumCols());
+            }
             CommonOps_DSCC.mult(l, r, retVal, intWorkArray, doubleWorkArray);
 
             return retVal;
         } else if (leftMatrix instanceof DMatrixSparseCSC l && rightMatrix instanceof DMatrixRMaj r) {
-            DMatrixRMaj retVal = new DMatrixRMaj(l.getNumRows(), r.getNumCols());
+            DMatrixRMaj retVal = dense(output, l.getNumRows(), r.getNumCols());
             CommonOps_DSCC.mult(l, r, retVal);
 
             return retVal;
         } else if (leftMatrix instanceof DMatrixRMaj l && rightMatrix instanceof DMatrixSparseCSC r) {
-            DMatrixRMaj retVal = new DMatrixRMaj(l.getNumRows(), r.getNumCols());
-            CommonOps_DSCC.multTransAB(r, l, retVal);
-            CommonOps_DDRM.transpose(retVal);
+            if (l.getNumCols() != r.getNumRows()) {
+                throw new IllegalArgumentException(String.format("Cannot multiply matrices of dimensions (%dx%d) and (%dx%d)",
+                                                                 l.getNumRows(), l.getNumCols(), r.getNumRows(), r.getNumCols()));
+            }
+            // Each output entry is a row of l dotted with the nonzero entries of a column of r
+            final int inner = l.getNumCols();
+            final int cols = r.getNumCols();
+            DMatrixRMaj retVal = dense(output, l.getNumRows(), cols);
+            for (int row = 0; row < l.getNumRows(); row++) {
+                final int leftOffset = row * inner;
+                for (int col = 0; col < cols; col++) {
+                    double accum = 0.0;
+                    for (int i = r.col_idx[col]; i < r.col_idx[col + 1]; i++) {
+                        accum += l.data[leftOffset + r.nz_rows[i]] * r.nz_values[i];
+                    }
+                    retVal.data[row * cols + col] = accum;
+                }
+            }
+
+            return retVal;
+        } else {
+            throw new UnsupportedOperationException("Cannot multiply matrix types " + leftMatrix.getClass() + " and " + rightMatrix.getClass());
+        }
+    }
+
+    /*
+     A product with a diagonal matrix scales the rows (diagonal on the left) or columns (diagonal on the right) of the
+     other matrix, keeping its type.
+     */
+    private static DMatrix multDiagonal(DMatrix leftMatrix, DMatrix rightMatrix, DMatrix output) {
+        if (leftMatrix instanceof DiagonalMatrix l && rightMatrix instanceof DiagonalMatrix r) {
+            final double[] diagonal = new double[l.getNumRows()];
+            for (int i = 0; i < diagonal.length; i++) {
+                diagonal[i] = l.diagonal()[i] * r.diagonal()[i];
+            }
+
+            return new DiagonalMatrix(diagonal);
+        } else if (leftMatrix instanceof DiagonalMatrix l && rightMatrix instanceof DMatrixRMaj r) {
+            final double[] diagonal = l.diagonal();
+            final int cols = r.getNumCols();
+            final DMatrixRMaj retVal = dense(output, r.getNumRows(), cols);
+            for (int row = 0, offset = 0; row < r.getNumRows(); row++, offset += cols) {
+                final double scale = diagonal[row];
+                for (int col = 0; col < cols; col++) {
+                    retVal.data[offset + col] = scale * r.data[offset + col];
+                }
+            }
+
+            return retVal;
+        } else if (leftMatrix instanceof DMatrixRMaj l && rightMatrix instanceof DiagonalMatrix r) {
+            final double[] diagonal = r.diagonal();
+            final int cols = l.getNumCols();
+            final DMatrixRMaj retVal = dense(output, l.getNumRows(), cols);
+            for (int row = 0, offset = 0; row < l.getNumRows(); row++, offset += cols) {
+                for (int col = 0; col < cols; col++) {
+                    retVal.data[offset + col] = l.data[offset + col] * diagonal[col];
+                }
+            }
+
+            return retVal;
+        } else if (leftMatrix instanceof DiagonalMatrix l && rightMatrix instanceof DMatrixSparseCSC r) {
+            final double[] diagonal = l.diagonal();
+            final DMatrixSparseCSC retVal = r.copy();
+            for (int i = 0; i < retVal.nz_length; i++) {
+                retVal.nz_values[i] *= diagonal[retVal.nz_rows[i]];
+            }
+
+            return retVal;
+        } else if (leftMatrix instanceof DMatrixSparseCSC l && rightMatrix instanceof DiagonalMatrix r) {
+            final double[] diagonal = r.diagonal();
+            final DMatrixSparseCSC retVal = l.copy();
+            for (int col = 0; col < retVal.numCols; col++) {
+                for (int i = retVal.col_idx[col]; i < retVal.col_idx[col + 1]; i++) {
+                    retVal.nz_values[i] *= diagonal[col];
+                }
+            }
 
             return retVal;
         } else {
             throw new UnsupportedOperationException("Cannot multiply matrix types " + leftMatrix.getClass() + " and " + rightMatrix.getClass());
         }
     }
+
+    private static DMatrixRMaj dense(DMatrix output, int rows, int cols) {
+        if (output instanceof DMatrixRMaj o) {
+            o.reshape(rows, cols, false);
+            return o;
+        }
+        return new DMatrixRMaj(rows, cols);
+    }
 }
@@ -0,0 +1,53 @@
+package neuralnerdwork.math;
+
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.dense.row.CommonOps_DDRM;
+
+/**
+ * Delegates to the single threaded EJML kernels.
+ */
+final class EjmlMatrixBackend implements MatrixBackend {
+    @Override
+    public String name() {
+        return "ejml";
+    }
+
+    @Override
+    public void gemm(double alpha, DMatrixRMaj a, boolean transposeA, DMatrixRMaj b, boolean transposeB, double beta, DMatrixRMaj c) {
+        BlockedMatrixBackend.prepareOutput(a, transposeA, b, transposeB, beta, c);
+        if (beta == 0.0) {
+            if (!transposeA && !transposeB) {
+                CommonOps_DDRM.mult(alpha, a, b, c);
+            } else if (transposeA && !transposeB) {
+                CommonOps_DDRM.multTransA(alpha, a, b, c);
+            } else if (!transposeA) {
+                CommonOps_DDRM.multTransB(alpha, a, b, c);
+            } else {
+                CommonOps_DDRM.multTransAB(alpha, a, b, c);
+            }
+        } else {
+            if (beta != 1.0) {
+                CommonOps_DDRM.scale(beta, c);
+            }
+            if (!transposeA && !transposeB) {
+                CommonOps_DDRM.multAdd(alpha, a, b, c);
+            } else if (transposeA && !transposeB) {
+                CommonOps_DDRM.multAddTransA(alpha, a, b, c);
+            } else if (!transposeA) {
+                CommonOps_DDRM.multAddTransB(alpha, a, b, c);
+            } else {
+                CommonOps_DDRM.multAddTransAB(alpha, a, b, c);
+            }
+        }
+    }
+
+    @Override
+    public void add(DMatrixRMaj a, DMatrixRMaj b, DMatrixRMaj c) {
+        CommonOps_DDRM.add(a, b, c);
+    }
+
+    @Override
+    public void scale(double alpha, DMatrixRMaj a, DMatrixRMaj c) {
+        CommonOps_DDRM.scale(alpha, a, c);
+    }
+}
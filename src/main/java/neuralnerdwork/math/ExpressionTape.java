@@ -0,0 +1,576 @@
+package neuralnerdwork.math;
+
+import org.ejml.data.DMatrix;
+import org.ejml.data.DMatrixRMaj;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A {@link ScalarExpression} compiled into a flat, topologically ordered list of instructions. Each instruction writes
+ * to a preallocated slot of a single value array, so evaluation and reverse-mode differentiation are two loops over the
+ * tape with no expression tree traversal and no intermediate matrices.
+ *
+ * Expression types without a dedicated instruction are kept as opaque instructions, that delegate to
+ * {@link ScalarExpression#computeDerivative(Model.ParameterBindings)} or
+ * {@link VectorExpression#computeVectorJacobianProduct(Model.ParameterBindings, DMatrix)}.
+ *
+ * The values of constant instructions are kept in one array that is shared by every caller. The other slots, and their
+ * adjoints, are in workspaces that the tape keeps in a small pool rather than one per thread, so a tape holds on to at
+ * most one workspace per processor, and they go away with the tape.
+ */
+public final class ExpressionTape implements ScalarExpression {
+    private static final int CONSTANT = 0;
+    private static final int PARAMETER = 1;
+    private static final int SUM = 2;
+    private static final int CONSTANT_MULTIPLE = 3;
+    private static final int PRODUCT = 4;
+    private static final int SCALE = 5;
+    private static final int DOT = 6;
+    private static final int SQUARE_ROOT = 7;
+    private static final int SQUARE = 8;
+    private static final int LOGISTIC = 9;
+    private static final int LEAKY_RELU = 10;
+    private static final int IDENTITY = 11;
+    private static final int FUNCTION = 12;
+    private static final int OPAQUE_SCALAR = 13;
+    private static final int OPAQUE_VECTOR = 14;
+    private static final int INPUT = 15;
+
+    private final int[] opcodes;
+    // Offsets into constantValues for constant instructions, and into the workspace slots for the others
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int[][] arguments;
+    private final double[] constants;
+    private final Object[] operands;
+    // Whether each instruction depends on the parameters, so that adjoints are only propagated through those that do
+    private final boolean[] variable;
+    private final boolean zero;
+    // Whether results may depend on the input bindings, as well as the parameters
+    private final boolean readsInputs;
+
+    private final double[] constantValues;
+    private final int slots;
+    private final BlockingQueue<Workspace> workspaces = new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors());
+    private volatile Gradient gradient;
+
+    private static final class Workspace {
+        private final double[] values;
+        private double[] adjoints;
+        private final DMatrixRMaj outputGradient = new DMatrixRMaj(1, 1);
+
+        private Workspace(int slots) {
+            this.values = new double[slots];
+        }
+
+        private double[] adjoints() {
+            if (adjoints == null) {
+                adjoints = new double[values.length];
+            }
+            return adjoints;
+        }
+    }
+
+    /**
+     * The last gradient from {@link #computeDerivative(Model.ParameterBindings)}, and what it was computed from.
+     */
+    private record Gradient(long version, int start, Model.InputBindings inputs, long inputsGeneration, DMatrixRMaj value) {}
+
+    private ExpressionTape(Compiler compiler, boolean zero) {
+        final int size = compiler.opcodes.size();
+        this.opcodes = new int[size];
+        this.offsets = new int[size];
+        this.lengths = new int[size];
+        this.arguments = new int[size][];
+        this.constants = new double[size];
+        this.operands = new Object[size];
+        this.variable = new boolean[size];
+        boolean readsInputs = false;
+        for (int i = 0; i < size; i++) {
+            opcodes[i] = compiler.opcodes.get(i);
+            offsets[i] = compiler.offsets.get(i);
+            lengths[i] = compiler.lengths.get(i);
+            arguments[i] = compiler.arguments.get(i);
+            constants[i] = compiler.constants.get(i);
+            operands[i] = compiler.operands.get(i);
+            switch (opcodes[i]) {
+                case CONSTANT, INPUT -> variable[i] = false;
+                case PARAMETER, OPAQUE_SCALAR, OPAQUE_VECTOR -> variable[i] = true;
+                default -> {
+                    for (int arg : arguments[i]) {
+                        variable[i] |= variable[arg];
+                    }
+                }
+            }
+            readsInputs |= opcodes[i] == INPUT || opcodes[i] == OPAQUE_SCALAR || opcodes[i] == OPAQUE_VECTOR;
+        }
+        this.zero = zero;
+        this.readsInputs = readsInputs;
+        this.slots = compiler.slots;
+        this.constantValues = new double[compiler.constantSlots];
+        for (int i = 0; i < size; i++) {
+            if (opcodes[i] == CONSTANT) {
+                final DMatrix constant = (DMatrix) operands[i];
+                final boolean columnVector = constant.getNumCols() == 1;
+                for (int j = 0; j < lengths[i]; j++) {
+                    constantValues[offsets[i] + j] = columnVector ? constant.get(j, 0) : constant.get(0, j);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param expression An expression to compile. Structurally identical sub-expressions are only compiled once
+     *                   (see {@link SubexpressionSharing}).
+     * @return An equivalent expression backed by a flat instruction tape.
+     */
+    public static ExpressionTape compile(ScalarExpression expression) {
+        final Compiler compiler = new Compiler();
+        compiler.scalar(SubexpressionSharing.canonicalize(expression));
+
+        return new ExpressionTape(compiler, expression.isZero());
+    }
+
+    /**
+     * @return The number of instructions in this tape.
+     */
+    public int size() {
+        return opcodes.length;
+    }
+
+    @Override
+    public double evaluate(Model.ParameterBindings bindings) {
+        final Workspace workspace = acquire();
+        try {
+            forward(bindings, workspace.values);
+            final int result = opcodes.length - 1;
+
+            return source(result, workspace.values)[offsets[result]];
+        } finally {
+            workspaces.offer(workspace);
+        }
+    }
+
+    /**
+     * Reads from the last gradient computed by {@link #computeDerivative(Model.ParameterBindings)}, so a gradient is only
+     * computed once for all the variables of the same bindings.
+     */
+    @Override
+    public double computePartialDerivative(Model.ParameterBindings bindings, int variable) {
+        final int index = variable - bindings.start();
+        return (index >= 0 && index < bindings.length()) ? computeDerivative(bindings).get(0, index) : 0.0;
+    }
+
+    @Override
+    public boolean isZero() {
+        return zero;
+    }
+
+    /**
+     * @return The gradient, which is kept until it's asked for with other parameter values (or input bindings, for tapes
+     * that read them). It is shared between callers, so it must not be modified.
+     */
+    @Override
+    public DMatrix computeDerivative(Model.ParameterBindings bindings) {
+        final Gradient cached = gradient;
+        final Model.InputBindings inputs = readsInputs ? bindings.inputsOrNull() : null;
+        final long inputsGeneration = inputs != null ? inputs.generation() : 0;
+        if (cached != null && cached.version() == bindings.version() && cached.start() == bindings.start()
+                && cached.inputs() == inputs && cached.inputsGeneration() == inputsGeneration) {
+            return cached.value();
+        }
+
+        final DMatrixRMaj value = new DMatrixRMaj(1, bindings.size());
+        addDerivative(bindings, value.data);
+        gradient = new Gradient(bindings.version(), bindings.start(), inputs, inputsGeneration, value);
+
+        return value;
+    }
+
+    /**
+     * Adds the gradient to a buffer owned by the caller, which nothing is allocated for (except by opaque instructions).
+     *
+     * @param gradient An array of length {@link Model.ParameterBindings#size()}, whose first entry is for the first
+     *                 variable of the bindings.
+     */
+    public void addDerivative(Model.ParameterBindings bindings, double[] gradient) {
+        if (gradient.length != bindings.size()) {
+            throw new IllegalArgumentException("Expected a gradient of length " + bindings.size() + " but found " + gradient.length);
+        }
+        final Workspace workspace = acquire();
+        try {
+            forward(bindings, workspace.values);
+            backward(bindings, workspace, gradient);
+        } finally {
+            workspaces.offer(workspace);
+        }
+    }
+
+    private Workspace acquire() {
+        final Workspace workspace = workspaces.poll();
+        return workspace != null ? workspace : new Workspace(slots);
+    }
+
+    /**
+     * @return The array holding the values of an instruction.
+     */
+    private double[] source(int instruction, double[] values) {
+        return opcodes[instruction] == CONSTANT ? constantValues : values;
+    }
+
+    private void backward(Model.ParameterBindings bindings, Workspace workspace, double[] gradient) {
+        final double[] values = workspace.values;
+        final double[] adjoints = workspace.adjoints();
+        Arrays.fill(adjoints, 0.0);
+        final int result = opcodes.length - 1;
+        if (variable[result]) {
+            adjoints[offsets[result]] = 1.0;
+        }
+        for (int i = result; i > -1; i--) {
+            if (!variable[i]) {
+                continue;
+            }
+            final int out = offsets[i];
+            final int length = lengths[i];
+            final int[] args = arguments[i];
+            switch (opcodes[i]) {
+                case PARAMETER -> {
+                    final int first = (int) constants[i] - bindings.start();
+                    for (int j = 0; j < length; j++) {
+                        final int index = first + j;
+                        if (index >= 0 && index < gradient.length) {
+                            gradient[index] += adjoints[out + j];
+                        }
+                    }
+                }
+                case SUM -> {
+                    for (int arg : args) {
+                        if (variable[arg]) {
+                            final int in = offsets[arg];
+                            for (int j = 0; j < length; j++) {
+                                adjoints[in + j] += adjoints[out + j];
+                            }
+                        }
+                    }
+                }
+                case CONSTANT_MULTIPLE -> adjoints[offsets[args[0]]] += constants[i] * adjoints[out];
+                case PRODUCT -> {
+                    final int left = offsets[args[0]];
+                    final int right = offsets[args[1]];
+                    final double leftValue = source(args[0], values)[left];
+                    final double rightValue = source(args[1], values)[right];
+                    if (variable[args[0]]) {
+                        adjoints[left] += rightValue * adjoints[out];
+                    }
+                    if (variable[args[1]]) {
+                        adjoints[right] += leftValue * adjoints[out];
+                    }
+                }
+                case SCALE -> {
+                    final int scalar = offsets[args[0]];
+                    final int vector = offsets[args[1]];
+                    final double scalarValue = source(args[0], values)[scalar];
+                    final double[] vectorValues = source(args[1], values);
+                    if (variable[args[1]]) {
+                        for (int j = 0; j < length; j++) {
+                            adjoints[vector + j] += scalarValue * adjoints[out + j];
+                        }
+                    }
+                    if (variable[args[0]]) {
+                        double accum = 0.0;
+                        for (int j = 0; j < length; j++) {
+                            accum += adjoints[out + j] * vectorValues[vector + j];
+                        }
+                        adjoints[scalar] += accum;
+                    }
+                }
+                case DOT -> {
+                    final int left = offsets[args[0]];
+                    final int right = offsets[args[1]];
+                    final double[] leftValues = source(args[0], values);
+                    final double[] rightValues = source(args[1], values);
+                    final double adjoint = adjoints[out];
+                    if (variable[args[0]]) {
+                        for (int j = 0; j < lengths[args[0]]; j++) {
+                            adjoints[left + j] += rightValues[right + j] * adjoint;
+                        }
+                    }
+                    if (variable[args[1]]) {
+                        for (int j = 0; j < lengths[args[0]]; j++) {
+                            adjoints[right + j] += leftValues[left + j] * adjoint;
+                        }
+                    }
+                }
+                case SQUARE_ROOT -> adjoints[offsets[args[0]]] += adjoints[out] * 0.5 / values[out];
+                case SQUARE -> {
+                    final int in = offsets[args[0]];
+                    for (int j = 0; j < length; j++) {
+                        adjoints[in + j] += adjoints[out + j] * 2.0 * values[in + j];
+                    }
+                }
+                case LOGISTIC -> {
+                    final int in = offsets[args[0]];
+                    for (int j = 0; j < length; j++) {
+                        final double logistic = values[out + j];
+                        adjoints[in + j] += adjoints[out + j] * logistic * (1 - logistic);
+                    }
+                }
+                case LEAKY_RELU -> {
+                    final int in = offsets[args[0]];
+                    final double alpha = constants[i];
+                    for (int j = 0; j < length; j++) {
+                        adjoints[in + j] += adjoints[out + j] * (values[in + j] < 0 ? alpha : 1.0);
+                    }
+                }
+                case IDENTITY -> {
+                    final int in = offsets[args[0]];
+                    for (int j = 0; j < length; j++) {
+                        adjoints[in + j] += adjoints[out + j];
+                    }
+                }
+                case FUNCTION -> {
+                    final int in = offsets[args[0]];
+                    final SingleVariableFunction derivative = ((SingleVariableFunction) operands[i]).differentiateByInput();
+                    for (int j = 0; j < length; j++) {
+                        adjoints[in + j] += adjoints[out + j] * derivative.apply(values[in + j]);
+                    }
+                }
+                case OPAQUE_SCALAR -> {
+                    final double adjoint = adjoints[out];
+                    if (adjoint != 0.0) {
+                        final DMatrix derivative = ((ScalarExpression) operands[i]).computeDerivative(bindings);
+                        for (int j = 0; j < gradient.length; j++) {
+                            gradient[j] += adjoint * derivative.get(0, j);
+                        }
+                    }
+                }
+                case OPAQUE_VECTOR -> {
+                    final DMatrixRMaj outputGradient = workspace.outputGradient;
+                    outputGradient.reshape(1, length, false);
+                    System.arraycopy(adjoints, out, outputGradient.data, 0, length);
+                    final DMatrix product = ((VectorExpression) operands[i]).computeVectorJacobianProduct(bindings, outputGradient);
+                    for (int j = 0; j < gradient.length; j++) {
+                        gradient[j] += product.get(0, j);
+                    }
+                }
+                default -> throw new IllegalStateException("Unknown opcode " + opcodes[i]);
+            }
+        }
+    }
+
+    private void forward(Model.ParameterBindings bindings, double[] values) {
+        for (int i = 0; i < opcodes.length; i++) {
+            final int out = offsets[i];
+            final int length = lengths[i];
+            final int[] args = arguments[i];
+            switch (opcodes[i]) {
+                case CONSTANT -> {}
+                case INPUT -> {
+                    final DMatrix input = ((InputVector) operands[i]).evaluate(bindings);
+                    for (int j = 0; j < length; j++) {
+                        values[out + j] = input.get(j, 0);
+                    }
+                }
+                case PARAMETER -> {
+                    final int first = (int) constants[i];
+                    for (int j = 0; j < length; j++) {
+                        values[out + j] = bindings.get(first + j);
+                    }
+                }
+                case SUM -> {
+                    for (int j = 0; j < length; j++) {
+                        values[out + j] = 0.0;
+                    }
+                    for (int arg : args) {
+                        final double[] argValues = source(arg, values);
+                        final int in = offsets[arg];
+                        for (int j = 0; j < length; j++) {
+                            values[out + j] += argValues[in + j];
+                        }
+                    }
+                }
+                case CONSTANT_MULTIPLE -> values[out] = constants[i] * source(args[0], values)[offsets[args[0]]];
+                case PRODUCT -> values[out] = source(args[0], values)[offsets[args[0]]] * source(args[1], values)[offsets[args[1]]];
+                case SCALE -> {
+                    final double scalar = source(args[0], values)[offsets[args[0]]];
+                    final double[] vectorValues = source(args[1], values);
+                    final int vector = offsets[args[1]];
+                    for (int j = 0; j < length; j++) {
+                        values[out + j] = scalar * vectorValues[vector + j];
+                    }
+                }
+                case DOT -> {
+                    final double[] leftValues = source(args[0], values);
+                    final double[] rightValues = source(args[1], values);
+                    final int left = offsets[args[0]];
+                    final int right = offsets[args[1]];
+                    double accum = 0.0;
+                    for (int j = 0; j < lengths[args[0]]; j++) {
+                        accum += leftValues[left + j] * rightValues[right + j];
+                    }
+                    values[out] = accum;
+                }
+                case SQUARE_ROOT -> values[out] = Math.sqrt(source(args[0], values)[offsets[args[0]]]);
+                case SQUARE -> {
+                    final double[] in = source(args[0], values);
+                    final int offset = offsets[args[0]];
+                    for (int j = 0; j < length; j++) {
+                        values[out + j] = in[offset + j] * in[offset + j];
+                    }
+                }
+                case LOGISTIC -> {
+                    final double[] in = source(args[0], values);
+                    final int offset = offsets[args[0]];
+                    for (int j = 0; j < length; j++) {
+                        final double exp = Math.exp(-in[offset + j]);
+                        values[out + j] = Double.isInfinite(exp) ? 0 : 1 / (1 + exp);
+                    }
+                }
+                case LEAKY_RELU -> {
+                    final double[] in = source(args[0], values);
+                    final int offset = offsets[args[0]];
+                    final double alpha = constants[i];
+                    for (int j = 0; j < length; j++) {
+                        final double input = in[offset + j];
+                        values[out + j] = input >= 0.0 ? input : input * alpha;
+                    }
+                }
+                case IDENTITY -> System.arraycopy(source(args[0], values), offsets[args[0]], values, out, length);
+                case FUNCTION -> {
+                    final double[] in = source(args[0], values);
+                    final int offset = offsets[args[0]];
+                    final SingleVariableFunction function = (SingleVariableFunction) operands[i];
+                    for (int j = 0; j < length; j++) {
+                        values[out + j] = function.apply(in[offset + j]);
+                    }
+                }
+                case OPAQUE_SCALAR -> values[out] = ((ScalarExpression) operands[i]).evaluate(bindings);
+                case OPAQUE_VECTOR -> {
+                    final DMatrix vector = ((VectorExpression) operands[i]).evaluate(bindings);
+                    final boolean columnVector = vector.getNumCols() == 1;
+                    for (int j = 0; j < length; j++) {
+                        values[out + j] = columnVector ? vector.get(j, 0) : vector.get(0, j);
+                    }
+                }
+                default -> throw new IllegalStateException("Unknown opcode " + opcodes[i]);
+            }
+        }
+    }
+
+    /**
+     * Emits instructions in post-order, so every instruction comes after the instructions for its arguments.
+     */
+    private static class Compiler {
+        private final List<Integer> opcodes = new ArrayList<>();
+        private final List<Integer> offsets = new ArrayList<>();
+        private final List<Integer> lengths = new ArrayList<>();
+        private final List<int[]> arguments = new ArrayList<>();
+        private final List<Double> constants = new ArrayList<>();
+        private final List<Object> operands = new ArrayList<>();
+        private final Map<Object, Integer> compiled = new IdentityHashMap<>();
+        private int slots = 0;
+        private int constantSlots = 0;
+
+        int scalar(ScalarExpression expression) {
+            final Integer existing = compiled.get(expression);
+            if (existing != null) {
+                return existing;
+            }
+
+            final int instruction;
+            if (expression instanceof ConstantScalar c) {
+                instruction = emit(CONSTANT, 1, new int[0], 0.0, new DMatrixRMaj(new double[]{c.value()}));
+            } else if (expression instanceof ScalarParameter p) {
+                instruction = emit(PARAMETER, 1, new int[0], p.variable(), null);
+            } else if (expression instanceof ScalarSum s) {
+                final int[] args = new int[s.expressions().length];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = scalar(s.expressions()[i]);
+                }
+                instruction = emit(SUM, 1, args, 0.0, null);
+            } else if (expression instanceof ScalarConstantMultiple m) {
+                instruction = emit(CONSTANT_MULTIPLE, 1, new int[]{scalar(m.expression())}, m.constant(), null);
+            } else if (expression instanceof ScalarProduct p) {
+                instruction = emit(PRODUCT, 1, new int[]{scalar(p.left()), scalar(p.right())}, 0.0, null);
+            } else if (expression instanceof DotProduct d && d.left().length() == d.right().length()) {
+                instruction = emit(DOT, 1, new int[]{vector(d.left()), vector(d.right())}, 0.0, null);
+            } else if (expression instanceof SquareRoot r) {
+                instruction = emit(SQUARE_ROOT, 1, new int[]{scalar(r.expression())}, 0.0, null);
+            } else {
+                instruction = emit(OPAQUE_SCALAR, 1, new int[0], 0.0, expression);
+            }
+
+            compiled.put(expression, instruction);
+            return instruction;
+        }
+
+        int vector(VectorExpression expression) {
+            final Integer existing = compiled.get(expression);
+            if (existing != null) {
+                return existing;
+            }
+
+            final int length = expression.length();
+            final int instruction;
+            if (expression instanceof DMatrixColumnVectorExpression c) {
+                instruction = emit(CONSTANT, length, new int[0], 0.0, c.matrix());
+            } else if (expression instanceof DMatrixRowVectorExpression r) {
+                instruction = emit(CONSTANT, length, new int[0], 0.0, r.matrix());
+            } else if (expression instanceof ParameterVector p) {
+                instruction = emit(PARAMETER, length, new int[0], p.variableStartIndex(), null);
+            } else if (expression instanceof InputVector in) {
+                instruction = emit(INPUT, length, new int[0], 0.0, in);
+            } else if (expression instanceof VectorSum s) {
+                final int[] args = new int[s.expressions().length];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = vector(s.expressions()[i]);
+                }
+                instruction = emit(SUM, length, args, 0.0, null);
+            } else if (expression instanceof ScaledVector s) {
+                instruction = emit(SCALE, length, new int[]{scalar(s.scalarExpression()), vector(s.vectorExpression())}, 0.0, null);
+            } else if (expression instanceof ColumnVectorizedSingleVariableFunction f) {
+                final int[] args = new int[]{vector(f.vectorExpression())};
+                if (f.function() instanceof SquaredSingleVariableFunction) {
+                    instruction = emit(SQUARE, length, args, 0.0, null);
+                } else if (f.function() instanceof LogisticFunction) {
+                    instruction = emit(LOGISTIC, length, args, 0.0, null);
+                } else if (f.function() instanceof LeakyRelu r) {
+                    instruction = emit(LEAKY_RELU, length, args, r.alpha(), null);
+                } else if (f.function() instanceof ReluFunction) {
+                    instruction = emit(LEAKY_RELU, length, args, 0.0, null);
+                } else if (f.function() instanceof IdentityFunction) {
+                    instruction = emit(IDENTITY, length, args, 0.0, null);
+                } else {
+                    instruction = emit(FUNCTION, length, args, 0.0, f.function());
+                }
+            } else {
+                instruction = emit(OPAQUE_VECTOR, length, new int[0], 0.0, expression);
+            }
+
+            compiled.put(expression, instruction);
+            return instruction;
+        }
+
+        private int emit(int opcode, int length, int[] args, double constant, Object operand) {
+            opcodes.add(opcode);
+            offsets.add(opcode == CONSTANT ? constantSlots : slots);
+            lengths.add(length);
+            arguments.add(args);
+            constants.add(constant);
+            operands.add(operand);
+            if (opcode == CONSTANT) {
+                constantSlots += length;
+            } else {
+                slots += length;
+            }
+
+            return opcodes.size() - 1;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package neuralnerdwork.math;
+
+import org.ejml.data.DMatrix;
+import org.ejml.data.DMatrixRMaj;
+
+/**
+ * An operand of a product or sum, with any transposes and constant scalings around it peeled off, so they can be
+ * folded into a single {@link MatrixBackend#gemm} call rather than each materializing a full intermediate matrix.
+ *
+ * @param scale The product of the scalings around the operand.
+ * @param transposed Whether the operand is transposed an odd number of times.
+ * @param value The value of the innermost expression.
+ */
+record FusedOperand(double scale, boolean transposed, DMatrix value) {
+    static FusedOperand of(MatrixExpression expression, Model.ParameterBindings bindings) {
+        double scale = 1.0;
+        boolean transposed = false;
+        while (true) {
+            if (expression instanceof TransposeExpression t) {
+                transposed = !transposed;
+                expression = t.matrix();
+            } else if (expression instanceof ScaledMatrix s) {
+                scale *= s.scalarExpression().evaluate(bindings);
+                expression = s.matrixExpression();
+            } else {
+                return new FusedOperand(scale, transposed, expression.evaluate(bindings));
+            }
+        }
+    }
+
+    static FusedOperand of(VectorExpression expression, Model.ParameterBindings bindings) {
+        double scale = 1.0;
+        while (expression instanceof ScaledVector s) {
+            scale *= s.scalarExpression().evaluate(bindings);
+            expression = s.vectorExpression();
+        }
+
+        return new FusedOperand(scale, false, expression.evaluate(bindings));
+    }
+
+    boolean dense() {
+        return value instanceof DMatrixRMaj;
+    }
+
+    /**
+     * @return The value of the whole operand, with its transpose and scaling applied.
+     */
+    DMatrix materialize(Model.ParameterBindings bindings) {
+        DMatrix retVal = value;
+        if (transposed) {
+            retVal = new TransposeExpression(new DMatrixExpression(retVal)).evaluate(bindings);
+        }
+        if (scale != 1.0) {
+            retVal = new ScaledMatrix(scale, new DMatrixExpression(retVal)).evaluate(bindings);
+        }
+
+        return retVal;
+    }
+
+    /**
+     * @return The product of the two operands, computed with a single backend call if both are dense.
+     */
+    static DMatrix product(FusedOperand left, FusedOperand right, Model.ParameterBindings bindings) {
+        if (left.dense() && right.dense()) {
+            final DMatrixRMaj retVal = new DMatrixRMaj(1, 1);
+            MatrixBackends.current().gemm(left.scale * right.scale, (DMatrixRMaj) left.value, left.transposed,
+                                          (DMatrixRMaj) right.value, right.transposed, 0.0, retVal);
+
+            return retVal;
+        } else {
+            return EJMLUtil.mult(left.materialize(bindings), right.materialize(bindings));
+        }
+    }
+
+    /**
+     * Adds the product of the two operands into {@code target}, without a temporary if both are dense.
+     */
+    static void addProduct(FusedOperand left, FusedOperand right, DMatrixRMaj target, Model.ParameterBindings bindings) {
+        if (left.dense() && right.dense()) {
+            MatrixBackends.current().gemm(left.scale * right.scale, (DMatrixRMaj) left.value, left.transposed,
+                                          (DMatrixRMaj) right.value, right.transposed, 1.0, target);
+        } else {
+            MatrixSum.addTo(EJMLUtil.mult(left.materialize(bindings), right.materialize(bindings)), target);
+        }
+    }
+
+    /**
+     * Adds this operand into {@code target}, without a temporary if it is dense.
+     */
+    void addTo(DMatrixRMaj target, Model.ParameterBindings bindings) {
+        if (value instanceof DMatrixRMaj m) {
+            final int rows = transposed ? m.numCols : m.numRows;
+            final int cols = transposed ? m.numRows : m.numCols;
+            if (rows != target.numRows || cols != target.numCols) {
+                throw new IllegalArgumentException(String.format("Cannot add (%dx%d) matrix into (%dx%d) matrix",
+                                                                 rows, cols, target.numRows, target.numCols));
+            }
+            if (!transposed || rows == 1 || cols == 1) {
+                // a transposed vector has the same layout as the vector
+                for (int i = 0; i < target.getNumElements(); i++) {
+                    target.data[i] += scale * m.data[i];
+                }
+            } else {
+                for (int row = 0, offset = 0; row < rows; row++, offset += cols) {
+                    for (int col = 0; col < cols; col++) {
+                        target.data[offset + col] += scale * m.data[col * rows + row];
+                    }
+                }
+            }
+        } else {
+            MatrixSum.addTo(materialize(bindings), target);
+        }
+    }
+}
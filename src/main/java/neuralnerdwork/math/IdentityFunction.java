@@ -6,6 +6,8 @@ import neuralnerdwork.weight.VariableWeightInitializer;
 import java.util.Random;
 
 public class IdentityFunction implements ActivationFunction {
+    private final SingleVariableFunction derivative = new IdentityDerivative();
+
     @Override
     public String getFunctionName() {
         return "identity";
@@ -18,7 +20,39 @@ public class IdentityFunction implements ActivationFunction {
 
     @Override
     public SingleVariableFunction differentiateByInput() {
-        return new IdentityDerivative();
+        return derivative;
+    }
+
+    @Override
+    public void applyTo(double[] in, double[] out, int length) {
+        if (in != out) {
+            System.arraycopy(in, 0, out, 0, length);
+        }
+    }
+
+    @Override
+    public void multiplyByDerivative(double[] in, double[] gradients, double[] out, int length) {
+        if (gradients != out) {
+            System.arraycopy(gradients, 0, out, 0, length);
+        }
+    }
+
+    @Override
+    public void addBiasAndApply(double[] sums, double[] bias, int rows, int rowLength, double[] out) {
+        for (int row = 0, offset = 0; row < rows; row++, offset += rowLength) {
+            final double rowBias = bias[row];
+            for (int i = offset; i < offset + rowLength; i++) {
+                sums[i] += rowBias;
+            }
+        }
+        if (sums != out) {
+            System.arraycopy(sums, 0, out, 0, rows * rowLength);
+        }
+    }
+
+    @Override
+    public boolean isNonDecreasing() {
+        return true;
     }
 
     private class IdentityDerivative implements SingleVariableFunction {
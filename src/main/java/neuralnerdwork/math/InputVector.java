@@ -0,0 +1,47 @@
+package neuralnerdwork.math;
+
+import org.ejml.data.DMatrix;
+import org.ejml.data.DMatrixSparseCSC;
+
+/**
+ * A placeholder for input data (e.g. a training sample), whose value is bound per evaluation through
+ * {@link Model.ParameterBindings#withInputs(Model.InputBindings)} instead of being built into the expression.
+ * Inputs are not parameters, so all derivatives are zero.
+ */
+public record InputVector(int index, int length) implements VectorExpression {
+    @Override
+    public boolean columnVector() {
+        return true;
+    }
+
+    @Override
+    public DMatrix evaluate(Model.ParameterBindings bindings) {
+        final DMatrix value = bindings.inputs().get(this);
+        if (value.getNumCols() != 1) {
+            throw new IllegalArgumentException(String.format("input %d is bound to a (%dx%d) matrix, not a column vector",
+                                                             index, value.getNumRows(), value.getNumCols()));
+        }
+
+        return value;
+    }
+
+    @Override
+    public DMatrix computePartialDerivative(Model.ParameterBindings bindings, int variable) {
+        return new DMatrixSparseCSC(length, 1, 0);
+    }
+
+    @Override
+    public DMatrix computeDerivative(Model.ParameterBindings bindings) {
+        return new DMatrixSparseCSC(length, bindings.size(), 0);
+    }
+
+    @Override
+    public DMatrix computeVectorJacobianProduct(Model.ParameterBindings bindings, DMatrix outputGradient) {
+        return new DMatrixSparseCSC(1, bindings.size(), 0);
+    }
+
+    @Override
+    public boolean isZero() {
+        return false;
+    }
+}
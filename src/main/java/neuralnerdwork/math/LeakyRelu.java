@@ -7,9 +7,15 @@ import neuralnerdwork.backprop.Layer;
 public class LeakyRelu implements ActivationFunction {
 
     private final double alpha;
+    private final SingleVariableFunction derivative;
 
     public LeakyRelu(double alpha) {
         this.alpha = alpha;
+        this.derivative = new ReluDerivative();
+    }
+
+    public double alpha() {
+        return alpha;
     }
 
     @Override
@@ -28,7 +34,42 @@ public class LeakyRelu implements ActivationFunction {
 
     @Override
     public SingleVariableFunction differentiateByInput() {
-        return new ReluDerivative();
+        return derivative;
+    }
+
+    @Override
+    public void applyTo(double[] in, double[] out, int length) {
+        // max(x, 0) + alpha * min(x, 0) is branch free
+        for (int i = 0; i < length; i++) {
+            final double x = in[i];
+            out[i] = Math.max(x, 0.0) + alpha * Math.min(x, 0.0);
+        }
+    }
+
+    @Override
+    public void multiplyByDerivative(double[] in, double[] gradients, double[] out, int length) {
+        // alpha + (1 - alpha) * step(x), where 1 - signum(max(-x, 0)) is a branch free step that is zero only for negative x
+        for (int i = 0; i < length; i++) {
+            final double step = 1.0 - Math.signum(Math.max(-in[i], 0.0));
+            out[i] = gradients[i] * (alpha + (1.0 - alpha) * step);
+        }
+    }
+
+    @Override
+    public void addBiasAndApply(double[] sums, double[] bias, int rows, int rowLength, double[] out) {
+        for (int row = 0, offset = 0; row < rows; row++, offset += rowLength) {
+            final double rowBias = bias[row];
+            for (int i = offset; i < offset + rowLength; i++) {
+                final double x = sums[i] + rowBias;
+                sums[i] = x;
+                out[i] = Math.max(x, 0.0) + alpha * Math.min(x, 0.0);
+            }
+        }
+    }
+
+    @Override
+    public boolean isNonDecreasing() {
+        return alpha >= 0.0;
     }
 
     private class ReluDerivative implements SingleVariableFunction {
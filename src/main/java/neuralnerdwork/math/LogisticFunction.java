@@ -5,6 +5,24 @@ import java.util.Random;
 import neuralnerdwork.backprop.Layer;
 
 public class LogisticFunction implements ActivationFunction {
+    private static final SingleVariableFunction DERIVATIVE = new SingleVariableFunction() {
+        @Override
+        public String getFunctionName() {
+            return "logistic derivative";
+        }
+
+        @Override
+        public double apply(double input) {
+            double logistic = logistic(input);
+            return logistic * (1 - logistic);
+        }
+
+        @Override
+        public SingleVariableFunction differentiateByInput() {
+            throw new UnsupportedOperationException("Not implemented");
+        }
+    };
+
     @Override
     public String getFunctionName() {
         return "logistic";
@@ -26,23 +44,43 @@ public class LogisticFunction implements ActivationFunction {
 
     @Override
     public SingleVariableFunction differentiateByInput() {
-        return new SingleVariableFunction() {
-            @Override
-            public String getFunctionName() {
-                return "logistic derivative";
-            }
+        return DERIVATIVE;
+    }
 
-            @Override
-            public double apply(double input) {
-                double logistic = logistic(input);
-                return logistic * (1 - logistic);
-            }
+    /*
+     In the bulk methods, 1 / (1 + exp(-x)) is left to evaluate to 0 when exp(-x) overflows, rather than
+     branching on it as apply does.
+     */
+    @Override
+    public void applyTo(double[] in, double[] out, int length) {
+        for (int i = 0; i < length; i++) {
+            out[i] = 1.0 / (1.0 + Math.exp(-in[i]));
+        }
+    }
+
+    @Override
+    public void multiplyByDerivative(double[] in, double[] gradients, double[] out, int length) {
+        for (int i = 0; i < length; i++) {
+            final double logistic = 1.0 / (1.0 + Math.exp(-in[i]));
+            out[i] = gradients[i] * (logistic * (1.0 - logistic));
+        }
+    }
 
-            @Override
-            public SingleVariableFunction differentiateByInput() {
-                throw new UnsupportedOperationException("Not implemented");
+    @Override
+    public void addBiasAndApply(double[] sums, double[] bias, int rows, int rowLength, double[] out) {
+        for (int row = 0, offset = 0; row < rows; row++, offset += rowLength) {
+            final double rowBias = bias[row];
+            for (int i = offset; i < offset + rowLength; i++) {
+                final double x = sums[i] + rowBias;
+                sums[i] = x;
+                out[i] = 1.0 / (1.0 + Math.exp(-x));
             }
-        };
+        }
+    }
+
+    @Override
+    public boolean isNonDecreasing() {
+        return true;
     }
 
     @Override
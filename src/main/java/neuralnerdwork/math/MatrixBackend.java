@@ -0,0 +1,60 @@
+package neuralnerdwork.math;
+
+import org.ejml.data.DMatrixRMaj;
+
+/**
+ * Dense matrix kernels used for the matrix products of expressions and layers. The backend that is used is chosen with
+ * {@link MatrixBackends#use(MatrixBackend)}, or at startup with the {@value MatrixBackends#PROPERTY} system property.
+ *
+ * Additional backends can be provided through {@link java.util.ServiceLoader}, and are then selectable by {@link #name()}.
+ */
+public interface MatrixBackend {
+    String name();
+
+    /**
+     * Computes {@code c = alpha * op(a) * op(b) + beta * c}, where {@code op} transposes its argument if the corresponding
+     * flag is set. If {@code beta} is zero, {@code c} is reshaped as needed and its previous values are ignored. Otherwise,
+     * it must already have the shape of the product.
+     *
+     * {@code c} must not be the same matrix as {@code a} or {@code b}.
+     */
+    void gemm(double alpha, DMatrixRMaj a, boolean transposeA, DMatrixRMaj b, boolean transposeB, double beta, DMatrixRMaj c);
+
+    /**
+     * Computes {@code c = a + b}. {@code c} may be the same matrix as {@code a} or {@code b}.
+     */
+    void add(DMatrixRMaj a, DMatrixRMaj b, DMatrixRMaj c);
+
+    /**
+     * Computes {@code c = alpha * a}. {@code c} may be the same matrix as {@code a}.
+     */
+    void scale(double alpha, DMatrixRMaj a, DMatrixRMaj c);
+
+    /**
+     * {@code c = a * b}
+     */
+    default void mult(DMatrixRMaj a, DMatrixRMaj b, DMatrixRMaj c) {
+        gemm(1.0, a, false, b, false, 0.0, c);
+    }
+
+    /**
+     * {@code c = c + a * b}
+     */
+    default void multAdd(DMatrixRMaj a, DMatrixRMaj b, DMatrixRMaj c) {
+        gemm(1.0, a, false, b, false, 1.0, c);
+    }
+
+    /**
+     * {@code c = a^T * b}
+     */
+    default void multTransA(DMatrixRMaj a, DMatrixRMaj b, DMatrixRMaj c) {
+        gemm(1.0, a, true, b, false, 0.0, c);
+    }
+
+    /**
+     * {@code c = a * b^T}
+     */
+    default void multTransB(DMatrixRMaj a, DMatrixRMaj b, DMatrixRMaj c) {
+        gemm(1.0, a, false, b, true, 0.0, c);
+    }
+}
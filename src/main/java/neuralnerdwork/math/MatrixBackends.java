@@ -0,0 +1,72 @@
+package neuralnerdwork.math;
+
+import java.util.ServiceLoader;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Selects the {@link MatrixBackend} used for dense matrix products. The built in backends are:
+ * <ul>
+ *     <li>{@code ejml}, the single threaded EJML kernels (the default)</li>
+ *     <li>{@code java}, single threaded, cache blocked Java kernels</li>
+ *     <li>{@code parallel}, the same blocked kernels, with the rows of large products split across the common {@link ForkJoinPool}</li>
+ * </ul>
+ */
+public final class MatrixBackends {
+    public static final String PROPERTY = "neuralnerdwork.matrixBackend";
+
+    private static final MatrixBackend EJML = new EjmlMatrixBackend();
+    private static final MatrixBackend JAVA = new BlockedMatrixBackend();
+    private static final MatrixBackend PARALLEL = new ParallelMatrixBackend(ForkJoinPool.commonPool());
+
+    private static volatile MatrixBackend current = named(System.getProperty(PROPERTY, EJML.name()));
+
+    private MatrixBackends() {}
+
+    public static MatrixBackend current() {
+        return current;
+    }
+
+    public static void use(MatrixBackend backend) {
+        if (backend == null) {
+            throw new IllegalArgumentException("backend must not be null");
+        }
+        current = backend;
+    }
+
+    public static MatrixBackend ejml() {
+        return EJML;
+    }
+
+    public static MatrixBackend java() {
+        return JAVA;
+    }
+
+    public static MatrixBackend parallel() {
+        return PARALLEL;
+    }
+
+    /**
+     * @return A backend that splits large products across the threads of the given pool.
+     */
+    public static MatrixBackend parallel(ForkJoinPool pool) {
+        return new ParallelMatrixBackend(pool);
+    }
+
+    /**
+     * @return The built in backend or {@link ServiceLoader} provided backend with the given name.
+     */
+    public static MatrixBackend named(String name) {
+        for (MatrixBackend backend : new MatrixBackend[]{EJML, JAVA, PARALLEL}) {
+            if (backend.name().equals(name)) {
+                return backend;
+            }
+        }
+        for (MatrixBackend backend : ServiceLoader.load(MatrixBackend.class)) {
+            if (backend.name().equals(name)) {
+                return backend;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown matrix backend " + name);
+    }
+}
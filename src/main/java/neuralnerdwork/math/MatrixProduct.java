@@ -42,10 +42,8 @@ public record MatrixProduct(MatrixExpression left, MatrixExpression right) imple
 
     @Override
     public DMatrix evaluate(Model.ParameterBindings bindings) {
-        final DMatrix leftMatrix = left.evaluate(bindings);
-        final DMatrix rightMatrix = right.evaluate(bindings);
-
-        return EJMLUtil.mult(leftMatrix, rightMatrix);
+        // Transposed or scaled operands are passed to the backend as flags and a scale factor, rather than materialized
+        return FusedOperand.product(FusedOperand.of(left, bindings), FusedOperand.of(right, bindings), bindings);
     }
 
     @Override
@@ -56,24 +56,41 @@ public record MatrixSum(MatrixExpression... expressions) implements MatrixExpres
     @Override
     public DMatrix evaluate(Model.ParameterBindings bindings) {
         DMatrixRMaj retVal = new DMatrixRMaj(rows(), cols());
-        for (int i = 0; i < expressions.length; i++) {
-            DMatrix evaluated = expressions[i].evaluate(bindings);
-            if (evaluated instanceof DMatrixRMaj m) {
-                CommonOps_DDRM.add(retVal, m, retVal);
-            } else if (evaluated instanceof DMatrixSparseCSC m) {
-                Iterator<DMatrixSparse.CoordinateRealValue> coords = m.createCoordinateIterator();
-                while (coords.hasNext()) {
-                    DMatrixSparse.CoordinateRealValue coord = coords.next();
-                    retVal.add(coord.row, coord.col, coord.value);
-                }
+        for (MatrixExpression expression : expressions) {
+            // Products, transposes and scalings are accumulated straight into the sum, rather than materialized first
+            if (expression instanceof MatrixProduct p) {
+                FusedOperand.addProduct(FusedOperand.of(p.left(), bindings), FusedOperand.of(p.right(), bindings), retVal, bindings);
+            } else if (expression instanceof TransposeExpression || expression instanceof ScaledMatrix) {
+                FusedOperand.of(expression, bindings).addTo(retVal, bindings);
             } else {
-                throw new UnsupportedOperationException("Cannot add matrix of type " + evaluated.getClass());
+                addTo(expression.evaluate(bindings), retVal);
             }
         }
 
         return retVal;
     }
 
+    /**
+     * Adds a matrix of any supported type into a dense matrix of the same size.
+     */
+    static void addTo(DMatrix evaluated, DMatrixRMaj target) {
+        if (evaluated instanceof DMatrixRMaj m) {
+            CommonOps_DDRM.add(target, m, target);
+        } else if (evaluated instanceof DMatrixSparseCSC m) {
+            Iterator<DMatrixSparse.CoordinateRealValue> coords = m.createCoordinateIterator();
+            while (coords.hasNext()) {
+                DMatrixSparse.CoordinateRealValue coord = coords.next();
+                target.add(coord.row, coord.col, coord.value);
+            }
+        } else if (evaluated instanceof DiagonalMatrix m) {
+            for (int j = 0; j < m.getNumRows(); j++) {
+                target.add(j, j, m.diagonal()[j]);
+            }
+        } else {
+            throw new UnsupportedOperationException("Cannot add matrix of type " + evaluated.getClass());
+        }
+    }
+
     @Override
     public DMatrix computePartialDerivative(Model.ParameterBindings bindings, int variable) {
         return MatrixSum.sum(
@@ -41,10 +41,7 @@ public record MatrixVectorProduct(MatrixExpression left, VectorExpression right)
 
     @Override
     public DMatrix evaluate(Model.ParameterBindings bindings) {
-        final DMatrix leftValue = this.left.evaluate(bindings);
-        final DMatrix rightValue = this.right.evaluate(bindings);
-
-        return EJMLUtil.mult(leftValue, rightValue);
+        return FusedOperand.product(FusedOperand.of(left, bindings), FusedOperand.of(right, bindings), bindings);
     }
 
     @Override
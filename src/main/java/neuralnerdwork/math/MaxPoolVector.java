@@ -17,8 +17,9 @@ public record MaxPoolVector(VectorExpression input,
                                                              inputHeight,
                                                              inputWidth * inputHeight));
         }
-        if (inputWidth % filterWidth != 0 || inputHeight % filterHeight != 0) {
-            throw new IllegalArgumentException(String.format("filter dimensions %dx%d must divide input dimensions %dx%d",
+        // Windows don't overlap, and any trailing rows or columns that don't fill a whole window are left out
+        if (filterWidth < 1 || filterHeight < 1 || filterWidth > inputWidth || filterHeight > inputHeight) {
+            throw new IllegalArgumentException(String.format("filter dimensions %dx%d must fit in input dimensions %dx%d",
                                                              filterWidth,
                                                              filterHeight,
                                                              inputWidth,
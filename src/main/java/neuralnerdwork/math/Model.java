@@ -1,10 +1,14 @@
 package neuralnerdwork.math;
 
-import java.util.Arrays;
+import org.ejml.data.DMatrix;
+import org.ejml.data.DMatrixRMaj;
+
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 
 public class Model {
     private int nextParameterIndex = 0;
+    private int nextInputIndex = 0;
 
     public ParameterMatrix createParameterMatrix(int rows, int cols) {
         final int start = nextParameterIndex;
@@ -24,6 +28,14 @@ public class Model {
         return new ScalarParameter(nextParameterIndex++);
     }
 
+    /**
+     * @param length The length of the input vector.
+     * @return A placeholder for input data, whose value is bound per evaluation with {@link InputBindings}.
+     */
+    public InputVector createInputVector(int length) {
+        return new InputVector(nextInputIndex++, length);
+    }
+
     public int size() {
         return nextParameterIndex;
     }
@@ -36,28 +48,148 @@ public class Model {
     }
 
     public ParameterBindings createBinder() {
-        return new ParameterBindings(0, nextParameterIndex);
+        return createBinder(Precision.DOUBLE);
+    }
+
+    /**
+     * @param precision The precision parameter values are stored with.
+     */
+    public ParameterBindings createBinder(Precision precision) {
+        return new ParameterBindings(0, ParameterStorage.allocate(precision, nextParameterIndex));
+    }
+
+    /**
+     * @param precision The precision parameter values are stored with.
+     * @return Bindings whose values are stored outside the Java heap, so they neither add to GC work nor get copied onto the heap.
+     */
+    public ParameterBindings createOffHeapBinder(Precision precision) {
+        return ParameterBindings.offHeap(precision, nextParameterIndex);
+    }
+
+    public InputBindings createInputBinder() {
+        return new InputBindings(nextInputIndex);
+    }
+
+    /**
+     * Values for {@link InputVector input placeholders}. A placeholder may be bound to a matrix with one column
+     * per sample, for expressions that evaluate a whole batch at once.
+     *
+     * Bound matrices may be refilled and bound again, so results computed from some input bindings are cached against
+     * both their identity and their {@link #generation()}.
+     */
+    public static class InputBindings {
+        private final DMatrix[] values;
+        private volatile long generation;
+
+        InputBindings(int size) {
+            values = new DMatrix[size];
+        }
+
+        public void put(InputVector input, DMatrix value) {
+            if (input.index() >= values.length) {
+                throw new IllegalArgumentException("invalid index for input " + input.index());
+            }
+            if (value.getNumRows() != input.length()) {
+                throw new IllegalArgumentException(String.format("Expected value with %d rows for input %d but found %d",
+                                                                 input.length(), input.index(), value.getNumRows()));
+            }
+            values[input.index()] = value;
+            generation++;
+        }
+
+        /**
+         * @return A number that changes whenever a value is bound, including when the same matrix is bound again after its
+         * contents have changed.
+         */
+        public long generation() {
+            return generation;
+        }
+
+        public void put(InputVector input, double[] value) {
+            put(input, new DMatrixRMaj(value.length, 1, true, value));
+        }
+
+        public DMatrix get(InputVector input) {
+            if (input.index() >= values.length || values[input.index()] == null) {
+                throw new IllegalArgumentException("no value bound for input " + input.index());
+            }
+            return values[input.index()];
+        }
     }
 
     public static class ParameterBindings {
+        private static final AtomicLong nextVersion = new AtomicLong(1);
+
         private final int start;
-        private final double[] values;
-        ParameterBindings(int start, int length) {
-            this.start = start;
-            values = new double[length];
+        private final ParameterStorage values;
+        private final InputBindings inputs;
+        // Shared with views from withInputs. Zero means the version must be refreshed because values changed.
+        private final AtomicLong version;
+        ParameterBindings(int start, ParameterStorage values) {
+            this(start, values, null, new AtomicLong());
         }
-        private ParameterBindings(int start, double[] values) {
+        /**
+         * @param length The number of parameters, which may be more than {@link Integer#MAX_VALUE}. Parameters past that
+         *               can only be accessed with the {@code long} overloads of {@link #get(long)} and {@link #put(long, double)}.
+         * @return Zero valued bindings, stored outside the Java heap, for keys starting at zero.
+         */
+        public static ParameterBindings offHeap(Precision precision, long length) {
+            return new ParameterBindings(0, new ParameterStorage.OffHeapStorage(precision, length));
+        }
+
+        private ParameterBindings(int start, ParameterStorage values, InputBindings inputs, AtomicLong version) {
             this.start = start;
             this.values = values;
+            this.inputs = inputs;
+            this.version = version;
+        }
+
+        /**
+         * @param inputs Values for input placeholders.
+         * @return A view of these bindings that shares parameter values with this one, but also has the given input values.
+         */
+        public ParameterBindings withInputs(InputBindings inputs) {
+            return new ParameterBindings(start, values, inputs, version);
+        }
+
+        /**
+         * @return A number that changes whenever a parameter value changes, and is never shared by bindings with different
+         * parameter values. It doesn't change with the {@link #inputs() inputs}, so results that depend on them must also be
+         * cached against their identity and {@link InputBindings#generation() generation}.
+         */
+        public long version() {
+            final long current = version.get();
+            if (current != 0) {
+                return current;
+            }
+            // Threads reading the version at once agree on whichever new version is set first
+            final long next = nextVersion.getAndIncrement();
+            final long witness = version.compareAndExchange(0, next);
+            return witness == 0 ? next : witness;
+        }
+
+        InputBindings inputsOrNull() {
+            return inputs;
+        }
+
+        public InputBindings inputs() {
+            if (inputs == null) {
+                throw new IllegalArgumentException("no inputs are bound");
+            }
+            return inputs;
         }
 
         public int size() {
-            return values.length;
+            return length();
+        }
+
+        public Precision precision() {
+            return values.precision();
         }
 
         public Iterable<Integer> variables() {
             return () -> Stream.iterate(start, n -> n + 1)
-                               .limit(values.length)
+                               .limit(values.length())
                                .mapToInt(n -> n)
                                .iterator();
         }
@@ -67,17 +199,62 @@ public class Model {
         }
 
         public int length() {
-            return values.length;
+            if (values.length() > Integer.MAX_VALUE) {
+                throw new UnsupportedOperationException("There are " + values.length() + " parameters; use longLength()");
+            }
+            return (int) values.length();
+        }
+
+        public long longLength() {
+            return values.length();
         }
 
         public double get(int key) {
-            return values[key - start];
+            return values.get(key - start);
+        }
+
+        public double get(long key) {
+            return values.get(key - start);
+        }
+
+        /**
+         * Copies {@code length} consecutive values, starting with the given key.
+         */
+        public void getDoubles(int key, double[] dst, int dstOffset, int length) {
+            if (key < start || (long) key + length > start + values.length()) {
+                throw new IllegalArgumentException("invalid range for keys " + key + " to " + (key + length));
+            }
+            values.getDoubles(key - start, dst, dstOffset, length);
+        }
+
+        /**
+         * Copies {@code length} consecutive values, rounded to single precision, starting with the given key.
+         * This is a plain array copy when {@link #precision()} is {@link Precision#SINGLE}.
+         */
+        public void getFloats(int key, float[] dst, int dstOffset, int length) {
+            if (key < start || (long) key + length > start + values.length()) {
+                throw new IllegalArgumentException("invalid range for keys " + key + " to " + (key + length));
+            }
+            values.getFloats(key - start, dst, dstOffset, length);
         }
 
         public double put(int key, Double value) {
-            if (key >= start && key < start + values.length) {
-                final Double prev = values[key - start];
-                values[key - start] = value;
+            if (key >= start && key < start + values.length()) {
+                final Double prev = values.get(key - start);
+                values.set(key - start, value);
+                version.set(0);
+
+                return prev;
+            } else {
+                throw new IllegalArgumentException("invalid index for key " + key);
+            }
+        }
+
+        public double put(long key, double value) {
+            if (key >= start && key < start + values.length()) {
+                final double prev = values.get(key - start);
+                values.set(key - start, value);
+                version.set(0);
 
                 return prev;
             } else {
@@ -85,11 +262,35 @@ public class Model {
             }
         }
 
+        /**
+         * @return A copy of these bindings that uses the same kind of storage. In particular, copies of off-heap bindings
+         * are also off-heap.
+         */
         public ParameterBindings copy() {
-            return new ParameterBindings(start, Arrays.copyOf(values, values.length));
+            return new ParameterBindings(start, values.copy(), inputs, new AtomicLong());
+        }
+
+        /**
+         * @return A copy of these bindings that stores parameter values with the given precision.
+         */
+        public ParameterBindings copy(Precision precision) {
+            return new ParameterBindings(start, ParameterStorage.convert(values, precision), inputs, new AtomicLong());
+        }
+
+        /**
+         * Adds {@code update[i]} to the i-th parameter (counting from {@link #start()}) of these bindings.
+         */
+        public void add(double[] update) {
+            if (update.length != longLength()) {
+                throw new IllegalArgumentException("Expected update of length " + values.length() + " but found " + update.length);
+            }
+            for (int i = 0; i < update.length; i++) {
+                values.set(i, values.get(i) + update[i]);
+            }
+            version.set(0);
         }
 		public ParameterVector allWeightsVector() {
-			return new ParameterVector(start, values.length);
+			return new ParameterVector(start, length());
 		}
     }
 }
@@ -0,0 +1,85 @@
+package neuralnerdwork.math;
+
+import org.ejml.data.DMatrixRMaj;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the {@link BlockedMatrixBackend} kernels with the rows of large products split across the threads of a pool.
+ * Each task writes a disjoint range of output rows, so no synchronization is needed between them.
+ */
+record ParallelMatrixBackend(ForkJoinPool pool) implements MatrixBackend {
+    // Products with fewer multiply-adds than this per task aren't worth forking
+    private static final long MIN_TASK_WORK = 1L << 16;
+
+    private static final MatrixBackend SERIAL = new BlockedMatrixBackend();
+
+    @Override
+    public String name() {
+        return "parallel";
+    }
+
+    @Override
+    public void gemm(double alpha, DMatrixRMaj a, boolean transposeA, DMatrixRMaj b, boolean transposeB, double beta, DMatrixRMaj c) {
+        BlockedMatrixBackend.prepareOutput(a, transposeA, b, transposeB, beta, c);
+        final long rowWork = (long) c.numCols * (transposeA ? a.numRows : a.numCols);
+        final int tasks = (int) Math.min(Math.min(pool.getParallelism(), c.numRows), rowWork * c.numRows / MIN_TASK_WORK);
+        if (tasks <= 1) {
+            BlockedMatrixBackend.gemmRows(alpha, a, transposeA, b, transposeB, beta, c, 0, c.numRows);
+        } else {
+            pool.invoke(new GemmTask(alpha, a, transposeA, b, transposeB, beta, c, 0, c.numRows, Math.max(1, c.numRows / tasks)));
+        }
+    }
+
+    @Override
+    public void add(DMatrixRMaj a, DMatrixRMaj b, DMatrixRMaj c) {
+        SERIAL.add(a, b, c);
+    }
+
+    @Override
+    public void scale(double alpha, DMatrixRMaj a, DMatrixRMaj c) {
+        SERIAL.scale(alpha, a, c);
+    }
+
+    private static class GemmTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final double alpha;
+        private final DMatrixRMaj a;
+        private final boolean transposeA;
+        private final DMatrixRMaj b;
+        private final boolean transposeB;
+        private final double beta;
+        private final DMatrixRMaj c;
+        private final int rowStart;
+        private final int rowEnd;
+        private final int rowsPerTask;
+
+        private GemmTask(double alpha, DMatrixRMaj a, boolean transposeA, DMatrixRMaj b, boolean transposeB, double beta, DMatrixRMaj c,
+                         int rowStart, int rowEnd, int rowsPerTask) {
+            this.alpha = alpha;
+            this.a = a;
+            this.transposeA = transposeA;
+            this.b = b;
+            this.transposeB = transposeB;
+            this.beta = beta;
+            this.c = c;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+            this.rowsPerTask = rowsPerTask;
+        }
+
+        @Override
+        protected void compute() {
+            if (rowEnd - rowStart <= rowsPerTask) {
+                BlockedMatrixBackend.gemmRows(alpha, a, transposeA, b, transposeB, beta, c, rowStart, rowEnd);
+                return;
+            }
+
+            final int mid = (rowStart + rowEnd) >>> 1;
+            invokeAll(new GemmTask(alpha, a, transposeA, b, transposeB, beta, c, rowStart, mid, rowsPerTask),
+                      new GemmTask(alpha, a, transposeA, b, transposeB, beta, c, mid, rowEnd, rowsPerTask));
+        }
+    }
+}
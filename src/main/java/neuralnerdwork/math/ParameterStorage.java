@@ -0,0 +1,227 @@
+package neuralnerdwork.math;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The values backing {@link Model.ParameterBindings}, indexed from zero.
+ */
+interface ParameterStorage {
+    long length();
+
+    double get(long index);
+
+    void set(long index, double value);
+
+    Precision precision();
+
+    ParameterStorage copy();
+
+    /**
+     * Copies values into {@code dst}.
+     */
+    default void getDoubles(long index, double[] dst, int dstOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] = get(index + i);
+        }
+    }
+
+    /**
+     * Copies values, rounded to single precision, into {@code dst}.
+     */
+    default void getFloats(long index, float[] dst, int dstOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] = (float) get(index + i);
+        }
+    }
+
+    static ParameterStorage allocate(Precision precision, int length) {
+        return switch (precision) {
+            case DOUBLE -> new DoubleStorage(new double[length]);
+            case SINGLE -> new FloatStorage(new float[length]);
+        };
+    }
+
+    static ParameterStorage convert(ParameterStorage storage, Precision precision) {
+        if (storage.precision() == precision) {
+            return storage.copy();
+        }
+        final ParameterStorage converted = storage instanceof OffHeapStorage ?
+                new OffHeapStorage(precision, storage.length()) :
+                allocate(precision, Math.toIntExact(storage.length()));
+        for (long i = 0; i < storage.length(); i++) {
+            converted.set(i, storage.get(i));
+        }
+
+        return converted;
+    }
+
+    final class DoubleStorage implements ParameterStorage {
+        private final double[] values;
+
+        DoubleStorage(double[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public long length() {
+            return values.length;
+        }
+
+        @Override
+        public double get(long index) {
+            return values[(int) index];
+        }
+
+        @Override
+        public void set(long index, double value) {
+            values[(int) index] = value;
+        }
+
+        @Override
+        public Precision precision() {
+            return Precision.DOUBLE;
+        }
+
+        @Override
+        public void getDoubles(long index, double[] dst, int dstOffset, int length) {
+            System.arraycopy(values, (int) index, dst, dstOffset, length);
+        }
+
+        @Override
+        public ParameterStorage copy() {
+            return new DoubleStorage(Arrays.copyOf(values, values.length));
+        }
+    }
+
+    final class FloatStorage implements ParameterStorage {
+        private final float[] values;
+
+        FloatStorage(float[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public long length() {
+            return values.length;
+        }
+
+        @Override
+        public double get(long index) {
+            return values[(int) index];
+        }
+
+        @Override
+        public void set(long index, double value) {
+            values[(int) index] = (float) value;
+        }
+
+        @Override
+        public Precision precision() {
+            return Precision.SINGLE;
+        }
+
+        @Override
+        public ParameterStorage copy() {
+            return new FloatStorage(Arrays.copyOf(values, values.length));
+        }
+
+        @Override
+        public void getFloats(long index, float[] dst, int dstOffset, int length) {
+            System.arraycopy(values, (int) index, dst, dstOffset, length);
+        }
+    }
+
+    /**
+     * Values held in direct buffers outside the Java heap, split into fixed size chunks so that there can be more than
+     * 2^31 of them. The native memory is released when the storage is garbage collected.
+     */
+    final class OffHeapStorage implements ParameterStorage {
+        // 2^24 values per chunk: 128MB of doubles or 64MB of floats
+        private static final int CHUNK_SHIFT = 24;
+        private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+        private final Precision precision;
+        private final long length;
+        private final ByteBuffer[] chunks;
+
+        OffHeapStorage(Precision precision, long length) {
+            if (length < 0) {
+                throw new IllegalArgumentException("length must not be negative but was " + length);
+            }
+            this.precision = precision;
+            this.length = length;
+            final long chunkCount = (length + CHUNK_MASK) >>> CHUNK_SHIFT;
+            this.chunks = new ByteBuffer[Math.toIntExact(chunkCount)];
+            for (int chunk = 0; chunk < chunks.length; chunk++) {
+                final long chunkLength = Math.min(CHUNK_MASK + 1, length - ((long) chunk << CHUNK_SHIFT));
+                // direct buffers are zeroed, like arrays
+                chunks[chunk] = ByteBuffer.allocateDirect((int) chunkLength * elementSize()).order(ByteOrder.nativeOrder());
+            }
+        }
+
+        private int elementSize() {
+            return precision == Precision.DOUBLE ? Double.BYTES : Float.BYTES;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public double get(long index) {
+            final ByteBuffer chunk = chunks[(int) (index >>> CHUNK_SHIFT)];
+            final int offset = (int) (index & CHUNK_MASK);
+            return precision == Precision.DOUBLE ?
+                    chunk.getDouble(offset * Double.BYTES) :
+                    chunk.getFloat(offset * Float.BYTES);
+        }
+
+        @Override
+        public void set(long index, double value) {
+            final ByteBuffer chunk = chunks[(int) (index >>> CHUNK_SHIFT)];
+            final int offset = (int) (index & CHUNK_MASK);
+            if (precision == Precision.DOUBLE) {
+                chunk.putDouble(offset * Double.BYTES, value);
+            } else {
+                chunk.putFloat(offset * Float.BYTES, (float) value);
+            }
+        }
+
+        @Override
+        public Precision precision() {
+            return precision;
+        }
+
+        @Override
+        public ParameterStorage copy() {
+            final OffHeapStorage copy = new OffHeapStorage(precision, length);
+            for (int chunk = 0; chunk < chunks.length; chunk++) {
+                // duplicates, so that positions aren't shared between threads
+                copy.chunks[chunk].duplicate().put(chunks[chunk].duplicate());
+            }
+
+            return copy;
+        }
+
+        @Override
+        public void getDoubles(long index, double[] dst, int dstOffset, int length) {
+            if (precision == Precision.DOUBLE && (index >>> CHUNK_SHIFT) == ((index + length - 1) >>> CHUNK_SHIFT)) {
+                chunks[(int) (index >>> CHUNK_SHIFT)].asDoubleBuffer().get((int) (index & CHUNK_MASK), dst, dstOffset, length);
+            } else {
+                ParameterStorage.super.getDoubles(index, dst, dstOffset, length);
+            }
+        }
+
+        @Override
+        public void getFloats(long index, float[] dst, int dstOffset, int length) {
+            if (precision == Precision.SINGLE && (index >>> CHUNK_SHIFT) == ((index + length - 1) >>> CHUNK_SHIFT)) {
+                chunks[(int) (index >>> CHUNK_SHIFT)].asFloatBuffer().get((int) (index & CHUNK_MASK), dst, dstOffset, length);
+            } else {
+                ParameterStorage.super.getFloats(index, dst, dstOffset, length);
+            }
+        }
+    }
+}
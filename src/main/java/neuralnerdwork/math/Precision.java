@@ -0,0 +1,15 @@
+package neuralnerdwork.math;
+
+/**
+ * The floating point precision used to store parameter values (and, where a layer supports it, to do the bulk of its arithmetic).
+ */
+public enum Precision {
+    /**
+     * 64-bit values. This is the default, and the reference that other precisions are checked against.
+     */
+    DOUBLE,
+    /**
+     * 32-bit values, which halve the memory footprint and bandwidth of parameters, at the cost of roughly 7 significant digits.
+     */
+    SINGLE
+}
@@ -5,6 +5,8 @@ import java.util.Random;
 import neuralnerdwork.backprop.Layer;
 
 public class ReluFunction implements ActivationFunction {
+    private final SingleVariableFunction derivative = new ReluDerivative();
+
     @Override
     public String getFunctionName() {
         return "relu";
@@ -17,7 +19,39 @@ public class ReluFunction implements ActivationFunction {
 
     @Override
     public SingleVariableFunction differentiateByInput() {
-        return new ReluDerivative();
+        return derivative;
+    }
+
+    @Override
+    public void applyTo(double[] in, double[] out, int length) {
+        for (int i = 0; i < length; i++) {
+            out[i] = Math.max(in[i], 0.0);
+        }
+    }
+
+    @Override
+    public void multiplyByDerivative(double[] in, double[] gradients, double[] out, int length) {
+        // 1 - signum(max(-x, 0)) is a branch free step, that is zero only for negative x
+        for (int i = 0; i < length; i++) {
+            out[i] = gradients[i] * (1.0 - Math.signum(Math.max(-in[i], 0.0)));
+        }
+    }
+
+    @Override
+    public void addBiasAndApply(double[] sums, double[] bias, int rows, int rowLength, double[] out) {
+        for (int row = 0, offset = 0; row < rows; row++, offset += rowLength) {
+            final double rowBias = bias[row];
+            for (int i = offset; i < offset + rowLength; i++) {
+                final double x = sums[i] + rowBias;
+                sums[i] = x;
+                out[i] = Math.max(x, 0.0);
+            }
+        }
+    }
+
+    @Override
+    public boolean isNonDecreasing() {
+        return true;
     }
 
     private class ReluDerivative implements SingleVariableFunction {
@@ -41,6 +41,13 @@ public record ScaledMatrix(ScalarExpression scalarExpression, MatrixExpression m
             CommonOps_DSCC.scale(value, m, retVal);
 
             return retVal;
+        } else if (matrix instanceof DiagonalMatrix m) {
+            final double[] diagonal = new double[m.getNumRows()];
+            for (int i = 0; i < diagonal.length; i++) {
+                diagonal[i] = value * m.diagonal()[i];
+            }
+
+            return new DiagonalMatrix(diagonal);
         } else {
             throw new UnsupportedOperationException("Can't scale matrix type " + matrix.getClass());
         }
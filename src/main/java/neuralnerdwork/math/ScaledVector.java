@@ -69,6 +69,24 @@ public record ScaledVector(ScalarExpression scalarExpression, VectorExpression v
         ).evaluate(bindings);
     }
 
+    @Override
+    public DMatrix computeVectorJacobianProduct(Model.ParameterBindings bindings, DMatrix outputGradient) {
+        // Product rule, multiplied through by the output gradient g
+        // g(sv)' = s(gv') + (g . v)s'
+        final DMatrix vector = vectorExpression.evaluate(bindings);
+        final double value = scalarExpression.evaluate(bindings);
+        final boolean columnVector = columnVector();
+        double gradientDotVector = 0.0;
+        for (int i = 0; i < length(); i++) {
+            gradientDotVector += outputGradient.get(0, i) * (columnVector ? vector.get(i, 0) : vector.get(0, i));
+        }
+
+        return MatrixSum.sum(
+                new ScaledMatrix(value, new DMatrixExpression(vectorExpression.computeVectorJacobianProduct(bindings, outputGradient))),
+                new ScaledMatrix(gradientDotVector, new DMatrixExpression(scalarExpression.computeDerivative(bindings)))
+        ).evaluate(bindings);
+    }
+
     @Override
     public DMatrix computePartialDerivative(Model.ParameterBindings bindings, int variable) {
         return VectorSum.sum(
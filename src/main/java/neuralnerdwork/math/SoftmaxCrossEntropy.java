@@ -0,0 +1,146 @@
+package neuralnerdwork.math;
+
+import org.ejml.data.DMatrix;
+import org.ejml.data.DMatrixRMaj;
+
+/**
+ * The cross-entropy of target probabilities with the softmax of some logits, {@code -sum_k y_k log(softmax(z)_k)}, computed
+ * from the logits in a single step. Since {@code log(softmax(z)_k) = z_k - logsumexp(z)}, no probability is ever taken the
+ * logarithm of, so the loss stays finite when a probability underflows. The gradient with respect to the logits is
+ * {@code p - y} (for targets that sum to one), so back-propagation starts from the logits rather than from the softmax.
+ */
+public record SoftmaxCrossEntropy(VectorExpression logits, VectorExpression target) implements ScalarExpression {
+    public SoftmaxCrossEntropy {
+        if (logits.length() != target.length()) {
+            throw new IllegalArgumentException(String.format("logits length [%d] does not match target length [%d]",
+                                                             logits.length(), target.length()));
+        }
+    }
+
+    @Override
+    public double evaluate(Model.ParameterBindings bindings) {
+        return crossEntropy(column(logits.evaluate(bindings)), target.evaluate(bindings), null);
+    }
+
+    @Override
+    public DMatrix computeDerivative(Model.ParameterBindings bindings) {
+        final DMatrixRMaj gradient = new DMatrixRMaj(logits.length(), 1);
+        crossEntropy(column(logits.evaluate(bindings)), target.evaluate(bindings), gradient);
+
+        // A column vector has the same layout as a row vector
+        return logits.computeVectorJacobianProduct(bindings, DMatrixRMaj.wrap(1, gradient.getNumRows(), gradient.data));
+    }
+
+    @Override
+    public double computePartialDerivative(Model.ParameterBindings bindings, int variable) {
+        final DMatrixRMaj gradient = new DMatrixRMaj(logits.length(), 1);
+        crossEntropy(column(logits.evaluate(bindings)), target.evaluate(bindings), gradient);
+        final DMatrix logitsDerivative = logits.computePartialDerivative(bindings, variable);
+
+        double accum = 0.0;
+        for (int i = 0; i < gradient.getNumRows(); i++) {
+            accum += gradient.data[i] * logitsDerivative.get(i, 0);
+        }
+
+        return accum;
+    }
+
+    @Override
+    public boolean isZero() {
+        return false;
+    }
+
+    /**
+     * Sets each column of {@code probabilities} to the softmax of the same column of {@code logits}. The largest logit of
+     * each column is subtracted before exponentiating, so that no exponential overflows.
+     */
+    public static void softmax(DMatrixRMaj logits, DMatrixRMaj probabilities) {
+        final int rows = logits.getNumRows();
+        final int cols = logits.getNumCols();
+        final double[] logSums = logSumExp(logits);
+        for (int row = 0, offset = 0; row < rows; row++, offset += cols) {
+            for (int col = 0; col < cols; col++) {
+                probabilities.data[offset + col] = Math.exp(logits.data[offset + col] - logSums[col]);
+            }
+        }
+    }
+
+    /**
+     * Computes the loss and its gradient together, for a batch with one column per sample.
+     *
+     * @param targets Target probabilities, with the same shape as {@code logits}.
+     * @param gradients If not null, set to the gradient of the loss with respect to each logit, which is
+     *                  {@code softmax(z)_k * sum_j y_j - y_k} for each column.
+     * @return The cross-entropy, summed over the columns.
+     */
+    public static double crossEntropy(DMatrixRMaj logits, DMatrix targets, DMatrixRMaj gradients) {
+        final int rows = logits.getNumRows();
+        final int cols = logits.getNumCols();
+        if (targets.getNumRows() != rows || targets.getNumCols() != cols) {
+            throw new IllegalArgumentException(String.format("Expected (%dx%d) targets but found (%dx%d)",
+                                                             rows, cols, targets.getNumRows(), targets.getNumCols()));
+        }
+
+        // -sum_k y_k (z_k - logsumexp(z)) = sum_k y_k (logsumexp(z) - z_k)
+        final double[] logSums = logSumExp(logits);
+        final double[] targetSums = new double[cols];
+        double loss = 0.0;
+        for (int row = 0, offset = 0; row < rows; row++, offset += cols) {
+            for (int col = 0; col < cols; col++) {
+                final double target = targets.get(row, col);
+                loss += target * (logSums[col] - logits.data[offset + col]);
+                targetSums[col] += target;
+            }
+        }
+
+        if (gradients != null) {
+            gradients.reshape(rows, cols);
+            for (int row = 0, offset = 0; row < rows; row++, offset += cols) {
+                for (int col = 0; col < cols; col++) {
+                    gradients.data[offset + col] = Math.exp(logits.data[offset + col] - logSums[col]) * targetSums[col]
+                            - targets.get(row, col);
+                }
+            }
+        }
+
+        return loss;
+    }
+
+    /**
+     * @return For each column, {@code log(sum_k exp(z_k))}.
+     */
+    private static double[] logSumExp(DMatrixRMaj logits) {
+        final int rows = logits.getNumRows();
+        final int cols = logits.getNumCols();
+        final double[] max = new double[cols];
+        System.arraycopy(logits.data, 0, max, 0, cols);
+        for (int row = 1, offset = cols; row < rows; row++, offset += cols) {
+            for (int col = 0; col < cols; col++) {
+                max[col] = Math.max(max[col], logits.data[offset + col]);
+            }
+        }
+        final double[] sums = new double[cols];
+        for (int row = 0, offset = 0; row < rows; row++, offset += cols) {
+            for (int col = 0; col < cols; col++) {
+                sums[col] += Math.exp(logits.data[offset + col] - max[col]);
+            }
+        }
+        for (int col = 0; col < cols; col++) {
+            sums[col] = max[col] + Math.log(sums[col]);
+        }
+
+        return sums;
+    }
+
+    private static DMatrixRMaj column(DMatrix vector) {
+        if (vector instanceof DMatrixRMaj m && m.getNumCols() == 1) {
+            return m;
+        }
+        final DMatrixRMaj column = new DMatrixRMaj(vector.getNumRows(), 1);
+        for (int row = 0; row < column.getNumRows(); row++) {
+            column.data[row] = vector.get(row, 0);
+        }
+
+        return column;
+    }
+}
@@ -0,0 +1,101 @@
+package neuralnerdwork.math;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Hash-conses expressions for {@link ExpressionTape}: structurally identical subexpressions are replaced by a single
+ * shared instance, which the tape compiles to one instruction, so each distinct subexpression is evaluated (and
+ * differentiated) only once per pass no matter how many times parents use it.
+ *
+ * Expression types that aren't recognized are kept as they are, and shared only if they are equal.
+ */
+final class SubexpressionSharing {
+    private final Map<Object, Object> canonical = new HashMap<>();
+
+    private SubexpressionSharing() {}
+
+    static ScalarExpression canonicalize(ScalarExpression expression) {
+        return new SubexpressionSharing().scalar(expression);
+    }
+
+    private ScalarExpression scalar(ScalarExpression expression) {
+        if (expression instanceof ScalarSum s) {
+            final ScalarExpression[] children = Arrays.stream(s.expressions()).map(this::scalar).toArray(ScalarExpression[]::new);
+            return intern(List.of(ScalarSum.class, Arrays.asList(children)),
+                          () -> new ScalarSum(children));
+        } else if (expression instanceof ScalarConstantMultiple m) {
+            final ScalarExpression child = scalar(m.expression());
+            return intern(List.of(ScalarConstantMultiple.class, m.constant(), child),
+                          () -> new ScalarConstantMultiple(m.constant(), child));
+        } else if (expression instanceof ScalarProduct p) {
+            final ScalarExpression left = scalar(p.left());
+            final ScalarExpression right = scalar(p.right());
+            return intern(List.of(ScalarProduct.class, left, right),
+                          () -> new ScalarProduct(left, right));
+        } else if (expression instanceof DotProduct d) {
+            final VectorExpression left = vector(d.left());
+            final VectorExpression right = vector(d.right());
+            return intern(List.of(DotProduct.class, left, right),
+                          () -> new DotProduct(left, right));
+        } else if (expression instanceof SquareRoot r) {
+            final ScalarExpression child = scalar(r.expression());
+            return intern(List.of(SquareRoot.class, child),
+                          () -> new SquareRoot(child));
+        } else {
+            return intern(expression, () -> expression);
+        }
+    }
+
+    private VectorExpression vector(VectorExpression expression) {
+        if (expression instanceof VectorSum s) {
+            final VectorExpression[] children = Arrays.stream(s.expressions()).map(this::vector).toArray(VectorExpression[]::new);
+            return intern(List.of(VectorSum.class, Arrays.asList(children)),
+                          () -> new VectorSum(children));
+        } else if (expression instanceof ScaledVector s) {
+            final ScalarExpression scalar = scalar(s.scalarExpression());
+            final VectorExpression vector = vector(s.vectorExpression());
+            return intern(List.of(ScaledVector.class, scalar, vector),
+                          () -> new ScaledVector(scalar, vector));
+        } else if (expression instanceof ColumnVectorizedSingleVariableFunction f) {
+            final VectorExpression vector = vector(f.vectorExpression());
+            return intern(List.of(ColumnVectorizedSingleVariableFunction.class, functionKey(f.function()), vector),
+                          () -> new ColumnVectorizedSingleVariableFunction(f.function(), vector));
+        } else if (expression instanceof VectorComponentProduct p) {
+            final VectorExpression left = vector(p.left());
+            final VectorExpression right = vector(p.right());
+            return intern(List.of(VectorComponentProduct.class, left, right),
+                          () -> new VectorComponentProduct(left, right));
+        } else if (expression instanceof MatrixVectorProduct p) {
+            final VectorExpression right = vector(p.right());
+            return intern(List.of(MatrixVectorProduct.class, p.left(), right),
+                          () -> new MatrixVectorProduct(p.left(), right));
+        } else {
+            return intern(expression, () -> expression);
+        }
+    }
+
+    /**
+     * Functions don't implement equals, so stateless functions are identified by class, and anything else by identity.
+     */
+    private static Object functionKey(SingleVariableFunction function) {
+        if (function instanceof LeakyRelu r) {
+            return List.of(LeakyRelu.class, r.alpha());
+        } else if (function instanceof LogisticFunction
+                || function instanceof ReluFunction
+                || function instanceof IdentityFunction
+                || function instanceof SquaredSingleVariableFunction) {
+            return function.getClass();
+        } else {
+            return function;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T intern(Object key, Supplier<T> factory) {
+        return (T) canonical.computeIfAbsent(key, k -> factory.get());
+    }
+}
@@ -33,6 +33,8 @@ public record TransposeExpression(MatrixExpression matrix) implements MatrixExpr
             CommonOps_DSCC.transpose(m, transposed, null);
 
             return transposed;
+        } else if (evaluated instanceof DiagonalMatrix m) {
+            return m;
         } else {
             throw new UnsupportedOperationException("Can't transpose matrix of type " + evaluated.getClass());
         }
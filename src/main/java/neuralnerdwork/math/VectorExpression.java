@@ -35,4 +35,18 @@ public interface VectorExpression {
      * for this vector expression, with respect to the given variables (and order) at the given bindings.
      */
     DMatrix computeDerivative(Model.ParameterBindings bindings);
+
+    /**
+     * Computes the product of a row vector with the {@link #computeDerivative(Model.ParameterBindings) derivative matrix}
+     * of this expression (i.e. a vector-Jacobian product). Implementations should override this when they can propagate
+     * the given row vector backwards without materializing the full derivative matrix.
+     *
+     * @param bindings A mapping of variable indices to values, used for substitution in this expression.
+     * @param outputGradient A row vector with the same length as this expression (typically the gradient of some scalar
+     *                       with respect to the value of this expression).
+     * @return A row vector of length {@link Model.ParameterBindings#size()} equal to {@code outputGradient * computeDerivative(bindings)}.
+     */
+    default DMatrix computeVectorJacobianProduct(Model.ParameterBindings bindings, DMatrix outputGradient) {
+        return EJMLUtil.mult(outputGradient, computeDerivative(bindings));
+    }
 }
@@ -2,12 +2,9 @@ package neuralnerdwork.math;
 
 import org.ejml.data.DMatrix;
 import org.ejml.data.DMatrixRMaj;
-import org.ejml.data.DMatrixSparse;
 import org.ejml.data.DMatrixSparseCSC;
-import org.ejml.dense.row.CommonOps_DDRM;
 
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.stream.Collectors;
 
 public record VectorSum(VectorExpression... expressions) implements VectorExpression {
@@ -61,17 +58,13 @@ public record VectorSum(VectorExpression... expressions) implements VectorExpres
         boolean columnVector = columnVector();
         DMatrixRMaj accum = new DMatrixRMaj(columnVector ? length() : 1, columnVector ? 1 : length());
         for (var exp : expressions) {
-            DMatrix vector = exp.evaluate(bindings);
-            if (vector instanceof DMatrixRMaj v) {
-                CommonOps_DDRM.add(accum, v, accum);
-            } else if (vector instanceof DMatrixSparseCSC v) {
-                Iterator<DMatrixSparse.CoordinateRealValue> coords = v.createCoordinateIterator();
-                while (coords.hasNext()) {
-                    DMatrixSparse.CoordinateRealValue coord = coords.next();
-                    accum.add(coord.row, coord.col, coord.value);
-                }
+            // Matrix-vector products and scalings are accumulated straight into the sum, rather than materialized first
+            if (exp instanceof MatrixVectorProduct p && columnVector) {
+                FusedOperand.addProduct(FusedOperand.of(p.left(), bindings), FusedOperand.of(p.right(), bindings), accum, bindings);
+            } else if (exp instanceof ScaledVector s) {
+                FusedOperand.of(s, bindings).addTo(accum, bindings);
             } else {
-                throw new UnsupportedOperationException("Cannot sum vector type " + vector.getClass());
+                MatrixSum.addTo(exp.evaluate(bindings), accum);
             }
         }
 
@@ -87,6 +80,15 @@ public record VectorSum(VectorExpression... expressions) implements VectorExpres
                         .evaluate(bindings);
     }
 
+    @Override
+    public DMatrix computeVectorJacobianProduct(Model.ParameterBindings bindings, DMatrix outputGradient) {
+        return MatrixSum.sum(Arrays.stream(expressions)
+                                   .map(exp -> exp.computeVectorJacobianProduct(bindings, outputGradient))
+                                   .map(DMatrixExpression::new)
+                                   .toArray(MatrixExpression[]::new))
+                        .evaluate(bindings);
+    }
+
     @Override
     public DMatrix computePartialDerivative(Model.ParameterBindings bindings, int variable) {
         return VectorSum.sum(
@@ -1,20 +1,43 @@
 package neuralnerdwork;
 
+import net.jqwik.api.Example;
 import net.jqwik.api.ForAll;
 import net.jqwik.api.Property;
 import net.jqwik.api.ShrinkingMode;
 import net.jqwik.api.constraints.Size;
+import neuralnerdwork.backprop.AveragePoolLayer;
+import neuralnerdwork.backprop.BatchNormLayer;
+import neuralnerdwork.backprop.ConvolutionLayer;
 import neuralnerdwork.backprop.FeedForwardNetwork;
 import neuralnerdwork.backprop.FullyConnectedLayer;
+import neuralnerdwork.backprop.GlobalAveragePoolLayer;
+import neuralnerdwork.backprop.Layer;
+import neuralnerdwork.backprop.LayerWorkspace;
+import neuralnerdwork.backprop.MaxPoolLayer;
+import neuralnerdwork.backprop.PooledConvolutionLayer;
+import neuralnerdwork.backprop.SoftmaxLayer;
+import neuralnerdwork.descent.FixedLearningRateGradientUpdate;
+import neuralnerdwork.descent.ParallelGradientExecutor;
+import neuralnerdwork.descent.StochasticGradientDescent;
 import neuralnerdwork.math.*;
+import neuralnerdwork.weight.VariableWeightInitializer;
 import org.ejml.data.DMatrix;
 import org.ejml.data.DMatrixRMaj;
+import org.ejml.dense.row.CommonOps_DDRM;
 import org.ejml.dense.row.MatrixFeatures_DDRM;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class GradientDescentTest {
@@ -322,6 +345,1052 @@ public class GradientDescentTest {
         );
     }
 
+    private static final int vectorJacobianProductShouldMatchDerivativeProduct_rows = 3;
+    private static final int vectorJacobianProductShouldMatchDerivativeProduct_cols = 3;
+    private static final int vectorJacobianProductShouldMatchDerivativeProduct_layers = 5;
+    private static final int vectorJacobianProductShouldMatchDerivativeProduct_parameters =
+            vectorJacobianProductShouldMatchDerivativeProduct_rows
+                    * (vectorJacobianProductShouldMatchDerivativeProduct_cols + 1)
+                    * vectorJacobianProductShouldMatchDerivativeProduct_layers;
+    @Property(tries = 3, shrinking = ShrinkingMode.OFF)
+    void vectorJacobianProductShouldMatchDerivativeProduct(@ForAll @Size(value = vectorJacobianProductShouldMatchDerivativeProduct_parameters) @Weight double[] values,
+                                                           @ForAll @Size(value = vectorJacobianProductShouldMatchDerivativeProduct_cols) @TrainingInput double[] inputs,
+                                                           @ForAll @Size(value = vectorJacobianProductShouldMatchDerivativeProduct_rows) @Weight double[] outputGradient) {
+        final int rows = vectorJacobianProductShouldMatchDerivativeProduct_rows;
+        final int cols = vectorJacobianProductShouldMatchDerivativeProduct_cols;
+        final int numLayers = vectorJacobianProductShouldMatchDerivativeProduct_layers;
+
+        final Model builder = new Model();
+        final FullyConnectedLayer[] layers = new FullyConnectedLayer[numLayers];
+        for (int i = 0; i < numLayers; i++) {
+            ParameterMatrix weights = builder.createParameterMatrix(rows, cols);
+            ParameterVector bias = builder.createParameterVector(rows);
+            layers[i] = new FullyConnectedLayer(weights, Optional.of(bias), i < numLayers - 1 ? new LeakyRelu(0.01) : new LogisticFunction());
+        }
+        final FeedForwardNetwork.FeedForwardExpression network = new FeedForwardNetwork(layers).expression(new DMatrixRMaj(inputs));
+
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        {
+            int i = 0;
+            for (int var : parameterBindings.variables()) {
+                parameterBindings.put(var, values[i++]);
+            }
+        }
+
+        final DMatrixRMaj gradient = new DMatrixRMaj(1, rows, true, outputGradient);
+        final DMatrix expected = EJMLUtil.mult(gradient, network.computeDerivative(parameterBindings));
+        final DMatrix observed = network.computeVectorJacobianProduct(parameterBindings, gradient);
+
+        assertTrue(MatrixFeatures_DDRM.isEquals((DMatrixRMaj) expected, (DMatrixRMaj) observed, 1e-10), () ->
+                "expected:\n" + expected + "\n\nobserved:\n" + observed + "\n"
+        );
+    }
+
+    @Property(tries = 3, shrinking = ShrinkingMode.OFF)
+    void convolutionParameterGradientShouldMatchFiniteDifferences(@ForAll @Size(value = 2 * (2 * 3 + 1)) @Weight double[] values,
+                                                                  @ForAll @Size(value = 5 * 4) @TrainingInput double[] inputs,
+                                                                  @ForAll @Size(value = 2 * 4 * 2) @Weight double[] outputGradient) {
+        final Model builder = new Model();
+        final ConvolutionLayer.Convolution[] convolutions = new ConvolutionLayer.Convolution[2];
+        for (int i = 0; i < convolutions.length; i++) {
+            convolutions[i] = new ConvolutionLayer.Convolution(
+                    new ConvolutionFilterMatrix(builder.createParameterMatrix(2, 3), 5, 4),
+                    builder.createScalarParameter()
+            );
+        }
+        final ConvolutionLayer layer = new ConvolutionLayer(1, convolutions, new LogisticFunction());
+
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        {
+            int i = 0;
+            for (int var : parameterBindings.variables()) {
+                parameterBindings.put(var, values[i++]);
+            }
+        }
+
+        final DMatrixRMaj input = new DMatrixRMaj(inputs);
+        final DMatrixRMaj gradient = new DMatrixRMaj(1, layer.outputLength(), true, outputGradient);
+        final ConvolutionLayer.ConvolutionCache cache = layer.evaluate(input, parameterBindings).cache();
+        final DMatrix observed = layer.gradientWithRespectLayerParameters(input, gradient, cache, parameterBindings).output();
+
+        final int[] variables = layer.variables().toArray();
+        final double h = 1e-6;
+        assertEquals(variables.length, observed.getNumCols());
+        for (int i = 0; i < variables.length; i++) {
+            final double original = parameterBindings.get(variables[i]);
+            parameterBindings.put(variables[i], original + h);
+            final DMatrix above = layer.evaluate(input, parameterBindings).output();
+            parameterBindings.put(variables[i], original - h);
+            final DMatrix below = layer.evaluate(input, parameterBindings).output();
+            parameterBindings.put(variables[i], original);
+
+            double expected = 0.0;
+            for (int row = 0; row < above.getNumRows(); row++) {
+                expected += gradient.get(0, row) * (above.get(row, 0) - below.get(row, 0)) / (2 * h);
+            }
+            assertEquals(expected, observed.get(0, i), 1e-4, "Gradient differs for variable " + variables[i]);
+        }
+    }
+
+    @Property(tries = 3, shrinking = ShrinkingMode.OFF)
+    void convolutionInputDerivativeShouldMatchFiniteDifferences(@ForAll @Size(value = 2 * (2 * 3 + 1)) @Weight double[] values,
+                                                                @ForAll @Size(value = 2 * 5 * 4) @TrainingInput double[] inputs) {
+        final Model builder = new Model();
+        final ConvolutionLayer.Convolution[] convolutions = new ConvolutionLayer.Convolution[2];
+        for (int i = 0; i < convolutions.length; i++) {
+            convolutions[i] = new ConvolutionLayer.Convolution(
+                    new ConvolutionFilterMatrix(builder.createParameterMatrix(2, 3), 5, 4),
+                    builder.createScalarParameter()
+            );
+        }
+        final ConvolutionLayer layer = new ConvolutionLayer(2, convolutions, new LogisticFunction());
+
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        {
+            int i = 0;
+            for (int var : parameterBindings.variables()) {
+                parameterBindings.put(var, values[i++]);
+            }
+        }
+
+        final DMatrixRMaj input = new DMatrixRMaj(inputs);
+        final ConvolutionLayer.ConvolutionCache cache = layer.evaluate(input, parameterBindings).cache();
+        final DMatrix observed = layer.derivativeWithRespectToLayerInput(input, cache, parameterBindings).output();
+
+        final double h = 1e-6;
+        assertEquals(layer.outputLength(), observed.getNumRows());
+        assertEquals(layer.inputLength(), observed.getNumCols());
+        for (int col = 0; col < input.getNumRows(); col++) {
+            final double original = input.get(col, 0);
+            input.set(col, 0, original + h);
+            final DMatrix above = layer.evaluate(input, parameterBindings).output();
+            input.set(col, 0, original - h);
+            final DMatrix below = layer.evaluate(input, parameterBindings).output();
+            input.set(col, 0, original);
+
+            for (int row = 0; row < above.getNumRows(); row++) {
+                final double expected = (above.get(row, 0) - below.get(row, 0)) / (2 * h);
+                assertEquals(expected, observed.get(row, col), 1e-6, "Derivative differs at (" + row + ", " + col + ")");
+            }
+        }
+    }
+
+    @Property(tries = 5, shrinking = ShrinkingMode.OFF)
+    void stridedPaddedDilatedConvolutionShouldMatchDirectConvolutionAndFiniteDifferences(@ForAll @Size(value = 2 * (2 * 3 + 1)) @Weight double[] values,
+                                                                                          @ForAll @Size(value = 2 * 5 * 4) @TrainingInput double[] inputs,
+                                                                                          @ForAll @Size(value = 2 * 2 * 3 * 4) @Weight double[] outputGradients) {
+        // stride 2 down the rows, and padding 2 with dilation 2 across the columns, gives a 3x4 output for a 5x4 input
+        final ConvolutionGeometry geometry = new ConvolutionGeometry(2, 1, 1, 2, 1, 2);
+        final Model builder = new Model();
+        final ConvolutionLayer.Convolution[] convolutions = new ConvolutionLayer.Convolution[2];
+        for (int i = 0; i < convolutions.length; i++) {
+            convolutions[i] = new ConvolutionLayer.Convolution(
+                    new ConvolutionFilterMatrix(builder.createParameterMatrix(2, 3), 5, 4, geometry),
+                    builder.createScalarParameter()
+            );
+        }
+        final ConvolutionLayer layer = new ConvolutionLayer(2, convolutions, new LogisticFunction());
+        assertEquals(2 * 2 * 3 * 4, layer.outputLength());
+
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        {
+            int i = 0;
+            for (int var : parameterBindings.variables()) {
+                parameterBindings.put(var, values[i++]);
+            }
+        }
+
+        final DMatrixRMaj input = new DMatrixRMaj(inputs);
+        final DMatrix output = layer.evaluate(input, parameterBindings).output();
+        for (int convIndex = 0; convIndex < 2; convIndex++) {
+            for (int channel = 0; channel < 2; channel++) {
+                for (int outRow = 0; outRow < 3; outRow++) {
+                    for (int outCol = 0; outCol < 4; outCol++) {
+                        double sum = values[convIndex * 7 + 6];
+                        for (int r = 0; r < 2; r++) {
+                            for (int c = 0; c < 3; c++) {
+                                final int inRow = outRow * 2 - 1 + r;
+                                final int inCol = outCol - 2 + c * 2;
+                                if (inRow >= 0 && inRow < 5 && inCol >= 0 && inCol < 4) {
+                                    sum += values[convIndex * 7 + r * 3 + c] * inputs[channel * 20 + inRow * 4 + inCol];
+                                }
+                            }
+                        }
+                        final int row = (convIndex * 2 + channel) * 12 + outRow * 4 + outCol;
+                        assertEquals(1.0 / (1.0 + Math.exp(-sum)), output.get(row, 0), 1e-10, "Output differs at " + row);
+                    }
+                }
+            }
+        }
+
+        assertGradientsMatchFiniteDifferences(layer, parameterBindings, input, outputGradients);
+    }
+
+    @Property(tries = 5, shrinking = ShrinkingMode.OFF)
+    void groupedConvolutionShouldMatchDirectConvolutionAndFiniteDifferences(@ForAll @Size(value = 4 * (4 * 2 * 2 + 1)) @Weight double[] values,
+                                                                            @ForAll @Size(value = 4 * 3 * 3) @TrainingInput double[] inputs,
+                                                                            @ForAll @Size(value = 4 * 2 * 2) @Weight double[] outputGradients) {
+        // 4 input channels and 4 convolutions: 1 group gives standard convolutions, and 4 groups gives depthwise convolutions
+        for (int groups : new int[]{1, 2, 4}) {
+            final int channelsPerGroup = 4 / groups;
+            final Model builder = new Model();
+            final ConvolutionLayer.Convolution[] convolutions = new ConvolutionLayer.Convolution[4];
+            for (int i = 0; i < convolutions.length; i++) {
+                convolutions[i] = ConvolutionLayer.Convolution.create(builder, channelsPerGroup, 2, 2, 3, 3, ConvolutionGeometry.VALID);
+            }
+            final ConvolutionLayer layer = new ConvolutionLayer(4, convolutions, new LogisticFunction(), groups);
+            assertEquals(4 * 2 * 2, layer.outputLength());
+
+            final Model.ParameterBindings parameterBindings = builder.createBinder();
+            for (int i = 0; i < parameterBindings.size(); i++) {
+                parameterBindings.put(i, values[i]);
+            }
+
+            final DMatrixRMaj input = new DMatrixRMaj(inputs);
+            final DMatrix output = layer.evaluate(input, parameterBindings).output();
+            for (int convIndex = 0; convIndex < 4; convIndex++) {
+                final int parameterOffset = convIndex * (channelsPerGroup * 4 + 1);
+                final int firstChannel = (convIndex / (4 / groups)) * channelsPerGroup;
+                for (int target = 0; target < 4; target++) {
+                    double sum = values[parameterOffset + channelsPerGroup * 4];
+                    for (int filter = 0; filter < channelsPerGroup; filter++) {
+                        for (int r = 0; r < 2; r++) {
+                            for (int c = 0; c < 2; c++) {
+                                sum += values[parameterOffset + filter * 4 + r * 2 + c] *
+                                        inputs[(firstChannel + filter) * 9 + (target / 2 + r) * 3 + target % 2 + c];
+                            }
+                        }
+                    }
+                    final int row = convIndex * 4 + target;
+                    assertEquals(1.0 / (1.0 + Math.exp(-sum)), output.get(row, 0), 1e-10, groups + " groups output differs at " + row);
+                }
+            }
+
+            assertGradientsMatchFiniteDifferences(layer, parameterBindings, input, outputGradients);
+        }
+    }
+
+    @Property(tries = 3, shrinking = ShrinkingMode.OFF)
+    void fftConvolutionShouldMatchDirectConvolutionAndFiniteDifferences(@ForAll @Size(value = 2 * (2 * 7 * 7 + 1)) @Weight double[] values,
+                                                                        @ForAll @Size(value = 2 * 9 * 8) @TrainingInput double[] inputs,
+                                                                        @ForAll @Size(value = 2 * 9 * 8) @Weight double[] outputGradients) {
+        // 7x7 filters are at the default FFT threshold, and same padding keeps the 9x8 size
+        final ConvolutionGeometry geometry = ConvolutionGeometry.same(7, 7, 1, 1);
+        final Model builder = new Model();
+        final ConvolutionLayer.Convolution[] convolutions = new ConvolutionLayer.Convolution[2];
+        for (int i = 0; i < convolutions.length; i++) {
+            convolutions[i] = ConvolutionLayer.Convolution.create(builder, 2, 7, 7, 9, 8, geometry);
+        }
+        final ConvolutionLayer layer = ConvolutionLayer.standard(2, convolutions, new LogisticFunction());
+
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        for (int i = 0; i < parameterBindings.size(); i++) {
+            parameterBindings.put(i, values[i]);
+        }
+
+        final DMatrixRMaj input = new DMatrixRMaj(inputs);
+        final DMatrix output = layer.evaluate(input, parameterBindings).output();
+        for (int convIndex = 0; convIndex < 2; convIndex++) {
+            for (int target = 0; target < 9 * 8; target++) {
+                double sum = values[convIndex * 99 + 98];
+                for (int channel = 0; channel < 2; channel++) {
+                    for (int r = 0; r < 7; r++) {
+                        for (int c = 0; c < 7; c++) {
+                            final int inRow = target / 8 - 3 + r;
+                            final int inCol = target % 8 - 3 + c;
+                            if (inRow >= 0 && inRow < 9 && inCol >= 0 && inCol < 8) {
+                                sum += values[convIndex * 99 + channel * 49 + r * 7 + c] * inputs[channel * 72 + inRow * 8 + inCol];
+                            }
+                        }
+                    }
+                }
+                final int row = convIndex * 72 + target;
+                assertEquals(1.0 / (1.0 + Math.exp(-sum)), output.get(row, 0), 1e-10, "Output differs at " + row);
+            }
+        }
+
+        // a second sample in the batch must not change the first
+        final DMatrixRMaj batch = new DMatrixRMaj(input.getNumRows(), 2);
+        for (int i = 0; i < input.getNumRows(); i++) {
+            batch.set(i, 0, inputs[i]);
+            batch.set(i, 1, inputs[inputs.length - 1 - i]);
+        }
+        final DMatrix batchOutput = layer.evaluateBatch(batch, parameterBindings, new LayerWorkspace()).output();
+        for (int i = 0; i < output.getNumRows(); i++) {
+            assertEquals(output.get(i, 0), batchOutput.get(i, 0), 1e-10, "Batch output differs at " + i);
+        }
+
+        assertGradientsMatchFiniteDifferences(layer, parameterBindings, input, outputGradients);
+    }
+
+    @Property(tries = 5, shrinking = ShrinkingMode.OFF)
+    void overlappingMaxPoolShouldMatchWindowMaximaAndFiniteDifferences(@ForAll long seed,
+                                                                       @ForAll @Size(value = 2 * 2 * 3) @Weight double[] outputGradients) {
+        // Random inputs rather than generated ones, which can tie for a window's maximum where there is no gradient
+        final Random random = new Random(seed);
+        final double[] inputs = random.doubles(2 * 5 * 4, -1.0, 1.0).toArray();
+        // 3x2 windows, 2 apart horizontally and 1 apart vertically, give a 2x3 output for a 5x4 input
+        final MaxPoolLayer.Channel channel = new MaxPoolLayer.Channel(5, 4, 3, 2, 2, 1);
+        final MaxPoolLayer layer = new MaxPoolLayer(new MaxPoolLayer.Channel[]{channel, channel});
+        assertEquals(2 * 2 * 3, layer.outputLength());
+
+        final Model.ParameterBindings parameterBindings = new Model().createBinder();
+        final DMatrixRMaj input = new DMatrixRMaj(inputs);
+        final DMatrix output = layer.evaluate(input, parameterBindings).output();
+        for (int target = 0; target < layer.outputLength(); target++) {
+            final int channelOffset = (target / 6) * 20;
+            final int windowRow = (target % 6) / 2;
+            final int windowCol = (target % 6) % 2 * 2;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int r = 0; r < 2; r++) {
+                for (int c = 0; c < 3; c++) {
+                    max = Math.max(max, inputs[channelOffset + (windowRow + r) * 5 + windowCol + c]);
+                }
+            }
+            assertEquals(max, output.get(target, 0), 0.0, "Output differs at " + target);
+        }
+
+        assertGradientsMatchFiniteDifferences(layer, parameterBindings, input, outputGradients);
+    }
+
+    @Property(tries = 5, shrinking = ShrinkingMode.OFF)
+    void averagePoolsShouldMatchWindowMeansAndFiniteDifferences(@ForAll @Size(value = 2 * 5 * 4) @TrainingInput double[] inputs,
+                                                                @ForAll @Size(value = 2 * 2 * 3) @Weight double[] outputGradients) {
+        final MaxPoolLayer.Channel channel = new MaxPoolLayer.Channel(5, 4, 3, 2, 2, 1);
+        final AveragePoolLayer layer = new AveragePoolLayer(new MaxPoolLayer.Channel[]{channel, channel});
+        final Model.ParameterBindings parameterBindings = new Model().createBinder();
+        final DMatrixRMaj input = new DMatrixRMaj(inputs);
+        final DMatrix output = layer.evaluate(input, parameterBindings).output();
+        for (int target = 0; target < layer.outputLength(); target++) {
+            final int channelOffset = (target / 6) * 20;
+            final int windowRow = (target % 6) / 2;
+            final int windowCol = (target % 6) % 2 * 2;
+            double sum = 0.0;
+            for (int r = 0; r < 2; r++) {
+                for (int c = 0; c < 3; c++) {
+                    sum += inputs[channelOffset + (windowRow + r) * 5 + windowCol + c];
+                }
+            }
+            assertEquals(sum / 6, output.get(target, 0), 1e-12, "Output differs at " + target);
+        }
+        assertGradientsMatchFiniteDifferences(layer, parameterBindings, input, outputGradients);
+
+        final GlobalAveragePoolLayer global = new GlobalAveragePoolLayer(2, 20);
+        final DMatrix means = global.evaluate(input, parameterBindings).output();
+        for (int i = 0; i < 2; i++) {
+            assertEquals(Arrays.stream(inputs, i * 20, (i + 1) * 20).average().orElseThrow(), means.get(i, 0), 1e-12);
+        }
+        assertGradientsMatchFiniteDifferences(global, parameterBindings, input, Arrays.copyOf(outputGradients, 2));
+    }
+
+    @Property(tries = 5, shrinking = ShrinkingMode.OFF)
+    void batchNormShouldNormalizeBatchesAndMatchFiniteDifferences(@ForAll long seed) {
+        final Random random = new Random(seed);
+        final Model builder = new Model();
+        final BatchNormLayer layer = BatchNormLayer.create(builder, 2, 3, new LogisticFunction());
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        for (int i = 0; i < parameterBindings.size(); i++) {
+            parameterBindings.put(i, random.nextGaussian());
+        }
+        final DMatrixRMaj inputs = new DMatrixRMaj(2 * 3, 4);
+        final DMatrixRMaj outputGradients = new DMatrixRMaj(2 * 3, 4);
+        for (int i = 0; i < inputs.getNumElements(); i++) {
+            inputs.data[i] = 1.0 + 3.0 * random.nextGaussian();
+            outputGradients.data[i] = random.nextGaussian();
+        }
+
+        final LayerWorkspace workspace = new LayerWorkspace();
+        final BatchNormLayer.BatchNormCache cache = layer.evaluateBatch(inputs, parameterBindings, workspace).cache();
+        final double[] batchMean = new double[2];
+        for (int c = 0; c < 2; c++) {
+            double sum = 0.0, squares = 0.0;
+            for (int i = c * 12; i < (c + 1) * 12; i++) {
+                sum += cache.normalized().data[i];
+                squares += cache.normalized().data[i] * cache.normalized().data[i];
+                batchMean[c] += inputs.data[i] / 12;
+            }
+            assertEquals(0.0, sum / 12, 1e-10, "Mean of channel " + c);
+            assertEquals(1.0, squares / 12, 1e-3, "Variance of channel " + c);
+        }
+
+        // Normalizing with batch statistics makes every output depend on every input of its channel
+        final Layer.BatchGradients gradients = layer.backpropagateBatch(inputs, outputGradients, cache, true, parameterBindings, workspace).output();
+        final Function<DMatrixRMaj, Double> loss = in -> {
+            final DMatrix output = layer.evaluateBatch(in, parameterBindings, new LayerWorkspace()).output();
+            double sum = 0.0;
+            for (int i = 0; i < outputGradients.getNumElements(); i++) {
+                sum += outputGradients.data[i] * output.get(i / 4, i % 4);
+            }
+            return sum;
+        };
+        final double h = 1e-6;
+        for (int i = 0; i < inputs.getNumElements(); i++) {
+            final double original = inputs.data[i];
+            inputs.data[i] = original + h;
+            final double above = loss.apply(inputs);
+            inputs.data[i] = original - h;
+            final double below = loss.apply(inputs);
+            inputs.data[i] = original;
+            assertEquals((above - below) / (2 * h), gradients.inputGradients().get(i / 4, i % 4), 1e-6, "Input gradient differs at " + i);
+        }
+        for (int i = 0; i < parameterBindings.size(); i++) {
+            final double original = parameterBindings.get(i);
+            parameterBindings.put(i, original + h);
+            final double above = loss.apply(inputs);
+            parameterBindings.put(i, original - h);
+            final double below = loss.apply(inputs);
+            parameterBindings.put(i, original);
+            assertEquals((above - below) / (2 * h), gradients.parameterGradient().get(0, i), 1e-6, "Parameter gradient differs at " + i);
+        }
+
+        // Back-propagating the batch moved the running statistics a tenth of the way from zero mean, once the step ended
+        assertEquals(0.0, layer.statistics().mean()[0]);
+        layer.statistics().update();
+        for (int c = 0; c < 2; c++) {
+            assertEquals(0.1 * batchMean[c], layer.statistics().mean()[c], 1e-10);
+        }
+    }
+
+    @Property(tries = 5, shrinking = ShrinkingMode.OFF)
+    void foldedBatchNormShouldMatchUnfoldedInference(@ForAll long seed) {
+        final Random random = new Random(seed);
+        final Model builder = new Model();
+        final ConvolutionLayer.Convolution[] convolutions = new ConvolutionLayer.Convolution[3];
+        for (int i = 0; i < convolutions.length; i++) {
+            convolutions[i] = ConvolutionLayer.Convolution.create(builder, 2, 2, 2, 3, 3, ConvolutionGeometry.VALID);
+        }
+        final FeedForwardNetwork network = new FeedForwardNetwork(new Layer<?>[]{
+                ConvolutionLayer.standard(2, convolutions, new IdentityFunction()),
+                BatchNormLayer.create(builder, 3, 2 * 2, new LeakyRelu(0.01)),
+                new FullyConnectedLayer(builder.createParameterMatrix(5, 3 * 2 * 2), Optional.empty(), new IdentityFunction()),
+                BatchNormLayer.create(builder, 5, 1, new LogisticFunction())
+        });
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        for (int i = 0; i < parameterBindings.size(); i++) {
+            parameterBindings.put(i, random.nextGaussian());
+        }
+
+        // Train the running statistics away from their initial values
+        final FeedForwardNetwork.Workspace workspace = network.createWorkspace();
+        for (int step = 0; step < 5; step++) {
+            final DMatrixRMaj inputs = new DMatrixRMaj(2 * 3 * 3, 8);
+            final DMatrixRMaj outputGradients = new DMatrixRMaj(5, 8);
+            for (int i = 0; i < inputs.getNumElements(); i++) {
+                inputs.data[i] = 2.0 * random.nextGaussian() + 1.0;
+            }
+            network.batchExpression(inputs, workspace).computeVectorJacobianProduct(parameterBindings, outputGradients);
+            network.updateRunningStatistics();
+        }
+
+        final NeuralNetwork trained = new NeuralNetwork(network, parameterBindings);
+        final NeuralNetwork folded = trained.foldBatchNormalization();
+        assertEquals(2, folded.runtimeNetwork().layers().length);
+        for (int sample = 0; sample < 5; sample++) {
+            final double[] input = random.doubles(2 * 3 * 3, -2.0, 3.0).toArray();
+            final double[] expected = trained.apply(input);
+            final double[] actual = folded.apply(input);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], actual[i], 1e-10, "Folded output differs at " + i);
+            }
+        }
+    }
+
+    @Property(tries = 5, shrinking = ShrinkingMode.OFF)
+    void fusedNetworkShouldMatchUnfusedNetwork(@ForAll long seed) {
+        final Random random = new Random(seed);
+        final Model builder = new Model();
+        final ConvolutionLayer.Convolution[] convolutions = new ConvolutionLayer.Convolution[3];
+        for (int i = 0; i < convolutions.length; i++) {
+            convolutions[i] = ConvolutionLayer.Convolution.create(builder, 2, 3, 3, 6, 6, ConvolutionGeometry.VALID);
+        }
+        final MaxPoolLayer.Channel channel = new MaxPoolLayer.Channel(4, 4, 2, 2);
+        final FeedForwardNetwork network = new FeedForwardNetwork(new Layer<?>[]{
+                ConvolutionLayer.standard(2, convolutions, new LeakyRelu(0.01)),
+                new MaxPoolLayer(new MaxPoolLayer.Channel[]{channel, channel, channel}),
+                new FullyConnectedLayer(builder.createParameterMatrix(5, 3 * 2 * 2), Optional.of(builder.createParameterVector(5)), new LogisticFunction())
+        });
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        for (int i = 0; i < parameterBindings.size(); i++) {
+            parameterBindings.put(i, random.nextGaussian());
+        }
+
+        final FeedForwardNetwork fused = network.fuse();
+        assertEquals(2, fused.layers().length);
+        assertTrue(fused.layers()[0] instanceof PooledConvolutionLayer);
+
+        final DMatrixRMaj inputs = new DMatrixRMaj(2 * 6 * 6, 4);
+        final DMatrixRMaj outputGradients = new DMatrixRMaj(5, 4);
+        for (int i = 0; i < inputs.getNumElements(); i++) {
+            inputs.data[i] = random.nextGaussian();
+        }
+        for (int i = 0; i < outputGradients.getNumElements(); i++) {
+            outputGradients.data[i] = random.nextGaussian();
+        }
+        assertTrue(MatrixFeatures_DDRM.isEquals((DMatrixRMaj) network.batchExpression(inputs).evaluate(parameterBindings),
+                                                (DMatrixRMaj) fused.batchExpression(inputs).evaluate(parameterBindings), 1e-12));
+        assertTrue(MatrixFeatures_DDRM.isEquals(
+                (DMatrixRMaj) network.batchExpression(inputs).computeVectorJacobianProduct(parameterBindings, outputGradients),
+                (DMatrixRMaj) fused.batchExpression(inputs).computeVectorJacobianProduct(parameterBindings, outputGradients), 1e-10));
+
+        final DMatrixRMaj input = CommonOps_DDRM.extractColumn(inputs, 0, null);
+        final DMatrix expectedDerivative = network.expression(input).computeDerivative(parameterBindings);
+        final DMatrix actualDerivative = fused.expression(input).computeDerivative(parameterBindings);
+        for (int row = 0; row < expectedDerivative.getNumRows(); row++) {
+            for (int col = 0; col < expectedDerivative.getNumCols(); col++) {
+                assertEquals(expectedDerivative.get(row, col), actualDerivative.get(row, col), 1e-10, "Derivative differs at " + row + ", " + col);
+            }
+        }
+
+        // An activation that decreases anywhere can't be applied after pooling
+        final FeedForwardNetwork unfusable = new FeedForwardNetwork(new Layer<?>[]{
+                ConvolutionLayer.standard(2, convolutions, new LeakyRelu(-0.5)),
+                new MaxPoolLayer(new MaxPoolLayer.Channel[]{channel, channel, channel})
+        });
+        assertEquals(2, unfusable.fuse().layers().length);
+    }
+
+    @Property(tries = 5, shrinking = ShrinkingMode.OFF)
+    void compiledInferenceModelShouldMatchNetwork(@ForAll long seed) {
+        final Random random = new Random(seed);
+        final Model builder = new Model();
+        final ConvolutionLayer.Convolution[] convolutions = new ConvolutionLayer.Convolution[3];
+        for (int i = 0; i < convolutions.length; i++) {
+            convolutions[i] = ConvolutionLayer.Convolution.create(builder, 2, 3, 3, 6, 6, ConvolutionGeometry.VALID);
+        }
+        final MaxPoolLayer.Channel channel = new MaxPoolLayer.Channel(4, 4, 2, 2);
+        final FeedForwardNetwork network = new FeedForwardNetwork(new Layer<?>[]{
+                ConvolutionLayer.standard(2, convolutions, new ReluFunction()),
+                new MaxPoolLayer(new MaxPoolLayer.Channel[]{channel, channel, channel}),
+                new FullyConnectedLayer(builder.createParameterMatrix(5, 3 * 2 * 2), Optional.empty(), new IdentityFunction()),
+                BatchNormLayer.create(builder, 5, 1, new LeakyRelu(0.01)),
+                // Can't be folded into the layer before it, so it is evaluated with its running statistics
+                BatchNormLayer.create(builder, 5, 1, new LogisticFunction())
+        });
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        for (int i = 0; i < parameterBindings.size(); i++) {
+            parameterBindings.put(i, random.nextGaussian());
+        }
+        final FeedForwardNetwork.Workspace workspace = network.createWorkspace();
+        for (int step = 0; step < 3; step++) {
+            final DMatrixRMaj inputs = new DMatrixRMaj(2 * 6 * 6, 8);
+            for (int i = 0; i < inputs.getNumElements(); i++) {
+                inputs.data[i] = random.nextGaussian();
+            }
+            network.batchExpression(inputs, workspace).computeVectorJacobianProduct(parameterBindings, new DMatrixRMaj(5, 8));
+            network.updateRunningStatistics();
+        }
+
+        final NeuralNetwork trained = new NeuralNetwork(network, parameterBindings);
+        final InferenceModel compiled = trained.compileForInference();
+        final double[][] inputs = new double[16][];
+        final double[][] expected = new double[inputs.length][];
+        final DMatrixRMaj batch = new DMatrixRMaj(2 * 6 * 6, inputs.length);
+        for (int sample = 0; sample < inputs.length; sample++) {
+            inputs[sample] = random.doubles(2 * 6 * 6, -2.0, 2.0).toArray();
+            expected[sample] = trained.apply(inputs[sample]);
+            for (int row = 0; row < batch.getNumRows(); row++) {
+                batch.set(row, sample, inputs[sample][row]);
+            }
+        }
+
+        // The original parameters and running statistics can change without affecting the compiled model
+        parameterBindings.put(0, parameterBindings.get(0) + 1.0);
+        network.batchExpression(batch, workspace).computeVectorJacobianProduct(parameterBindings, new DMatrixRMaj(5, inputs.length));
+        network.updateRunningStatistics();
+        final DMatrixRMaj batchOutputs = compiled.applyBatch(batch);
+        IntStream.range(0, inputs.length).parallel().forEach(sample -> {
+            final double[] actual = compiled.apply(inputs[sample]);
+            for (int i = 0; i < actual.length; i++) {
+                assertEquals(expected[sample][i], actual[i], 1e-10, "Compiled output differs at " + i);
+                assertEquals(expected[sample][i], batchOutputs.get(i, sample), 1e-10, "Compiled batch output differs at " + i);
+            }
+        });
+    }
+
+    @Property(tries = 5, shrinking = ShrinkingMode.OFF)
+    void softmaxCrossEntropyShouldMatchFiniteDifferences(@ForAll long seed) {
+        final Random random = new Random(seed);
+        final Model builder = new Model();
+        final FeedForwardNetwork logits = new FeedForwardNetwork(new Layer<?>[]{
+                new FullyConnectedLayer(builder.createParameterMatrix(3, 4), Optional.of(builder.createParameterVector(3)), new IdentityFunction())
+        });
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        for (int i = 0; i < parameterBindings.size(); i++) {
+            parameterBindings.put(i, random.nextGaussian());
+        }
+        final DMatrixRMaj input = new DMatrixRMaj(random.doubles(4, -2.0, 2.0).toArray());
+        final DMatrixRMaj target = new DMatrixRMaj(new double[]{0.0, 1.0, 0.0});
+        final SoftmaxCrossEntropy loss = new SoftmaxCrossEntropy(logits.expression(input), new DMatrixColumnVectorExpression(target));
+
+        final DMatrix derivative = loss.computeDerivative(parameterBindings);
+        final double h = 1e-6;
+        for (int i = 0; i < parameterBindings.size(); i++) {
+            final double original = parameterBindings.get(i);
+            parameterBindings.put(i, original + h);
+            final double above = loss.evaluate(parameterBindings);
+            parameterBindings.put(i, original - h);
+            final double below = loss.evaluate(parameterBindings);
+            parameterBindings.put(i, original);
+            assertEquals((above - below) / (2 * h), derivative.get(0, i), 1e-6, "Derivative differs at " + i);
+        }
+
+        // The cross-entropy of the softmax layer output matches the fused loss, whose gradient is p - y
+        final SoftmaxLayer softmax = new SoftmaxLayer(3);
+        final DMatrixRMaj logitValues = (DMatrixRMaj) logits.expression(input).evaluate(parameterBindings);
+        final DMatrix probabilities = softmax.evaluate(logitValues, parameterBindings).output();
+        assertEquals(-Math.log(probabilities.get(1, 0)), loss.evaluate(parameterBindings), 1e-10);
+        final DMatrixRMaj logitGradient = new DMatrixRMaj(3, 1);
+        SoftmaxCrossEntropy.crossEntropy(logitValues, target, logitGradient);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(probabilities.get(i, 0) - target.get(i, 0), logitGradient.get(i, 0), 1e-12);
+        }
+        assertGradientsMatchFiniteDifferences(softmax, new Model().createBinder(), logitValues, random.doubles(3, -1.0, 1.0).toArray());
+    }
+
+    @Example
+    void softmaxCrossEntropyShouldStayFiniteForExtremeLogits() {
+        final DMatrixRMaj logits = new DMatrixRMaj(new double[][]{{1000.0, 0.0}, {0.0, 0.0}, {-1000.0, 0.0}});
+        final DMatrixRMaj targets = new DMatrixRMaj(new double[][]{{0.0, 0.0}, {0.0, 1.0}, {1.0, 0.0}});
+        final DMatrixRMaj gradients = new DMatrixRMaj(1, 1);
+
+        // The first sample puts all its probability on the wrong class, and the second is uniform
+        assertEquals(2000.0 + Math.log(3.0), SoftmaxCrossEntropy.crossEntropy(logits, targets, gradients), 1e-9);
+        assertEquals(1.0, gradients.get(0, 0), 1e-12);
+        assertEquals(-1.0, gradients.get(2, 0), 1e-12);
+        assertEquals(1.0 / 3.0 - 1.0, gradients.get(1, 1), 1e-12);
+
+        final DMatrixRMaj probabilities = new DMatrixRMaj(3, 2);
+        SoftmaxCrossEntropy.softmax(logits, probabilities);
+        assertEquals(1.0, probabilities.get(0, 0), 1e-12);
+        assertEquals(0.0, probabilities.get(2, 0), 1e-12);
+    }
+
+    @Example
+    void softmaxClassificationNetworkShouldLearnSeparableClasses() {
+        final Random random = new Random(7);
+        final double[][] centres = {{2.0, 0.0}, {-1.0, 1.7}, {-1.0, -1.7}};
+        final List<TrainingSample> samples = new ArrayList<>();
+        for (int i = 0; i < 150; i++) {
+            final double[] output = new double[3];
+            output[i % 3] = 1.0;
+            samples.add(new TrainingSample(new double[]{centres[i % 3][0] + 0.3 * random.nextGaussian(),
+                                                        centres[i % 3][1] + 0.3 * random.nextGaussian()}, output));
+        }
+
+        for (boolean batchExecution : new boolean[]{true, false}) {
+            final NeuralNetwork untrained = NeuralNetwork.softmaxClassificationNetwork(
+                    VariableWeightInitializer.smartRandomWeightInitializer(new Random(11)), 2, 6, 3);
+            final NeuralNetwork trained = new NeuralNetworkTrainer(
+                    untrained,
+                    new StochasticGradientDescent(30, new Random(13), () -> new FixedLearningRateGradientUpdate(0.2)),
+                    (iterationCount, network) -> iterationCount < 150,
+                    (iterationCount, network) -> {},
+                    NeuralNetworkTrainer.L2NormAdditionalError(0.0),
+                    batchExecution).train(samples);
+
+            long correct = 0;
+            for (TrainingSample sample : samples) {
+                final double[] probabilities = trained.apply(sample.input());
+                assertEquals(1.0, Arrays.stream(probabilities).sum(), 1e-10);
+                int predicted = 0;
+                for (int k = 1; k < 3; k++) {
+                    if (probabilities[k] > probabilities[predicted]) {
+                        predicted = k;
+                    }
+                }
+                correct += sample.output()[predicted] == 1.0 ? 1 : 0;
+            }
+            assertTrue(correct >= 145, correct + " of 150 samples classified correctly with batch execution " + batchExecution);
+        }
+    }
+
+    /**
+     * Checks the gradients of {@code outputGradients . output} from the batch kernels of a layer, for a single input, against
+     * finite differences and the explicit derivatives of the layer.
+     */
+    private static <C> void assertGradientsMatchFiniteDifferences(Layer<C> layer, Model.ParameterBindings parameterBindings, DMatrixRMaj input,
+                                                                  double[] outputGradients) {
+        final DMatrixRMaj gradientColumn = new DMatrixRMaj(outputGradients);
+        final Layer.BatchGradients gradients = layer.backpropagateBatch(input, gradientColumn, null, true, parameterBindings, new LayerWorkspace()).output();
+        final Function<DMatrix, Double> loss = out -> {
+            double sum = 0.0;
+            for (int i = 0; i < outputGradients.length; i++) {
+                sum += outputGradients[i] * out.get(i, 0);
+            }
+            return sum;
+        };
+
+        final double h = 1e-6;
+        for (int i = 0; i < input.getNumRows(); i++) {
+            final double original = input.get(i, 0);
+            input.set(i, 0, original + h);
+            final double above = loss.apply(layer.evaluate(input, parameterBindings).output());
+            input.set(i, 0, original - h);
+            final double below = loss.apply(layer.evaluate(input, parameterBindings).output());
+            input.set(i, 0, original);
+            assertEquals((above - below) / (2 * h), gradients.inputGradients().get(i, 0), 1e-6, "Input gradient differs at " + i);
+        }
+        for (int i = 0; i < parameterBindings.size(); i++) {
+            final double original = parameterBindings.get(i);
+            parameterBindings.put(i, original + h);
+            final double above = loss.apply(layer.evaluate(input, parameterBindings).output());
+            parameterBindings.put(i, original - h);
+            final double below = loss.apply(layer.evaluate(input, parameterBindings).output());
+            parameterBindings.put(i, original);
+            assertEquals((above - below) / (2 * h), gradients.parameterGradient().get(0, i), 1e-6, "Parameter gradient differs at " + i);
+        }
+
+        final C cache = layer.evaluate(input, parameterBindings).cache();
+        final DMatrixRMaj gradientRow = new DMatrixRMaj(1, outputGradients.length, true, outputGradients);
+        final DMatrix inputGradient = EJMLUtil.mult(gradientRow, layer.derivativeWithRespectToLayerInput(input, cache, parameterBindings).output());
+        for (int i = 0; i < input.getNumRows(); i++) {
+            assertEquals(gradients.inputGradients().get(i, 0), inputGradient.get(0, i), 1e-10, "Input derivative differs at " + i);
+        }
+        for (int i = 0; i < parameterBindings.size(); i++) {
+            final double parameterGradient = loss.apply(layer.derivativeWithRespectLayerParameter(input, i, cache, parameterBindings).output());
+            assertEquals(gradients.parameterGradient().get(0, i), parameterGradient, 1e-10, "Parameter derivative differs at " + i);
+        }
+    }
+
+    @Property(tries = 3, shrinking = ShrinkingMode.OFF)
+    void batchVectorJacobianProductShouldMatchSumOfSampleProducts(@ForAll @Size(value = 2 * (2 * 3 + 1) + 3 * (16 + 1) + 3 * (3 + 1)) @Weight double[] values,
+                                                                  @ForAll @Size(value = 4 * 5 * 4) @TrainingInput double[] inputs,
+                                                                  @ForAll @Size(value = 4 * 3) @Weight double[] outputGradients) {
+        final int batchSize = 4;
+        final Model builder = new Model();
+        final ConvolutionLayer.Convolution[] convolutions = new ConvolutionLayer.Convolution[2];
+        for (int i = 0; i < convolutions.length; i++) {
+            convolutions[i] = new ConvolutionLayer.Convolution(
+                    new ConvolutionFilterMatrix(builder.createParameterMatrix(2, 3), 5, 4),
+                    builder.createScalarParameter()
+            );
+        }
+        final FeedForwardNetwork network = new FeedForwardNetwork(new Layer<?>[]{
+                new ConvolutionLayer(1, convolutions, new LeakyRelu(0.01)),
+                new FullyConnectedLayer(builder.createParameterMatrix(3, 16), Optional.of(builder.createParameterVector(3)), new LeakyRelu(0.01)),
+                new FullyConnectedLayer(builder.createParameterMatrix(3, 3), Optional.of(builder.createParameterVector(3)), new LogisticFunction())
+        });
+
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        {
+            int i = 0;
+            for (int var : parameterBindings.variables()) {
+                parameterBindings.put(var, values[i++]);
+            }
+        }
+
+        // one column per sample
+        final DMatrixRMaj batchInputs = new DMatrixRMaj(network.inputLength(), batchSize);
+        final DMatrixRMaj batchGradients = new DMatrixRMaj(network.outputLength(), batchSize);
+        final DMatrixRMaj expected = new DMatrixRMaj(1, parameterBindings.size());
+        for (int sample = 0; sample < batchSize; sample++) {
+            final DMatrixRMaj input = new DMatrixRMaj(network.inputLength(), 1);
+            for (int row = 0; row < input.getNumRows(); row++) {
+                input.set(row, 0, inputs[sample * input.getNumRows() + row]);
+                batchInputs.set(row, sample, input.get(row, 0));
+            }
+            final DMatrixRMaj gradient = new DMatrixRMaj(1, network.outputLength());
+            for (int col = 0; col < gradient.getNumCols(); col++) {
+                gradient.set(0, col, outputGradients[sample * gradient.getNumCols() + col]);
+                batchGradients.set(col, sample, gradient.get(0, col));
+            }
+            CommonOps_DDRM.addEquals(expected, (DMatrixRMaj) network.expression(input).computeVectorJacobianProduct(parameterBindings, gradient));
+        }
+
+        final DMatrix observed = network.batchExpression(batchInputs).computeVectorJacobianProduct(parameterBindings, batchGradients);
+
+        assertTrue(MatrixFeatures_DDRM.isEquals(expected, (DMatrixRMaj) observed, 1e-10), () ->
+                "expected:\n" + expected + "\n\nobserved:\n" + observed + "\n"
+        );
+
+        // A loss evaluates once, then back-propagates from the same forward pass
+        final FeedForwardNetwork.BatchExpression batch = network.batchExpression(batchInputs);
+        assertThrows(IllegalStateException.class, () -> batch.backpropagate(parameterBindings, batchGradients));
+        final DMatrix outputs = batch.evaluateForBackpropagation(parameterBindings);
+        assertTrue(MatrixFeatures_DDRM.isEquals((DMatrixRMaj) network.batchExpression(batchInputs).evaluate(parameterBindings), (DMatrixRMaj) outputs, 1e-12));
+        assertTrue(MatrixFeatures_DDRM.isEquals(expected, (DMatrixRMaj) batch.backpropagate(parameterBindings, batchGradients), 1e-10));
+    }
+
+    @Property(tries = 3, shrinking = ShrinkingMode.OFF)
+    void shardedErrorDerivativeShouldMatchUnshardedDerivative(@ForAll @Size(value = 3 * (4 + 1) + 2 * (3 + 1)) @Weight double[] values,
+                                                              @ForAll @Size(value = 7 * 4) @TrainingInput double[] inputs,
+                                                              @ForAll @Size(value = 7 * 2) @TrainingOutput double[] outputs) {
+        final Model builder = new Model();
+        final FeedForwardNetwork network = new FeedForwardNetwork(new Layer<?>[]{
+                new FullyConnectedLayer(builder.createParameterMatrix(3, 4), Optional.of(builder.createParameterVector(3)), new LeakyRelu(0.01)),
+                new FullyConnectedLayer(builder.createParameterMatrix(2, 3), Optional.of(builder.createParameterVector(2)), new LogisticFunction())
+        });
+
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        {
+            int i = 0;
+            for (int var : parameterBindings.variables()) {
+                parameterBindings.put(var, values[i++]);
+            }
+        }
+
+        final List<TrainingSample> samples = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            samples.add(new TrainingSample(Arrays.copyOfRange(inputs, i * 4, (i + 1) * 4), Arrays.copyOfRange(outputs, i * 2, (i + 1) * 2)));
+        }
+        final Function<List<TrainingSample>, ScalarExpression> errorFunction = ts -> new ScalarConstantMultiple(
+                1.0 / ts.size(),
+                ScalarSum.sum(ts.stream()
+                                .map(sample -> squaredError(sample, network.expression(new DMatrixRMaj(sample.input()))))
+                                .toArray(ScalarExpression[]::new))
+        );
+
+        final ScalarExpression unsharded = errorFunction.apply(samples);
+        final ScalarExpression sharded = new ParallelGradientExecutor(ForkJoinPool.commonPool(), 3).errorExpression(samples, errorFunction);
+
+        assertEquals(unsharded.evaluate(parameterBindings), sharded.evaluate(parameterBindings), 1e-10);
+        final DMatrix expected = unsharded.computeDerivative(parameterBindings);
+        final DMatrix observed = sharded.computeDerivative(parameterBindings);
+        for (int i = 0; i < parameterBindings.size(); i++) {
+            assertEquals(expected.get(0, i), observed.get(0, i), 1e-10, "Gradient differs at index " + i);
+        }
+    }
+
+    @Property(tries = 3, shrinking = ShrinkingMode.OFF)
+    void inputPlaceholderShouldMatchConstantInput(@ForAll @Size(value = 3 * (4 + 1) + 2 * (3 + 1)) @Weight double[] values,
+                                                  @ForAll @Size(value = 2 * 4) @TrainingInput double[] inputs,
+                                                  @ForAll @Size(value = 2) @Weight double[] outputGradient) {
+        final Model builder = new Model();
+        final FeedForwardNetwork network = new FeedForwardNetwork(new Layer<?>[]{
+                new FullyConnectedLayer(builder.createParameterMatrix(3, 4), Optional.of(builder.createParameterVector(3)), new LeakyRelu(0.01)),
+                new FullyConnectedLayer(builder.createParameterMatrix(2, 3), Optional.of(builder.createParameterVector(2)), new LogisticFunction())
+        });
+        final InputVector input = builder.createInputVector(4);
+        final FeedForwardNetwork.FeedForwardExpression placeholderExpression = network.expression(input);
+
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        {
+            int i = 0;
+            for (int var : parameterBindings.variables()) {
+                parameterBindings.put(var, values[i++]);
+            }
+        }
+
+        // The same placeholder expression is re-used with each input
+        final DMatrixRMaj gradient = new DMatrixRMaj(1, 2, true, outputGradient);
+        for (int sample = 0; sample < 2; sample++) {
+            final double[] sampleInput = Arrays.copyOfRange(inputs, sample * 4, (sample + 1) * 4);
+            final Model.InputBindings inputBindings = builder.createInputBinder();
+            inputBindings.put(input, sampleInput);
+            final Model.ParameterBindings boundBindings = parameterBindings.withInputs(inputBindings);
+            final FeedForwardNetwork.FeedForwardExpression constantExpression = network.expression(new DMatrixRMaj(sampleInput));
+
+            assertTrue(MatrixFeatures_DDRM.isEquals((DMatrixRMaj) constantExpression.evaluate(parameterBindings),
+                                                    (DMatrixRMaj) placeholderExpression.evaluate(boundBindings)));
+            assertTrue(MatrixFeatures_DDRM.isEquals((DMatrixRMaj) constantExpression.computeVectorJacobianProduct(parameterBindings, gradient),
+                                                    (DMatrixRMaj) placeholderExpression.computeVectorJacobianProduct(boundBindings, gradient)));
+        }
+    }
+
+    @Property(tries = 3, shrinking = ShrinkingMode.OFF)
+    void singlePrecisionBatchShouldMatchDoublePrecisionBatch(@ForAll @Size(value = 3 * (4 + 1) + 2 * (3 + 1)) @Weight double[] values,
+                                                             @ForAll @Size(value = 5 * 4) @TrainingInput double[] inputs,
+                                                             @ForAll @Size(value = 5 * 2) @Weight double[] outputGradients) {
+        final Model builder = new Model();
+        final FeedForwardNetwork network = new FeedForwardNetwork(new Layer<?>[]{
+                new FullyConnectedLayer(builder.createParameterMatrix(3, 4), Optional.of(builder.createParameterVector(3)), new LeakyRelu(0.01)),
+                new FullyConnectedLayer(builder.createParameterMatrix(2, 3), Optional.of(builder.createParameterVector(2)), new LogisticFunction())
+        });
+
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        {
+            int i = 0;
+            for (int var : parameterBindings.variables()) {
+                parameterBindings.put(var, values[i++]);
+            }
+        }
+        final Model.ParameterBindings singlePrecisionBindings = parameterBindings.copy(Precision.SINGLE);
+        assertEquals(Precision.SINGLE, singlePrecisionBindings.precision());
+
+        final FeedForwardNetwork.BatchExpression batch = network.batchExpression(new DMatrixRMaj(4, 5, true, inputs));
+        final DMatrixRMaj gradients = new DMatrixRMaj(2, 5, true, outputGradients);
+
+        final DMatrix expectedOutput = batch.evaluate(parameterBindings);
+        final DMatrix observedOutput = batch.evaluate(singlePrecisionBindings);
+        for (int row = 0; row < expectedOutput.getNumRows(); row++) {
+            for (int col = 0; col < expectedOutput.getNumCols(); col++) {
+                assertEquals(expectedOutput.get(row, col), observedOutput.get(row, col), 1e-5);
+            }
+        }
+
+        final DMatrix expected = batch.computeVectorJacobianProduct(parameterBindings, gradients);
+        final DMatrix observed = batch.computeVectorJacobianProduct(singlePrecisionBindings, gradients);
+        for (int i = 0; i < parameterBindings.size(); i++) {
+            assertEquals(expected.get(0, i), observed.get(0, i), 1e-4 * (1.0 + Math.abs(expected.get(0, i))), "Gradient differs at index " + i);
+        }
+    }
+
+    @Property(tries = 3, shrinking = ShrinkingMode.OFF)
+    void singlePrecisionConvolutionShouldMatchDoublePrecision(@ForAll long seed) {
+        final Random random = new Random(seed);
+        final Model builder = new Model();
+        final ConvolutionLayer.Convolution[] convolutions = new ConvolutionLayer.Convolution[3];
+        for (int i = 0; i < convolutions.length; i++) {
+            convolutions[i] = ConvolutionLayer.Convolution.create(builder, 2, 3, 3, 6, 6, ConvolutionGeometry.same(3, 3, 1, 1));
+        }
+        final FeedForwardNetwork network = new FeedForwardNetwork(new Layer<?>[]{
+                ConvolutionLayer.standard(2, convolutions, new LeakyRelu(0.01)),
+                new FullyConnectedLayer(builder.createParameterMatrix(2, 3 * 6 * 6), Optional.of(builder.createParameterVector(2)), new LogisticFunction())
+        });
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        for (int i = 0; i < parameterBindings.size(); i++) {
+            parameterBindings.put(i, 0.3 * random.nextGaussian());
+        }
+        final Model.ParameterBindings singlePrecisionBindings = parameterBindings.copy(Precision.SINGLE);
+        final DMatrixRMaj inputs = new DMatrixRMaj(2 * 6 * 6, 4);
+        final DMatrixRMaj gradients = new DMatrixRMaj(2, 4);
+        for (int i = 0; i < inputs.getNumElements(); i++) {
+            inputs.data[i] = random.nextGaussian();
+        }
+        for (int i = 0; i < gradients.getNumElements(); i++) {
+            gradients.data[i] = random.nextGaussian();
+        }
+
+        final FeedForwardNetwork.BatchExpression batch = network.batchExpression(inputs);
+        final DMatrix expectedOutput = batch.evaluate(parameterBindings);
+        final DMatrix observedOutput = batch.evaluate(singlePrecisionBindings);
+        for (int i = 0; i < expectedOutput.getNumElements(); i++) {
+            assertEquals(expectedOutput.get(i / 4, i % 4), observedOutput.get(i / 4, i % 4), 1e-5, "Output differs at " + i);
+        }
+
+        final DMatrix expected = batch.computeVectorJacobianProduct(parameterBindings, gradients);
+        final DMatrix observed = batch.computeVectorJacobianProduct(singlePrecisionBindings, gradients);
+        for (int i = 0; i < parameterBindings.size(); i++) {
+            assertEquals(expected.get(0, i), observed.get(0, i), 1e-4 * (1.0 + Math.abs(expected.get(0, i))), "Gradient differs at index " + i);
+        }
+    }
+
+    @Example
+    void batchWorkspaceGradientShouldMatchFiniteDifferences() {
+        final int batchSize = 3;
+        final Model builder = new Model();
+        final ConvolutionLayer.Convolution[] convolutions = new ConvolutionLayer.Convolution[2];
+        for (int i = 0; i < convolutions.length; i++) {
+            convolutions[i] = new ConvolutionLayer.Convolution(
+                    new ConvolutionFilterMatrix(builder.createParameterMatrix(2, 3), 5, 4),
+                    builder.createScalarParameter()
+            );
+        }
+        // The convolution and max pool layers are above another layer, so their input gradients are needed
+        final FeedForwardNetwork network = new FeedForwardNetwork(new Layer<?>[]{
+                new FullyConnectedLayer(builder.createParameterMatrix(20, 6), Optional.of(builder.createParameterVector(20)), new LogisticFunction()),
+                new ConvolutionLayer(1, convolutions, new LogisticFunction()),
+                new MaxPoolLayer(new MaxPoolLayer.Channel[]{
+                        new MaxPoolLayer.Channel(2, 4, 2, 2),
+                        new MaxPoolLayer.Channel(2, 4, 2, 2)
+                }),
+                new FullyConnectedLayer(builder.createParameterMatrix(3, 4), Optional.of(builder.createParameterVector(3)), new LogisticFunction())
+        });
+
+        final Random random = new Random(42);
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        for (int var : parameterBindings.variables()) {
+            parameterBindings.put(var, random.nextGaussian());
+        }
+        final DMatrixRMaj inputs = new DMatrixRMaj(6, batchSize);
+        final DMatrixRMaj outputGradients = new DMatrixRMaj(3, batchSize);
+        for (int i = 0; i < inputs.getNumElements(); i++) {
+            inputs.data[i] = random.nextGaussian();
+        }
+        for (int i = 0; i < outputGradients.getNumElements(); i++) {
+            outputGradients.data[i] = random.nextGaussian();
+        }
+
+        final FeedForwardNetwork.Workspace workspace = network.createWorkspace();
+        final DMatrixRMaj observed = ((DMatrixRMaj) network.batchExpression(inputs, workspace)
+                                                           .computeVectorJacobianProduct(parameterBindings, outputGradients)).copy();
+        // running a different batch through the same workspace first doesn't change the result
+        final DMatrixRMaj otherInputs = new DMatrixRMaj(6, batchSize);
+        CommonOps_DDRM.fill(otherInputs, 0.5);
+        network.batchExpression(otherInputs, workspace).computeVectorJacobianProduct(parameterBindings, outputGradients);
+        final DMatrix reused = network.batchExpression(inputs, workspace).computeVectorJacobianProduct(parameterBindings, outputGradients);
+        assertTrue(MatrixFeatures_DDRM.isIdentical(observed, (DMatrixRMaj) reused, 0.0));
+
+        // the vector-Jacobian product is the gradient of the sum of outputs weighted by the output gradients
+        final double epsilon = 1e-6;
+        for (int var : parameterBindings.variables()) {
+            final double value = parameterBindings.get(var);
+            parameterBindings.put(var, value + epsilon);
+            final double above = elementProductSum(network.batchExpression(inputs).evaluate(parameterBindings), outputGradients);
+            parameterBindings.put(var, value - epsilon);
+            final double below = elementProductSum(network.batchExpression(inputs).evaluate(parameterBindings), outputGradients);
+            parameterBindings.put(var, value);
+
+            assertEquals((above - below) / (2 * epsilon), observed.get(0, var), 1e-6, "Gradient differs at index " + var);
+        }
+    }
+
+    @Example
+    void batchWorkspaceShouldNotAllocateBuffersOnceWarm() {
+        final int batchSize = 512;
+        final Model builder = new Model();
+        final ConvolutionLayer.Convolution[] convolutions = new ConvolutionLayer.Convolution[2];
+        for (int i = 0; i < convolutions.length; i++) {
+            convolutions[i] = new ConvolutionLayer.Convolution(
+                    new ConvolutionFilterMatrix(builder.createParameterMatrix(2, 3), 5, 4),
+                    builder.createScalarParameter()
+            );
+        }
+        final FeedForwardNetwork network = new FeedForwardNetwork(new Layer<?>[]{
+                new FullyConnectedLayer(builder.createParameterMatrix(20, 6), Optional.of(builder.createParameterVector(20)), new LogisticFunction()),
+                new ConvolutionLayer(1, convolutions, new LogisticFunction()),
+                new MaxPoolLayer(new MaxPoolLayer.Channel[]{
+                        new MaxPoolLayer.Channel(2, 4, 2, 2),
+                        new MaxPoolLayer.Channel(2, 4, 2, 2)
+                }),
+                new FullyConnectedLayer(builder.createParameterMatrix(3, 4), Optional.of(builder.createParameterVector(3)), new LogisticFunction())
+        });
+        final Random random = new Random(42);
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        for (int var : parameterBindings.variables()) {
+            parameterBindings.put(var, random.nextGaussian());
+        }
+        final DMatrixRMaj inputs = new DMatrixRMaj(6, batchSize);
+        final DMatrixRMaj outputGradients = new DMatrixRMaj(3, batchSize);
+        for (int i = 0; i < inputs.getNumElements(); i++) {
+            inputs.data[i] = random.nextGaussian();
+        }
+        CommonOps_DDRM.fill(outputGradients, 1.0);
+
+        final FeedForwardNetwork.Workspace workspace = network.createWorkspace();
+        final double[] update = new double[parameterBindings.size()];
+        Arrays.fill(update, 1e-3);
+        final Runnable step = () -> {
+            network.batchExpression(inputs, workspace).computeVectorJacobianProduct(parameterBindings, outputGradients);
+            parameterBindings.add(update);
+        };
+        for (int i = 0; i < 50; i++) {
+            step.run();
+        }
+
+        // Once the buffers fit the batch, a step only allocates small per call objects, not batch sized buffers
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final int steps = 20;
+        final long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < steps; i++) {
+            step.run();
+        }
+        final long perStep = (threads.getCurrentThreadAllocatedBytes() - before) / steps;
+        final long inputBytes = (long) inputs.getNumElements() * Double.BYTES;
+        assertTrue(perStep < inputBytes, "Allocated " + perStep + " bytes per step, more than the " + inputBytes + " bytes of the input batch");
+    }
+
+    private static double elementProductSum(DMatrix left, DMatrix right) {
+        double accum = 0.0;
+        for (int row = 0; row < left.getNumRows(); row++) {
+            for (int col = 0; col < left.getNumCols(); col++) {
+                accum += left.get(row, col) * right.get(row, col);
+            }
+        }
+
+        return accum;
+    }
+
     private static ScalarExpression squaredError(TrainingSample sample, VectorExpression network) {
         // difference between network output and expected output
         final VectorExpression inputError = VectorSum.sum(network, new ScaledVector(-1.0, new DMatrixColumnVectorExpression(new DMatrixRMaj(sample.output()))));
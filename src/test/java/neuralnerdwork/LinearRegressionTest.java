@@ -8,6 +8,7 @@ import org.junit.jupiter.params.provider.MethodSource;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.toList;
@@ -32,6 +33,12 @@ public class LinearRegressionTest {
                         rand,
                         () -> new FixedLearningRateGradientUpdate(0.5)
                 ),
+                new StochasticGradientDescent(
+                        200,
+                        rand,
+                        () -> new FixedLearningRateGradientUpdate(0.5),
+                        new ParallelGradientExecutor(ForkJoinPool.commonPool(), 4)
+                ),
                 new StochasticGradientDescent(
                         200,
                         rand,
@@ -4,16 +4,22 @@ import net.jqwik.api.Example;
 import net.jqwik.api.ForAll;
 import net.jqwik.api.Property;
 import net.jqwik.api.ShrinkingMode;
+import net.jqwik.api.constraints.DoubleRange;
 import net.jqwik.api.constraints.Size;
 import neuralnerdwork.math.*;
 import org.ejml.data.DMatrix;
 import org.ejml.data.DMatrixRMaj;
+import org.ejml.data.DMatrixSparseCSC;
 import org.ejml.dense.row.CommonOps_DDRM;
 import org.ejml.dense.row.MatrixFeatures_DDRM;
+import org.ejml.dense.row.RandomMatrices_DDRM;
+import org.ejml.ops.ConvertDMatrixStruct;
+import org.ejml.sparse.csc.RandomMatrices_DSCC;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import static java.lang.String.format;
 import static neuralnerdwork.math.VectorSum.sum;
@@ -517,6 +523,99 @@ public class MathTest {
         }
     }
 
+    @Property(tries = 10, shrinking = ShrinkingMode.OFF)
+    void expressionTapeShouldMatchExpressionTree(@ForAll @Size(value = 3 + 3*3 + 1) @Weight double[] values,
+                                                 @ForAll @Size(value = 3) @TrainingInput double[] inputs) {
+        final Model builder = new Model();
+        final ParameterVector vector = builder.createParameterVector(3);
+        final ParameterMatrix matrix = builder.createParameterMatrix(3, 3);
+        final ScalarParameter scalar = builder.createScalarParameter();
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        for (int i = 0; i < values.length; i++) {
+            parameterBindings.put(i, values[i]);
+        }
+
+        // The hidden vector is shared by both terms, and the matrix-vector product has no dedicated instruction
+        final VectorExpression hidden = new ColumnVectorizedSingleVariableFunction(
+                new LogisticFunction(),
+                sum(new MatrixVectorProduct(matrix, new DMatrixColumnVectorExpression(new DMatrixRMaj(inputs))), vector)
+        );
+        final ScalarExpression expression = ScalarSum.sum(
+                new DotProduct(new ColumnVectorizedSingleVariableFunction(
+                        new LeakyRelu(0.01),
+                        // offset keeps finite differences away from the kink at zero
+                        sum(new ScaledVector(scalar, hidden), new DMatrixColumnVectorExpression(new DMatrixRMaj(new double[]{0.25, -0.5, 0.75})))
+                ), hidden),
+                new ScalarConstantMultiple(0.5, new SquareRoot(new DotProduct(vector, vector))),
+                new ScalarProduct(scalar, scalar)
+        );
+        final ExpressionTape tape = ExpressionTape.compile(expression);
+
+        assertEquals(expression.evaluate(parameterBindings), tape.evaluate(parameterBindings), 1e-10);
+        // Not every expression tree node can differentiate every operand type, so compare with finite differences
+        final DMatrix observed = tape.computeDerivative(parameterBindings);
+        final double h = 1e-6;
+        for (int i = 0; i < parameterBindings.size(); i++) {
+            final double original = parameterBindings.get(i);
+            parameterBindings.put(i, original + h);
+            final double above = expression.evaluate(parameterBindings);
+            parameterBindings.put(i, original - h);
+            final double below = expression.evaluate(parameterBindings);
+            parameterBindings.put(i, original);
+            assertEquals((above - below) / (2 * h), observed.get(0, i), 1e-4, "Derivative differs at index " + i);
+        }
+    }
+
+    @Property(tries = 10, shrinking = ShrinkingMode.OFF)
+    void expressionTapeShouldCompileIdenticalSubexpressionsOnce(@ForAll @Size(value = 3 + 3*3) @Weight double[] values,
+                                                                 @ForAll @Size(value = 3) @TrainingInput double[] inputs,
+                                                                 @ForAll @Size(value = 3) @Weight double[] updated) {
+        final Model builder = new Model();
+        final ParameterVector vector = builder.createParameterVector(3);
+        final ParameterMatrix matrix = builder.createParameterMatrix(3, 3);
+        final Model.ParameterBindings parameterBindings = builder.createBinder();
+        for (int i = 0; i < values.length; i++) {
+            parameterBindings.put(i, values[i]);
+        }
+
+        // Two structurally identical, but separately constructed, terms
+        final DMatrixRMaj input = new DMatrixRMaj(inputs);
+        final ScalarExpression[] terms = new ScalarExpression[2];
+        for (int i = 0; i < terms.length; i++) {
+            final VectorExpression hidden = new ColumnVectorizedSingleVariableFunction(
+                    new LogisticFunction(),
+                    sum(new MatrixVectorProduct(matrix, new DMatrixColumnVectorExpression(input)), vector)
+            );
+            terms[i] = new DotProduct(hidden, hidden);
+        }
+        final ScalarExpression expression = new ScalarSum(terms);
+        final ExpressionTape tape = ExpressionTape.compile(expression);
+
+        // Only the sum of the two terms is added to the instructions of one
+        assertEquals(ExpressionTape.compile(terms[0]).size() + 1, tape.size());
+        assertEquals(expression.evaluate(parameterBindings), tape.evaluate(parameterBindings), 1e-10);
+        assertTrue(MatrixFeatures_DDRM.isEquals((DMatrixRMaj) expression.computeDerivative(parameterBindings),
+                                                (DMatrixRMaj) tape.computeDerivative(parameterBindings), 1e-10));
+
+        for (int i = 0; i < updated.length; i++) {
+            parameterBindings.put(vector.variableFor(i), updated[i]);
+        }
+        assertEquals(expression.evaluate(parameterBindings), tape.evaluate(parameterBindings), 1e-10);
+        final DMatrixRMaj expected = (DMatrixRMaj) expression.computeDerivative(parameterBindings);
+        final DMatrix gradient = tape.computeDerivative(parameterBindings);
+        assertTrue(MatrixFeatures_DDRM.isEquals(expected, (DMatrixRMaj) gradient, 1e-10));
+        // The gradient is kept until the parameters change again
+        assertSame(gradient, tape.computeDerivative(parameterBindings));
+
+        // Added to what's already in the caller's buffer
+        final double[] buffer = new double[parameterBindings.size()];
+        Arrays.fill(buffer, 1.0);
+        tape.addDerivative(parameterBindings, buffer);
+        for (int i = 0; i < buffer.length; i++) {
+            assertEquals(expected.get(0, i) + 1.0, buffer[i], 1e-10);
+        }
+    }
+
     private void assertNonZero(Object expression) {
         assertNonZero(expression, new ArrayList<>(List.of(expression.getClass().getSimpleName() + " root")));
     }
@@ -547,4 +646,138 @@ public class MathTest {
               });
     }
 
+
+    @Property(shrinking = ShrinkingMode.OFF)
+    void offHeapBindingsShouldMatchHeapBindings(@ForAll @Size(value = 2 * 3 + 3) double[] values) {
+        final Model builder = new Model();
+        final MatrixVectorProduct product = new MatrixVectorProduct(builder.createParameterMatrix(2, 3), builder.createParameterVector(3));
+
+        final Model.ParameterBindings heapBindings = builder.createBinder();
+        final Model.ParameterBindings offHeapBindings = builder.createOffHeapBinder(Precision.DOUBLE);
+        for (int i = 0; i < values.length; i++) {
+            heapBindings.put(i, values[i]);
+            offHeapBindings.put(i, values[i]);
+        }
+
+        assertEquals(heapBindings.length(), offHeapBindings.length());
+        assertTrue(MatrixFeatures_DDRM.isIdentical((DMatrixRMaj) product.evaluate(heapBindings),
+                                                   (DMatrixRMaj) product.evaluate(offHeapBindings), 0.0));
+
+        // copies don't share values with the original
+        final Model.ParameterBindings copy = offHeapBindings.copy();
+        copy.put(0L, values[0] + 1.0);
+        assertEquals(values[0], offHeapBindings.get(0), 0.0);
+        assertEquals(values[0] + 1.0, copy.get(0), 0.0);
+
+        final Model.ParameterBindings singlePrecisionCopy = offHeapBindings.copy(Precision.SINGLE);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals((float) values[i], singlePrecisionCopy.get(i), 0.0);
+        }
+    }
+
+    @Property(shrinking = ShrinkingMode.OFF)
+    void bulkActivationKernelsShouldMatchScalarFunctions(@ForAll @Size(value = 37) double[] inputs,
+                                                         @ForAll @Size(value = 37) double[] gradients) {
+        for (ActivationFunction function : new ActivationFunction[]{new LeakyRelu(0.01), new ReluFunction(), new LogisticFunction(), new IdentityFunction()}) {
+            final double[] values = new double[inputs.length];
+            function.applyTo(inputs, values, inputs.length);
+            final double[] products = new double[inputs.length];
+            function.multiplyByDerivative(inputs, gradients, products, inputs.length);
+
+            final SingleVariableFunction derivative = function.differentiateByInput();
+            for (int i = 0; i < inputs.length; i++) {
+                final double expectedProduct = gradients[i] * derivative.apply(inputs[i]);
+                assertEquals(function.apply(inputs[i]), values[i], 1e-12 * Math.max(1.0, Math.abs(values[i])), function.getFunctionName());
+                assertEquals(expectedProduct, products[i], 1e-12 * Math.max(1.0, Math.abs(expectedProduct)), function.getFunctionName());
+            }
+        }
+    }
+
+    @Property
+    void diagonalProductsShouldMatchDenseProducts(@ForAll @Size(value = 6) double[] diagonalValues,
+                                                  @ForAll @Size(value = 24) double[] otherValues) {
+        final DiagonalMatrix diagonal = new DiagonalMatrix(diagonalValues);
+        final DMatrixRMaj denseDiagonal = diagonal.toDense();
+        final DMatrixRMaj right = new DMatrixRMaj(6, 4, true, otherValues);
+        final DMatrixRMaj left = new DMatrixRMaj(4, 6, true, otherValues);
+
+        final DMatrixRMaj expectedRight = new DMatrixRMaj(6, 4);
+        CommonOps_DDRM.mult(denseDiagonal, right, expectedRight);
+        final DMatrixRMaj expectedLeft = new DMatrixRMaj(4, 6);
+        CommonOps_DDRM.mult(left, denseDiagonal, expectedLeft);
+        final DMatrixRMaj expectedSquare = new DMatrixRMaj(6, 6);
+        CommonOps_DDRM.mult(denseDiagonal, denseDiagonal, expectedSquare);
+
+        assertMatrixEquals(expectedRight, EJMLUtil.mult(diagonal, right));
+        assertMatrixEquals(expectedLeft, EJMLUtil.mult(left, diagonal));
+        assertMatrixEquals(expectedSquare, EJMLUtil.mult(diagonal, diagonal));
+    }
+
+    private static void assertMatrixEquals(DMatrix expected, DMatrix actual) {
+        assertEquals(expected.getNumRows(), actual.getNumRows());
+        assertEquals(expected.getNumCols(), actual.getNumCols());
+        for (int row = 0; row < expected.getNumRows(); row++) {
+            for (int col = 0; col < expected.getNumCols(); col++) {
+                final double e = expected.get(row, col);
+                assertEquals(e, actual.get(row, col), 1e-12 * Math.max(1.0, Math.abs(e)), format("(%d, %d)", row, col));
+            }
+        }
+    }
+
+    @Property(tries = 20)
+    void matrixBackendsShouldMatchEjml(@ForAll @DoubleRange(min = -10, max = 10) double alpha,
+                                       @ForAll @DoubleRange(min = -10, max = 10) double beta,
+                                       @ForAll long seed) {
+        final Random random = new Random(seed);
+        for (boolean transposeA : new boolean[]{false, true}) {
+            for (boolean transposeB : new boolean[]{false, true}) {
+                // large enough for the parallel backend to split the rows, with blocks that don't divide evenly
+                final DMatrixRMaj a = transposeA ? RandomMatrices_DDRM.rectangle(300, 45, random) : RandomMatrices_DDRM.rectangle(45, 300, random);
+                final DMatrixRMaj b = transposeB ? RandomMatrices_DDRM.rectangle(270, 300, random) : RandomMatrices_DDRM.rectangle(300, 270, random);
+                final DMatrixRMaj initial = RandomMatrices_DDRM.rectangle(45, 270, random);
+
+                final DMatrixRMaj expected = initial.copy();
+                MatrixBackends.ejml().gemm(alpha, a, transposeA, b, transposeB, beta, expected);
+                for (MatrixBackend backend : new MatrixBackend[]{MatrixBackends.java(), MatrixBackends.parallel()}) {
+                    final DMatrixRMaj actual = initial.copy();
+                    backend.gemm(alpha, a, transposeA, b, transposeB, beta, actual);
+                    assertTrue(MatrixFeatures_DDRM.isIdentical(expected, actual, 1e-9 * Math.max(1.0, CommonOps_DDRM.elementMaxAbs(expected))),
+                               format("%s transposeA=%b transposeB=%b", backend.name(), transposeA, transposeB));
+                }
+            }
+        }
+
+        final DMatrixRMaj dense = RandomMatrices_DDRM.rectangle(7, 12, random);
+        final DMatrixSparseCSC sparse = RandomMatrices_DSCC.rectangle(12, 9, 30, random);
+        final DMatrixRMaj expected = new DMatrixRMaj(7, 9);
+        CommonOps_DDRM.mult(dense, ConvertDMatrixStruct.convert(sparse, (DMatrixRMaj) null), expected);
+        assertTrue(MatrixFeatures_DDRM.isIdentical(expected, (DMatrixRMaj) EJMLUtil.mult(dense, sparse), 1e-12));
+    }
+
+    @Property(tries = 20)
+    void fusedProductsShouldMatchMaterializedProducts(@ForAll @DoubleRange(min = -10, max = 10) double scale, @ForAll long seed) {
+        final Random random = new Random(seed);
+        final DMatrixRMaj a = RandomMatrices_DDRM.rectangle(4, 3, random);
+        final DMatrixRMaj b = RandomMatrices_DDRM.rectangle(4, 5, random);
+        final DMatrixRMaj c = RandomMatrices_DDRM.rectangle(3, 5, random);
+        final DMatrixRMaj v = RandomMatrices_DDRM.rectangle(5, 1, random);
+
+        // scale * a^T * b - c, and (scale * a^T * b - c) * (scale * v)
+        final MatrixExpression sum = MatrixSum.sum(
+                new MatrixProduct(new TransposeExpression(new ScaledMatrix(scale, new DMatrixExpression(a))), new DMatrixExpression(b)),
+                new ScaledMatrix(-1.0, new DMatrixExpression(c))
+        );
+        final VectorExpression product = new MatrixVectorProduct(sum, new ScaledVector(scale, new DMatrixColumnVectorExpression(v)));
+
+        final DMatrixRMaj expectedSum = new DMatrixRMaj(3, 5);
+        CommonOps_DDRM.multTransA(scale, a, b, expectedSum);
+        CommonOps_DDRM.subtractEquals(expectedSum, c);
+        final DMatrixRMaj expectedProduct = new DMatrixRMaj(3, 1);
+        CommonOps_DDRM.mult(scale, expectedSum, v, expectedProduct);
+
+        final Model.ParameterBindings bindings = new Model().createBinder();
+        assertMatrixEquals(expectedSum, sum.evaluate(bindings));
+        assertMatrixEquals(expectedProduct, product.evaluate(bindings));
+        assertMatrixEquals(expectedProduct, VectorSum.sum(product, new DMatrixColumnVectorExpression(new DMatrixRMaj(3, 1))).evaluate(bindings));
+    }
 }